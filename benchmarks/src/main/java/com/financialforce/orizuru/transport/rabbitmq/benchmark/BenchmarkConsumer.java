@@ -0,0 +1,58 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq.benchmark;
+
+import com.rabbitmq.client.Channel;
+
+import com.financialforce.orizuru.exception.consumer.handler.HandleMessageException;
+import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.Transport;
+import com.financialforce.orizuru.transport.rabbitmq.DefaultConsumer;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger;
+
+/**
+ * Consumer that echoes each message, keeping the last one so the benchmark can hand it to JMH.
+ */
+class BenchmarkConsumer extends DefaultConsumer<Transport, Transport> {
+
+	private Transport lastInput;
+
+	BenchmarkConsumer(Channel channel, String outgoingQueueName, IAcknowledger acknowledger) {
+		super(channel, "input", outgoingQueueName, acknowledger);
+	}
+
+	@Override
+	public Transport handleMessage(Context context, Transport input) throws HandleMessageException {
+		lastInput = input;
+		return input;
+	}
+
+	Transport getLastInput() {
+		return lastInput;
+	}
+
+}
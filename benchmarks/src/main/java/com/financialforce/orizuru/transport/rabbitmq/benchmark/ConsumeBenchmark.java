@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Envelope;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.financialforce.orizuru.transport.Transport;
+import com.financialforce.orizuru.transport.rabbitmq.AckCoalescer;
+import com.financialforce.orizuru.transport.rabbitmq.TransportDecoder;
+
+/**
+ * Measures {@code DefaultConsumer.handleDelivery} through Avro decoding and acknowledgement, without publishing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsumeBenchmark {
+
+	@Param({ "64", "1024", "16384" })
+	public int payloadSize;
+
+	@Param({ "abstract", "reusable", "reusable-records" })
+	public String decode;
+
+	@Param({ "auto", "coalesced" })
+	public String ack;
+
+	private BenchmarkConsumer consumer;
+
+	private AckCoalescer acknowledger;
+
+	private byte[] body;
+
+	private long deliveryTag;
+
+	@Setup
+	public void setup() throws Exception {
+
+		StubChannel channel = new StubChannel();
+
+		if ("coalesced".equals(ack)) {
+			acknowledger = new AckCoalescer(channel.getChannel(), 64, 10);
+		}
+
+		consumer = new BenchmarkConsumer(channel.getChannel(), null, acknowledger);
+
+		if (!"abstract".equals(decode)) {
+			consumer.setTransportDecoder(new TransportDecoder("reusable-records".equals(decode)));
+		}
+
+		body = Payloads.delivery(payloadSize);
+
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (acknowledger != null) {
+			acknowledger.close();
+		}
+	}
+
+	@Benchmark
+	public Transport handleDelivery() throws Exception {
+		consumer.handleDelivery("benchmark", new Envelope(++deliveryTag, false, "", "input"), null, body);
+		return consumer.getLastInput();
+	}
+
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+
+import com.financialforce.orizuru.exception.OrizuruException;
+import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.Transport;
+
+/**
+ * Builds the messages used by the benchmarks.
+ * <p>
+ * The message content is itself a {@link Transport} record, as it is the one specific record every deployment has on
+ * its classpath; its first field is padded to the requested payload size.
+ */
+final class Payloads {
+
+	private static final String CONTEXT_SCHEMA = "{\"name\":\"BenchmarkContext\",\"type\":\"record\",\"fields\":[{\"name\":\"user\",\"type\":\"string\"}]}";
+
+	private Payloads() {
+	}
+
+	static Transport message(int payloadSize) {
+		char[] padding = new char[payloadSize];
+		Arrays.fill(padding, 'x');
+		return new Transport(new String(padding), ByteBuffer.allocate(0), "", ByteBuffer.allocate(0));
+	}
+
+	static byte[] delivery(int payloadSize) throws IOException {
+		byte[] content = encode(message(payloadSize));
+		return encode(new Transport(CONTEXT_SCHEMA, ByteBuffer.wrap(new byte[] { 8, 'u', 's', 'e', 'r' }), Transport.class.getName(), ByteBuffer.wrap(content)));
+	}
+
+	static Context context() throws OrizuruException {
+		Context context = new Context();
+		context.decodeFromTransport(new Transport(CONTEXT_SCHEMA, ByteBuffer.wrap(new byte[] { 8, 'u', 's', 'e', 'r' }), "", ByteBuffer.allocate(0)));
+		return context;
+	}
+
+	private static byte[] encode(Transport transport) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+		new SpecificDatumWriter<Transport>(Transport.class).write(transport, encoder);
+		encoder.flush();
+		return out.toByteArray();
+	}
+
+}
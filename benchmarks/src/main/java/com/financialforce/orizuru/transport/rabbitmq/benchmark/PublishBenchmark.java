@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq.benchmark;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.AMQP;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.Transport;
+import com.financialforce.orizuru.transport.rabbitmq.ConfirmTracker;
+import com.financialforce.orizuru.transport.rabbitmq.DefaultPublisher;
+import com.financialforce.orizuru.transport.rabbitmq.TransportEncoder;
+
+/**
+ * Measures {@code DefaultPublisher.publish}, serialisation and send, against a {@link StubChannel}.
+ * <p>
+ * Comparing the {@code abstract} and {@code pooled} encodings with {@code -prof gc} shows the allocation per published
+ * message of each serialisation path. {@code publishWithProperties} sends every message with its own properties, so
+ * with {@code fingerprint} enabled it measures merging the schema fingerprint into properties that are never reused.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublishBenchmark {
+
+	@Param({ "64", "1024", "16384" })
+	public int payloadSize;
+
+	@Param({ "abstract", "pooled" })
+	public String encode;
+
+	@Param({ "false", "true" })
+	public boolean confirms;
+
+	@Param({ "false", "true" })
+	public boolean fingerprint;
+
+	private DefaultPublisher<Transport> publisher;
+
+	private Context context;
+
+	private Transport message;
+
+	private long sequence;
+
+	@Setup
+	public void setup() throws Exception {
+
+		StubChannel channel = new StubChannel();
+		ConfirmTracker tracker = confirms ? new ConfirmTracker(channel.getChannel(), 1024) : null;
+
+		publisher = new DefaultPublisher<Transport>(channel.getChannel(), "output", tracker);
+
+		if ("pooled".equals(encode)) {
+			publisher.setTransportEncoder(new TransportEncoder(TransportEncoder.DEFAULT_INITIAL_CAPACITY, TransportEncoder.DEFAULT_MAX_RETAINED_CAPACITY, fingerprint));
+		}
+
+		context = Payloads.context();
+		message = Payloads.message(payloadSize);
+
+	}
+
+	@Benchmark
+	public byte[] publish() throws Exception {
+		return publisher.publish(context, message);
+	}
+
+	@Benchmark
+	public byte[] publishWithProperties() throws Exception {
+		AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+				.messageId(Long.toString(sequence++))
+				.headers(Collections.singletonMap("tenant", "benchmark"))
+				.build();
+		return publisher.publish(context, message, properties);
+	}
+
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+
+/**
+ * In-process stand-in for a RabbitMQ {@link Channel}.
+ * <p>
+ * Publishes are counted and discarded; in confirm mode each publish is confirmed by the registered
+ * {@link ConfirmListener} before {@code basicPublish} returns. Every other method does nothing and returns the default
+ * value for its return type.
+ */
+public class StubChannel implements InvocationHandler {
+
+	private final Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class }, this);
+
+	private final AtomicLong nextPublishSeqNo = new AtomicLong(1);
+
+	private final AtomicLong published = new AtomicLong();
+
+	private final AtomicLong acknowledged = new AtomicLong();
+
+	private volatile ConfirmListener confirmListener;
+
+	public Channel getChannel() {
+		return channel;
+	}
+
+	public long getPublished() {
+		return published.get();
+	}
+
+	public long getAcknowledged() {
+		return acknowledged.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+	 */
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+		switch (method.getName()) {
+
+			case "basicPublish":
+				published.incrementAndGet();
+				if (confirmListener != null) {
+					confirmListener.handleAck(nextPublishSeqNo.getAndIncrement(), false);
+				}
+				return null;
+
+			case "basicAck":
+				acknowledged.incrementAndGet();
+				return null;
+
+			case "getNextPublishSeqNo":
+				return nextPublishSeqNo.get();
+
+			case "addConfirmListener":
+				if (args.length == 1 && args[0] instanceof ConfirmListener) {
+					confirmListener = (ConfirmListener) args[0];
+				}
+				return null;
+
+			case "isOpen":
+				return true;
+
+			case "equals":
+				return proxy == args[0];
+
+			case "hashCode":
+				return System.identityHashCode(proxy);
+
+			case "toString":
+				return "StubChannel";
+
+			default:
+				return defaultValue(method.getReturnType());
+
+		}
+
+	}
+
+	private static Object defaultValue(Class<?> type) {
+
+		if (type == boolean.class) {
+			return false;
+		}
+
+		if (type == int.class) {
+			return 0;
+		}
+
+		if (type == long.class) {
+			return 0L;
+		}
+
+		return null;
+
+	}
+
+}
@@ -0,0 +1,313 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import com.rabbitmq.client.impl.recovery.AutorecoveringChannel;
+import com.rabbitmq.client.impl.recovery.RecoveryAwareChannelN;
+
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger;
+
+/**
+ * {@link IAcknowledger} that coalesces acknowledgements into a single {@code basicAck(deliveryTag, true)}.
+ * <p>
+ * Acknowledgements are sent once {@code batchSize} deliveries have been handled or {@code maxDelayMillis} has elapsed,
+ * whichever comes first. Only the contiguous run of settled delivery tags is acknowledged, so deliveries that complete
+ * out of order are never acknowledged before the deliveries preceding them. Rejected deliveries are settled too, but the
+ * multiple acknowledgement is only ever sent up to a delivery that was acknowledged: the broker no longer holds a
+ * rejected delivery, and acknowledging its tag would close the channel with an unknown delivery tag error.
+ * <p>
+ * The batch size should be kept below the consumer prefetch count, otherwise the broker stops delivering before a
+ * batch fills and throughput is bounded by the flush interval.
+ * {@link MessageQueue#consume(String, com.rabbitmq.client.Channel, DefaultConsumer, AdaptivePrefetch)} rejects an
+ * {@link AdaptivePrefetch} whose minimum is below the batch size.
+ * <p>
+ * When a channel is recovered the client keeps numbering delivery tags on from the lost channel's, and discards
+ * acknowledgements for the lost channel's tags. Those tags are skipped on recovery, whether or not they were settled,
+ * so that deliveries that never complete on the lost channel do not hold back acknowledgements on the recovered one;
+ * the broker redelivers their messages.
+ */
+public class AckCoalescer implements IAcknowledger, RecoveryListener {
+
+	private static final int COMPACT_THRESHOLD = 4096;
+
+	private final Channel channel;
+
+	private final int batchSize;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final boolean ownsScheduler;
+
+	private final ScheduledFuture<?> timer;
+
+	/**
+	 * Delivery tags that have been settled, indexed from {@code base}.
+	 */
+	private final BitSet settled = new BitSet();
+
+	/**
+	 * Settled delivery tags that were rejected rather than acknowledged, indexed from {@code base}.
+	 */
+	private final BitSet rejected = new BitSet();
+
+	private long base = 1;
+
+	private long acknowledged;
+
+	private int unflushed;
+
+	public AckCoalescer(Channel channel, int batchSize, long maxDelayMillis) {
+		this(channel, batchSize, maxDelayMillis, Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "orizuru-ack-coalescer");
+			thread.setDaemon(true);
+			return thread;
+		}), true);
+	}
+
+	public AckCoalescer(Channel channel, int batchSize, long maxDelayMillis, ScheduledExecutorService scheduler) {
+		this(channel, batchSize, maxDelayMillis, scheduler, false);
+	}
+
+	private AckCoalescer(Channel channel, int batchSize, long maxDelayMillis, ScheduledExecutorService scheduler, boolean ownsScheduler) {
+
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		}
+
+		this.channel = channel;
+		this.batchSize = batchSize;
+		this.scheduler = scheduler;
+		this.ownsScheduler = ownsScheduler;
+
+		if (maxDelayMillis > 0) {
+			this.timer = scheduler.scheduleWithFixedDelay(this::flushQuietly, maxDelayMillis, maxDelayMillis, TimeUnit.MILLISECONDS);
+		} else {
+			this.timer = null;
+		}
+
+		if (channel instanceof Recoverable) {
+			((Recoverable) channel).addRecoveryListener(this);
+		}
+
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger#ack(long)
+	 */
+	@Override
+	public synchronized void ack(long deliveryTag) throws IOException {
+
+		settle(deliveryTag, false);
+
+		if (++unflushed >= batchSize) {
+			flush();
+		}
+
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger#nack(long, boolean)
+	 */
+	@Override
+	public synchronized void nack(long deliveryTag, boolean requeue) throws IOException {
+		channel.basicNack(deliveryTag, false, requeue);
+		settle(deliveryTag, true);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger#flush()
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+
+		long contiguous = getContiguous();
+
+		if (contiguous > acknowledged) {
+			long highest = base + rejected.previousClearBit((int) (contiguous - base));
+			if (highest > acknowledged) {
+				channel.basicAck(highest, true);
+			}
+			acknowledged = contiguous;
+		}
+
+		unflushed = 0;
+		compact();
+
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger#close()
+	 */
+	@Override
+	public void close() {
+
+		if (timer != null) {
+			timer.cancel(false);
+		}
+
+		if (ownsScheduler) {
+			scheduler.shutdown();
+		}
+
+		flushQuietly();
+
+	}
+
+	/* (non-Javadoc)
+	 * @see com.rabbitmq.client.RecoveryListener#handleRecovery(com.rabbitmq.client.Recoverable)
+	 */
+	@Override
+	public synchronized void handleRecovery(Recoverable recoverable) {
+
+		long offset = getDeliveryTagOffset(recoverable);
+		if (offset < base) {
+			return;
+		}
+
+		long skipped = offset + 1 - base;
+		if (skipped >= settled.length()) {
+			settled.clear();
+			rejected.clear();
+			base = offset + 1;
+		} else {
+			advance((int) skipped);
+		}
+
+		acknowledged = Math.max(acknowledged, offset);
+		unflushed = 0;
+
+	}
+
+	/* (non-Javadoc)
+	 * @see com.rabbitmq.client.RecoveryListener#handleRecoveryStarted(com.rabbitmq.client.Recoverable)
+	 */
+	@Override
+	public void handleRecoveryStarted(Recoverable recoverable) {
+		// the lost channel's delivery tags are skipped once the channel has been recovered
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Returns the highest delivery tag for which it and every earlier delivery have been acknowledged or rejected to the
+	 * broker.
+	 *
+	 * @return The delivery tag.
+	 */
+	public synchronized long getAcknowledged() {
+		return acknowledged;
+	}
+
+	/**
+	 * Returns the highest delivery tag for which it and every earlier delivery have been settled.
+	 *
+	 * @return The delivery tag.
+	 */
+	public synchronized long getContiguous() {
+		return base + settled.nextClearBit(0) - 1;
+	}
+
+	private void settle(long deliveryTag, boolean reject) {
+
+		if (deliveryTag < base) {
+			return;
+		}
+
+		long index = deliveryTag - base;
+		if (index > Integer.MAX_VALUE - 1) {
+			throw new IllegalStateException("Delivery tag " + deliveryTag + " is too far ahead of " + base);
+		}
+
+		settled.set((int) index);
+		rejected.set((int) index, reject);
+
+	}
+
+	private void compact() {
+
+		int done = settled.nextClearBit(0);
+		if (done < COMPACT_THRESHOLD) {
+			return;
+		}
+
+		advance(done);
+
+	}
+
+	/**
+	 * Moves the base past the given number of delivery tags.
+	 */
+	private void advance(int count) {
+		shift(settled, count);
+		shift(rejected, count);
+		base += count;
+	}
+
+	private static void shift(BitSet bits, int count) {
+		BitSet remaining = bits.get(count, Math.max(count, bits.length()));
+		bits.clear();
+		bits.or(remaining);
+	}
+
+	/**
+	 * Returns the highest delivery tag of the channel lost before the given channel was recovered, or 0 if the client
+	 * does not number the recovered channel's delivery tags on from the lost channel's.
+	 */
+	private static long getDeliveryTagOffset(Recoverable recoverable) {
+
+		if (recoverable instanceof AutorecoveringChannel) {
+			Channel delegate = ((AutorecoveringChannel) recoverable).getDelegate();
+			if (delegate instanceof RecoveryAwareChannelN) {
+				return ((RecoveryAwareChannelN) delegate).getActiveDeliveryTagOffset();
+			}
+		}
+
+		return 0;
+
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (Exception expected) {
+			// the channel has failed; unacknowledged deliveries will be redelivered
+		}
+	}
+
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Adjusts the prefetch count of a channel from the observed handling latency and in-flight message count.
+ * <p>
+ * The target prefetch buffers roughly {@code targetBufferMillis} of work per worker: fast handlers get a deep buffer
+ * so they never wait on the broker, slow handlers get a shallow one so messages are not held in memory for long. The
+ * target is further capped so that the in-flight messages fit within {@code maxBufferedBytes}.
+ * <p>
+ * Prefetch is applied with {@code global=true}, which RabbitMQ treats as a channel wide limit that can be changed
+ * while the consumer is running; the consumer should therefore have the channel to itself. The consumer must use
+ * explicit acknowledgement, since the broker ignores prefetch otherwise, and with an {@link AckCoalescer} the minimum
+ * prefetch must be at least its batch size so that a batch can always fill.
+ */
+public class AdaptivePrefetch {
+
+	public static final long DEFAULT_ADJUST_INTERVAL_MILLIS = 1000;
+
+	private static final double SMOOTHING = 0.2;
+
+	private final Channel channel;
+
+	private final int minPrefetch;
+
+	private final int maxPrefetch;
+
+	private final long targetBufferNanos;
+
+	private final long maxBufferedBytes;
+
+	private final long adjustIntervalNanos;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private volatile int prefetch;
+
+	private volatile int concurrency = 1;
+
+	private double averageHandleNanos;
+
+	private double averageSize;
+
+	private long lastAdjusted;
+
+	public AdaptivePrefetch(Channel channel, int minPrefetch, int maxPrefetch, long targetBufferMillis, long maxBufferedBytes) {
+		this(channel, minPrefetch, maxPrefetch, targetBufferMillis, maxBufferedBytes, DEFAULT_ADJUST_INTERVAL_MILLIS);
+	}
+
+	public AdaptivePrefetch(Channel channel, int minPrefetch, int maxPrefetch, long targetBufferMillis, long maxBufferedBytes,
+			long adjustIntervalMillis) {
+
+		if (minPrefetch < 1 || maxPrefetch < minPrefetch) {
+			throw new IllegalArgumentException("Prefetch bounds must satisfy 1 <= min <= max");
+		}
+
+		this.channel = channel;
+		this.minPrefetch = minPrefetch;
+		this.maxPrefetch = maxPrefetch;
+		this.targetBufferNanos = TimeUnit.MILLISECONDS.toNanos(targetBufferMillis);
+		this.maxBufferedBytes = maxBufferedBytes;
+		this.adjustIntervalNanos = TimeUnit.MILLISECONDS.toNanos(adjustIntervalMillis);
+		this.prefetch = minPrefetch;
+
+	}
+
+	/**
+	 * Applies the initial prefetch count to the channel. Must be called before the consumer is registered.
+	 *
+	 * @throws IOException Exception thrown if the prefetch count cannot be applied.
+	 */
+	public synchronized void start() throws IOException {
+		channel.basicQos(prefetch, true);
+		lastAdjusted = System.nanoTime();
+	}
+
+	/**
+	 * Records that a message has been delivered.
+	 *
+	 * @param size The size of the message body in bytes.
+	 */
+	public void onDelivery(int size) {
+
+		int current = inFlight.incrementAndGet();
+
+		synchronized (this) {
+
+			averageSize = average(averageSize, size);
+
+			if (maxBufferedBytes > 0 && current * averageSize > maxBufferedBytes && prefetch > minPrefetch) {
+				adjust(computeTarget());
+			}
+
+		}
+
+	}
+
+	/**
+	 * Records that a message has been handled and adjusts the prefetch count if the adjustment interval has elapsed.
+	 *
+	 * @param handleNanos The time taken to handle the message.
+	 */
+	public void onComplete(long handleNanos) {
+
+		inFlight.decrementAndGet();
+
+		synchronized (this) {
+
+			averageHandleNanos = average(averageHandleNanos, handleNanos);
+
+			if (System.nanoTime() - lastAdjusted >= adjustIntervalNanos) {
+				adjust(computeTarget());
+			}
+
+		}
+
+	}
+
+	/**
+	 * Returns the prefetch count that the current observations call for.
+	 *
+	 * @return The target prefetch count, between the configured bounds.
+	 */
+	public synchronized int computeTarget() {
+
+		if (averageHandleNanos <= 0) {
+			return prefetch;
+		}
+
+		double perWorker = 1 + targetBufferNanos / averageHandleNanos;
+		double target = Math.ceil(perWorker * concurrency);
+
+		if (maxBufferedBytes > 0 && averageSize > 0) {
+			target = Math.min(target, Math.floor(maxBufferedBytes / averageSize));
+		}
+
+		return (int) Math.max(minPrefetch, Math.min(maxPrefetch, target));
+
+	}
+
+	public int getPrefetch() {
+		return prefetch;
+	}
+
+	public int getMinPrefetch() {
+		return minPrefetch;
+	}
+
+	public int getMaxPrefetch() {
+		return maxPrefetch;
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Sets the number of workers handling messages concurrently; the target buffer is kept per worker.
+	 *
+	 * @param concurrency The number of workers.
+	 */
+	public void setConcurrency(int concurrency) {
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	private void adjust(int target) {
+
+		lastAdjusted = System.nanoTime();
+
+		// ignore changes of less than a quarter to avoid chattering on noisy latencies
+		if (target == prefetch || Math.abs(target - prefetch) * 4 < prefetch) {
+			return;
+		}
+
+		try {
+			channel.basicQos(target, true);
+			prefetch = target;
+		} catch (Exception expected) {
+			// the channel has failed; the consumer will be recovered or shut down
+		}
+
+	}
+
+	private static double average(double average, double sample) {
+		return average == 0 ? sample : average + SMOOTHING * (sample - average);
+	}
+
+}
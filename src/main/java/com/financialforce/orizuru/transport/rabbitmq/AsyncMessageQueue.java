@@ -0,0 +1,237 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+
+import org.apache.avro.generic.GenericContainer;
+
+import com.financialforce.orizuru.interfaces.IPublisher;
+import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IAsyncMessageQueue;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IMessageQueue;
+
+/**
+ * Runs the operations of an {@link IMessageQueue} on a small I/O executor and returns futures for their results.
+ * <p>
+ * Channel creation, consumer registration, publishing and shutdown all block on network round trips, so they are
+ * moved off the caller's thread. Publishing through a {@link DefaultPublisher} uses
+ * {@link DefaultPublisher#publishAsync(Context, GenericContainer)}: the I/O thread is only held while the message is
+ * written, and the returned future completes when the broker confirms it. That future is completed on the
+ * connection thread that delivers the confirm, so dependent actions that publish or block must use the
+ * {@code *Async} variants, or they stall the delivery of every confirm and message on the connection. The I/O thread
+ * can still block while publishing if no pooled channel is free or the confirm window is full.
+ * <p>
+ * {@link #shutdown(DefaultConsumer, long, TimeUnit)} only holds an I/O thread while the cancel is sent. The future
+ * completes once the consumer reports that it has drained, or when a single daemon scheduler thread ends the wait at
+ * the timeout.
+ * <p>
+ * Unless an executor is supplied, a fixed pool of {@link #DEFAULT_THREADS} daemon threads is created and shut down by
+ * {@link #close()}. The scheduler is always shut down by {@link #close()}.
+ *
+ * @param <I> The type of message consumed.
+ * @param <O> The type of message published.
+ */
+public class AsyncMessageQueue<I extends GenericContainer, O extends GenericContainer> implements IAsyncMessageQueue<I, O> {
+
+	public static final int DEFAULT_THREADS = 2;
+
+	private final IMessageQueue<I, O> messageQueue;
+
+	private final Executor executor;
+
+	private final boolean ownsExecutor;
+
+	private final ScheduledExecutorService scheduler;
+
+	public AsyncMessageQueue(IMessageQueue<I, O> messageQueue) {
+		this(messageQueue, Executors.newFixedThreadPool(DEFAULT_THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "orizuru-io");
+			thread.setDaemon(true);
+			return thread;
+		}), true);
+	}
+
+	public AsyncMessageQueue(IMessageQueue<I, O> messageQueue, Executor executor) {
+		this(messageQueue, executor, false);
+	}
+
+	private AsyncMessageQueue(IMessageQueue<I, O> messageQueue, Executor executor, boolean ownsExecutor) {
+		this.messageQueue = messageQueue;
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "orizuru-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		timer.setRemoveOnCancelPolicy(true);
+		this.scheduler = timer;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAsyncMessageQueue#createChannel()
+	 */
+	@Override
+	public CompletableFuture<Channel> createChannel() {
+		return call(messageQueue::createChannel);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAsyncMessageQueue#leaseChannel()
+	 */
+	@Override
+	public CompletableFuture<Channel> leaseChannel() {
+		return call(messageQueue::leaseChannel);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAsyncMessageQueue#releaseChannel(com.rabbitmq.client.Channel)
+	 */
+	@Override
+	public void releaseChannel(Channel channel) {
+		messageQueue.releaseChannel(channel);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAsyncMessageQueue#consume(String, Channel, DefaultConsumer)
+	 */
+	@Override
+	public CompletableFuture<Void> consume(String consumerTag, Channel channel, DefaultConsumer<I, O> consumer) {
+		return call(() -> {
+			messageQueue.consume(consumerTag, channel, consumer);
+			return null;
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAsyncMessageQueue#consume(String, Channel, DefaultConsumer, int)
+	 */
+	@Override
+	public CompletableFuture<Void> consume(String consumerTag, Channel channel, DefaultConsumer<I, O> consumer, int prefetchCount) {
+		return call(() -> {
+			messageQueue.consume(consumerTag, channel, consumer, prefetchCount);
+			return null;
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAsyncMessageQueue#publish(IPublisher, Context, GenericContainer)
+	 */
+	@Override
+	public CompletableFuture<Void> publish(IPublisher<O> publisher, Context context, O message) {
+
+		if (publisher instanceof DefaultPublisher) {
+			DefaultPublisher<O> confirming = (DefaultPublisher<O>) publisher;
+			return call(() -> confirming.publishAsync(context, message)).thenCompose(confirmed -> confirmed);
+		}
+
+		return call(() -> {
+			publisher.publish(context, message);
+			return null;
+		});
+
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAsyncMessageQueue#shutdown(DefaultConsumer, long, TimeUnit)
+	 */
+	@Override
+	public CompletableFuture<DrainReport> shutdown(DefaultConsumer<I, O> consumer, long timeout, TimeUnit unit) {
+		return call(() -> consumer.shutdownAsync(timeout, unit, executor, scheduler)).thenCompose(drained -> drained);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAsyncMessageQueue#close()
+	 */
+	@Override
+	public CompletableFuture<Void> close() {
+
+		CompletableFuture<Void> closed = call(() -> {
+			messageQueue.close();
+			return null;
+		});
+
+		closed.whenComplete((result, ex) -> shutdownExecutors());
+
+		return closed;
+
+	}
+
+	private void shutdownExecutors() {
+		scheduler.shutdown();
+		if (ownsExecutor) {
+			((ExecutorService) executor).shutdown();
+		}
+	}
+
+	/**
+	 * Runs the call on the I/O executor, completing the future with its result or with anything it threw, including
+	 * errors, so that the future is never left incomplete.
+	 */
+	private <T> CompletableFuture<T> call(Callable<T> callable) {
+
+		CompletableFuture<T> future = new CompletableFuture<T>();
+
+		try {
+			executor.execute(() -> {
+				try {
+					future.complete(callable.call());
+				} catch (Throwable ex) {
+					future.completeExceptionally(ex);
+				}
+			});
+		} catch (RuntimeException ex) {
+			future.completeExceptionally(ex);
+		}
+
+		return future;
+
+	}
+
+	public IMessageQueue<I, O> getMessageQueue() {
+		return messageQueue;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+}
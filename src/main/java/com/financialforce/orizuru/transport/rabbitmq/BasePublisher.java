@@ -0,0 +1,268 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+
+import org.apache.avro.generic.GenericContainer;
+
+import com.financialforce.orizuru.AbstractPublisher;
+import com.financialforce.orizuru.exception.publisher.OrizuruPublisherException;
+import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IRoutingKeyResolver;
+
+/**
+ * Configuration and send path shared by the RabbitMQ implementations of the Orizuru {@link AbstractPublisher}.
+ * <p>
+ * A message is serialised, with the {@link TransportEncoder} if one is set, and described by the publisher's or the
+ * message's properties, with the fingerprint of its schema in the {@link TransportEncoder#FINGERPRINT_HEADER} header
+ * if the encoder fingerprints schemas. It is then compressed if a {@link Compressor} is set and the message is large
+ * enough, and split into chunks sent back-to-back if a {@link Chunker} is set and the message is still larger than its
+ * chunk size. Subclasses decide which channel a message is sent on and how its publish is confirmed.
+ *
+ * @param <O> The type of message published.
+ */
+public abstract class BasePublisher<O extends GenericContainer> extends AbstractPublisher<O> {
+
+	private TransportEncoder encoder;
+
+	private IMetrics metrics;
+
+	private AMQP.BasicProperties properties;
+
+	private String exchange = "";
+
+	private String routingKey;
+
+	private IRoutingKeyResolver<O> routingKeyResolver;
+
+	private Compressor compressor;
+
+	private Chunker chunker;
+
+	public BasePublisher(String queueName) {
+		super(queueName);
+		this.routingKey = queueName;
+	}
+
+	public TransportEncoder getTransportEncoder() {
+		return encoder;
+	}
+
+	/**
+	 * Sets the encoder used to serialise messages into reusable per-thread buffers, or null to serialise each message
+	 * with the Orizuru {@link AbstractPublisher}.
+	 *
+	 * @param encoder The transport encoder.
+	 */
+	public void setTransportEncoder(TransportEncoder encoder) {
+		this.encoder = encoder;
+	}
+
+	public AMQP.BasicProperties getProperties() {
+		return properties;
+	}
+
+	/**
+	 * Sets the properties sent with every message, such as its delivery mode, priority, content type, expiration and
+	 * headers, or null to send none. The properties are immutable and shared by every publish.
+	 *
+	 * @param properties The message properties.
+	 */
+	public void setProperties(AMQP.BasicProperties properties) {
+		this.properties = properties;
+	}
+
+	public String getExchange() {
+		return exchange;
+	}
+
+	/**
+	 * Sets the exchange messages are published to. Unless a routing key is set, messages are routed by the queue name.
+	 *
+	 * @param exchange The exchange name, or the empty string for the default exchange.
+	 */
+	public void setExchange(String exchange) {
+		this.exchange = exchange;
+	}
+
+	public String getRoutingKey() {
+		return routingKey;
+	}
+
+	/**
+	 * Sets the routing key used for every message.
+	 *
+	 * @param routingKey The routing key.
+	 */
+	public void setRoutingKey(String routingKey) {
+		this.routingKey = routingKey;
+	}
+
+	public IRoutingKeyResolver<O> getRoutingKeyResolver() {
+		return routingKeyResolver;
+	}
+
+	/**
+	 * Sets the resolver that computes the routing key of each message, or null to use the fixed routing key.
+	 *
+	 * @param routingKeyResolver The routing key resolver.
+	 */
+	public void setRoutingKeyResolver(IRoutingKeyResolver<O> routingKeyResolver) {
+		this.routingKeyResolver = routingKeyResolver;
+	}
+
+	public Compressor getCompressor() {
+		return compressor;
+	}
+
+	/**
+	 * Sets the compressor applied to messages at or above its size threshold, or null to send messages uncompressed.
+	 *
+	 * @param compressor The compressor.
+	 */
+	public void setCompressor(Compressor compressor) {
+		this.compressor = compressor;
+	}
+
+	public Chunker getChunker() {
+		return chunker;
+	}
+
+	/**
+	 * Sets the chunker that splits messages larger than its chunk size, or null to send every message whole.
+	 *
+	 * @param chunker The chunker.
+	 */
+	public void setChunker(Chunker chunker) {
+		this.chunker = chunker;
+	}
+
+	public IMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the metrics recorder for publish times, and confirm latencies if publishes are confirmed, or null to record
+	 * nothing.
+	 * <p>
+	 * The publish time of a message sent in a batch is the batch's time divided evenly between its messages.
+	 *
+	 * @param metrics The metrics recorder.
+	 */
+	public void setMetrics(IMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	protected byte[] serialise(Context context, O message) throws OrizuruPublisherException {
+		return encoder == null ? super.publish(context, message) : encoder.encode(context, message);
+	}
+
+	/**
+	 * Returns the properties to send a message with, including its schema fingerprint if the encoder adds one.
+	 */
+	protected AMQP.BasicProperties describe(AMQP.BasicProperties messageProperties, O message) {
+		return encoder == null ? messageProperties : encoder.getProperties(messageProperties, message.getSchema());
+	}
+
+	protected String route(Context context, O message) {
+		return routingKeyResolver == null ? routingKey : routingKeyResolver.getRoutingKey(context, message);
+	}
+
+	protected byte[] compress(byte[] body) throws IOException {
+		return compressor == null ? body : compressor.compress(body);
+	}
+
+	/**
+	 * Returns the properties of a message as sent, with the compressor's {@code content-encoding} if it was compressed.
+	 */
+	protected AMQP.BasicProperties encoded(byte[] wire, byte[] body, AMQP.BasicProperties messageProperties) {
+		return wire == body ? messageProperties : compressor.getProperties(messageProperties);
+	}
+
+	/**
+	 * Returns whether a message as sent is split into chunks.
+	 */
+	protected boolean isChunked(byte[] wire) {
+		return chunker != null && chunker.accepts(wire);
+	}
+
+	/**
+	 * Sends a message as compressed, in chunks if it is too large. Every full chunk is copied into the same buffer, as
+	 * {@link #sendOne} must not keep a body once it has been sent.
+	 *
+	 * @return A future completed once every chunk has been sent or confirmed.
+	 */
+	protected CompletableFuture<Void> send(Channel channel, String key, byte[] wire, AMQP.BasicProperties wireProperties) throws IOException {
+
+		if (!isChunked(wire)) {
+			return sendOne(channel, key, wire, wireProperties);
+		}
+
+		String id = UUID.randomUUID().toString();
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[chunker.getChunkCount(wire)];
+		byte[] buffer = new byte[chunker.getChunkSize()];
+
+		for (int i = 0; i < futures.length; i++) {
+			futures[i] = sendOne(channel, key, chunker.getChunk(wire, i, buffer), chunker.getProperties(wireProperties, id, i, wire));
+		}
+
+		return CompletableFuture.allOf(futures);
+
+	}
+
+	/**
+	 * Sends a single message or chunk.
+	 *
+	 * @return A future completed once the message has been sent, or confirmed if the subclass confirms publishes.
+	 */
+	protected CompletableFuture<Void> sendOne(Channel channel, String key, byte[] body, AMQP.BasicProperties messageProperties)
+			throws IOException {
+		channel.basicPublish(exchange, key, messageProperties, body);
+		return CompletableFuture.completedFuture(null);
+	}
+
+	protected void recordPublish(long started, int count) {
+
+		if (metrics == null || count == 0) {
+			return;
+		}
+
+		long each = (System.nanoTime() - started) / count;
+		for (int i = 0; i < count; i++) {
+			metrics.recordPublish(queueName, each);
+		}
+
+	}
+
+}
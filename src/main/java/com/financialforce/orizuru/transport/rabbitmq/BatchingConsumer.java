@@ -0,0 +1,379 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+import org.apache.avro.generic.GenericContainer;
+
+import com.financialforce.orizuru.exception.consumer.handler.HandleMessageException;
+import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger;
+
+/**
+ * Consumer that hands decoded messages to {@link #handleBatch(List, List)} in batches, for handlers where a round trip
+ * per message dominates the cost of handling it.
+ * <p>
+ * Messages are decoded one at a time as they are delivered and collected until {@code maxBatchSize} have arrived or
+ * {@code maxDelayMillis} has elapsed since the first of them, whichever comes first. The batch is then handled in a
+ * single call and acknowledged through an {@link AckCoalescer}, which sends one {@code basicAck(deliveryTag, true)} for
+ * the whole batch. If the handler throws, every message in the batch is rejected, and is requeued unless it had
+ * already been redelivered. Deliveries that fail to decode are rejected individually.
+ * <p>
+ * A batch that fills is handled on the thread that delivered its last message; one that times out is handled on the
+ * consumer's scheduler. Each consumer creates a scheduler of its own, shut down when the consumer is closed, so a slow
+ * handler only delays its own batches. A scheduler may be supplied instead to share one thread between consumers
+ * whose handlers are quick; it is not shut down by the consumer.
+ * <p>
+ * The prefetch count should be at least {@code maxBatchSize}, otherwise the broker stops delivering before a batch
+ * fills and every batch waits for the delay. A batch still pending when the consumer is shut down with
+ * {@link #shutdown(long, TimeUnit)} or cancelled is handled before the channel is closed; one pending when the channel
+ * fails is discarded, and the broker redelivers it.
+ *
+ * @param <I> The type of message consumed.
+ * @param <O> The type of message published.
+ */
+public abstract class BatchingConsumer<I extends GenericContainer, O extends GenericContainer> extends DefaultConsumer<I, O> {
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 1000;
+
+	private final Object lock = new Object();
+
+	private final ScheduledExecutorService scheduler;
+
+	private final boolean ownsScheduler;
+
+	private final int maxBatchSize;
+
+	private final long maxDelayMillis;
+
+	private final AckCoalescer settlements;
+
+	private final List<Envelope> envelopes = new ArrayList<Envelope>();
+
+	private final List<Context> contexts = new ArrayList<Context>();
+
+	private final List<I> messages = new ArrayList<I>();
+
+	/**
+	 * Delivery tags of batched messages that the base consumer has not yet tried to acknowledge.
+	 */
+	private final Set<Long> batched = new HashSet<Long>();
+
+	private ScheduledFuture<?> timer;
+
+	private volatile long batches;
+
+	private volatile long failedBatches;
+
+	public BatchingConsumer(Channel channel, String queueName) {
+		this(channel, queueName, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY_MILLIS);
+	}
+
+	public BatchingConsumer(Channel channel, String queueName, int maxBatchSize, long maxDelayMillis) {
+		this(channel, queueName, maxBatchSize, maxDelayMillis, Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "orizuru-batch");
+			thread.setDaemon(true);
+			return thread;
+		}), true);
+	}
+
+	/**
+	 * Creates a consumer whose timed batches are handled on the given scheduler.
+	 *
+	 * @param channel The channel to consume from.
+	 * @param queueName The queue to consume.
+	 * @param maxBatchSize The maximum number of messages in a batch.
+	 * @param maxDelayMillis The maximum time a batch waits to fill after its first message.
+	 * @param scheduler The scheduler on which timed batches are handled; it is not shut down by the consumer.
+	 */
+	public BatchingConsumer(Channel channel, String queueName, int maxBatchSize, long maxDelayMillis, ScheduledExecutorService scheduler) {
+		this(channel, queueName, maxBatchSize, maxDelayMillis, scheduler, false);
+	}
+
+	private BatchingConsumer(Channel channel, String queueName, int maxBatchSize, long maxDelayMillis, ScheduledExecutorService scheduler,
+			boolean ownsScheduler) {
+
+		super(channel, queueName, null, new Acknowledger(new AckCoalescer(channel, Integer.MAX_VALUE, 0, scheduler)));
+
+		if (maxBatchSize < 1 || maxDelayMillis < 1) {
+			throw new IllegalArgumentException("Maximum batch size and delay must be at least 1");
+		}
+
+		Acknowledger acknowledger = (Acknowledger) getAcknowledger();
+		acknowledger.consumer = this;
+
+		this.settlements = acknowledger.settlements;
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelayMillis = maxDelayMillis;
+		this.scheduler = scheduler;
+		this.ownsScheduler = ownsScheduler;
+
+	}
+
+	/**
+	 * Handles a batch of messages.
+	 *
+	 * @param contexts The contexts of the messages, in the same order as the messages.
+	 * @param messages The messages, in delivery order.
+	 * @throws HandleMessageException Exception thrown if the batch cannot be handled, in which case every message in it
+	 * is rejected.
+	 */
+	public abstract void handleBatch(List<Context> contexts, List<I> messages) throws HandleMessageException;
+
+	/**
+	 * Adds the message to the current batch, handling the batch if it is full.
+	 */
+	@Override
+	public O handleMessage(Context context, I input) throws HandleMessageException {
+
+		Envelope envelope = getDeliveryEnvelope();
+
+		synchronized (lock) {
+
+			if (envelopes.isEmpty()) {
+				timer = scheduler.schedule(this::flushQuietly, maxDelayMillis, TimeUnit.MILLISECONDS);
+			}
+
+			envelopes.add(envelope);
+			contexts.add(context);
+			messages.add(input);
+			batched.add(envelope.getDeliveryTag());
+
+			if (envelopes.size() >= maxBatchSize) {
+				flushQuietly();
+			}
+
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * Handles and settles the current batch, if there is one.
+	 *
+	 * @throws IOException Exception thrown if the batch cannot be acknowledged or rejected.
+	 */
+	public void flush() throws IOException {
+
+		synchronized (lock) {
+
+			if (envelopes.isEmpty()) {
+				return;
+			}
+
+			timer.cancel(false);
+
+			List<Envelope> handled = new ArrayList<Envelope>(envelopes);
+			List<Context> handledContexts = new ArrayList<Context>(contexts);
+			List<I> handledMessages = new ArrayList<I>(messages);
+			clear();
+
+			boolean success;
+			try {
+				handleBatch(handledContexts, handledMessages);
+				success = true;
+			} catch (Exception ex) {
+				success = false;
+			}
+
+			settle(handled, success);
+
+		}
+
+	}
+
+	private void settle(List<Envelope> handled, boolean success) throws IOException {
+
+		if (success) {
+			batches++;
+			for (Envelope envelope : handled) {
+				settlements.ack(envelope.getDeliveryTag());
+			}
+			settlements.flush();
+		} else {
+			failedBatches++;
+			for (Envelope envelope : handled) {
+				settlements.nack(envelope.getDeliveryTag(), !envelope.isRedeliver());
+			}
+		}
+
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (IOException expected) {
+			// the channel has failed and the broker will redeliver the batch
+		}
+	}
+
+	/**
+	 * Discards the current batch without settling it; the caller must hold the lock.
+	 */
+	private void clear() {
+		envelopes.clear();
+		contexts.clear();
+		messages.clear();
+	}
+
+	/**
+	 * Handles the current batch if the channel can still be used to settle it, otherwise discards it, and shuts down
+	 * the scheduler if the consumer created it.
+	 */
+	private void close() {
+
+		if (ConnectionPool.isUsable(getChannel())) {
+			flushQuietly();
+		} else {
+			synchronized (lock) {
+				if (timer != null) {
+					timer.cancel(false);
+				}
+				clear();
+			}
+		}
+
+		if (ownsScheduler) {
+			scheduler.shutdown();
+		}
+
+	}
+
+	/**
+	 * Returns whether the base consumer's acknowledgement of the delivery should be ignored because the delivery is
+	 * settled with its batch.
+	 */
+	private boolean isBatched(long deliveryTag) {
+
+		boolean removed;
+		synchronized (lock) {
+			removed = batched.remove(deliveryTag);
+		}
+
+		return removed;
+
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	public int getPending() {
+
+		int pending;
+		synchronized (lock) {
+			pending = envelopes.size();
+		}
+
+		return pending;
+
+	}
+
+	public long getBatches() {
+		return batches;
+	}
+
+	public long getFailedBatches() {
+		return failedBatches;
+	}
+
+	/**
+	 * Passes the base consumer's acknowledgements to the batch's {@link AckCoalescer}, except for batched deliveries,
+	 * which are settled when their batch is handled.
+	 */
+	private static class Acknowledger implements IAcknowledger {
+
+		private final AckCoalescer settlements;
+
+		private BatchingConsumer<?, ?> consumer;
+
+		Acknowledger(AckCoalescer settlements) {
+			this.settlements = settlements;
+		}
+
+		/* (non-Javadoc)
+		 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger#ack(long)
+		 */
+		@Override
+		public void ack(long deliveryTag) throws IOException {
+			if (!consumer.isBatched(deliveryTag)) {
+				settlements.ack(deliveryTag);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger#nack(long, boolean)
+		 */
+		@Override
+		public void nack(long deliveryTag, boolean requeue) throws IOException {
+			settlements.nack(deliveryTag, requeue);
+		}
+
+		/* (non-Javadoc)
+		 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger#flush()
+		 */
+		@Override
+		public void flush() throws IOException {
+			consumer.flush();
+			settlements.flush();
+		}
+
+		/* (non-Javadoc)
+		 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger#close()
+		 */
+		@Override
+		public void close() {
+			consumer.close();
+			settlements.close();
+		}
+
+	}
+
+}
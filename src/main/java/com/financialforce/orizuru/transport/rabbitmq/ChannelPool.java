@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+
+/**
+ * Bounded pool of channels multiplexed over a {@link ConnectionPool}.
+ * <p>
+ * A channel is leased for exclusive use and must be released back to the pool exactly once when the caller has
+ * finished with it. Once the pool is closed, leases fail and released channels are closed instead of pooled.
+ */
+public class ChannelPool {
+
+	private static final long CLOSE_CHECK_MILLIS = 100;
+
+	private final ConnectionPool connectionPool;
+
+	private final BlockingQueue<Channel> idle;
+
+	private final Semaphore permits;
+
+	private final Set<Channel> leased = ConcurrentHashMap.newKeySet();
+
+	private final int size;
+
+	private volatile boolean closed;
+
+	public ChannelPool(ConnectionPool connectionPool, int size) {
+
+		if (size < 1) {
+			throw new IllegalArgumentException("Channel pool size must be at least 1");
+		}
+
+		this.connectionPool = connectionPool;
+		this.idle = new LinkedBlockingQueue<Channel>(size);
+		this.permits = new Semaphore(size, true);
+		this.size = size;
+
+	}
+
+	/**
+	 * Leases a channel, waiting until one is available.
+	 *
+	 * @return An open or recovering channel.
+	 * @throws MessagingException Exception thrown if the pool is closed, if interrupted or the channel cannot be
+	 *             created.
+	 */
+	public Channel lease() throws MessagingException {
+
+		checkOpen();
+
+		try {
+			while (!permits.tryAcquire(CLOSE_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+				checkOpen();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException("Interrupted waiting for a channel", ex);
+		}
+
+		return take();
+
+	}
+
+	/**
+	 * Leases a channel, waiting up to the given timeout for one to become available.
+	 *
+	 * @param timeout The maximum time to wait.
+	 * @param unit The unit of the timeout.
+	 * @return An open or recovering channel.
+	 * @throws MessagingException Exception thrown if the pool is closed, the timeout elapses, if interrupted or the
+	 *             channel cannot be created.
+	 */
+	public Channel lease(long timeout, TimeUnit unit) throws MessagingException {
+
+		checkOpen();
+
+		long remaining = unit.toNanos(timeout);
+		long deadline = System.nanoTime() + remaining;
+
+		try {
+			while (!permits.tryAcquire(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(CLOSE_CHECK_MILLIS)), TimeUnit.NANOSECONDS)) {
+				checkOpen();
+				remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					throw new MessagingException("Timed out waiting for a channel", null);
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException("Interrupted waiting for a channel", ex);
+		}
+
+		return take();
+
+	}
+
+	/**
+	 * Returns a leased channel to the pool. Closed channels are discarded and replaced on a later lease; channels that
+	 * are being recovered by the client are kept. A channel that cannot be pooled because the pool is closed or full
+	 * is closed. Releasing a channel that is not currently leased from the pool, including releasing it twice, throws
+	 * an {@link IllegalStateException}.
+	 *
+	 * @param channel The channel previously returned by {@link #lease()}.
+	 */
+	public void release(Channel channel) {
+
+		if (!leased.remove(channel)) {
+			throw new IllegalStateException("Channel is not leased from this pool");
+		}
+
+		if (ConnectionPool.isUsable(channel) && (closed || !idle.offer(channel))) {
+			discard(channel);
+		}
+
+		permits.release();
+
+		if (closed) {
+			closeIdle();
+		}
+
+	}
+
+	/**
+	 * Closes all idle channels and fails any later lease. Leased channels are closed when they are released or when
+	 * their connection closes. Callers waiting for a channel check for the close every {@value #CLOSE_CHECK_MILLIS}
+	 * milliseconds and fail, so no permits are added to wake them.
+	 */
+	public void close() {
+		closed = true;
+		closeIdle();
+	}
+
+	public int getAvailable() {
+		return permits.availablePermits();
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public ConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
+	private Channel take() throws MessagingException {
+
+		try {
+
+			checkOpen();
+
+			Channel channel;
+			do {
+				channel = idle.poll();
+			} while (channel != null && !ConnectionPool.isUsable(channel));
+
+			if (channel == null) {
+				channel = connectionPool.createChannel();
+			}
+
+			leased.add(channel);
+			return channel;
+
+		} catch (MessagingException ex) {
+			permits.release();
+			throw ex;
+		}
+
+	}
+
+	private void checkOpen() throws MessagingException {
+		if (closed) {
+			throw new MessagingException("Channel pool is closed", null);
+		}
+	}
+
+	private void closeIdle() {
+		Channel channel;
+		while ((channel = idle.poll()) != null) {
+			discard(channel);
+		}
+	}
+
+	static void discard(Channel channel) {
+		try {
+			channel.close();
+		} catch (Exception expected) {
+			// the channel is discarded either way
+		}
+	}
+
+}
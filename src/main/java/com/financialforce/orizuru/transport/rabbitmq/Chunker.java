@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * Splits message bodies above a chunk size into ordered chunks, each sent as its own message.
+ * <p>
+ * Every chunk carries the headers needed to put the message back together with a {@link Reassembler}: an id shared
+ * by all chunks of a message ({@value #ID_HEADER}), the chunk's index ({@value #INDEX_HEADER}) and its offset in the
+ * message ({@value #OFFSET_HEADER}), and the number of chunks ({@value #COUNT_HEADER}) and total length of the message
+ * ({@value #LENGTH_HEADER}). All other properties are copied to every chunk.
+ */
+public class Chunker {
+
+	public static final String ID_HEADER = "x-orizuru-chunk-id";
+
+	public static final String INDEX_HEADER = "x-orizuru-chunk-index";
+
+	public static final String OFFSET_HEADER = "x-orizuru-chunk-offset";
+
+	public static final String COUNT_HEADER = "x-orizuru-chunk-count";
+
+	public static final String LENGTH_HEADER = "x-orizuru-chunk-length";
+
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+	private final int chunkSize;
+
+	public Chunker() {
+		this(DEFAULT_CHUNK_SIZE);
+	}
+
+	public Chunker(int chunkSize) {
+
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("Chunk size must be at least 1");
+		}
+
+		this.chunkSize = chunkSize;
+
+	}
+
+	/**
+	 * Returns whether a message body is too large to be sent as one message.
+	 *
+	 * @param body The message body.
+	 * @return True if the body must be split into chunks.
+	 */
+	public boolean accepts(byte[] body) {
+		return body.length > chunkSize;
+	}
+
+	/**
+	 * Returns the number of chunks a message body is split into.
+	 *
+	 * @param body The message body.
+	 * @return The number of chunks.
+	 */
+	public int getChunkCount(byte[] body) {
+		return Math.max(1, (body.length + chunkSize - 1) / chunkSize);
+	}
+
+	/**
+	 * Returns a chunk of a message body.
+	 *
+	 * @param body The message body.
+	 * @param index The index of the chunk.
+	 * @return The chunk.
+	 */
+	public byte[] getChunk(byte[] body, int index) {
+		int from = index * chunkSize;
+		return Arrays.copyOfRange(body, from, Math.min(body.length, from + chunkSize));
+	}
+
+	/**
+	 * Returns a chunk of a message body, copied into a reusable buffer of the chunk size unless it is a shorter last
+	 * chunk. The client copies a body into its frames before {@code basicPublish} returns, so one buffer can carry every
+	 * full chunk of a message that is sent chunk by chunk.
+	 *
+	 * @param body The message body.
+	 * @param index The index of the chunk.
+	 * @param buffer The buffer, which must be the chunk size.
+	 * @return The buffer holding the chunk, or a new array for a shorter last chunk.
+	 */
+	public byte[] getChunk(byte[] body, int index, byte[] buffer) {
+
+		int from = index * chunkSize;
+		if (body.length - from < chunkSize) {
+			return getChunk(body, index);
+		}
+
+		System.arraycopy(body, from, buffer, 0, chunkSize);
+		return buffer;
+
+	}
+
+	/**
+	 * Returns the properties of a chunk.
+	 *
+	 * @param properties The properties of the message, which may be null.
+	 * @param id The id shared by all chunks of the message.
+	 * @param index The index of the chunk.
+	 * @param body The message body.
+	 * @return The properties of the chunk.
+	 */
+	public AMQP.BasicProperties getProperties(AMQP.BasicProperties properties, String id, int index, byte[] body) {
+
+		Map<String, Object> headers = new HashMap<String, Object>();
+		if (properties != null && properties.getHeaders() != null) {
+			headers.putAll(properties.getHeaders());
+		}
+
+		headers.put(ID_HEADER, id);
+		headers.put(INDEX_HEADER, index);
+		headers.put(OFFSET_HEADER, index * chunkSize);
+		headers.put(COUNT_HEADER, getChunkCount(body));
+		headers.put(LENGTH_HEADER, body.length);
+
+		AMQP.BasicProperties.Builder builder = properties == null ? new AMQP.BasicProperties.Builder() : properties.builder();
+		return builder.headers(headers).build();
+
+	}
+
+	/**
+	 * Returns whether a delivery is a chunk of a larger message.
+	 *
+	 * @param properties The delivery properties.
+	 * @return True if the delivery is a chunk.
+	 */
+	public static boolean isChunk(AMQP.BasicProperties properties) {
+		Map<String, Object> headers = properties == null ? null : properties.getHeaders();
+		return headers != null && headers.containsKey(ID_HEADER);
+	}
+
+	/**
+	 * Returns the properties of the message a chunk belongs to, without the chunk headers.
+	 *
+	 * @param properties The properties of a chunk.
+	 * @return The properties of the whole message.
+	 */
+	public static AMQP.BasicProperties getMessageProperties(AMQP.BasicProperties properties) {
+
+		Map<String, Object> headers = new HashMap<String, Object>(properties.getHeaders());
+		headers.keySet().removeAll(Arrays.asList(ID_HEADER, INDEX_HEADER, OFFSET_HEADER, COUNT_HEADER, LENGTH_HEADER));
+
+		return properties.builder().headers(headers).build();
+
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.io.IOException;
+
+import com.rabbitmq.client.AMQP;
+
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.ICodec;
+
+/**
+ * Compresses outgoing message bodies with an {@link ICodec} once they reach a size threshold.
+ * <p>
+ * Smaller bodies, and bodies that do not get smaller, are sent as they are, so small messages pay nothing. Compressed
+ * bodies are sent with the codec's {@code content-encoding}; the properties for them are derived from the publisher's
+ * properties once and reused.
+ */
+public class Compressor {
+
+	public static final int DEFAULT_THRESHOLD = 4096;
+
+	private final ICodec codec;
+
+	private final int threshold;
+
+	private volatile Derived derived;
+
+	public Compressor(ICodec codec) {
+		this(codec, DEFAULT_THRESHOLD);
+	}
+
+	public Compressor(ICodec codec, int threshold) {
+
+		if (threshold < 0) {
+			throw new IllegalArgumentException("Compression threshold must not be negative");
+		}
+
+		this.codec = codec;
+		this.threshold = threshold;
+
+	}
+
+	/**
+	 * Compresses a message body if it is worth compressing.
+	 *
+	 * @param body The message body.
+	 * @return The compressed body, or the same array if it was not compressed.
+	 * @throws IOException Exception thrown if the body cannot be compressed.
+	 */
+	public byte[] compress(byte[] body) throws IOException {
+
+		if (body.length < threshold) {
+			return body;
+		}
+
+		byte[] compressed = codec.encode(body);
+		return compressed.length < body.length ? compressed : body;
+
+	}
+
+	/**
+	 * Returns the properties for a compressed body.
+	 *
+	 * @param properties The properties the body would have been sent with, which may be null.
+	 * @return The properties with the codec's content encoding.
+	 */
+	public AMQP.BasicProperties getProperties(AMQP.BasicProperties properties) {
+
+		Derived current = derived;
+		if (current != null && current.base == properties) {
+			return current.encoded;
+		}
+
+		AMQP.BasicProperties.Builder builder = properties == null ? new AMQP.BasicProperties.Builder() : properties.builder();
+		AMQP.BasicProperties encoded = builder.contentEncoding(codec.getName()).build();
+
+		derived = new Derived(properties, encoded);
+		return encoded;
+
+	}
+
+	public ICodec getCodec() {
+		return codec;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Properties derived for compressed bodies, kept with the properties they were derived from.
+	 */
+	private static final class Derived {
+
+		private final AMQP.BasicProperties base;
+
+		private final AMQP.BasicProperties encoded;
+
+		Derived(AMQP.BasicProperties base, AMQP.BasicProperties encoded) {
+			this.base = base;
+			this.encoded = encoded;
+		}
+
+	}
+
+}
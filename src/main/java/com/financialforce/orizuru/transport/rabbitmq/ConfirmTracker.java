@@ -0,0 +1,303 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+
+/**
+ * Tracks publisher confirms for a channel in confirm mode.
+ * <p>
+ * Each publish is registered under its sequence number and resolved through a {@link CompletableFuture} when the
+ * broker acks or nacks it, including {@code multiple=true} confirmations. Outstanding publishes are kept in a ring
+ * indexed by sequence number and are capped at {@code maxOutstanding}; registering beyond the cap blocks until the
+ * broker catches up.
+ * <p>
+ * Every publish on the channel must be registered. Futures are completed on the connection thread, so dependent
+ * actions that publish or block should use the {@code *Async} variants.
+ */
+public class ConfirmTracker implements ConfirmListener, ShutdownListener {
+
+	private final Semaphore permits;
+
+	private final int mask;
+
+	private final long[] sequences;
+
+	private final CompletableFuture<?>[] futures;
+
+	private long lowest = 1;
+
+	private long next = 1;
+
+	private int outstanding;
+
+	private CompletableFuture<Void> idle;
+
+	public ConfirmTracker(Channel channel, int maxOutstanding) throws IOException {
+
+		if (maxOutstanding < 1) {
+			throw new IllegalArgumentException("Maximum outstanding confirms must be at least 1");
+		}
+
+		int capacity = 1;
+		while (capacity < maxOutstanding) {
+			capacity <<= 1;
+		}
+
+		this.permits = new Semaphore(maxOutstanding);
+		this.mask = capacity - 1;
+		this.sequences = new long[capacity];
+		this.futures = new CompletableFuture<?>[capacity];
+
+		channel.confirmSelect();
+		channel.addConfirmListener(this);
+		channel.addShutdownListener(this);
+
+	}
+
+	/**
+	 * Registers a publish that is about to be sent, blocking while the maximum number of confirms are outstanding.
+	 *
+	 * @param seqNo The sequence number from {@link Channel#getNextPublishSeqNo()}.
+	 * @return A future completed when the broker confirms the publish.
+	 * @throws IOException Exception thrown if interrupted while waiting.
+	 */
+	public CompletableFuture<Void> register(long seqNo) throws IOException {
+
+		try {
+			permits.acquire();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for outstanding confirms", ex);
+		}
+
+		synchronized (this) {
+
+			int slot = (int) (seqNo & mask);
+			if (futures[slot] != null) {
+				permits.release();
+				throw new IOException("Sequence number " + seqNo + " collides with an outstanding publish");
+			}
+
+			CompletableFuture<Void> future = new CompletableFuture<Void>();
+			futures[slot] = future;
+			sequences[slot] = seqNo;
+
+			if (outstanding++ == 0) {
+				lowest = seqNo;
+			}
+
+			next = Math.max(next, seqNo + 1);
+			return future;
+
+		}
+
+	}
+
+	/**
+	 * Fails a registered publish that could not be sent.
+	 *
+	 * @param seqNo The sequence number of the publish.
+	 * @param cause The reason the publish failed.
+	 */
+	public void fail(long seqNo, Throwable cause) {
+		complete(resolve(seqNo, false), cause);
+		signalIdle();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.rabbitmq.client.ConfirmListener#handleAck(long, boolean)
+	 */
+	@Override
+	public void handleAck(long deliveryTag, boolean multiple) {
+		complete(resolve(deliveryTag, multiple), null);
+		signalIdle();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.rabbitmq.client.ConfirmListener#handleNack(long, boolean)
+	 */
+	@Override
+	public void handleNack(long deliveryTag, boolean multiple) {
+		complete(resolve(deliveryTag, multiple), new MessagingException("Message was rejected by the broker", null));
+		signalIdle();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.rabbitmq.client.ShutdownListener#shutdownCompleted(com.rabbitmq.client.ShutdownSignalException)
+	 */
+	@Override
+	public void shutdownCompleted(ShutdownSignalException cause) {
+
+		complete(resolve(getHighest(), true), new MessagingException("Channel closed before the message was confirmed", cause));
+		restart();
+		signalIdle();
+
+	}
+
+	/**
+	 * Waits until every registered publish has been confirmed.
+	 *
+	 * @param timeout The maximum time to wait.
+	 * @param unit The unit of the timeout.
+	 * @return True if no publishes are outstanding.
+	 * @throws InterruptedException Exception thrown if interrupted while waiting.
+	 */
+	public synchronized boolean awaitConfirms(long timeout, TimeUnit unit) throws InterruptedException {
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		while (outstanding > 0) {
+
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining <= 0) {
+				return false;
+			}
+
+			wait(remaining);
+
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Returns a future completed once every registered publish has been confirmed, without blocking.
+	 * <p>
+	 * The future is completed on the connection thread that delivers the last confirm, or immediately if no publishes
+	 * are outstanding.
+	 *
+	 * @return A future completed when no publishes are outstanding.
+	 */
+	public CompletableFuture<Void> whenConfirmed() {
+
+		CompletableFuture<Void> waiter;
+		synchronized (this) {
+			if (idle == null) {
+				idle = new CompletableFuture<Void>();
+			}
+			waiter = idle;
+		}
+
+		signalIdle();
+		return waiter;
+
+	}
+
+	public synchronized int getOutstanding() {
+		return outstanding;
+	}
+
+	private synchronized List<CompletableFuture<?>> resolve(long seqNo, boolean multiple) {
+
+		List<CompletableFuture<?>> resolved = new ArrayList<CompletableFuture<?>>(multiple ? 8 : 1);
+
+		long from = multiple ? lowest : seqNo;
+		for (long current = from; current <= seqNo && current < next; current++) {
+
+			int slot = (int) (current & mask);
+			if (futures[slot] != null && sequences[slot] == current) {
+				resolved.add(futures[slot]);
+				futures[slot] = null;
+			}
+
+		}
+
+		while (lowest < next && (futures[(int) (lowest & mask)] == null || sequences[(int) (lowest & mask)] != lowest)) {
+			lowest++;
+		}
+
+		outstanding -= resolved.size();
+		permits.release(resolved.size());
+
+		if (outstanding == 0) {
+			notifyAll();
+		}
+
+		return resolved;
+
+	}
+
+	/**
+	 * Completes the pending {@link #whenConfirmed()} future outside the lock once nothing is outstanding, so that its
+	 * dependents cannot block confirms.
+	 */
+	private void signalIdle() {
+
+		CompletableFuture<Void> waiter = null;
+		synchronized (this) {
+			if (outstanding == 0) {
+				waiter = idle;
+				idle = null;
+			}
+		}
+
+		if (waiter != null) {
+			waiter.complete(null);
+		}
+
+	}
+
+	private synchronized long getHighest() {
+		return next - 1;
+	}
+
+	/**
+	 * Sequence numbers start again from 1 if the channel is recovered.
+	 */
+	private synchronized void restart() {
+		if (outstanding == 0) {
+			lowest = 1;
+			next = 1;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void complete(List<CompletableFuture<?>> resolved, Throwable cause) {
+		for (CompletableFuture<?> future : resolved) {
+			if (cause == null) {
+				((CompletableFuture<Void>) future).complete(null);
+			} else {
+				future.completeExceptionally(cause);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.ShutdownNotifier;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+
+/**
+ * Fixed size pool of long-lived RabbitMQ connections over which channels are multiplexed.
+ * <p>
+ * Connections are opened lazily and handed out round-robin; a connection that has been closed is replaced the next
+ * time its slot is used. Each slot is opened under its own lock, so a slow connection attempt only holds up callers
+ * that need the same slot. Once the pool is closed no more connections are opened.
+ * <p>
+ * A connection lost to a network or broker failure is left in place while the client's automatic recovery
+ * re-establishes it, along with its channels, consumers and declared queues. If opening a connection fails, further
+ * attempts fail fast until a delay from the {@link RecoveryBackoff} has elapsed, so that callers retrying in a loop do
+ * not flood a recovering broker with connection attempts.
+ */
+public class ConnectionPool {
+
+	private static final String CLOUDAMQP_URL = "CLOUDAMQP_URL";
+
+	private final ConnectionFactory factory;
+
+	private final AtomicReferenceArray<Connection> connections;
+
+	private final Object[] locks;
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	private final RecoveryBackoff backoff;
+
+	private boolean configured;
+
+	private int failures;
+
+	private long retryAt;
+
+	private volatile boolean closed;
+
+	public ConnectionPool(ConnectionFactory factory, int size) {
+		this(factory, size, new RecoveryBackoff());
+	}
+
+	public ConnectionPool(ConnectionFactory factory, int size, RecoveryBackoff backoff) {
+
+		if (size < 1) {
+			throw new IllegalArgumentException("Connection pool size must be at least 1");
+		}
+
+		this.factory = factory;
+		this.connections = new AtomicReferenceArray<Connection>(size);
+		this.locks = new Object[size];
+		this.backoff = backoff;
+
+		for (int i = 0; i < size; i++) {
+			locks[i] = new Object();
+		}
+
+	}
+
+	/**
+	 * Returns the next connection in the pool, opening it if required. The connection may be recovering.
+	 *
+	 * @return An open or recovering connection.
+	 * @throws MessagingException Exception thrown if the pool is closed, the connection cannot be opened or the backoff
+	 *             delay has not elapsed.
+	 */
+	public Connection getConnection() throws MessagingException {
+
+		checkOpen();
+
+		int index = Math.floorMod(next.getAndIncrement(), connections.length());
+
+		Connection connection = connections.get(index);
+		if (isUsable(connection)) {
+			return connection;
+		}
+
+		synchronized (locks[index]) {
+
+			checkOpen();
+
+			connection = connections.get(index);
+			if (!isUsable(connection)) {
+				connection = newConnection();
+				connections.set(index, connection);
+			}
+
+		}
+
+		return connection;
+
+	}
+
+	/**
+	 * Creates a new channel on the next connection in the pool.
+	 *
+	 * @return The new channel.
+	 * @throws MessagingException Exception thrown if the channel cannot be created.
+	 */
+	public Channel createChannel() throws MessagingException {
+
+		Connection connection = getConnection();
+
+		try {
+
+			Channel channel = connection.createChannel();
+			if (channel == null) {
+				throw new IllegalStateException("Channel limit reached");
+			}
+
+			return channel;
+
+		} catch (Exception ex) {
+			throw new MessagingException("Failed to create channel", ex);
+		}
+
+	}
+
+	/**
+	 * Closes every open connection in the pool and fails any later request for a connection. A connection being opened
+	 * when the pool is closed is closed once it has been opened.
+	 *
+	 * @throws MessagingException Exception thrown if a connection fails to close.
+	 */
+	public void close() throws MessagingException {
+
+		closed = true;
+
+		MessagingException failure = null;
+
+		for (int i = 0; i < connections.length(); i++) {
+
+			Connection connection;
+			synchronized (locks[i]) {
+				connection = connections.getAndSet(i, null);
+			}
+
+			if (!isUsable(connection)) {
+				continue;
+			}
+
+			if (!connection.isOpen()) {
+				connection.abort();
+				continue;
+			}
+
+			try {
+				connection.close();
+			} catch (Exception ex) {
+				failure = new MessagingException("Failed to close connection", ex);
+			}
+
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+
+	}
+
+	public int getSize() {
+		return connections.length();
+	}
+
+	public RecoveryBackoff getBackoff() {
+		return backoff;
+	}
+
+	/**
+	 * Returns whether a connection or channel is open, or has been lost with its connection and is being recovered by the
+	 * client. Channels closed by a channel level error are not recovered.
+	 *
+	 * @param notifier The connection or channel, which may be null.
+	 * @return False if it is null or has been closed for good.
+	 */
+	static boolean isUsable(ShutdownNotifier notifier) {
+
+		if (notifier == null) {
+			return false;
+		}
+
+		if (notifier.isOpen()) {
+			return true;
+		}
+
+		ShutdownSignalException cause = notifier.getCloseReason();
+		return notifier instanceof Recoverable && cause != null && cause.isHardError() && !cause.isInitiatedByApplication();
+
+	}
+
+	private void checkOpen() throws MessagingException {
+		if (closed) {
+			throw new MessagingException("Connection pool is closed", null);
+		}
+	}
+
+	/**
+	 * Opens a connection. Only the backoff state is shared between slots, so the pool monitor is held while it is
+	 * checked and updated but not while connecting.
+	 */
+	private Connection newConnection() throws MessagingException {
+
+		checkBackoff();
+
+		try {
+			configure();
+			Connection connection = factory.newConnection();
+			connected();
+			return connection;
+		} catch (Exception ex) {
+			failed();
+			throw new MessagingException("Failed to create connection", ex);
+		}
+
+	}
+
+	private synchronized void checkBackoff() throws MessagingException {
+		long remaining = retryAt - System.currentTimeMillis();
+		if (failures > 0 && remaining > 0) {
+			throw new MessagingException("Connection unavailable, retrying in " + remaining + "ms", null);
+		}
+	}
+
+	private synchronized void configure() throws Exception {
+		if (!configured) {
+			factory.setUri(System.getenv(CLOUDAMQP_URL));
+			configured = true;
+		}
+	}
+
+	private synchronized void connected() {
+		failures = 0;
+	}
+
+	private synchronized void failed() {
+		retryAt = System.currentTimeMillis() + backoff.getDelay(failures++);
+	}
+
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.rabbitmq.client.Channel;
+
+import org.apache.avro.generic.GenericContainer;
+
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IConsumerFactory;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IMessageQueue;
+
+/**
+ * Runs the consumers of many queues on a fixed set of connections and one bounded pool of workers.
+ * <p>
+ * Queues are registered with a weight before the host is started. Each queue's consumer gets its own channel, since
+ * delivery tags, prefetch and acknowledgements are all scoped to a channel, but the channels share the connections of
+ * the {@link IMessageQueue}, and every consumer hands its deliveries to the same worker pool through its own
+ * {@link DeliveryDispatcher}. The host's maximum number of in-flight deliveries is divided between the queues in
+ * proportion to their weights, with at least one each; a queue's share is both its prefetch count and its limit in
+ * the worker pool, so a busy queue cannot crowd out the others and never blocks the client's dispatch threads, which
+ * are shared by every channel on a connection.
+ * <p>
+ * Adding a queue therefore adds a channel and a consumer but no connections or threads. The consumers must use
+ * explicit acknowledgement, since the broker ignores the prefetch count of an auto acknowledgement consumer.
+ *
+ * @param <I> The type of message consumed.
+ * @param <O> The type of message published.
+ */
+public class ConsumerHost<I extends GenericContainer, O extends GenericContainer> {
+
+	private final IMessageQueue<I, O> messageQueue;
+
+	private final int parallelism;
+
+	private final int maxInFlight;
+
+	private final List<Registration<I, O>> registrations = new ArrayList<Registration<I, O>>();
+
+	private final List<DefaultConsumer<I, O>> consumers = new ArrayList<DefaultConsumer<I, O>>();
+
+	private ExecutorService executor;
+
+	public ConsumerHost(IMessageQueue<I, O> messageQueue, int parallelism, int maxInFlight) {
+
+		if (parallelism < 1 || maxInFlight < 1) {
+			throw new IllegalArgumentException("Parallelism and maximum in-flight deliveries must be at least 1");
+		}
+
+		this.messageQueue = messageQueue;
+		this.parallelism = parallelism;
+		this.maxInFlight = maxInFlight;
+
+	}
+
+	/**
+	 * Registers a queue to be consumed once the host is started.
+	 *
+	 * @param queueName The queue to consume from.
+	 * @param factory The factory creating the queue's consumer.
+	 * @param weight The queue's relative share of the in-flight deliveries.
+	 */
+	public synchronized void register(String queueName, IConsumerFactory<I, O> factory, int weight) {
+
+		if (weight < 1) {
+			throw new IllegalArgumentException("Queue weight must be at least 1");
+		}
+
+		if (executor != null) {
+			throw new IllegalStateException("Consumer host has already been started");
+		}
+
+		registrations.add(new Registration<I, O>(queueName, factory, weight));
+
+	}
+
+	/**
+	 * Creates the worker pool and registers a consumer for every queue. If a consumer cannot be created or
+	 * registered, every channel created so far is aborted and the worker pool is shut down.
+	 *
+	 * @throws MessagingException Exception thrown if a consumer cannot be registered.
+	 */
+	public synchronized void start() throws MessagingException {
+
+		if (executor != null) {
+			throw new IllegalStateException("Consumer host has already been started");
+		}
+
+		executor = Executors.newFixedThreadPool(parallelism, runnable -> newThread(runnable, "orizuru-host"));
+
+		List<Channel> channels = new ArrayList<Channel>(registrations.size());
+
+		try {
+
+			for (Registration<I, O> registration : registrations) {
+
+				int share = getShare(registration.weight);
+
+				Channel channel = messageQueue.createChannel();
+				channels.add(channel);
+				DefaultConsumer<I, O> consumer = registration.factory.create(channel, registration.queueName);
+				consumers.add(consumer);
+
+				consumer.setDispatcher(new DeliveryDispatcher(executor, Math.min(parallelism, share), share, null));
+				messageQueue.consume("", channel, consumer, share);
+
+			}
+
+		} catch (MessagingException | RuntimeException ex) {
+
+			for (Channel channel : channels) {
+				abort(channel);
+			}
+
+			consumers.clear();
+			executor.shutdownNow();
+			throw ex;
+
+		}
+
+	}
+
+	/**
+	 * Cancels every consumer, then waits for all of them to drain in parallel before closing them and shutting down
+	 * the worker pool. All consumers share the timeout.
+	 * <p>
+	 * Each consumer's acknowledgements are flushed and its channel closed on a dedicated closer thread, never on the
+	 * connection thread that delivers the last confirm. A consumer that has not been closed by the timeout is reported
+	 * as incomplete with the deliveries it still has in flight, and is closed in the background.
+	 *
+	 * @param timeout The maximum time to wait.
+	 * @param unit The unit of the timeout.
+	 * @return A report for each consumer, in registration order.
+	 * @throws InterruptedException Exception thrown if interrupted while waiting.
+	 */
+	public synchronized List<DrainReport> shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		List<DrainReport> reports = new ArrayList<DrainReport>(consumers.size());
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> newThread(runnable, "orizuru-host-timer"));
+		ExecutorService closer = Executors.newCachedThreadPool(runnable -> newThread(runnable, "orizuru-host-closer"));
+
+		try {
+
+			List<CompletableFuture<DrainReport>> drains = new ArrayList<CompletableFuture<DrainReport>>(consumers.size());
+			for (DefaultConsumer<I, O> consumer : consumers) {
+				long remaining = Math.max(0, deadline - System.nanoTime());
+				drains.add(consumer.shutdownAsync(remaining, TimeUnit.NANOSECONDS, closer, scheduler));
+			}
+
+			for (int i = 0; i < drains.size(); i++) {
+				long remaining = Math.max(0, deadline - System.nanoTime());
+				try {
+					reports.add(drains.get(i).get(remaining, TimeUnit.NANOSECONDS));
+				} catch (TimeoutException ex) {
+					reports.add(new DrainReport(0, 0, 0, consumers.get(i).getInFlight(), 0, false));
+				}
+			}
+
+		} catch (ExecutionException ex) {
+			throw new IllegalStateException("Consumer failed to shut down", ex.getCause());
+		} finally {
+			scheduler.shutdown();
+			closer.shutdown();
+			if (executor != null) {
+				executor.shutdown();
+			}
+		}
+
+		return reports;
+
+	}
+
+	/**
+	 * Returns the in-flight deliveries allowed for a queue with the given weight.
+	 *
+	 * @param weight The queue's weight.
+	 * @return The queue's share of the host's maximum in-flight deliveries.
+	 */
+	public synchronized int getShare(int weight) {
+
+		long total = 0;
+		for (Registration<I, O> registration : registrations) {
+			total += registration.weight;
+		}
+
+		return (int) Math.max(1, maxInFlight * (long) weight / Math.max(total, weight));
+
+	}
+
+	public synchronized List<DefaultConsumer<I, O>> getConsumers() {
+		return Collections.unmodifiableList(new ArrayList<DefaultConsumer<I, O>>(consumers));
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	private static Thread newThread(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	private static void abort(Channel channel) {
+		try {
+			channel.abort();
+		} catch (Exception expected) {
+			// the channel is being discarded
+		}
+	}
+
+	/**
+	 * A queue registered with the host.
+	 */
+	private static final class Registration<I extends GenericContainer, O extends GenericContainer> {
+
+		private final String queueName;
+
+		private final IConsumerFactory<I, O> factory;
+
+		private final int weight;
+
+		Registration(String queueName, IConsumerFactory<I, O> factory, int weight) {
+			this.queueName = queueName;
+			this.factory = factory;
+			this.weight = weight;
+		}
+
+	}
+
+}
@@ -27,6 +27,18 @@
 package com.financialforce.orizuru.transport.rabbitmq;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
@@ -37,18 +49,100 @@ import com.rabbitmq.client.ShutdownSignalException;
 import org.apache.avro.generic.GenericContainer;
 
 import com.financialforce.orizuru.AbstractConsumer;
+import com.financialforce.orizuru.exception.OrizuruException;
+import com.financialforce.orizuru.interfaces.IPublisher;
+import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.Transport;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.ICodec;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics;
 
 /**
  * RabbitMQ implementation of the Orizuru {@link AbstractConsumer}.
+ * <p>
+ * Without an {@link IAcknowledger} messages are consumed in auto acknowledgement mode. With one, each delivery is
+ * acknowledged after it has been consumed successfully and rejected if consuming it fails; a failed delivery is
+ * requeued once and then discarded, or dead lettered if the queue is configured to do so. With a
+ * {@link RetryPipeline}, a failed delivery is instead moved to a delay queue to be retried later, or parked once its
+ * retries are used up. The original delivery stays in flight until the broker confirms the move and is then
+ * acknowledged, or rejected if the move fails; it is settled on the pipeline's thread, never on the connection thread.
+ * <p>
+ * If the connection is lost, the client's automatic recovery re-registers the consumer with its original tag and
+ * prefetch count, so a channel that is being recovered does not count as cancelling the consumer. Deliveries still
+ * being handled when recovery starts are settled as usual once they complete; the client discards acknowledgements
+ * for delivery tags from before recovery, and the broker redelivers them. With a {@link RecoveryBackoff}, the
+ * consumer also re-registers itself after the broker cancels it, for example when its queue is deleted and declared
+ * again or fails over to another node.
+ * <p>
+ * While {@link #handleMessage} runs, {@link #getDeliveryEnvelope()} and {@link #getDeliveryProperties()} return the
+ * envelope and properties of the delivery being handled, including its headers.
+ * <p>
+ * Messages sent with a {@code content-encoding} matching one of the consumer's {@link #setCodecs(ICodec...) codecs}
+ * are decompressed before they are decoded; other messages are decoded as they are. With a {@link Reassembler},
+ * chunks of a message split by a {@link Chunker} are buffered and the message is consumed once its last chunk
+ * arrives; every chunk is then acknowledged or rejected with the message, and chunks of messages the reassembler
+ * discards are rejected. A reassembled message that fails is moved to the {@link RetryPipeline} whole, without its
+ * chunk headers. Without an {@link IAcknowledger} chunks are acknowledged by the broker as they are delivered,
+ * so a partial message is lost if the consumer fails.
+ * <p>
+ * {@link #shutdown(long, TimeUnit)} cancels the consumer and drains the deliveries it has already received before
+ * closing its channel, so that a redeploy does not cause them to be redelivered.
  */
 public abstract class DefaultConsumer<I extends GenericContainer, O extends GenericContainer>
 		extends AbstractConsumer<I, O> implements Consumer {
 
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<DefaultConsumer> IN_FLIGHT = AtomicIntegerFieldUpdater.newUpdater(DefaultConsumer.class, "inFlight");
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicLongFieldUpdater<DefaultConsumer> COMPLETED = AtomicLongFieldUpdater.newUpdater(DefaultConsumer.class, "completed");
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicLongFieldUpdater<DefaultConsumer> REQUEUED = AtomicLongFieldUpdater.newUpdater(DefaultConsumer.class, "requeued");
+
+	private static final ThreadLocal<Envelope> ENVELOPE = new ThreadLocal<Envelope>();
+
+	private static final ThreadLocal<AMQP.BasicProperties> PROPERTIES = new ThreadLocal<AMQP.BasicProperties>();
+
 	private volatile String consumerTag;
 
+	private volatile int inFlight;
+
+	private volatile long completed;
+
+	private volatile long requeued;
+
+	private volatile boolean closing;
+
+	private volatile boolean cancelled;
+
+	private final CompletableFuture<Void> drained = new CompletableFuture<Void>();
+
 	private Channel channel;
 
+	private IAcknowledger acknowledger;
+
+	private AdaptivePrefetch prefetch;
+
+	private DeliveryDispatcher dispatcher;
+
+	private TransportDecoder decoder;
+
+	private IMetrics metrics;
+
+	private RecoveryBackoff backoff;
+
+	private RetryPipeline retries;
+
+	private Map<String, ICodec> codecs;
+
+	private Reassembler reassembler;
+
 	public DefaultConsumer(Channel channel, String incomingQueueName, String outgoingQueueName) {
+		this(channel, incomingQueueName, outgoingQueueName, null);
+	}
+
+	public DefaultConsumer(Channel channel, String incomingQueueName, String outgoingQueueName, IAcknowledger acknowledger) {
 
 		super(incomingQueueName);
 
@@ -57,6 +151,7 @@ public abstract class DefaultConsumer<I extends GenericContainer, O extends Gene
 		}
 
 		this.channel = channel;
+		this.acknowledger = acknowledger;
 
 	}
 
@@ -67,14 +162,226 @@ public abstract class DefaultConsumer<I extends GenericContainer, O extends Gene
 	public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
 			byte[] incomingMessage) throws IOException {
 
+		if (closing && acknowledger != null) {
+			acknowledger.nack(envelope.getDeliveryTag(), true);
+			REQUEUED.incrementAndGet(this);
+			return;
+		}
+
+		IN_FLIGHT.incrementAndGet(this);
+
+		if (prefetch != null) {
+			prefetch.onDelivery(incomingMessage.length);
+		}
+
+		if (metrics != null) {
+			metrics.recordDelivery(getQueueName(), incomingMessage.length, envelope.isRedeliver());
+		}
+
+		if (dispatcher == null) {
+			try {
+				handle(envelope, properties, incomingMessage);
+			} finally {
+				finish();
+			}
+			return;
+		}
+
 		try {
-			consume(incomingMessage);
+			dispatcher.dispatch(envelope, properties, () -> {
+				try {
+					handle(envelope, properties, incomingMessage);
+				} catch (IOException expected) {
+					// failed deliveries have already been rejected
+				} finally {
+					finish();
+				}
+			}, () -> requeueRejected(envelope));
+		} catch (IOException ex) {
+			finish();
+			throw ex;
+		}
+
+	}
+
+	private void finish() {
+		COMPLETED.incrementAndGet(this);
+		release();
+	}
+
+	private void release() {
+		if (IN_FLIGHT.decrementAndGet(this) == 0 && closing) {
+			signalDrained();
+		}
+	}
+
+	private void handle(Envelope envelope, AMQP.BasicProperties properties, byte[] incomingMessage) throws IOException {
+
+		long started = System.nanoTime();
+		boolean success = false;
+		List<Envelope> settled = Collections.singletonList(envelope);
+		AMQP.BasicProperties failedProperties = properties;
+		byte[] failedMessage = incomingMessage;
+
+		final Envelope previousEnvelope = ENVELOPE.get();
+		final AMQP.BasicProperties previousProperties = PROPERTIES.get();
+		ENVELOPE.set(envelope);
+		PROPERTIES.set(properties);
+
+		try {
+			byte[] message = incomingMessage;
+			if (reassembler != null && Chunker.isChunk(properties)) {
+				Reassembler.Message reassembled = reassemble(envelope, properties, incomingMessage);
+				settled = reassembled == null ? Collections.<Envelope>emptyList() : reassembled.getEnvelopes();
+				message = reassembled == null ? null : reassembled.getBody();
+				if (reassembled != null) {
+					failedProperties = Chunker.getMessageProperties(properties);
+					failedMessage = message;
+				}
+			}
+			if (message != null) {
+				consume(decompress(properties, message));
+			}
+			success = true;
 		} catch (Exception ex) {
+			if (retries != null) {
+				retry(settled, failedProperties, failedMessage, ex);
+				return;
+			}
+			if (acknowledger != null) {
+				for (Envelope failed : settled) {
+					nack(failed);
+				}
+			}
 			throw new IOException("Failed to consume message", ex);
+		} finally {
+
+			ENVELOPE.set(previousEnvelope);
+			PROPERTIES.set(previousProperties);
+
+			long elapsed = System.nanoTime() - started;
+
+			if (prefetch != null) {
+				prefetch.onComplete(elapsed);
+			}
+
+			if (metrics != null) {
+				metrics.recordConsume(getQueueName(), elapsed, success);
+			}
+
+		}
+
+		if (acknowledger != null) {
+			for (Envelope handled : settled) {
+				ack(handled);
+			}
+		}
+
+	}
+
+	/**
+	 * Moves a failed delivery to the retry pipeline. The delivery stays in flight until the broker has confirmed the
+	 * move, then is acknowledged, or rejected if it could not be moved.
+	 */
+	private void retry(List<Envelope> settled, AMQP.BasicProperties properties, byte[] incomingMessage, Exception cause) {
+		IN_FLIGHT.incrementAndGet(this);
+		retries.route(properties, incomingMessage, cause).whenComplete((target, failure) -> settle(settled, failure));
+	}
+
+	private void settle(List<Envelope> settled, Throwable failure) {
+
+		try {
+			if (acknowledger != null) {
+				for (Envelope envelope : settled) {
+					if (failure == null) {
+						ack(envelope);
+					} else {
+						nack(envelope);
+					}
+				}
+			}
+		} catch (IOException expected) {
+			// the channel has failed and the broker will redeliver the message
+		} finally {
+			release();
+		}
+
+	}
+
+	/**
+	 * Returns a delivery that the dispatcher could not hand to a worker to the queue.
+	 */
+	private void requeueRejected(Envelope envelope) {
+
+		try {
+			if (acknowledger != null) {
+				acknowledger.nack(envelope.getDeliveryTag(), true);
+				REQUEUED.incrementAndGet(this);
+			}
+		} catch (IOException expected) {
+			// the channel has failed and the broker will redeliver the message
+		} finally {
+			finish();
 		}
 
 	}
 
+	private void ack(Envelope envelope) throws IOException {
+
+		acknowledger.ack(envelope.getDeliveryTag());
+
+		if (metrics != null) {
+			metrics.recordAck(getQueueName());
+		}
+
+	}
+
+	private void nack(Envelope envelope) throws IOException {
+
+		boolean requeue = !envelope.isRedeliver();
+		acknowledger.nack(envelope.getDeliveryTag(), requeue);
+
+		if (metrics != null) {
+			metrics.recordNack(getQueueName(), requeue);
+		}
+
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.AbstractConsumer#consume(byte[])
+	 */
+	@Override
+	public byte[] consume(byte[] body) throws OrizuruException {
+
+		if (decoder == null) {
+			return super.consume(body);
+		}
+
+		long started = System.nanoTime();
+
+		Transport transport = decoder.decodeTransport(body);
+
+		Context context = new Context();
+		context.decodeFromTransport(transport);
+
+		I input = decoder.decodeMessage(transport, getDeliveryProperties());
+
+		long decoded = System.nanoTime();
+		O output = handleMessage(context, input);
+
+		if (metrics != null) {
+			metrics.recordDecode(getQueueName(), decoded - started);
+			metrics.recordHandle(getQueueName(), System.nanoTime() - decoded);
+		}
+
+		if (publisher != null && output != null) {
+			return publisher.publish(context, output);
+		}
+
+		return null;
+
+	}
+
 	@Override
 	public void handleConsumeOk(String consumerTag) {
 		this.consumerTag = consumerTag;
@@ -82,18 +389,279 @@ public abstract class DefaultConsumer<I extends GenericContainer, O extends Gene
 
 	@Override
 	public void handleCancelOk(String consumerTag) {
+
+		if (acknowledger != null) {
+			acknowledger.close();
+		}
+
+		cancelled();
+
 	}
 
 	@Override
 	public void handleCancel(String consumerTag) throws IOException {
+
+		if (closing) {
+			cancelled();
+			return;
+		}
+
+		if (backoff != null) {
+			resubscribe(consumerTag, 0);
+		}
+
 	}
 
+	/**
+	 * The consumer only counts as cancelled if its channel is closed for good; a channel that is being recovered gets
+	 * the consumer back under its original tag.
+	 */
 	@Override
 	public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+
+		if (ConnectionPool.isUsable(channel)) {
+			return;
+		}
+
+		if (acknowledger != null) {
+			acknowledger.close();
+		}
+
+		cancelled();
+
+	}
+
+	private void cancelled() {
+		cancelled = true;
+		signalDrained();
+	}
+
+	/**
+	 * Wakes threads waiting in {@link #shutdown(long, TimeUnit)} and, once the consumer is cancelled and idle while
+	 * closing, completes the future that {@link #shutdownAsync} waits on outside the lock.
+	 */
+	private void signalDrained() {
+
+		boolean idle;
+		synchronized (this) {
+			notifyAll();
+			idle = closing && cancelled && inFlight == 0;
+		}
+
+		if (idle) {
+			drained.complete(null);
+		}
+
+	}
+
+	/**
+	 * Cancels the consumer and waits for the deliveries it has already received to be handled, for their results to
+	 * be confirmed by the broker and for their acknowledgements to be sent, then closes the channel.
+	 * <p>
+	 * Deliveries that arrive after the consumer has been cancelled are requeued unhandled, unless the consumer uses
+	 * auto acknowledgement. The connection is shared with other channels and is closed by {@link MessageQueue#close()}.
+	 *
+	 * @param timeout The maximum time to wait.
+	 * @param unit The unit of the timeout.
+	 * @return A report of what was drained.
+	 * @throws InterruptedException Exception thrown if interrupted while waiting.
+	 */
+	public DrainReport shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		final int started = inFlight;
+		final long completedBefore = completed;
+
+		closing = true;
+		cancel();
+
+		synchronized (this) {
+			long remaining = deadline - System.nanoTime();
+			while ((!cancelled || inFlight > 0) && remaining > 0) {
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				remaining = deadline - System.nanoTime();
+			}
+		}
+
+		int unconfirmed = 0;
+		if (publisher instanceof DefaultPublisher) {
+			DefaultPublisher<O> confirming = (DefaultPublisher<O>) publisher;
+			long remaining = Math.max(0, deadline - System.nanoTime());
+			if (!confirming.awaitConfirms(remaining, TimeUnit.NANOSECONDS)) {
+				unconfirmed = confirming.getConfirmTracker().getOutstanding();
+			}
+		}
+
+		return close(started, completedBefore, unconfirmed);
+
+	}
+
+	/**
+	 * Cancels the consumer like {@link #shutdown(long, TimeUnit)}, but returns as soon as the cancel has been sent
+	 * instead of blocking the calling thread while the consumer drains.
+	 * <p>
+	 * The wait for the deliveries in flight and for outstanding confirms ends on the thread that settles the last of
+	 * them, or on the scheduler at the timeout, and the acknowledgements are flushed and the channel closed on the
+	 * executor. No thread is held while waiting.
+	 *
+	 * @param timeout The maximum time to wait.
+	 * @param unit The unit of the timeout.
+	 * @param executor The executor that flushes the acknowledgements and closes the channel.
+	 * @param scheduler The scheduler that ends the wait at the timeout.
+	 * @return A future completed with a report of what was drained.
+	 */
+	public CompletableFuture<DrainReport> shutdownAsync(long timeout, TimeUnit unit, Executor executor, ScheduledExecutorService scheduler) {
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		final int started = inFlight;
+		final long completedBefore = completed;
+
+		closing = true;
+		cancel();
+
+		CompletableFuture<Void> settled = within(drained, deadline, scheduler).thenCompose(ignored -> within(whenConfirmed(), deadline, scheduler));
+		return settled.thenApplyAsync(ignored -> close(started, completedBefore, getUnconfirmed()), executor);
+
+	}
+
+	private CompletableFuture<Void> whenConfirmed() {
+		return publisher instanceof DefaultPublisher ? ((DefaultPublisher<O>) publisher).whenConfirmed() : CompletableFuture.completedFuture(null);
+	}
+
+	private int getUnconfirmed() {
+		ConfirmTracker confirms = publisher instanceof DefaultPublisher ? ((DefaultPublisher<O>) publisher).getConfirmTracker() : null;
+		return confirms == null ? 0 : confirms.getOutstanding();
+	}
+
+	/**
+	 * Returns a future completed when the given future completes or the deadline passes, whichever is first.
+	 */
+	private static CompletableFuture<Void> within(CompletableFuture<Void> future, long deadline, ScheduledExecutorService scheduler) {
+
+		CompletableFuture<Void> bounded = new CompletableFuture<Void>();
+		long remaining = Math.max(0, deadline - System.nanoTime());
+		ScheduledFuture<?> timeout = scheduler.schedule(() -> bounded.complete(null), remaining, TimeUnit.NANOSECONDS);
+
+		future.whenComplete((result, ex) -> {
+			timeout.cancel(false);
+			bounded.complete(null);
+		});
+
+		return bounded;
+
 	}
 
+	/**
+	 * Flushes the acknowledgements, stops the dispatcher and closes the channel once draining has finished or timed
+	 * out.
+	 */
+	private DrainReport close(int started, long completedBefore, int unconfirmed) {
+
+		boolean acknowledged = true;
+		if (acknowledger != null) {
+			try {
+				acknowledger.flush();
+			} catch (IOException ex) {
+				acknowledged = false;
+			}
+			acknowledger.close();
+		}
+
+		if (dispatcher != null) {
+			dispatcher.close();
+		}
+
+		if (channel.isOpen()) {
+			try {
+				channel.close();
+			} catch (Exception expected) {
+				// the channel is closed either way
+			}
+		}
+
+		return new DrainReport(started, completed - completedBefore, requeued, inFlight, unconfirmed, acknowledged);
+
+	}
+
+	private void cancel() {
+
+		String tag = consumerTag;
+		if (tag == null) {
+			cancelled();
+			return;
+		}
+
+		try {
+			channel.basicCancel(tag);
+		} catch (Exception ex) {
+			cancelled();
+		}
+
+	}
+
+	/**
+	 * The consumer has been re-registered on the recovered channel. If it is being shut down it is cancelled again, as
+	 * a cancel sent before the connection was lost may never have reached the broker.
+	 */
 	@Override
 	public void handleRecoverOk(String consumerTag) {
+
+		cancelled = false;
+
+		if (closing) {
+			cancel();
+		}
+
+	}
+
+	/**
+	 * Re-registers the consumer under its original tag once its queue exists again, retrying with backoff for as long
+	 * as the channel is usable. The queue is checked on a separate channel because a failed consume closes the channel.
+	 */
+	private void resubscribe(String consumerTag, int attempt) {
+
+		backoff.schedule(attempt, () -> {
+
+			if (!ConnectionPool.isUsable(channel)) {
+				return;
+			}
+
+			try {
+
+				Channel probe = channel.getConnection().createChannel();
+				try {
+					probe.queueDeclarePassive(getQueueName());
+				} finally {
+					probe.abort();
+				}
+
+				channel.basicConsume(getQueueName(), isAutoAck(), consumerTag, this);
+				cancelled = false;
+
+			} catch (Exception ex) {
+				resubscribe(consumerTag, attempt + 1);
+			}
+
+		});
+
+	}
+
+	/**
+	 * Returns the envelope of the delivery being handled on the calling thread.
+	 *
+	 * @return The envelope, or null if no delivery is being handled.
+	 */
+	public Envelope getDeliveryEnvelope() {
+		return ENVELOPE.get();
+	}
+
+	/**
+	 * Returns the properties of the delivery being handled on the calling thread.
+	 *
+	 * @return The properties, or null if no delivery is being handled or it has none.
+	 */
+	public AMQP.BasicProperties getDeliveryProperties() {
+		return PROPERTIES.get();
 	}
 
 	public Channel getChannel() {
@@ -104,4 +672,193 @@ public abstract class DefaultConsumer<I extends GenericContainer, O extends Gene
 		return consumerTag;
 	}
 
+	public IPublisher<O> getPublisher() {
+		return publisher;
+	}
+
+	/**
+	 * Sets the publisher used for the results of {@link #handleMessage}.
+	 * <p>
+	 * By default results are published on the consuming channel. When deliveries are handled concurrently, a
+	 * {@link PooledPublisher} lets workers publish in parallel on separate channels.
+	 *
+	 * @param publisher The publisher, or null to discard results.
+	 */
+	public void setPublisher(IPublisher<O> publisher) {
+		this.publisher = publisher;
+	}
+
+	public TransportDecoder getTransportDecoder() {
+		return decoder;
+	}
+
+	/**
+	 * Sets the decoder used to decode deliveries with reusable per-thread state, or null to decode each delivery with
+	 * the Orizuru {@link AbstractConsumer}.
+	 *
+	 * @param decoder The transport decoder.
+	 */
+	public void setTransportDecoder(TransportDecoder decoder) {
+		this.decoder = decoder;
+	}
+
+	public IMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the metrics recorder for this consumer's deliveries, or null to record nothing.
+	 * <p>
+	 * Decode and handler times are only recorded when a {@link TransportDecoder} is set; the publisher records its own
+	 * metrics.
+	 *
+	 * @param metrics The metrics recorder.
+	 */
+	public void setMetrics(IMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public RecoveryBackoff getRecoveryBackoff() {
+		return backoff;
+	}
+
+	/**
+	 * Sets the backoff used to re-register the consumer after the broker cancels it, or null to leave it cancelled.
+	 *
+	 * @param backoff The recovery backoff.
+	 */
+	public void setRecoveryBackoff(RecoveryBackoff backoff) {
+		this.backoff = backoff;
+	}
+
+	public RetryPipeline getRetryPipeline() {
+		return retries;
+	}
+
+	/**
+	 * Sets the pipeline that failed deliveries are moved to for a delayed retry, or null to reject them.
+	 *
+	 * @param retries The retry pipeline.
+	 */
+	public void setRetryPipeline(RetryPipeline retries) {
+		this.retries = retries;
+	}
+
+	public Collection<ICodec> getCodecs() {
+		return codecs == null ? Collections.<ICodec>emptyList() : codecs.values();
+	}
+
+	/**
+	 * Sets the codecs used to decompress messages, each matched by the content encoding it sets when compressing.
+	 *
+	 * @param codecs The compression codecs.
+	 */
+	public void setCodecs(ICodec... codecs) {
+
+		Map<String, ICodec> byName = new HashMap<String, ICodec>();
+		for (ICodec codec : codecs) {
+			byName.put(codec.getName(), codec);
+		}
+
+		this.codecs = byName;
+
+	}
+
+	public Reassembler getReassembler() {
+		return reassembler;
+	}
+
+	/**
+	 * Sets the reassembler that puts chunked messages back together, or null to consume every delivery as it is. Set it
+	 * before the consumer is registered with a prefetch count, which limits the chunks it holds.
+	 *
+	 * @param reassembler The reassembler.
+	 */
+	public void setReassembler(Reassembler reassembler) {
+		this.reassembler = reassembler;
+	}
+
+	public IAcknowledger getAcknowledger() {
+		return acknowledger;
+	}
+
+	/**
+	 * Returns the number of deliveries received but not yet settled.
+	 *
+	 * @return The deliveries in flight.
+	 */
+	public int getInFlight() {
+		return inFlight;
+	}
+
+	public AdaptivePrefetch getAdaptivePrefetch() {
+		return prefetch;
+	}
+
+	/**
+	 * Sets the adaptive prefetch controller that observes this consumer's deliveries.
+	 *
+	 * @param prefetch The adaptive prefetch controller, or null to disable.
+	 */
+	public void setAdaptivePrefetch(AdaptivePrefetch prefetch) {
+		this.prefetch = prefetch;
+		linkPrefetchToDispatcher();
+	}
+
+	public DeliveryDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * Sets the dispatcher that hands deliveries to a pool of workers, or null to handle them on the client's dispatch
+	 * thread. Handling failures are not reported back to the client when a dispatcher is used.
+	 *
+	 * @param dispatcher The delivery dispatcher.
+	 */
+	public void setDispatcher(DeliveryDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+		linkPrefetchToDispatcher();
+	}
+
+	/**
+	 * Adds a chunk to its message, rejecting the chunks of any partial messages the reassembler has discarded.
+	 */
+	private Reassembler.Message reassemble(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+
+		try {
+			return reassembler.add(envelope, properties, body);
+		} finally {
+			for (Envelope discarded : reassembler.takeDiscarded()) {
+				if (acknowledger != null) {
+					nack(discarded);
+				}
+			}
+		}
+
+	}
+
+	private byte[] decompress(AMQP.BasicProperties properties, byte[] body) throws IOException {
+
+		String encoding = properties == null ? null : properties.getContentEncoding();
+		ICodec codec = encoding == null || codecs == null ? null : codecs.get(encoding);
+
+		return codec == null ? body : codec.decode(body);
+
+	}
+
+	private void linkPrefetchToDispatcher() {
+		if (prefetch != null && dispatcher != null) {
+			prefetch.setConcurrency(dispatcher.getParallelism());
+		}
+	}
+
+	/**
+	 * Returns whether the broker should consider messages acknowledged as soon as they are delivered.
+	 *
+	 * @return True unless an {@link IAcknowledger} has been provided.
+	 */
+	public boolean isAutoAck() {
+		return acknowledger == null;
+	}
+
 }
@@ -26,24 +26,58 @@
 
 package com.financialforce.orizuru.transport.rabbitmq;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 
 import org.apache.avro.generic.GenericContainer;
 
-import com.financialforce.orizuru.AbstractPublisher;
 import com.financialforce.orizuru.exception.publisher.OrizuruPublisherException;
 import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics;
 
 /**
- * RabbitMQ implementation of the Orizuru {@link AbstractPublisher}.
+ * RabbitMQ implementation of the Orizuru {@link com.financialforce.orizuru.AbstractPublisher}.
+ * <p>
+ * If a {@link ConfirmTracker} is provided the channel is in confirm mode: publishes are pipelined and each one is
+ * resolved asynchronously when the broker confirms it, see {@link #publishAsync(Context, GenericContainer)}.
+ * <p>
+ * Messages are sent with the publisher's {@link #setProperties(AMQP.BasicProperties) properties}, which are built once
+ * and shared by every publish, or with properties given for a single message.
+ * <p>
+ * By default messages are sent to the queue through the default exchange. With {@link #setExchange(String)} they are
+ * sent to a named exchange instead, routed by a fixed routing key or one computed from each message, so that one
+ * publish can reach every queue bound to the exchange.
+ * <p>
+ * If a {@link Compressor} is provided, large messages are compressed after serialisation and sent with the codec's
+ * {@code content-encoding}; compression happens before the channel is locked. If a {@link Chunker} is provided,
+ * messages that are still larger than its chunk size are split into chunks, sent back-to-back under the channel lock,
+ * and resolved once every chunk has been confirmed.
+ * <p>
+ * If the {@link TransportEncoder} fingerprints schemas, each message is sent with the fingerprint of its schema in
+ * the {@link TransportEncoder#FINGERPRINT_HEADER} header.
  */
-public class DefaultPublisher<O extends GenericContainer> extends AbstractPublisher<O> {
+public class DefaultPublisher<O extends GenericContainer> extends BasePublisher<O> {
 
 	private Channel channel;
 
+	private ConfirmTracker confirms;
+
 	public DefaultPublisher(Channel channel, String queueName) {
+		this(channel, queueName, null);
+	}
+
+	public DefaultPublisher(Channel channel, String queueName, ConfirmTracker confirms) {
 		super(queueName);
 		this.channel = channel;
+		this.confirms = confirms;
 	}
 
 	/* (non-Javadoc)
@@ -51,21 +85,280 @@ public class DefaultPublisher<O extends GenericContainer> extends AbstractPublis
 	 */
 	@Override
 	public byte[] publish(Context context, O message) throws OrizuruPublisherException {
+		return publish(context, message, getProperties());
+	}
+
+	/**
+	 * Publishes the message with the given properties instead of the publisher's properties.
+	 *
+	 * @param context The FinancialForce Orizuru Avro Context part of the Transport schema.
+	 * @param message The message to be published.
+	 * @param messageProperties The properties of this message, such as its correlation id.
+	 * @return The FinancialForce Orizuru Avro Transport message that was published.
+	 * @throws OrizuruPublisherException Exception thrown if the message cannot be sent.
+	 */
+	public byte[] publish(Context context, O message, AMQP.BasicProperties messageProperties) throws OrizuruPublisherException {
 
 		byte[] outgoingMessage = null;
+		long started = System.nanoTime();
 
 		try {
 
-			outgoingMessage = super.publish(context, message);
+			outgoingMessage = serialise(context, message);
 
-			channel.basicPublish("", queueName, null, outgoingMessage);
+			sendMessage(route(context, message), outgoingMessage, describe(messageProperties, message));
 
 		} catch (Exception ex) {
 			throw new OrizuruPublisherException(ex);
 		}
 
+		recordPublish(started, 1);
+
 		return outgoingMessage;
 
 	}
 
+	/**
+	 * Publishes the message and returns a future that completes once the broker has confirmed it.
+	 * <p>
+	 * Without a {@link ConfirmTracker} the future is already complete when the message has been sent.
+	 *
+	 * @param context The FinancialForce Orizuru Avro Context part of the Transport schema.
+	 * @param message The message to be published.
+	 * @return A future completed when the broker confirms the message, or completed exceptionally if it is rejected.
+	 * @throws OrizuruPublisherException Exception thrown if the message cannot be sent.
+	 */
+	public CompletableFuture<Void> publishAsync(Context context, O message) throws OrizuruPublisherException {
+		return publishAsync(context, message, getProperties());
+	}
+
+	/**
+	 * Publishes the message with the given properties instead of the publisher's properties, and returns a future that
+	 * completes once the broker has confirmed it.
+	 *
+	 * @param context The FinancialForce Orizuru Avro Context part of the Transport schema.
+	 * @param message The message to be published.
+	 * @param messageProperties The properties of this message, such as its correlation id.
+	 * @return A future completed when the broker confirms the message, or completed exceptionally if it is rejected.
+	 * @throws OrizuruPublisherException Exception thrown if the message cannot be sent.
+	 */
+	public CompletableFuture<Void> publishAsync(Context context, O message, AMQP.BasicProperties messageProperties)
+			throws OrizuruPublisherException {
+
+		long started = System.nanoTime();
+		CompletableFuture<Void> confirmed;
+
+		try {
+			confirmed = sendMessage(route(context, message), serialise(context, message), describe(messageProperties, message));
+		} catch (Exception ex) {
+			throw new OrizuruPublisherException(ex);
+		}
+
+		recordPublish(started, 1);
+
+		return confirmed;
+
+	}
+
+	/**
+	 * Publishes a batch of messages back-to-back under a single channel lock.
+	 * <p>
+	 * All messages are serialised before the channel is locked. In confirm mode this method returns once the broker
+	 * has confirmed the whole batch.
+	 *
+	 * @param context The FinancialForce Orizuru Avro Context part of the Transport schema.
+	 * @param messages The messages to be published.
+	 * @return The FinancialForce Orizuru Avro Transport messages that were published.
+	 * @throws OrizuruPublisherException Exception thrown if a message cannot be sent or is rejected by the broker.
+	 */
+	public List<byte[]> publishBatch(Context context, List<O> messages) throws OrizuruPublisherException {
+
+		List<byte[]> outgoingMessages = new ArrayList<byte[]>(messages.size());
+		List<String> routingKeys = new ArrayList<String>(messages.size());
+		List<AMQP.BasicProperties> messageProperties = new ArrayList<AMQP.BasicProperties>(messages.size());
+		long started = System.nanoTime();
+
+		try {
+
+			for (O message : messages) {
+				routingKeys.add(route(context, message));
+				outgoingMessages.add(serialise(context, message));
+				messageProperties.add(describe(getProperties(), message));
+			}
+
+			CompletableFuture<Void> confirmed = sendAll(routingKeys, outgoingMessages, messageProperties);
+			recordPublish(started, outgoingMessages.size());
+
+			await(confirmed);
+
+		} catch (Exception ex) {
+			throw new OrizuruPublisherException(ex);
+		}
+
+		return outgoingMessages;
+
+	}
+
+	/**
+	 * Publishes a stream of messages in chunks, each sent back-to-back under a single channel lock.
+	 * <p>
+	 * Only one chunk is held in memory at a time. In confirm mode this method returns once the broker has confirmed
+	 * every message.
+	 *
+	 * @param context The FinancialForce Orizuru Avro Context part of the Transport schema.
+	 * @param messages The messages to be published.
+	 * @param chunkSize The number of messages serialised and sent together.
+	 * @return The number of messages published.
+	 * @throws OrizuruPublisherException Exception thrown if a message cannot be sent or is rejected by the broker.
+	 */
+	public int publishBatch(Context context, Iterator<O> messages, int chunkSize) throws OrizuruPublisherException {
+
+		List<byte[]> chunk = new ArrayList<byte[]>(chunkSize);
+		List<String> routingKeys = new ArrayList<String>(chunkSize);
+		List<AMQP.BasicProperties> messageProperties = new ArrayList<AMQP.BasicProperties>(chunkSize);
+		List<CompletableFuture<Void>> confirmations = new ArrayList<CompletableFuture<Void>>();
+		int published = 0;
+		long started = System.nanoTime();
+
+		try {
+
+			while (messages.hasNext()) {
+
+				O message = messages.next();
+				routingKeys.add(route(context, message));
+				chunk.add(serialise(context, message));
+				messageProperties.add(describe(getProperties(), message));
+
+				if (chunk.size() >= chunkSize || !messages.hasNext()) {
+					confirmations.add(sendAll(routingKeys, chunk, messageProperties));
+					recordPublish(started, chunk.size());
+					published += chunk.size();
+					routingKeys.clear();
+					chunk.clear();
+					messageProperties.clear();
+					started = System.nanoTime();
+				}
+
+			}
+
+			await(CompletableFuture.allOf(confirmations.toArray(new CompletableFuture<?>[confirmations.size()])));
+
+		} catch (Exception ex) {
+			throw new OrizuruPublisherException(ex);
+		}
+
+		return published;
+
+	}
+
+	/**
+	 * Waits until all messages published on the channel have been confirmed by the broker.
+	 *
+	 * @param timeout The maximum time to wait.
+	 * @param unit The unit of the timeout.
+	 * @return True if no messages are awaiting confirmation.
+	 * @throws InterruptedException Exception thrown if interrupted while waiting.
+	 */
+	public boolean awaitConfirms(long timeout, TimeUnit unit) throws InterruptedException {
+		return confirms == null || confirms.awaitConfirms(timeout, unit);
+	}
+
+	/**
+	 * Returns a future completed once every message published on the channel has been confirmed, without blocking.
+	 *
+	 * @return A future completed when no confirms are outstanding, or a completed future if confirms are off.
+	 */
+	public CompletableFuture<Void> whenConfirmed() {
+		return confirms == null ? CompletableFuture.completedFuture(null) : confirms.whenConfirmed();
+	}
+
+	public Channel getChannel() {
+		return channel;
+	}
+
+	public ConfirmTracker getConfirmTracker() {
+		return confirms;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.BasePublisher#sendOne(com.rabbitmq.client.Channel, java.lang.String, byte[], com.rabbitmq.client.AMQP.BasicProperties)
+	 */
+	@Override
+	protected CompletableFuture<Void> sendOne(Channel channel, String key, byte[] body, AMQP.BasicProperties messageProperties)
+			throws IOException {
+		return confirms == null ? super.sendOne(channel, key, body, messageProperties) : sendConfirmed(key, body, messageProperties);
+	}
+
+	private CompletableFuture<Void> sendMessage(String key, byte[] body, AMQP.BasicProperties messageProperties) throws IOException {
+
+		byte[] wire = compress(body);
+		AMQP.BasicProperties wireProperties = encoded(wire, body, messageProperties);
+
+		if (confirms == null && !isChunked(wire)) {
+			return sendOne(channel, key, wire, wireProperties);
+		}
+
+		synchronized (channel) {
+			return send(channel, key, wire, wireProperties);
+		}
+
+	}
+
+	private CompletableFuture<Void> sendAll(List<String> keys, List<byte[]> bodies, List<AMQP.BasicProperties> messageProperties)
+			throws IOException {
+
+		byte[][] wire = new byte[bodies.size()][];
+		AMQP.BasicProperties[] wireProperties = new AMQP.BasicProperties[wire.length];
+
+		for (int i = 0; i < wire.length; i++) {
+			wire[i] = compress(bodies.get(i));
+			wireProperties[i] = encoded(wire[i], bodies.get(i), messageProperties.get(i));
+		}
+
+		synchronized (channel) {
+
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[wire.length];
+			for (int i = 0; i < futures.length; i++) {
+				futures[i] = send(channel, keys.get(i), wire[i], wireProperties[i]);
+			}
+
+			return CompletableFuture.allOf(futures);
+
+		}
+
+	}
+
+	/**
+	 * Sends a message in confirm mode; the caller must hold the channel lock.
+	 */
+	private CompletableFuture<Void> sendConfirmed(String key, byte[] body, AMQP.BasicProperties messageProperties) throws IOException {
+
+		long seqNo = channel.getNextPublishSeqNo();
+		CompletableFuture<Void> future = confirms.register(seqNo);
+
+		try {
+			channel.basicPublish(getExchange(), key, messageProperties, body);
+		} catch (IOException | RuntimeException ex) {
+			confirms.fail(seqNo, ex);
+			throw ex;
+		}
+
+		IMetrics metrics = getMetrics();
+		if (metrics != null) {
+			long sent = System.nanoTime();
+			future.whenComplete((ignored, ex) -> metrics.recordConfirm(queueName, System.nanoTime() - sent, ex == null));
+		}
+
+		return future;
+
+	}
+
+	private static void await(CompletableFuture<Void> confirmed) throws Exception {
+		try {
+			confirmed.join();
+		} catch (CompletionException ex) {
+			throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+		}
+	}
+
 }
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.ICodec;
+
+/**
+ * {@link ICodec} for the zlib format of {@code java.util.zip}, sent with the {@code deflate} content encoding.
+ * <p>
+ * Each thread keeps its own {@link Deflater} and {@link Inflater}, which are costly to create and hold native memory.
+ * <p>
+ * A small deflate stream can inflate to a very large body, so decoding fails once the output exceeds the maximum
+ * decoded length rather than filling the heap.
+ */
+public class DeflateCodec implements ICodec {
+
+	public static final String NAME = "deflate";
+
+	public static final int DEFAULT_MAX_DECODED_LENGTH = 256 * 1024 * 1024;
+
+	private static final int MIN_BUFFER = 64;
+
+	private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+	private final int level;
+
+	private final int maxDecodedLength;
+
+	private final ThreadLocal<Deflater> deflaters;
+
+	private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+	public DeflateCodec() {
+		this(Deflater.BEST_SPEED);
+	}
+
+	public DeflateCodec(int level) {
+		this(level, DEFAULT_MAX_DECODED_LENGTH);
+	}
+
+	/**
+	 * Creates a codec.
+	 *
+	 * @param level The compression level, from 1 to 9.
+	 * @param maxDecodedLength The maximum length of a decoded body.
+	 */
+	public DeflateCodec(int level, int maxDecodedLength) {
+
+		if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Compression level must be between 1 and 9");
+		}
+
+		if (maxDecodedLength < 1 || maxDecodedLength >= MAX_ARRAY_LENGTH) {
+			throw new IllegalArgumentException("Maximum decoded length must be between 1 and " + (MAX_ARRAY_LENGTH - 1));
+		}
+
+		this.level = level;
+		this.maxDecodedLength = maxDecodedLength;
+		this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.ICodec#getName()
+	 */
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.ICodec#encode(byte[])
+	 */
+	@Override
+	public byte[] encode(byte[] data) {
+
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+
+		byte[] out = new byte[Math.max(MIN_BUFFER, data.length / 2)];
+		int length = 0;
+
+		while (!deflater.finished()) {
+			if (length == out.length) {
+				out = Arrays.copyOf(out, out.length * 2);
+			}
+			length += deflater.deflate(out, length, out.length - length);
+		}
+
+		return Arrays.copyOf(out, length);
+
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.ICodec#decode(byte[])
+	 */
+	@Override
+	public byte[] decode(byte[] data) throws IOException {
+
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(data);
+
+		int capacity = maxDecodedLength + 1;
+		byte[] out = new byte[(int) Math.min(Math.max(MIN_BUFFER, data.length * 4L), capacity)];
+		int length = 0;
+
+		try {
+
+			while (!inflater.finished()) {
+
+				if (length == out.length) {
+					out = Arrays.copyOf(out, (int) Math.min(out.length * 2L, capacity));
+				}
+
+				int inflated = inflater.inflate(out, length, out.length - length);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Truncated deflate stream");
+				}
+
+				length += inflated;
+				if (length > maxDecodedLength) {
+					throw new IOException("Deflate stream inflates to more than the maximum of " + maxDecodedLength + " bytes");
+				}
+
+			}
+
+		} catch (DataFormatException ex) {
+			throw new IOException("Invalid deflate stream", ex);
+		}
+
+		return Arrays.copyOf(out, length);
+
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public int getMaxDecodedLength() {
+		return maxDecodedLength;
+	}
+
+}
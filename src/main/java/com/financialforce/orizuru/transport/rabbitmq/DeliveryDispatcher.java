@@ -0,0 +1,318 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IOrderingKeyExtractor;
+
+/**
+ * Hands deliveries to a bounded pool of workers so that a single consumer can use more than one core.
+ * <p>
+ * At most {@code maxInFlight} deliveries are queued or running at once; further deliveries block the client's dispatch
+ * thread, which stops the broker pushing more once the prefetch window fills. {@code maxInFlight} should therefore be
+ * at least the consumer prefetch count.
+ * <p>
+ * If an {@link IOrderingKeyExtractor} is provided, deliveries with the same key are run one at a time in delivery
+ * order by hashing the key onto one of a fixed number of serial lanes.
+ */
+public class DeliveryDispatcher {
+
+	public static final int DEFAULT_LANES = 64;
+
+	private final Executor executor;
+
+	private final boolean ownsExecutor;
+
+	private final int parallelism;
+
+	private final Semaphore permits;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final IOrderingKeyExtractor keyExtractor;
+
+	private final Lane[] lanes;
+
+	public DeliveryDispatcher(int parallelism, int maxInFlight) {
+		this(parallelism, maxInFlight, null);
+	}
+
+	public DeliveryDispatcher(int parallelism, int maxInFlight, IOrderingKeyExtractor keyExtractor) {
+		this(Executors.newFixedThreadPool(parallelism, runnable -> {
+			Thread thread = new Thread(runnable, "orizuru-dispatcher");
+			thread.setDaemon(true);
+			return thread;
+		}), true, parallelism, maxInFlight, keyExtractor);
+	}
+
+	/**
+	 * Creates a dispatcher running on the given executor, such as a virtual thread per task executor.
+	 *
+	 * @param executor The executor on which deliveries are handled; it is not shut down by {@link #close()}.
+	 * @param parallelism The number of deliveries the executor is expected to handle concurrently.
+	 * @param maxInFlight The maximum number of deliveries queued or running at once.
+	 * @param keyExtractor The ordering key extractor, or null if deliveries need not be ordered.
+	 */
+	public DeliveryDispatcher(Executor executor, int parallelism, int maxInFlight, IOrderingKeyExtractor keyExtractor) {
+		this(executor, false, parallelism, maxInFlight, keyExtractor);
+	}
+
+	private DeliveryDispatcher(Executor executor, boolean ownsExecutor, int parallelism, int maxInFlight, IOrderingKeyExtractor keyExtractor) {
+
+		if (parallelism < 1 || maxInFlight < 1) {
+			throw new IllegalArgumentException("Parallelism and maximum in-flight deliveries must be at least 1");
+		}
+
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		this.parallelism = parallelism;
+		this.permits = new Semaphore(maxInFlight);
+		this.keyExtractor = keyExtractor;
+		this.lanes = keyExtractor == null ? null : new Lane[DEFAULT_LANES];
+
+		for (int i = 0; lanes != null && i < lanes.length; i++) {
+			lanes[i] = new Lane();
+		}
+
+	}
+
+	/**
+	 * Orders deliveries by their routing key.
+	 *
+	 * @return The ordering key extractor.
+	 */
+	public static IOrderingKeyExtractor byRoutingKey() {
+		return (envelope, properties) -> envelope.getRoutingKey();
+	}
+
+	/**
+	 * Orders deliveries by the value of a message header.
+	 *
+	 * @param name The header name.
+	 * @return The ordering key extractor.
+	 */
+	public static IOrderingKeyExtractor byHeader(String name) {
+		return (envelope, properties) -> {
+			Map<String, Object> headers = properties == null ? null : properties.getHeaders();
+			Object value = headers == null ? null : headers.get(name);
+			return value == null ? null : value.toString();
+		};
+	}
+
+	/**
+	 * Queues a delivery for handling, blocking while the maximum number of deliveries are in flight. A delivery that the
+	 * executor rejects, for example because it has been shut down, is discarded.
+	 *
+	 * @param envelope The delivery envelope.
+	 * @param properties The message properties.
+	 * @param task The handling task.
+	 * @throws IOException Exception thrown if interrupted while waiting.
+	 */
+	public void dispatch(Envelope envelope, AMQP.BasicProperties properties, Runnable task) throws IOException {
+		dispatch(envelope, properties, task, () -> { });
+	}
+
+	/**
+	 * Queues a delivery for handling, blocking while the maximum number of deliveries are in flight.
+	 * <p>
+	 * If the executor rejects the delivery, for example because it has been shut down, {@code rejected} is run instead
+	 * of {@code task}, as it is for every delivery queued behind it in its lane, so that the caller can settle them and
+	 * nothing is left in flight.
+	 *
+	 * @param envelope The delivery envelope.
+	 * @param properties The message properties.
+	 * @param task The handling task.
+	 * @param rejected The task run instead if the delivery cannot be handled.
+	 * @throws IOException Exception thrown if interrupted while waiting.
+	 */
+	public void dispatch(Envelope envelope, AMQP.BasicProperties properties, Runnable task, Runnable rejected) throws IOException {
+
+		try {
+			permits.acquire();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted dispatching delivery", ex);
+		}
+
+		inFlight.incrementAndGet();
+		Delivery delivery = new Delivery(task, rejected);
+
+		Object key = keyExtractor == null ? null : keyExtractor.getKey(envelope, properties);
+
+		if (key == null) {
+			try {
+				executor.execute(delivery);
+			} catch (RuntimeException ex) {
+				delivery.reject();
+			}
+		} else {
+			lanes[Math.floorMod(key.hashCode(), lanes.length)].add(delivery);
+		}
+
+	}
+
+	/**
+	 * Shuts down the worker pool if the dispatcher created it. Deliveries already queued are still handled.
+	 */
+	public void close() {
+		if (ownsExecutor) {
+			((ExecutorService) executor).shutdown();
+		}
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * A dispatched delivery, which is either handled or rejected exactly once.
+	 */
+	private final class Delivery implements Runnable {
+
+		private final Runnable task;
+
+		private final Runnable rejected;
+
+		Delivery(Runnable task, Runnable rejected) {
+			this.task = task;
+			this.rejected = rejected;
+		}
+
+		@Override
+		public void run() {
+			complete(task);
+		}
+
+		void reject() {
+			complete(rejected);
+		}
+
+		private void complete(Runnable action) {
+			try {
+				action.run();
+			} finally {
+				inFlight.decrementAndGet();
+				permits.release();
+			}
+		}
+
+	}
+
+	/**
+	 * Serial queue of deliveries that share a lane; runs one task at a time on the executor.
+	 */
+	private final class Lane implements Runnable {
+
+		private final Queue<Delivery> tasks = new ArrayDeque<Delivery>();
+
+		private boolean running;
+
+		void add(Delivery task) {
+
+			synchronized (this) {
+				tasks.add(task);
+				if (running) {
+					return;
+				}
+				running = true;
+			}
+
+			schedule();
+
+		}
+
+		@Override
+		public void run() {
+
+			Delivery task;
+			synchronized (this) {
+				task = tasks.poll();
+			}
+
+			try {
+				task.run();
+			} finally {
+
+				boolean more;
+				synchronized (this) {
+					more = !tasks.isEmpty();
+					running = more;
+				}
+
+				if (more) {
+					schedule();
+				}
+
+			}
+
+		}
+
+		/**
+		 * Runs the lane on the executor, rejecting every queued delivery if the executor refuses it.
+		 */
+		private void schedule() {
+
+			try {
+				executor.execute(this);
+			} catch (RuntimeException ex) {
+
+				List<Delivery> dropped;
+				synchronized (this) {
+					dropped = new ArrayList<Delivery>(tasks);
+					tasks.clear();
+					running = false;
+				}
+
+				for (Delivery delivery : dropped) {
+					delivery.reject();
+				}
+
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+/**
+ * Summary of a {@link DefaultConsumer#shutdown(long, java.util.concurrent.TimeUnit)}.
+ */
+public class DrainReport {
+
+	private final int inFlight;
+
+	private final long drained;
+
+	private final long requeued;
+
+	private final int remaining;
+
+	private final int unconfirmed;
+
+	private final boolean acknowledged;
+
+	public DrainReport(int inFlight, long drained, long requeued, int remaining, int unconfirmed, boolean acknowledged) {
+		this.inFlight = inFlight;
+		this.drained = drained;
+		this.requeued = requeued;
+		this.remaining = remaining;
+		this.unconfirmed = unconfirmed;
+		this.acknowledged = acknowledged;
+	}
+
+	/**
+	 * Returns the number of deliveries being handled when the shutdown started.
+	 *
+	 * @return The number of deliveries.
+	 */
+	public int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Returns the number of deliveries handled while draining, including deliveries that had already been received
+	 * when the consumer was cancelled.
+	 *
+	 * @return The number of deliveries.
+	 */
+	public long getDrained() {
+		return drained;
+	}
+
+	/**
+	 * Returns the number of deliveries that arrived after the consumer was cancelled and were requeued unhandled.
+	 *
+	 * @return The number of deliveries.
+	 */
+	public long getRequeued() {
+		return requeued;
+	}
+
+	/**
+	 * Returns the number of deliveries still being handled when the timeout elapsed. The broker redelivers them once the
+	 * channel has closed.
+	 *
+	 * @return The number of deliveries.
+	 */
+	public int getRemaining() {
+		return remaining;
+	}
+
+	/**
+	 * Returns the number of published results still awaiting a broker confirm when the timeout elapsed.
+	 *
+	 * @return The number of publishes.
+	 */
+	public int getUnconfirmed() {
+		return unconfirmed;
+	}
+
+	/**
+	 * Returns whether the acknowledgements for handled deliveries were sent before the channel closed.
+	 *
+	 * @return True if every acknowledgement was sent.
+	 */
+	public boolean isAcknowledged() {
+		return acknowledged;
+	}
+
+	/**
+	 * Returns whether the consumer drained fully within the timeout.
+	 *
+	 * @return True if nothing was left in flight, unconfirmed or unacknowledged.
+	 */
+	public boolean isComplete() {
+		return remaining == 0 && unconfirmed == 0 && acknowledged;
+	}
+
+}
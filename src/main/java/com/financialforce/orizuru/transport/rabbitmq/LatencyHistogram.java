@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values with log-linear buckets.
+ * <p>
+ * Values below 32 are counted exactly; larger values fall into one of 16 linear buckets per power of two, so any
+ * reported percentile is within 6.25% of the recorded value. Recording is a single atomic increment and the histogram
+ * has a fixed footprint of under 8 KB.
+ */
+public class LatencyHistogram {
+
+	private static final int PRECISION_BITS = 4;
+
+	private static final int SUB_BUCKETS = 1 << PRECISION_BITS;
+
+	private static final int LINEAR_LIMIT = SUB_BUCKETS << 1;
+
+	private static final int BUCKETS = LINEAR_LIMIT + (Long.SIZE - 2 - PRECISION_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder sum = new LongAdder();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value; negative values are recorded as zero.
+	 *
+	 * @param value The value.
+	 */
+	public void record(long value) {
+
+		long recorded = Math.max(0, value);
+
+		counts.incrementAndGet(indexOf(recorded));
+		count.increment();
+		sum.add(recorded);
+
+		if (recorded > max.get()) {
+			max.accumulateAndGet(recorded, Math::max);
+		}
+
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long total = count.sum();
+		return total == 0 ? 0 : (double) sum.sum() / total;
+	}
+
+	/**
+	 * Returns the value below which the given percentage of recorded values fall.
+	 *
+	 * @param percentile The percentile, between 0 and 100.
+	 * @return The highest value in the bucket containing the percentile, or 0 if nothing has been recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+
+		if (total == 0) {
+			return 0;
+		}
+
+		long target = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+
+		int index = -1;
+		long seen = 0;
+		while (seen < target) {
+			seen += snapshot[++index];
+		}
+
+		return Math.min(highestValueOf(index), max.get());
+
+	}
+
+	static int indexOf(long value) {
+
+		if (value < LINEAR_LIMIT) {
+			return (int) value;
+		}
+
+		int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - PRECISION_BITS;
+		int top = (int) (value >>> shift);
+
+		return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + top - SUB_BUCKETS;
+
+	}
+
+	static long highestValueOf(int index) {
+
+		if (index < LINEAR_LIMIT) {
+			return index;
+		}
+
+		int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+		long top = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+
+		return ((top + 1) << shift) - 1;
+
+	}
+
+}
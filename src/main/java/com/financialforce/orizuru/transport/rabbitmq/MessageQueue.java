@@ -26,51 +26,200 @@
 
 package com.financialforce.orizuru.transport.rabbitmq;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 
 import org.apache.avro.generic.GenericContainer;
 
 import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IConsumerFactory;
 import com.financialforce.orizuru.transport.rabbitmq.interfaces.IMessageQueue;
 
 public class MessageQueue<I extends GenericContainer, O extends GenericContainer> implements IMessageQueue<I, O> {
 
-	private static final String CLOUDAMQP_URL = "CLOUDAMQP_URL";
+	public static final int DEFAULT_CONNECTION_POOL_SIZE = 1;
+
+	public static final int DEFAULT_CHANNEL_POOL_SIZE = 16;
+
+	private ConnectionPool connectionPool;
 
-	private ConnectionFactory factory;
+	private ChannelPool channelPool;
 
 	public MessageQueue(ConnectionFactory factory) {
-		this.factory = factory;
+		this(factory, DEFAULT_CONNECTION_POOL_SIZE, DEFAULT_CHANNEL_POOL_SIZE);
+	}
+
+	public MessageQueue(ConnectionFactory factory, int connectionPoolSize, int channelPoolSize) {
+		this(factory, connectionPoolSize, channelPoolSize, new RecoveryBackoff());
 	}
 
+	public MessageQueue(ConnectionFactory factory, int connectionPoolSize, int channelPoolSize, RecoveryBackoff backoff) {
+		this.connectionPool = new ConnectionPool(factory, connectionPoolSize, backoff);
+		this.channelPool = new ChannelPool(connectionPool, channelPoolSize);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMessageQueue#createChannel()
+	 */
+	@Override
 	public Channel createChannel() throws MessagingException {
+		return connectionPool.createChannel();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMessageQueue#leaseChannel()
+	 */
+	@Override
+	public Channel leaseChannel() throws MessagingException {
+		return channelPool.lease();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMessageQueue#releaseChannel(com.rabbitmq.client.Channel)
+	 */
+	@Override
+	public void releaseChannel(Channel channel) {
+		channelPool.release(channel);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMessageQueue#consume(java.lang.String, com.rabbitmq.client.Channel, com.financialforce.orizuru.transport.rabbitmq.DefaultConsumer)
+	 */
+	@Override
+	public void consume(String consumerTag, Channel channel, DefaultConsumer<I, O> consumer) throws MessagingException {
+
+		if (consumer.getRecoveryBackoff() == null) {
+			consumer.setRecoveryBackoff(connectionPool.getBackoff());
+		}
 
 		try {
+			channel.basicConsume(consumer.getQueueName(), consumer.isAutoAck(), consumerTag, consumer);
+		} catch (Exception ex) {
+			throw new MessagingException("Failed to consume message", ex);
+		}
+
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMessageQueue#consume(String, Channel, DefaultConsumer, int)
+	 */
+	@Override
+	public void consume(String consumerTag, Channel channel, DefaultConsumer<I, O> consumer, int prefetchCount) throws MessagingException {
 
-			factory.setUri(System.getenv(CLOUDAMQP_URL));
-			Connection conn = factory.newConnection();
-			return conn.createChannel();
+		checkAcknowledged(consumer);
 
+		try {
+			channel.basicQos(prefetchCount);
 		} catch (Exception ex) {
-			throw new MessagingException("Failed to create channel", ex);
+			throw new MessagingException("Failed to set prefetch count", ex);
 		}
 
+		limitChunks(consumer, prefetchCount);
+		consume(consumerTag, channel, consumer);
+
 	}
 
 	/* (non-Javadoc)
-	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMessageQueue#consume(java.lang.String, com.rabbitmq.client.Channel, com.financialforce.orizuru.transport.rabbitmq.DefaultConsumer)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMessageQueue#consume(String, Channel, DefaultConsumer, AdaptivePrefetch)
 	 */
 	@Override
-	public void consume(String consumerTag, Channel channel, DefaultConsumer<I, O> consumer) throws MessagingException {
+	public void consume(String consumerTag, Channel channel, DefaultConsumer<I, O> consumer, AdaptivePrefetch prefetch) throws MessagingException {
+
+		checkAcknowledged(consumer);
+
+		IAcknowledger acknowledger = consumer.getAcknowledger();
+		if (acknowledger instanceof AckCoalescer && prefetch.getMinPrefetch() < ((AckCoalescer) acknowledger).getBatchSize()) {
+			throw new IllegalArgumentException("Minimum prefetch count must be at least the acknowledgement batch size");
+		}
 
 		try {
-			channel.basicConsume(consumer.getQueueName(), true, consumerTag, consumer);
+			prefetch.start();
 		} catch (Exception ex) {
-			throw new MessagingException("Failed to consume message", ex);
+			throw new MessagingException("Failed to set prefetch count", ex);
+		}
+
+		consumer.setAdaptivePrefetch(prefetch);
+		limitChunks(consumer, prefetch.getMinPrefetch());
+		consume(consumerTag, channel, consumer);
+
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMessageQueue#consume(ShardedQueue, IConsumerFactory, int)
+	 */
+	@Override
+	public List<DefaultConsumer<I, O>> consume(ShardedQueue queue, IConsumerFactory<I, O> factory, int prefetchCount) throws MessagingException {
+
+		List<DefaultConsumer<I, O>> consumers = new ArrayList<DefaultConsumer<I, O>>(queue.getShards());
+		List<Channel> channels = new ArrayList<Channel>(queue.getShards());
+
+		try {
+
+			for (String shard : queue.getShardQueueNames()) {
+				Channel channel = createChannel();
+				channels.add(channel);
+				DefaultConsumer<I, O> consumer = factory.create(channel, shard);
+				consumers.add(consumer);
+				consume("", channel, consumer, prefetchCount);
+			}
+
+		} catch (MessagingException | RuntimeException ex) {
+			for (Channel channel : channels) {
+				abort(channel);
+			}
+			throw ex;
+		}
+
+		return consumers;
+
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMessageQueue#close()
+	 */
+	@Override
+	public void close() throws MessagingException {
+		channelPool.close();
+		connectionPool.close();
+	}
+
+	/**
+	 * The broker ignores the prefetch count of a consumer using auto acknowledgement, so asking for one is an error.
+	 */
+	private static void checkAcknowledged(DefaultConsumer<?, ?> consumer) {
+		if (consumer.isAutoAck()) {
+			throw new IllegalArgumentException("Prefetch count is ignored by the broker for a consumer using auto acknowledgement");
+		}
+	}
+
+	/**
+	 * Chunks are held unsettled until their whole message has been handled, so the consumer's reassembler must not
+	 * wait for more chunks than the broker will deliver.
+	 */
+	private static void limitChunks(DefaultConsumer<?, ?> consumer, int prefetchCount) {
+		if (consumer.getReassembler() != null) {
+			consumer.getReassembler().setMaxChunks(prefetchCount);
+		}
+	}
+
+	private static void abort(Channel channel) {
+		try {
+			channel.abort();
+		} catch (Exception expected) {
+			// the channel is being discarded
 		}
+	}
+
+	public ConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
 
+	public ChannelPool getChannelPool() {
+		return channelPool;
 	}
 
 }
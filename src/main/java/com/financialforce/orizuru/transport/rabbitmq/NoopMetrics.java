@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics;
+
+/**
+ * {@link IMetrics} that records nothing.
+ * <p>
+ * Extend it to record a subset of the events.
+ */
+public class NoopMetrics implements IMetrics {
+
+	public static final NoopMetrics INSTANCE = new NoopMetrics();
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics#recordDelivery(String, int, boolean)
+	 */
+	@Override
+	public void recordDelivery(String queueName, int size, boolean redelivered) {
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics#recordDecode(String, long)
+	 */
+	@Override
+	public void recordDecode(String queueName, long nanos) {
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics#recordHandle(String, long)
+	 */
+	@Override
+	public void recordHandle(String queueName, long nanos) {
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics#recordConsume(String, long, boolean)
+	 */
+	@Override
+	public void recordConsume(String queueName, long nanos, boolean success) {
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics#recordAck(String)
+	 */
+	@Override
+	public void recordAck(String queueName) {
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics#recordNack(String, boolean)
+	 */
+	@Override
+	public void recordNack(String queueName, boolean requeue) {
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics#recordPublish(String, long)
+	 */
+	@Override
+	public void recordPublish(String queueName, long nanos) {
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics#recordConfirm(String, long, boolean)
+	 */
+	@Override
+	public void recordConfirm(String queueName, long nanos, boolean acked) {
+	}
+
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+
+import org.apache.avro.generic.GenericContainer;
+
+import com.financialforce.orizuru.exception.publisher.OrizuruPublisherException;
+import com.financialforce.orizuru.message.Context;
+
+/**
+ * Thread-safe RabbitMQ implementation of the Orizuru {@link com.financialforce.orizuru.AbstractPublisher}.
+ * <p>
+ * Each publish leases a channel from a {@link ChannelPool} for the duration of the send, so concurrent callers publish
+ * in parallel on separate channels instead of contending for one. Messages are serialised before a channel is leased.
+ * <p>
+ * Messages are sent with the publisher's {@link #setProperties(AMQP.BasicProperties) properties}, or with properties
+ * given for a single message, to the queue or to the exchange set with {@link #setExchange(String)}. Large messages
+ * are compressed before a channel is leased if a {@link Compressor} is provided, and split into chunks sent on the same
+ * channel if a {@link Chunker} is provided. If the {@link TransportEncoder} fingerprints schemas, each message is sent
+ * with the fingerprint of its schema in the {@link TransportEncoder#FINGERPRINT_HEADER} header.
+ */
+public class PooledPublisher<O extends GenericContainer> extends BasePublisher<O> {
+
+	private final ChannelPool channelPool;
+
+	public PooledPublisher(ChannelPool channelPool, String queueName) {
+		super(queueName);
+		this.channelPool = channelPool;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.AbstractPublisher#publish(com.financialforce.orizuru.message.Context, org.apache.avro.generic.GenericContainer)
+	 */
+	@Override
+	public byte[] publish(Context context, O message) throws OrizuruPublisherException {
+		return publish(context, message, getProperties());
+	}
+
+	/**
+	 * Publishes the message with the given properties instead of the publisher's properties.
+	 *
+	 * @param context The FinancialForce Orizuru Avro Context part of the Transport schema.
+	 * @param message The message to be published.
+	 * @param messageProperties The properties of this message, such as its correlation id.
+	 * @return The FinancialForce Orizuru Avro Transport message that was published.
+	 * @throws OrizuruPublisherException Exception thrown if the message cannot be sent.
+	 */
+	public byte[] publish(Context context, O message, AMQP.BasicProperties messageProperties) throws OrizuruPublisherException {
+
+		byte[] outgoingMessage = null;
+		long started = System.nanoTime();
+
+		try {
+
+			outgoingMessage = serialise(context, message);
+			String key = route(context, message);
+
+			byte[] wire = compress(outgoingMessage);
+			AMQP.BasicProperties wireProperties = encoded(wire, outgoingMessage, describe(messageProperties, message));
+
+			Channel channel = channelPool.lease();
+			try {
+				send(channel, key, wire, wireProperties);
+			} finally {
+				channelPool.release(channel);
+			}
+
+		} catch (Exception ex) {
+			throw new OrizuruPublisherException(ex);
+		}
+
+		recordPublish(started, 1);
+
+		return outgoingMessage;
+
+	}
+
+	public ChannelPool getChannelPool() {
+		return channelPool;
+	}
+
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.avro.generic.GenericContainer;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.financialforce.orizuru.message.Context;
+
+/**
+ * A Reactive Streams {@link Subscriber} that publishes every message it receives through a {@link DefaultPublisher}.
+ * <p>
+ * At most {@code maxInFlight} messages are requested ahead of the broker's confirms: more are requested as publishes
+ * are confirmed, in batches of half the window, so a slow broker slows the upstream publisher rather than filling
+ * memory. Without a {@link ConfirmTracker} publishes count as confirmed once they are sent.
+ * <p>
+ * Confirms are completed on the connection thread, which must never block or publish: a synchronous upstream asked
+ * for more from that thread would publish on it and could wait on the confirm window that only that thread can open.
+ * Confirmed publishes are therefore settled, and more messages requested, on an executor. Unless one is supplied, a
+ * single daemon thread is created and shut down once the completion future completes.
+ * <p>
+ * If a message cannot be published or is rejected by the broker the subscription is cancelled. The future returned by
+ * {@link #getCompletion()} completes once the upstream has completed and every publish has been confirmed, or
+ * exceptionally with the first failure.
+ *
+ * @param <O> The type of message published.
+ */
+public class PublishingSubscriber<O extends GenericContainer> implements Subscriber<O> {
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+	private final DefaultPublisher<O> publisher;
+
+	private final Context context;
+
+	private final int maxInFlight;
+
+	private final Executor executor;
+
+	private final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+
+	private Subscription subscription;
+
+	private int inFlight;
+
+	private int settled;
+
+	private long published;
+
+	private boolean upstreamComplete;
+
+	public PublishingSubscriber(DefaultPublisher<O> publisher, Context context) {
+		this(publisher, context, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	public PublishingSubscriber(DefaultPublisher<O> publisher, Context context, int maxInFlight) {
+		this(publisher, context, maxInFlight, Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "orizuru-settle");
+			thread.setDaemon(true);
+			return thread;
+		}), true);
+	}
+
+	/**
+	 * Creates a subscriber that settles confirmed publishes on the given executor, which it does not shut down.
+	 *
+	 * @param publisher The publisher.
+	 * @param context The FinancialForce Orizuru Avro Context part of the Transport schema.
+	 * @param maxInFlight The maximum number of publishes awaiting confirmation.
+	 * @param executor The executor that settles confirms and requests more from the upstream.
+	 */
+	public PublishingSubscriber(DefaultPublisher<O> publisher, Context context, int maxInFlight, Executor executor) {
+		this(publisher, context, maxInFlight, executor, false);
+	}
+
+	private PublishingSubscriber(DefaultPublisher<O> publisher, Context context, int maxInFlight, Executor executor, boolean ownsExecutor) {
+
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("Maximum in-flight publishes must be at least 1");
+		}
+
+		this.publisher = publisher;
+		this.context = context;
+		this.maxInFlight = maxInFlight;
+		this.executor = executor;
+
+		if (ownsExecutor) {
+			completion.whenComplete((result, ex) -> ((ExecutorService) executor).shutdown());
+		}
+
+	}
+
+	/* (non-Javadoc)
+	 * @see org.reactivestreams.Subscriber#onSubscribe(org.reactivestreams.Subscription)
+	 */
+	@Override
+	public void onSubscribe(Subscription subscription) {
+
+		synchronized (this) {
+			if (this.subscription != null) {
+				subscription.cancel();
+				return;
+			}
+			this.subscription = subscription;
+		}
+
+		subscription.request(maxInFlight);
+
+	}
+
+	/* (non-Javadoc)
+	 * @see org.reactivestreams.Subscriber#onNext(java.lang.Object)
+	 */
+	@Override
+	public void onNext(O message) {
+
+		if (completion.isDone()) {
+			return;
+		}
+
+		CompletableFuture<Void> confirmed;
+
+		try {
+			confirmed = publisher.publishAsync(context, message);
+		} catch (Exception ex) {
+			fail(ex);
+			return;
+		}
+
+		synchronized (this) {
+			inFlight++;
+		}
+
+		confirmed.whenCompleteAsync((result, ex) -> {
+			if (ex != null) {
+				fail(ex);
+			} else {
+				settle();
+			}
+		}, executor);
+
+	}
+
+	/* (non-Javadoc)
+	 * @see org.reactivestreams.Subscriber#onError(java.lang.Throwable)
+	 */
+	@Override
+	public void onError(Throwable cause) {
+		completion.completeExceptionally(cause);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.reactivestreams.Subscriber#onComplete()
+	 */
+	@Override
+	public void onComplete() {
+
+		boolean done;
+		synchronized (this) {
+			upstreamComplete = true;
+			done = inFlight == 0;
+		}
+
+		if (done) {
+			completion.complete(null);
+		}
+
+	}
+
+	/**
+	 * Records a confirmed publish, requesting more once half the window has been confirmed.
+	 */
+	private void settle() {
+
+		int request = 0;
+		boolean done;
+
+		synchronized (this) {
+
+			inFlight--;
+			published++;
+			done = upstreamComplete && inFlight == 0;
+
+			if (++settled >= Math.max(1, maxInFlight / 2) && !upstreamComplete) {
+				request = settled;
+				settled = 0;
+			}
+
+		}
+
+		if (done) {
+			completion.complete(null);
+		} else if (request > 0 && !completion.isDone()) {
+			subscription.request(request);
+		}
+
+	}
+
+	private void fail(Throwable cause) {
+		if (completion.completeExceptionally(cause)) {
+			subscription.cancel();
+		}
+	}
+
+	/**
+	 * Returns a future completed once the upstream has completed and every publish has been confirmed.
+	 *
+	 * @return The completion future.
+	 */
+	public CompletableFuture<Void> getCompletion() {
+		return completion;
+	}
+
+	public synchronized long getPublished() {
+		return published;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for a single queue, recorded by {@link TransportMetrics}.
+ * <p>
+ * Latencies are in nanoseconds.
+ */
+public class QueueMetrics {
+
+	private final String queueName;
+
+	private final LongAdder deliveries = new LongAdder();
+
+	private final LongAdder redeliveries = new LongAdder();
+
+	private final LongAdder deliveredBytes = new LongAdder();
+
+	private final LongAdder failures = new LongAdder();
+
+	private final LongAdder acks = new LongAdder();
+
+	private final LongAdder nacks = new LongAdder();
+
+	private final LongAdder requeues = new LongAdder();
+
+	private final LongAdder confirmNacks = new LongAdder();
+
+	private final LatencyHistogram decodeTime = new LatencyHistogram();
+
+	private final LatencyHistogram handleTime = new LatencyHistogram();
+
+	private final LatencyHistogram consumeTime = new LatencyHistogram();
+
+	private final LatencyHistogram publishTime = new LatencyHistogram();
+
+	private final LatencyHistogram confirmLatency = new LatencyHistogram();
+
+	public QueueMetrics(String queueName) {
+		this.queueName = queueName;
+	}
+
+	void recordDelivery(int size, boolean redelivered) {
+		deliveries.increment();
+		deliveredBytes.add(size);
+		if (redelivered) {
+			redeliveries.increment();
+		}
+	}
+
+	void recordConsume(long nanos, boolean success) {
+		consumeTime.record(nanos);
+		if (!success) {
+			failures.increment();
+		}
+	}
+
+	void recordAck() {
+		acks.increment();
+	}
+
+	void recordNack(boolean requeue) {
+		nacks.increment();
+		if (requeue) {
+			requeues.increment();
+		}
+	}
+
+	void recordConfirm(long nanos, boolean acked) {
+		confirmLatency.record(nanos);
+		if (!acked) {
+			confirmNacks.increment();
+		}
+	}
+
+	public String getQueueName() {
+		return queueName;
+	}
+
+	public long getDeliveries() {
+		return deliveries.sum();
+	}
+
+	public long getRedeliveries() {
+		return redeliveries.sum();
+	}
+
+	public long getDeliveredBytes() {
+		return deliveredBytes.sum();
+	}
+
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	public long getAcks() {
+		return acks.sum();
+	}
+
+	public long getNacks() {
+		return nacks.sum();
+	}
+
+	public long getRequeues() {
+		return requeues.sum();
+	}
+
+	public long getPublishes() {
+		return publishTime.getCount();
+	}
+
+	public long getConfirms() {
+		return confirmLatency.getCount() - confirmNacks.sum();
+	}
+
+	public long getConfirmNacks() {
+		return confirmNacks.sum();
+	}
+
+	public LatencyHistogram getDecodeTime() {
+		return decodeTime;
+	}
+
+	public LatencyHistogram getHandleTime() {
+		return handleTime;
+	}
+
+	public LatencyHistogram getConsumeTime() {
+		return consumeTime;
+	}
+
+	public LatencyHistogram getPublishTime() {
+		return publishTime;
+	}
+
+	public LatencyHistogram getConfirmLatency() {
+		return confirmLatency;
+	}
+
+}
@@ -0,0 +1,460 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Puts messages split by a {@link Chunker} back together as their chunks are delivered.
+ * <p>
+ * Chunks may arrive in any order and more than once. Messages up to the spill threshold are assembled on the heap;
+ * larger messages are assembled in a memory-mapped temporary file, so that partial messages waiting for their
+ * remaining chunks do not fill the heap. The file is deleted as soon as it has been mapped, so its space is released
+ * when the mapping is garbage collected after the message is complete. The complete message is copied to the heap
+ * once, to be decoded.
+ * <p>
+ * Every chunk's headers must describe the same layout as the first chunk of its message to arrive: the same number of
+ * chunks, total length and chunk size, with the chunk at the offset its index implies. A chunk that does not is
+ * rejected, and the chunks of its message received so far are discarded with it.
+ * <p>
+ * Each chunk's delivery is kept with its message and returned with it, so that the chunks are only settled once the
+ * whole message has been handled and are redelivered by the broker if the consumer fails before then. The broker stops
+ * delivering once the consumer holds its prefetch count of deliveries, so with a {@link #setMaxChunks(int) chunk
+ * limit}, normally set from the prefetch count by {@link MessageQueue}, a message with more chunks than the limit is
+ * rejected as soon as one of its chunks arrives, and once the chunks held reach the limit the other partial messages
+ * are discarded, oldest first, so that the message receiving chunks can still be completed.
+ * <p>
+ * The reassembler is bounded: a message longer than the maximum length is rejected, and once the maximum number of
+ * partial messages is reached the oldest is discarded to make room. Partial messages that have not been completed
+ * within the expiry time are discarded too, for example if a chunk was lost or is held by another consumer of the
+ * queue. The deliveries of discarded messages are returned by {@link #takeDiscarded()} to be rejected. Chunks of one
+ * message must all reach the same reassembler to be put back together, so a chunked queue should have a single
+ * consumer, or be sharded by a routing key that every chunk of a message shares.
+ */
+public class Reassembler {
+
+	public static final int DEFAULT_MAX_LENGTH = 256 * 1024 * 1024;
+
+	public static final int DEFAULT_MAX_PENDING = 16;
+
+	public static final int DEFAULT_SPILL_THRESHOLD = 4 * 1024 * 1024;
+
+	public static final long DEFAULT_EXPIRY_MILLIS = 300000;
+
+	private final int maxLength;
+
+	private final int maxPending;
+
+	private final int spillThreshold;
+
+	private final long expiryMillis;
+
+	private final File directory;
+
+	private final Map<String, Partial> partials = new LinkedHashMap<String, Partial>();
+
+	/**
+	 * Deliveries of discarded partial messages that have not yet been taken.
+	 */
+	private final List<Envelope> discards = new ArrayList<Envelope>();
+
+	private long discarded;
+
+	private int maxChunks;
+
+	private int held;
+
+	public Reassembler() {
+		this(DEFAULT_MAX_LENGTH, DEFAULT_MAX_PENDING, DEFAULT_SPILL_THRESHOLD, DEFAULT_EXPIRY_MILLIS, null);
+	}
+
+	/**
+	 * Creates a reassembler.
+	 *
+	 * @param maxLength The maximum length of a reassembled message.
+	 * @param maxPending The maximum number of partial messages held at once.
+	 * @param spillThreshold The length above which messages are assembled in a memory-mapped file.
+	 * @param expiryMillis The time after which a partial message is discarded.
+	 * @param directory The directory for memory-mapped files, or null for the default temporary directory.
+	 */
+	public Reassembler(int maxLength, int maxPending, int spillThreshold, long expiryMillis, File directory) {
+
+		if (maxLength < 1 || maxPending < 1 || expiryMillis < 1) {
+			throw new IllegalArgumentException("Maximum length, maximum pending messages and expiry must be at least 1");
+		}
+
+		this.maxLength = maxLength;
+		this.maxPending = maxPending;
+		this.spillThreshold = spillThreshold;
+		this.expiryMillis = expiryMillis;
+		this.directory = directory;
+
+	}
+
+	/**
+	 * Adds a chunk to its message.
+	 *
+	 * @param envelope The envelope of the chunk's delivery.
+	 * @param properties The properties of the chunk, including its chunk headers.
+	 * @param chunk The body of the chunk.
+	 * @return The complete message once its last chunk has been added, otherwise null.
+	 * @throws IOException Exception thrown if the chunk headers are invalid or the message cannot be buffered.
+	 */
+	public Message add(Envelope envelope, AMQP.BasicProperties properties, byte[] chunk) throws IOException {
+
+		Map<String, Object> headers = properties.getHeaders();
+		String id = String.valueOf(headers.get(Chunker.ID_HEADER));
+		int index = getInt(headers, Chunker.INDEX_HEADER);
+		int offset = getInt(headers, Chunker.OFFSET_HEADER);
+		int count = getInt(headers, Chunker.COUNT_HEADER);
+		int length = getInt(headers, Chunker.LENGTH_HEADER);
+
+		if (length > maxLength) {
+			throw new IOException("Chunked message " + id + " of " + length + " bytes exceeds the maximum of " + maxLength);
+		}
+
+		if (index < 0 || index >= count || offset < 0 || offset + chunk.length > length) {
+			throw new IOException("Invalid chunk " + index + " of message " + id);
+		}
+
+		int chunkSize = getChunkSize(index, offset, count, length, chunk);
+		if (chunkSize < 1 || (long) index * chunkSize != offset || (length + (long) chunkSize - 1) / chunkSize != count) {
+			throw new IOException("Invalid chunk " + index + " of message " + id);
+		}
+
+		Partial partial;
+		boolean complete;
+		synchronized (this) {
+
+			if (maxChunks > 0 && count > maxChunks) {
+				throw new IOException("Chunked message " + id + " has " + count + " chunks, more than the " + maxChunks + " the consumer can hold");
+			}
+
+			partial = getPartial(id, count, length, chunkSize);
+
+			if (partial.count != count || partial.length != length || partial.chunkSize != chunkSize) {
+				partials.remove(id);
+				discard(partial);
+				throw new IOException("Chunk " + index + " of message " + id + " does not match the message's other chunks");
+			}
+
+			complete = partial.put(envelope, index, offset, chunk);
+			held++;
+
+			if (complete) {
+				partials.remove(id);
+				held -= partial.envelopes.size();
+			} else {
+				makeRoom(id);
+			}
+
+		}
+
+		return complete ? new Message(partial.toArray(), partial.envelopes) : null;
+
+	}
+
+	/**
+	 * Discards every partial message.
+	 */
+	public synchronized void clear() {
+		for (Partial partial : partials.values()) {
+			discard(partial);
+		}
+		partials.clear();
+	}
+
+	/**
+	 * Returns the deliveries of the chunks of partial messages discarded since this method was last called, which the
+	 * caller must reject.
+	 *
+	 * @return The deliveries of the discarded chunks.
+	 */
+	public synchronized List<Envelope> takeDiscarded() {
+		List<Envelope> taken = new ArrayList<Envelope>(discards);
+		discards.clear();
+		return taken;
+	}
+
+	public synchronized int getPending() {
+		return partials.size();
+	}
+
+	/**
+	 * Returns the number of chunk deliveries held by partial messages, including chunks delivered more than once.
+	 *
+	 * @return The number of chunks held.
+	 */
+	public synchronized int getHeld() {
+		return held;
+	}
+
+	public synchronized int getMaxChunks() {
+		return maxChunks;
+	}
+
+	/**
+	 * Sets the number of chunk deliveries the consumer can hold unsettled, normally its prefetch count.
+	 *
+	 * @param maxChunks The maximum number of chunks held, or 0 for no limit.
+	 */
+	public synchronized void setMaxChunks(int maxChunks) {
+		if (maxChunks < 0) {
+			throw new IllegalArgumentException("Maximum chunks must not be negative");
+		}
+		this.maxChunks = maxChunks;
+	}
+
+	/**
+	 * Returns the number of partial messages discarded because they expired, did not match a later chunk or to make
+	 * room for newer messages or chunks.
+	 *
+	 * @return The number of messages discarded.
+	 */
+	public synchronized long getDiscarded() {
+		return discarded;
+	}
+
+	/**
+	 * Returns the partial message with the given id, discarding expired and excess messages; the caller must hold the
+	 * lock.
+	 */
+	private Partial getPartial(String id, int count, int length, int chunkSize) throws IOException {
+
+		long now = System.currentTimeMillis();
+
+		Iterator<Partial> oldest = partials.values().iterator();
+		while (oldest.hasNext()) {
+			Partial partial = oldest.next();
+			if (now - partial.created < expiryMillis) {
+				break;
+			}
+			oldest.remove();
+			discard(partial);
+		}
+
+		Partial partial = partials.get(id);
+		if (partial == null) {
+
+			if (partials.size() >= maxPending) {
+				discard(partials.remove(partials.keySet().iterator().next()));
+			}
+
+			partial = new Partial(count, length, chunkSize, length <= spillThreshold ? ByteBuffer.allocate(length) : map(length), now);
+			partials.put(id, partial);
+
+		}
+
+		return partial;
+
+	}
+
+	/**
+	 * Discards partial messages while the chunks held leave the broker no room to deliver the rest of a message: first
+	 * the others, oldest first, then the message that has just received a chunk; the caller must hold the lock.
+	 */
+	private void makeRoom(String id) {
+
+		Iterator<Map.Entry<String, Partial>> oldest = partials.entrySet().iterator();
+		while (maxChunks > 0 && held >= maxChunks && oldest.hasNext()) {
+			Map.Entry<String, Partial> entry = oldest.next();
+			if (!entry.getKey().equals(id)) {
+				oldest.remove();
+				discard(entry.getValue());
+			}
+		}
+
+		if (maxChunks > 0 && held >= maxChunks) {
+			discard(partials.remove(id));
+		}
+
+	}
+
+	/**
+	 * Moves the deliveries of a partial message to the discards; the caller must hold the lock.
+	 */
+	private void discard(Partial partial) {
+		discards.addAll(partial.envelopes);
+		held -= partial.envelopes.size();
+		discarded++;
+	}
+
+	private ByteBuffer map(int length) throws IOException {
+
+		Path path = directory == null ? Files.createTempFile("orizuru-chunks", ".tmp") : Files.createTempFile(directory.toPath(), "orizuru-chunks", ".tmp");
+
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+			return file.map(FileChannel.MapMode.READ_WRITE, 0, length);
+		}
+
+	}
+
+	/**
+	 * Returns the chunk size a chunk implies: its own length unless it is the last chunk, which must end the message
+	 * and may be shorter.
+	 */
+	private static int getChunkSize(int index, int offset, int count, int length, byte[] chunk) {
+
+		if (index < count - 1) {
+			return chunk.length;
+		}
+
+		if (offset + chunk.length != length) {
+			return 0;
+		}
+
+		return index == 0 ? length : offset / index;
+
+	}
+
+	private static int getInt(Map<String, Object> headers, String name) throws IOException {
+
+		Object value = headers.get(name);
+		if (!(value instanceof Number)) {
+			throw new IOException("Missing chunk header " + name);
+		}
+
+		return ((Number) value).intValue();
+
+	}
+
+	/**
+	 * A message put back together from its chunks.
+	 */
+	public static final class Message {
+
+		private final byte[] body;
+
+		private final List<Envelope> envelopes;
+
+		Message(byte[] body, List<Envelope> envelopes) {
+			this.body = body;
+			this.envelopes = envelopes;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		/**
+		 * Returns the deliveries of the message's chunks, including chunks that were delivered more than once.
+		 *
+		 * @return The deliveries to settle once the message has been handled.
+		 */
+		public List<Envelope> getEnvelopes() {
+			return envelopes;
+		}
+
+	}
+
+	/**
+	 * A message waiting for some of its chunks.
+	 */
+	private static final class Partial {
+
+		private final BitSet received;
+
+		private final int count;
+
+		private final int length;
+
+		private final int chunkSize;
+
+		private final ByteBuffer buffer;
+
+		private final long created;
+
+		private final List<Envelope> envelopes = new ArrayList<Envelope>();
+
+		private int remaining;
+
+		Partial(int count, int length, int chunkSize, ByteBuffer buffer, long created) {
+			this.received = new BitSet(count);
+			this.count = count;
+			this.length = length;
+			this.chunkSize = chunkSize;
+			this.buffer = buffer;
+			this.created = created;
+			this.remaining = count;
+		}
+
+		/**
+		 * Copies a chunk into the message, ignoring the body of a chunk that has already been received.
+		 *
+		 * @return True if this chunk completed the message.
+		 */
+		boolean put(Envelope envelope, int index, int offset, byte[] chunk) {
+
+			envelopes.add(envelope);
+
+			if (received.get(index)) {
+				return false;
+			}
+
+			received.set(index);
+			remaining--;
+
+			ByteBuffer target = buffer.duplicate();
+			target.position(offset);
+			target.put(chunk);
+
+			return remaining == 0;
+
+		}
+
+		byte[] toArray() {
+
+			if (buffer.hasArray()) {
+				return buffer.array();
+			}
+
+			byte[] message = new byte[buffer.capacity()];
+			ByteBuffer source = buffer.duplicate();
+			source.clear();
+			source.get(message);
+			return message;
+
+		}
+
+	}
+
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exponential backoff with jitter for reconnecting to the broker and re-registering consumers.
+ * <p>
+ * The delay before attempt {@code n} (counting from zero) is drawn uniformly from the upper half of
+ * {@code min(maxDelayMillis, initialDelayMillis * 2^n)}, so that clients which lost the broker at the same moment do
+ * not all retry at the same moment.
+ */
+public class RecoveryBackoff {
+
+	public static final long DEFAULT_INITIAL_DELAY_MILLIS = 500;
+
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+
+	private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "orizuru-recovery");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final long initialDelayMillis;
+
+	private final long maxDelayMillis;
+
+	public RecoveryBackoff() {
+		this(DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+	}
+
+	public RecoveryBackoff(long initialDelayMillis, long maxDelayMillis) {
+
+		if (initialDelayMillis < 1 || maxDelayMillis < initialDelayMillis) {
+			throw new IllegalArgumentException("Backoff delays must satisfy 1 <= initial <= max");
+		}
+
+		this.initialDelayMillis = initialDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+
+	}
+
+	/**
+	 * Returns the delay to wait before the given attempt.
+	 *
+	 * @param attempt The number of attempts that have already failed.
+	 * @return The delay in milliseconds.
+	 */
+	public long getDelay(int attempt) {
+
+		long ceiling = initialDelayMillis;
+		for (int i = 0; i < attempt && ceiling < maxDelayMillis; i++) {
+			ceiling <<= 1;
+		}
+
+		ceiling = Math.min(ceiling, maxDelayMillis);
+		return ceiling - ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+
+	}
+
+	/**
+	 * Runs a task on the shared recovery thread once the delay for the given attempt has elapsed.
+	 *
+	 * @param attempt The number of attempts that have already failed.
+	 * @param task The task to run.
+	 */
+	public void schedule(int attempt, Runnable task) {
+		SCHEDULER.schedule(task, getDelay(attempt), TimeUnit.MILLISECONDS);
+	}
+
+	public long getInitialDelayMillis() {
+		return initialDelayMillis;
+	}
+
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+}
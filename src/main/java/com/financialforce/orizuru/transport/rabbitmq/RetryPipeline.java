@@ -0,0 +1,344 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+
+/**
+ * Routes deliveries that failed to be consumed through delay queues and finally to a parking queue.
+ * <p>
+ * Each retry delay has its own delay queue, {@code <queue>.retry.<delayMillis>}, with a message TTL of that delay and
+ * the source queue as its dead letter target, so the broker moves a message back once its delay has elapsed and the
+ * consumer never waits. Using one queue per delay rather than a per-message expiration means a long delay never holds
+ * up a short one queued behind it. Messages that have used up their retries, or whose failure is not retryable, are
+ * moved to {@code <queue>.parked} for inspection.
+ * <p>
+ * The number of failed attempts travels with the message in the {@value #ATTEMPTS_HEADER} header and the last failure
+ * in the {@value #ERROR_HEADER} header.
+ * <p>
+ * Because the consumer acknowledges the original delivery once it has been routed, messages are published with the
+ * {@code mandatory} flag on a channel of the pipeline's own, created on the {@link ChannelPool}'s connections and kept
+ * in confirm mode with a {@link ConfirmTracker}; pooled channels are only used to declare the queues and are never put
+ * in confirm mode. {@link #route(AMQP.BasicProperties, byte[], Throwable)} does not wait for the broker: it returns a
+ * future that fails if the message is returned because its queue does not exist, is nacked, or is not confirmed within
+ * the confirm timeout, so the original delivery is rejected instead. Returns are matched to their publish by the
+ * {@value #SEQUENCE_HEADER} header.
+ * <p>
+ * The future is completed on the pipeline's scheduler rather than the connection thread, so the original delivery can
+ * be settled from it. Unless a scheduler is provided, a single daemon thread is created and shut down by
+ * {@link #close()}.
+ */
+public class RetryPipeline {
+
+	public static final String ATTEMPTS_HEADER = "x-orizuru-attempts";
+
+	public static final String ERROR_HEADER = "x-orizuru-error";
+
+	public static final String SEQUENCE_HEADER = "x-orizuru-retry-sequence";
+
+	public static final long DEFAULT_CONFIRM_TIMEOUT_MILLIS = 10000;
+
+	public static final int DEFAULT_MAX_OUTSTANDING_CONFIRMS = 256;
+
+	private final ChannelPool channelPool;
+
+	private final String queueName;
+
+	private final RetryPolicy policy;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final boolean ownsScheduler;
+
+	private final Map<Long, String> returns = new ConcurrentHashMap<Long, String>();
+
+	private long confirmTimeoutMillis = DEFAULT_CONFIRM_TIMEOUT_MILLIS;
+
+	private Channel channel;
+
+	private ConfirmTracker confirms;
+
+	public RetryPipeline(ChannelPool channelPool, String queueName, RetryPolicy policy) {
+		this(channelPool, queueName, policy, Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "orizuru-retry");
+			thread.setDaemon(true);
+			return thread;
+		}), true);
+	}
+
+	/**
+	 * Creates a pipeline that completes its futures and confirm timeouts on the given scheduler, which is not shut down
+	 * by {@link #close()}.
+	 *
+	 * @param channelPool The channel pool.
+	 * @param queueName The source queue.
+	 * @param policy The retry policy.
+	 * @param scheduler The scheduler.
+	 */
+	public RetryPipeline(ChannelPool channelPool, String queueName, RetryPolicy policy, ScheduledExecutorService scheduler) {
+		this(channelPool, queueName, policy, scheduler, false);
+	}
+
+	private RetryPipeline(ChannelPool channelPool, String queueName, RetryPolicy policy, ScheduledExecutorService scheduler, boolean ownsScheduler) {
+		this.channelPool = channelPool;
+		this.queueName = queueName;
+		this.policy = policy;
+		this.scheduler = scheduler;
+		this.ownsScheduler = ownsScheduler;
+	}
+
+	/**
+	 * Declares the delay queues and the parking queue. Must be called before the consumer is registered.
+	 *
+	 * @throws MessagingException Exception thrown if a queue cannot be declared.
+	 */
+	public void declare() throws MessagingException {
+
+		Channel channel = channelPool.lease();
+
+		try {
+
+			for (long delay : policy.getDelays()) {
+
+				Map<String, Object> arguments = new HashMap<String, Object>();
+				arguments.put("x-message-ttl", delay);
+				arguments.put("x-dead-letter-exchange", "");
+				arguments.put("x-dead-letter-routing-key", queueName);
+
+				channel.queueDeclare(getDelayQueueName(delay), true, false, false, arguments);
+
+			}
+
+			channel.queueDeclare(getParkingQueueName(), true, false, false, null);
+
+		} catch (Exception ex) {
+			throw new MessagingException("Failed to declare retry queues", ex);
+		} finally {
+			channelPool.release(channel);
+		}
+
+	}
+
+	/**
+	 * Moves a failed delivery to the delay queue for its next retry, or to the parking queue.
+	 * <p>
+	 * Blocks only while the maximum number of confirms are outstanding.
+	 *
+	 * @param properties The properties of the failed delivery.
+	 * @param body The body of the failed delivery.
+	 * @param cause The failure.
+	 * @return A future completed with the name of the queue the message was moved to, or with a
+	 *         {@link MessagingException} if the message cannot be published, is returned unroutable or is not confirmed
+	 *         by the broker.
+	 */
+	public CompletableFuture<String> route(AMQP.BasicProperties properties, byte[] body, Throwable cause) {
+
+		int attempts = getAttempts(properties) + 1;
+
+		String target = getParkingQueueName();
+		if (policy.isRetryable(cause) && attempts <= policy.getMaxRetries()) {
+			target = getDelayQueueName(policy.getDelay(attempts));
+		}
+
+		Map<String, Object> headers = new HashMap<String, Object>();
+		if (properties != null && properties.getHeaders() != null) {
+			headers.putAll(properties.getHeaders());
+		}
+
+		headers.put(ATTEMPTS_HEADER, attempts);
+		headers.put(ERROR_HEADER, String.valueOf(cause));
+
+		AMQP.BasicProperties.Builder builder = properties == null ? new AMQP.BasicProperties.Builder() : properties.builder();
+
+		CompletableFuture<String> routed = new CompletableFuture<String>();
+
+		long seqNo;
+		CompletableFuture<Void> confirmed;
+
+		synchronized (this) {
+
+			try {
+				Channel confirming = getChannel();
+				seqNo = confirming.getNextPublishSeqNo();
+				headers.put(SEQUENCE_HEADER, seqNo);
+				confirmed = publish(confirming, seqNo, target, builder.headers(headers).build(), body);
+			} catch (Exception ex) {
+				seqNo = 0;
+				confirmed = new CompletableFuture<Void>();
+				confirmed.completeExceptionally(ex);
+			}
+
+		}
+
+		String queue = target;
+		long key = seqNo;
+		long timeoutMillis = confirmTimeoutMillis;
+		ScheduledFuture<?> timeout = scheduler.schedule(() -> expire(routed, queue, timeoutMillis), timeoutMillis, TimeUnit.MILLISECONDS);
+
+		confirmed.whenCompleteAsync((ignored, failure) -> settle(routed, queue, returns.remove(key), failure, timeout), scheduler);
+
+		return routed;
+
+	}
+
+	/**
+	 * Closes the pipeline's channel, failing any routes that are still waiting for a confirm, and shuts down the
+	 * scheduler if the pipeline created it.
+	 */
+	public synchronized void close() {
+
+		if (channel != null) {
+			ChannelPool.discard(channel);
+			channel = null;
+		}
+
+		if (ownsScheduler) {
+			scheduler.shutdown();
+		}
+
+	}
+
+	private CompletableFuture<Void> publish(Channel confirming, long seqNo, String target, AMQP.BasicProperties properties, byte[] body) throws IOException {
+
+		CompletableFuture<Void> confirmed = confirms.register(seqNo);
+
+		try {
+			confirming.basicPublish("", target, true, properties, body);
+		} catch (Exception ex) {
+			confirms.fail(seqNo, ex);
+		}
+
+		return confirmed;
+
+	}
+
+	/**
+	 * Returns the pipeline's confirm mode channel, creating it the first time and again if it has been closed for good.
+	 */
+	private Channel getChannel() throws MessagingException, IOException {
+
+		if (!ConnectionPool.isUsable(channel)) {
+			channel = channelPool.getConnectionPool().createChannel();
+			confirms = new ConfirmTracker(channel, DEFAULT_MAX_OUTSTANDING_CONFIRMS);
+			channel.addReturnListener((replyCode, replyText, exchange, routingKey, properties, body) -> returned(replyText, properties));
+		}
+
+		return channel;
+
+	}
+
+	/**
+	 * Records the reason a message was returned. The broker sends the return before the confirm of the same publish.
+	 */
+	private void returned(String replyText, AMQP.BasicProperties properties) {
+		Object seqNo = properties == null || properties.getHeaders() == null ? null : properties.getHeaders().get(SEQUENCE_HEADER);
+		if (seqNo instanceof Number) {
+			returns.put(((Number) seqNo).longValue(), replyText);
+		}
+	}
+
+	private static void expire(CompletableFuture<String> routed, String target, long timeoutMillis) {
+		routed.completeExceptionally(new MessagingException("Message routing to " + target + " was not confirmed within " + timeoutMillis + "ms", null));
+	}
+
+	private static void settle(CompletableFuture<String> routed, String target, String returned, Throwable failure, ScheduledFuture<?> timeout) {
+
+		timeout.cancel(false);
+
+		if (failure != null) {
+			routed.completeExceptionally(new MessagingException("Failed to route message to " + target, failure));
+		} else if (returned != null) {
+			routed.completeExceptionally(new MessagingException("Message returned by the broker routing to " + target + ": " + returned, null));
+		} else {
+			routed.complete(target);
+		}
+
+	}
+
+	/**
+	 * Returns the number of times a delivery has already failed.
+	 *
+	 * @param properties The delivery properties.
+	 * @return The number of failed attempts.
+	 */
+	public static int getAttempts(AMQP.BasicProperties properties) {
+		Map<String, Object> headers = properties == null ? null : properties.getHeaders();
+		Object attempts = headers == null ? null : headers.get(ATTEMPTS_HEADER);
+		return attempts instanceof Number ? ((Number) attempts).intValue() : 0;
+	}
+
+	public String getDelayQueueName(long delayMillis) {
+		return queueName + ".retry." + delayMillis;
+	}
+
+	public String getParkingQueueName() {
+		return queueName + ".parked";
+	}
+
+	public String getQueueName() {
+		return queueName;
+	}
+
+	public RetryPolicy getPolicy() {
+		return policy;
+	}
+
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	public long getConfirmTimeoutMillis() {
+		return confirmTimeoutMillis;
+	}
+
+	/**
+	 * Sets how long a message routed by {@link #route(AMQP.BasicProperties, byte[], Throwable)} may wait for the broker
+	 * to confirm it.
+	 *
+	 * @param confirmTimeoutMillis The confirm timeout in milliseconds.
+	 */
+	public void setConfirmTimeoutMillis(long confirmTimeoutMillis) {
+		if (confirmTimeoutMillis < 1) {
+			throw new IllegalArgumentException("Confirm timeout must be at least 1 millisecond");
+		}
+		this.confirmTimeoutMillis = confirmTimeoutMillis;
+	}
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.util.function.Predicate;
+
+import com.financialforce.orizuru.exception.consumer.decode.DecodeMessageContentException;
+import com.financialforce.orizuru.exception.consumer.decode.DecodeMessageException;
+import com.financialforce.orizuru.exception.consumer.decode.DecodeTransportException;
+
+/**
+ * Decides whether a failed delivery is retried and how long to wait before each retry.
+ * <p>
+ * A delivery is retried once per configured delay, in order, and parked once the delays are exhausted. By default
+ * every failure is retried except failures to decode the message, which would fail the same way every time.
+ */
+public class RetryPolicy {
+
+	private static final long[] DEFAULT_DELAYS_MILLIS = { 1000, 10000, 60000 };
+
+	private final Predicate<Throwable> retryable;
+
+	private final long[] delaysMillis;
+
+	public RetryPolicy() {
+		this(DEFAULT_DELAYS_MILLIS);
+	}
+
+	public RetryPolicy(long... delaysMillis) {
+		this(RetryPolicy::isRetryableByDefault, delaysMillis);
+	}
+
+	public RetryPolicy(Predicate<Throwable> retryable, long... delaysMillis) {
+
+		for (long delay : delaysMillis) {
+			if (delay < 1) {
+				throw new IllegalArgumentException("Retry delays must be at least 1ms");
+			}
+		}
+
+		this.retryable = retryable;
+		this.delaysMillis = delaysMillis.clone();
+
+	}
+
+	/**
+	 * Returns whether a failure is worth retrying.
+	 *
+	 * @param cause The failure.
+	 * @return True if the delivery should be retried.
+	 */
+	public boolean isRetryable(Throwable cause) {
+		return retryable.test(cause);
+	}
+
+	/**
+	 * Returns the delay before the given retry.
+	 *
+	 * @param retry The retry, counting from 1.
+	 * @return The delay in milliseconds.
+	 */
+	public long getDelay(int retry) {
+		return delaysMillis[retry - 1];
+	}
+
+	public long[] getDelays() {
+		return delaysMillis.clone();
+	}
+
+	public int getMaxRetries() {
+		return delaysMillis.length;
+	}
+
+	private static boolean isRetryableByDefault(Throwable cause) {
+		return !(cause instanceof DecodeTransportException
+			|| cause instanceof DecodeMessageException
+			|| cause instanceof DecodeMessageContentException);
+	}
+
+}
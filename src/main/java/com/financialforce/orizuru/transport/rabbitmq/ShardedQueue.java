@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.rabbitmq.client.Channel;
+
+import org.apache.avro.generic.GenericContainer;
+
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IRoutingKeyResolver;
+
+/**
+ * Spreads a logical queue over several shard queues so that it is not limited to the throughput of one broker queue.
+ * <p>
+ * Messages are published to a consistent hash exchange, {@code <queue>.shards}, with a routing key computed from
+ * each message. The exchange hashes the routing key onto one of the shard queues, {@code <queue>.shard.<n>}, each of
+ * which is bound with an equal weight and consumed by its own consumer, see
+ * {@link MessageQueue#consume(ShardedQueue, com.financialforce.orizuru.transport.rabbitmq.interfaces.IConsumerFactory, int)}.
+ * Messages with the same key always reach the same shard, so they are consumed in the order they were published as
+ * long as each shard's consumer handles deliveries with the same routing key one at a time, for example with a
+ * {@link DeliveryDispatcher} ordered {@link DeliveryDispatcher#byRoutingKey() by routing key}.
+ * <p>
+ * The broker must have the {@code rabbitmq_consistent_hash_exchange} plugin enabled.
+ */
+public class ShardedQueue {
+
+	public static final String EXCHANGE_TYPE = "x-consistent-hash";
+
+	private static final String SHARD_WEIGHT = "1";
+
+	private final ChannelPool channelPool;
+
+	private final String queueName;
+
+	private final int shards;
+
+	public ShardedQueue(ChannelPool channelPool, String queueName, int shards) {
+
+		if (shards < 1) {
+			throw new IllegalArgumentException("A sharded queue must have at least 1 shard");
+		}
+
+		this.channelPool = channelPool;
+		this.queueName = queueName;
+		this.shards = shards;
+
+	}
+
+	/**
+	 * Declares the consistent hash exchange and the shard queues, and binds each shard queue to the exchange.
+	 *
+	 * @throws MessagingException Exception thrown if the exchange or a queue cannot be declared.
+	 */
+	public void declare() throws MessagingException {
+
+		Channel channel = channelPool.lease();
+
+		try {
+
+			channel.exchangeDeclare(getExchangeName(), EXCHANGE_TYPE, true);
+
+			for (String shard : getShardQueueNames()) {
+				channel.queueDeclare(shard, true, false, false, null);
+				channel.queueBind(shard, getExchangeName(), SHARD_WEIGHT);
+			}
+
+		} catch (Exception ex) {
+			throw new MessagingException("Failed to declare sharded queue " + queueName, ex);
+		} finally {
+			channelPool.release(channel);
+		}
+
+	}
+
+	/**
+	 * Points a publisher at the consistent hash exchange.
+	 *
+	 * @param publisher The publisher.
+	 * @param keys The resolver for the key that decides the shard of each message.
+	 * @param <O> The type of message published.
+	 */
+	public <O extends GenericContainer> void configure(DefaultPublisher<O> publisher, IRoutingKeyResolver<O> keys) {
+		publisher.setExchange(getExchangeName());
+		publisher.setRoutingKeyResolver(keys);
+	}
+
+	/**
+	 * Points a publisher at the consistent hash exchange.
+	 *
+	 * @param publisher The publisher.
+	 * @param keys The resolver for the key that decides the shard of each message.
+	 * @param <O> The type of message published.
+	 */
+	public <O extends GenericContainer> void configure(PooledPublisher<O> publisher, IRoutingKeyResolver<O> keys) {
+		publisher.setExchange(getExchangeName());
+		publisher.setRoutingKeyResolver(keys);
+	}
+
+	public String getExchangeName() {
+		return queueName + ".shards";
+	}
+
+	public String getShardQueueName(int shard) {
+		return queueName + ".shard." + shard;
+	}
+
+	public List<String> getShardQueueNames() {
+
+		List<String> names = new ArrayList<String>(shards);
+		for (int i = 0; i < shards; i++) {
+			names.add(getShardQueueName(i));
+		}
+
+		return names;
+
+	}
+
+	public String getQueueName() {
+		return queueName;
+	}
+
+	public int getShards() {
+		return shards;
+	}
+
+}
@@ -0,0 +1,411 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import org.apache.avro.generic.GenericContainer;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.financialforce.orizuru.exception.consumer.handler.HandleMessageException;
+import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger;
+
+/**
+ * Consumes a queue as a Reactive Streams {@link Publisher} of decoded messages, with the subscriber's demand
+ * controlling how many messages the broker delivers.
+ * <p>
+ * The outstanding demand, capped at the maximum prefetch, is applied to the channel as its prefetch count, so the
+ * broker only sends what the subscriber has asked for. Each message is acknowledged once {@code onNext} has returned.
+ * The {@code basic.qos} is a blocking round trip, so it is only ever issued on the delivery thread after a message
+ * has been emitted, never from {@link Subscription#request(long)}: a subscriber may request more from the connection
+ * thread, for example when a publish is confirmed, and a round trip there would never complete. The prefetch count
+ * is raised on the first delivery after demand grows, and only lowered once demand has fallen to half of it, to avoid
+ * a {@code basic.qos} for every delivery. Deliveries that arrive while there is no demand, because the prefetch count
+ * had not yet been lowered, wait on the delivery thread until more is requested.
+ * <p>
+ * When the subscription is cancelled the consumer is cancelled and any waiting delivery is requeued. If the channel
+ * shuts down the subscriber receives {@code onError}; if the consumer is cancelled by
+ * {@link #shutdown(long, TimeUnit)} it receives {@code onComplete}.
+ * <p>
+ * Only one subscriber is supported, and it should subscribe before the consumer is registered with
+ * {@link MessageQueue#consume(String, Channel, DefaultConsumer)} so that the initial prefetch count is in place.
+ *
+ * @param <I> The type of message consumed.
+ * @param <O> The type of message published.
+ */
+public class StreamingConsumer<I extends GenericContainer, O extends GenericContainer> extends DefaultConsumer<I, O>
+		implements Publisher<I> {
+
+	public static final int DEFAULT_MAX_PREFETCH = 256;
+
+	private final Object lock = new Object();
+
+	private final Object emitting = new Object();
+
+	private final int maxPrefetch;
+
+	private Subscriber<? super I> subscriber;
+
+	private volatile long demand;
+
+	private volatile int prefetch;
+
+	private volatile boolean terminated;
+
+	public StreamingConsumer(Channel channel, String queueName) {
+		this(channel, queueName, DEFAULT_MAX_PREFETCH);
+	}
+
+	public StreamingConsumer(Channel channel, String queueName, int maxPrefetch) {
+
+		super(channel, queueName, null, new Acknowledger(channel));
+
+		if (maxPrefetch < 1) {
+			throw new IllegalArgumentException("Maximum prefetch count must be at least 1");
+		}
+
+		((Acknowledger) getAcknowledger()).consumer = this;
+		this.maxPrefetch = maxPrefetch;
+
+	}
+
+	/* (non-Javadoc)
+	 * @see org.reactivestreams.Publisher#subscribe(org.reactivestreams.Subscriber)
+	 */
+	@Override
+	public void subscribe(Subscriber<? super I> subscriber) {
+
+		if (subscriber == null) {
+			throw new NullPointerException("Subscriber must not be null");
+		}
+
+		boolean accepted;
+		synchronized (lock) {
+			accepted = this.subscriber == null;
+			if (accepted) {
+				this.subscriber = subscriber;
+				applyPrefetch(1);
+			}
+		}
+
+		if (accepted) {
+			subscriber.onSubscribe(new DemandSubscription());
+			return;
+		}
+
+		subscriber.onSubscribe(new RejectedSubscription());
+		subscriber.onError(new IllegalStateException("Only one subscriber is supported"));
+
+	}
+
+	/**
+	 * Waits for demand, then passes the message to the subscriber.
+	 *
+	 * @throws HandleMessageException Exception thrown if the stream has terminated, in which case the message is
+	 * requeued.
+	 */
+	@Override
+	public O handleMessage(Context context, I input) throws HandleMessageException {
+
+		synchronized (lock) {
+
+			try {
+				while (demand == 0 && !terminated) {
+					lock.wait();
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				terminated = true;
+			}
+
+			if (terminated) {
+				throw new HandleMessageException("Stream has terminated", null);
+			}
+
+			demand--;
+
+		}
+
+		synchronized (emitting) {
+
+			if (terminated) {
+				throw new HandleMessageException("Stream has terminated", null);
+			}
+
+			try {
+				subscriber.onNext(input);
+			} catch (RuntimeException ex) {
+				if (terminate()) {
+					cancelConsumer();
+				}
+				throw new HandleMessageException("Subscriber failed", ex);
+			}
+
+		}
+
+		synchronized (lock) {
+			adjustPrefetch();
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * Completes the stream before shutting the consumer down, so that a delivery waiting for demand is requeued
+	 * rather than holding up the shutdown.
+	 */
+	@Override
+	public DrainReport shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		end(null);
+		return super.shutdown(timeout, unit);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.DefaultConsumer#handleCancelOk(java.lang.String)
+	 */
+	@Override
+	public void handleCancelOk(String consumerTag) {
+		super.handleCancelOk(consumerTag);
+		end(null);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.DefaultConsumer#handleShutdownSignal(java.lang.String, com.rabbitmq.client.ShutdownSignalException)
+	 */
+	@Override
+	public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+		super.handleShutdownSignal(consumerTag, sig);
+		end(sig);
+	}
+
+	/**
+	 * Terminates the stream and signals the subscriber, unless it has already terminated.
+	 *
+	 * @param error The error to signal, or null to signal completion.
+	 */
+	private void end(Throwable error) {
+
+		if (!terminate()) {
+			return;
+		}
+
+		synchronized (emitting) {
+			if (error == null) {
+				subscriber.onComplete();
+			} else {
+				subscriber.onError(error);
+			}
+		}
+
+	}
+
+	/**
+	 * Marks the stream as terminated and wakes any delivery waiting for demand.
+	 *
+	 * @return True if there is a subscriber and the stream had not already terminated.
+	 */
+	private boolean terminate() {
+
+		boolean first;
+
+		synchronized (lock) {
+			first = subscriber != null && !terminated;
+			terminated = true;
+			lock.notifyAll();
+		}
+
+		return first;
+
+	}
+
+	/**
+	 * Applies the outstanding demand as the prefetch count; the caller must hold the lock.
+	 */
+	private void adjustPrefetch() {
+
+		int target = (int) Math.max(1, Math.min(demand, maxPrefetch));
+
+		if (target > prefetch || target <= prefetch / 2) {
+			applyPrefetch(target);
+		}
+
+	}
+
+	private void applyPrefetch(int target) {
+		try {
+			getChannel().basicQos(target, true);
+			prefetch = target;
+		} catch (Exception expected) {
+			// the channel has failed and the stream will be ended by the shutdown signal
+		}
+	}
+
+	private void cancelConsumer() {
+
+		String tag = getConsumerTag();
+		if (tag == null) {
+			return;
+		}
+
+		try {
+			getChannel().basicCancel(tag);
+		} catch (Exception expected) {
+			// the channel has failed, which cancels the consumer
+		}
+
+	}
+
+	public int getMaxPrefetch() {
+		return maxPrefetch;
+	}
+
+	public int getPrefetch() {
+		return prefetch;
+	}
+
+	public long getDemand() {
+		return demand;
+	}
+
+	/**
+	 * The subscription handed to the subscriber.
+	 */
+	private class DemandSubscription implements Subscription {
+
+		/* (non-Javadoc)
+		 * @see org.reactivestreams.Subscription#request(long)
+		 */
+		@Override
+		public void request(long count) {
+
+			if (count < 1) {
+				cancelConsumer();
+				end(new IllegalArgumentException("Requested demand must be positive"));
+				return;
+			}
+
+			synchronized (lock) {
+				if (!terminated) {
+					demand = demand + count < 0 ? Long.MAX_VALUE : demand + count;
+					lock.notifyAll();
+				}
+			}
+
+		}
+
+		/* (non-Javadoc)
+		 * @see org.reactivestreams.Subscription#cancel()
+		 */
+		@Override
+		public void cancel() {
+			if (terminate()) {
+				cancelConsumer();
+			}
+		}
+
+	}
+
+	/**
+	 * The subscription handed to a subscriber that has been rejected, on which requests and cancellation do nothing.
+	 */
+	private static class RejectedSubscription implements Subscription {
+
+		/* (non-Javadoc)
+		 * @see org.reactivestreams.Subscription#request(long)
+		 */
+		@Override
+		public void request(long count) {
+			// the subscriber has already been sent onError
+		}
+
+		/* (non-Javadoc)
+		 * @see org.reactivestreams.Subscription#cancel()
+		 */
+		@Override
+		public void cancel() {
+			// the subscriber has already been sent onError
+		}
+
+	}
+
+	/**
+	 * Acknowledges each delivery as it is handed to the subscriber, and requeues deliveries rejected because the
+	 * stream has terminated, whether or not they have been delivered before.
+	 */
+	private static class Acknowledger implements IAcknowledger {
+
+		private final Channel channel;
+
+		private StreamingConsumer<?, ?> consumer;
+
+		Acknowledger(Channel channel) {
+			this.channel = channel;
+		}
+
+		/* (non-Javadoc)
+		 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger#ack(long)
+		 */
+		@Override
+		public void ack(long deliveryTag) throws IOException {
+			channel.basicAck(deliveryTag, false);
+		}
+
+		/* (non-Javadoc)
+		 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger#nack(long, boolean)
+		 */
+		@Override
+		public void nack(long deliveryTag, boolean requeue) throws IOException {
+			channel.basicNack(deliveryTag, false, requeue || consumer.terminated);
+		}
+
+		/* (non-Javadoc)
+		 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger#flush()
+		 */
+		@Override
+		public void flush() {
+			// acknowledgements are sent immediately
+		}
+
+		/* (non-Javadoc)
+		 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger#close()
+		 */
+		@Override
+		public void close() {
+			// there is nothing to release
+		}
+
+	}
+
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.rabbitmq.client.AMQP;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.specific.SpecificData;
+import org.apache.avro.specific.SpecificDatumReader;
+
+import com.financialforce.orizuru.exception.consumer.decode.DecodeMessageContentException;
+import com.financialforce.orizuru.exception.consumer.decode.DecodeMessageException;
+import com.financialforce.orizuru.exception.consumer.decode.DecodeTransportException;
+import com.financialforce.orizuru.transport.Transport;
+
+/**
+ * Decodes FinancialForce Orizuru Avro Transport messages with per-thread decoders and datum readers.
+ * <p>
+ * The {@link BinaryDecoder} and the {@link SpecificDatumReader} for each message schema are created once per thread
+ * and reused for every delivery, and message schemas are resolved once per schema name. The message content is decoded
+ * straight from the transport's buffer without being copied.
+ * <p>
+ * If record reuse is enabled, the transport and the last record decoded for each schema are passed back to Avro to be
+ * refilled. Records returned by this decoder are then only valid until the next delivery is decoded on the same thread,
+ * so handlers must not retain them.
+ * <p>
+ * A message sent with a schema fingerprint in the {@link TransportEncoder#FINGERPRINT_HEADER} header is decoded with
+ * the writer schema that has that fingerprint, resolved against the consumer's schema for the message. Writer schemas
+ * from earlier or later versions of a message must be {@link #registerSchema(Schema) registered}; the consumer's own
+ * schemas are known already. The resolving datum readers are kept per thread in a least recently used cache of up to
+ * {@code maxCachedSchemas} writer schemas, so schema resolution happens once per schema version rather than once per
+ * message, including while publishers on different versions are running during a rolling upgrade. A message whose
+ * fingerprint matches the consumer's schema, or that has no fingerprint, is decoded as before.
+ */
+public class TransportDecoder {
+
+	public static final int DEFAULT_MAX_CACHED_SCHEMAS = 64;
+
+	private static final DecoderFactory DECODER_FACTORY = DecoderFactory.get();
+
+	private final boolean reuseRecords;
+
+	private final int maxCachedSchemas;
+
+	private final ConcurrentMap<String, Schema> schemas = new ConcurrentHashMap<String, Schema>();
+
+	/**
+	 * Writer schemas by fingerprint.
+	 */
+	private final ConcurrentMap<Long, Schema> writerSchemas = new ConcurrentHashMap<Long, Schema>();
+
+	private final ConcurrentMap<Schema, Long> fingerprints = new ConcurrentHashMap<Schema, Long>();
+
+	private final ThreadLocal<State> state = ThreadLocal.withInitial(() -> new State(getMaxCachedSchemas()));
+
+	public TransportDecoder() {
+		this(false);
+	}
+
+	public TransportDecoder(boolean reuseRecords) {
+		this(reuseRecords, DEFAULT_MAX_CACHED_SCHEMAS);
+	}
+
+	public TransportDecoder(boolean reuseRecords, int maxCachedSchemas) {
+
+		if (maxCachedSchemas < 1) {
+			throw new IllegalArgumentException("Maximum cached schemas must be at least 1");
+		}
+
+		this.reuseRecords = reuseRecords;
+		this.maxCachedSchemas = maxCachedSchemas;
+
+	}
+
+	/**
+	 * Registers a writer schema, so that messages sent with its fingerprint can be decoded.
+	 *
+	 * @param schema The writer schema.
+	 * @return The CRC-64-AVRO fingerprint of the schema.
+	 */
+	public long registerSchema(Schema schema) {
+		long fingerprint = getFingerprint(schema);
+		writerSchemas.putIfAbsent(fingerprint, schema);
+		return fingerprint;
+	}
+
+	/**
+	 * Decodes the FinancialForce Orizuru Avro Transport message.
+	 *
+	 * @param body The incoming message bytes.
+	 * @return The transport.
+	 * @throws DecodeTransportException Exception thrown if the transport cannot be decoded.
+	 */
+	public Transport decodeTransport(byte[] body) throws DecodeTransportException {
+
+		State current = state.get();
+
+		try {
+			current.decoder = DECODER_FACTORY.binaryDecoder(body, current.decoder);
+			current.transport = current.transportReader.read(reuseRecords ? current.transport : null, current.decoder);
+			return current.transport;
+		} catch (Exception ex) {
+			throw new DecodeTransportException(ex);
+		}
+
+	}
+
+	/**
+	 * Decodes the message content carried by the transport.
+	 *
+	 * @param <I> The type of the message.
+	 * @param transport The transport returned by {@link #decodeTransport(byte[])}.
+	 * @return The message.
+	 * @throws DecodeMessageException Exception thrown if the message schema cannot be resolved.
+	 * @throws DecodeMessageContentException Exception thrown if the message content cannot be decoded.
+	 */
+	public <I extends GenericContainer> I decodeMessage(Transport transport) throws DecodeMessageException, DecodeMessageContentException {
+		return decodeMessage(transport, null);
+	}
+
+	/**
+	 * Decodes the message content carried by the transport with the writer schema identified by the delivery's
+	 * {@link TransportEncoder#FINGERPRINT_HEADER} header.
+	 *
+	 * @param <I> The type of the message.
+	 * @param transport The transport returned by {@link #decodeTransport(byte[])}.
+	 * @param properties The properties of the delivery, which may be null.
+	 * @return The message.
+	 * @throws DecodeMessageException Exception thrown if the message schema cannot be resolved or the writer schema is
+	 * not known.
+	 * @throws DecodeMessageContentException Exception thrown if the message content cannot be decoded.
+	 */
+	@SuppressWarnings("unchecked")
+	public <I extends GenericContainer> I decodeMessage(Transport transport, AMQP.BasicProperties properties)
+			throws DecodeMessageException, DecodeMessageContentException {
+
+		Schema schema = getSchema(transport.getMessageSchemaName().toString());
+		State current = state.get();
+		SpecificDatumReader<GenericContainer> reader = getReader(current, schema, getFingerprint(properties));
+
+		try {
+
+			ByteBuffer data = transport.getMessageBuffer();
+			if (data.hasArray()) {
+				current.decoder = DECODER_FACTORY.binaryDecoder(data.array(), data.arrayOffset() + data.position(), data.remaining(), current.decoder);
+			} else {
+				byte[] copy = new byte[data.remaining()];
+				data.duplicate().get(copy);
+				current.decoder = DECODER_FACTORY.binaryDecoder(copy, current.decoder);
+			}
+
+			GenericContainer record = reader.read(reuseRecords ? current.records.get(schema) : null, current.decoder);
+
+			if (reuseRecords) {
+				current.records.put(schema, record);
+			}
+
+			return (I) record;
+
+		} catch (Exception ex) {
+			throw new DecodeMessageContentException(ex);
+		}
+
+	}
+
+	public boolean isReuseRecords() {
+		return reuseRecords;
+	}
+
+	public int getMaxCachedSchemas() {
+		return maxCachedSchemas;
+	}
+
+	/**
+	 * Returns the reader for a message, resolving the writer schema with the given fingerprint against the message
+	 * schema if they differ.
+	 */
+	private SpecificDatumReader<GenericContainer> getReader(State current, Schema schema, Long fingerprint) throws DecodeMessageException {
+
+		if (fingerprint == null || fingerprint == getFingerprint(schema)) {
+			return current.readers.computeIfAbsent(schema, SpecificDatumReader::new);
+		}
+
+		SpecificDatumReader<GenericContainer> reader = current.resolvers.get(fingerprint);
+		if (reader != null && reader.getExpected() == schema) {
+			return reader;
+		}
+
+		Schema writer = writerSchemas.get(fingerprint);
+		if (writer == null) {
+			throw new DecodeMessageException(new IllegalStateException("Unknown writer schema fingerprint " + fingerprint));
+		}
+
+		reader = new SpecificDatumReader<GenericContainer>(writer, schema);
+		current.resolvers.put(fingerprint, reader);
+		return reader;
+
+	}
+
+	private long getFingerprint(Schema schema) {
+		return fingerprints.computeIfAbsent(schema, SchemaNormalization::parsingFingerprint64);
+	}
+
+	private static Long getFingerprint(AMQP.BasicProperties properties) {
+
+		if (properties == null || properties.getHeaders() == null) {
+			return null;
+		}
+
+		Object fingerprint = properties.getHeaders().get(TransportEncoder.FINGERPRINT_HEADER);
+		if (fingerprint instanceof Number) {
+			return ((Number) fingerprint).longValue();
+		}
+
+		return null;
+
+	}
+
+	private Schema getSchema(String schemaName) throws DecodeMessageException {
+
+		Schema schema = schemas.get(schemaName);
+		if (schema != null) {
+			return schema;
+		}
+
+		try {
+			schema = SpecificData.get().getSchema(Class.forName(schemaName));
+		} catch (Exception ex) {
+			throw new DecodeMessageException(ex);
+		}
+
+		schemas.putIfAbsent(schemaName, schema);
+		registerSchema(schema);
+		return schema;
+
+	}
+
+	/**
+	 * Decoding state owned by a single thread.
+	 */
+	private static class State {
+
+		private final SpecificDatumReader<Transport> transportReader = new SpecificDatumReader<Transport>(Transport.class);
+
+		private final Map<Schema, SpecificDatumReader<GenericContainer>> readers = new HashMap<Schema, SpecificDatumReader<GenericContainer>>();
+
+		private final Map<Schema, GenericContainer> records = new HashMap<Schema, GenericContainer>();
+
+		/**
+		 * Readers resolving writer schemas against message schemas, by writer schema fingerprint, in access order.
+		 */
+		private final Map<Long, SpecificDatumReader<GenericContainer>> resolvers;
+
+		private BinaryDecoder decoder;
+
+		private Transport transport;
+
+		private State(int maxCachedSchemas) {
+			this.resolvers = new LinkedHashMap<Long, SpecificDatumReader<GenericContainer>>(16, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, SpecificDatumReader<GenericContainer>> eldest) {
+					return size() > maxCachedSchemas;
+				}
+
+			};
+		}
+
+	}
+
+}
@@ -0,0 +1,309 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+
+import com.rabbitmq.client.AMQP;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+
+import com.financialforce.orizuru.exception.publisher.encode.EncodeMessageContentException;
+import com.financialforce.orizuru.exception.publisher.encode.EncodeTransportException;
+import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.Transport;
+
+/**
+ * Encodes FinancialForce Orizuru Avro Transport messages into per-thread reusable buffers.
+ * <p>
+ * The {@link BinaryEncoder}, the {@link SpecificDatumWriter} for each message schema and the buffers the message
+ * content and transport are written to are created once per thread and reused for every publish. The message content
+ * is embedded in the transport without being copied, and the JSON form of each context schema is computed once. The
+ * only allocation per message is the returned array, which the RabbitMQ client requires to be exactly sized.
+ * <p>
+ * Buffers that grow beyond the maximum retained capacity to encode an unusually large message are released afterwards,
+ * so a single large message does not pin memory on every publishing thread.
+ * <p>
+ * If schema fingerprinting is enabled, {@link #getProperties(AMQP.BasicProperties, Schema)} adds the CRC-64-AVRO
+ * fingerprint of each message's writer schema to its properties as the {@link #FINGERPRINT_HEADER} header, so that a
+ * {@link TransportDecoder} can resolve it against the consumer's schema once per schema version. Fingerprints are
+ * computed once per schema and merged into each message's headers through a read-only view, so the only copy of the
+ * headers is the one the RabbitMQ client makes when the properties are built, however often the properties change.
+ */
+public class TransportEncoder {
+
+	public static final int DEFAULT_INITIAL_CAPACITY = 1024;
+
+	public static final int DEFAULT_MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+	public static final String FINGERPRINT_HEADER = "x-orizuru-schema-fingerprint";
+
+	private static final EncoderFactory ENCODER_FACTORY = EncoderFactory.get();
+
+	private final int initialCapacity;
+
+	private final int maxRetainedCapacity;
+
+	private final boolean fingerprintSchemas;
+
+	private final ConcurrentMap<Schema, String> schemas = new ConcurrentHashMap<Schema, String>();
+
+	private final ConcurrentMap<Schema, Fingerprint> fingerprints = new ConcurrentHashMap<Schema, Fingerprint>();
+
+	private final ThreadLocal<State> state = ThreadLocal.withInitial(() -> new State(getInitialCapacity()));
+
+	public TransportEncoder() {
+		this(DEFAULT_INITIAL_CAPACITY, DEFAULT_MAX_RETAINED_CAPACITY);
+	}
+
+	public TransportEncoder(int initialCapacity, int maxRetainedCapacity) {
+		this(initialCapacity, maxRetainedCapacity, false);
+	}
+
+	public TransportEncoder(int initialCapacity, int maxRetainedCapacity, boolean fingerprintSchemas) {
+
+		if (initialCapacity < 1 || maxRetainedCapacity < initialCapacity) {
+			throw new IllegalArgumentException("Buffer capacities must be positive and the retained capacity at least the initial capacity");
+		}
+
+		this.initialCapacity = initialCapacity;
+		this.maxRetainedCapacity = maxRetainedCapacity;
+		this.fingerprintSchemas = fingerprintSchemas;
+
+	}
+
+	/**
+	 * Encodes the message and its context into a FinancialForce Orizuru Avro Transport message.
+	 *
+	 * @param context The FinancialForce Orizuru Avro Context part of the Transport schema.
+	 * @param message The message to be encoded.
+	 * @return The FinancialForce Orizuru Avro Transport message.
+	 * @throws EncodeMessageContentException Exception thrown if the message content cannot be encoded.
+	 * @throws EncodeTransportException Exception thrown if the transport cannot be encoded.
+	 */
+	public byte[] encode(Context context, GenericContainer message) throws EncodeMessageContentException, EncodeTransportException {
+
+		State current = state.get();
+		Schema schema = message.getSchema();
+
+		try {
+
+			current.content.reset();
+			current.encoder = ENCODER_FACTORY.binaryEncoder(current.content, current.encoder);
+			current.writers.computeIfAbsent(schema, SpecificDatumWriter::new).write(message, current.encoder);
+			current.encoder.flush();
+
+		} catch (Exception ex) {
+			current.release(initialCapacity, maxRetainedCapacity);
+			throw new EncodeMessageContentException(ex);
+		}
+
+		try {
+
+			current.transport.setContextSchema(getSchemaJson(context.getSchema()));
+			current.transport.setContextBuffer(context.getDataBuffer());
+			current.transport.setMessageSchemaName(schema.getFullName());
+			current.transport.setMessageBuffer(current.content.toByteBuffer());
+
+			current.body.reset();
+			current.encoder = ENCODER_FACTORY.binaryEncoder(current.body, current.encoder);
+			current.transportWriter.write(current.transport, current.encoder);
+			current.encoder.flush();
+
+			return current.body.toByteArray();
+
+		} catch (Exception ex) {
+			throw new EncodeTransportException(ex);
+		} finally {
+			current.transport.setContextBuffer(null);
+			current.transport.setMessageBuffer(null);
+			current.release(initialCapacity, maxRetainedCapacity);
+		}
+
+	}
+
+	/**
+	 * Returns the properties to send a message with, carrying the fingerprint of its schema if fingerprinting is
+	 * enabled.
+	 *
+	 * @param properties The properties the message would have been sent with, which may be null.
+	 * @param schema The schema the message was written with.
+	 * @return The properties with the {@link #FINGERPRINT_HEADER} header, or the same properties if fingerprinting is
+	 * disabled.
+	 */
+	public AMQP.BasicProperties getProperties(AMQP.BasicProperties properties, Schema schema) {
+
+		if (!fingerprintSchemas) {
+			return properties;
+		}
+
+		Fingerprint fingerprint = fingerprints.computeIfAbsent(schema, Fingerprint::new);
+		if (properties == null) {
+			return fingerprint.properties;
+		}
+
+		Map<String, Object> headers = properties.getHeaders();
+		return properties.builder()
+				.headers(new FingerprintedHeaders(headers == null ? Collections.<String, Object>emptyMap() : headers, fingerprint.header))
+				.build();
+
+	}
+
+	public int getInitialCapacity() {
+		return initialCapacity;
+	}
+
+	public int getMaxRetainedCapacity() {
+		return maxRetainedCapacity;
+	}
+
+	public boolean isFingerprintSchemas() {
+		return fingerprintSchemas;
+	}
+
+	private String getSchemaJson(Schema schema) {
+		return schemas.computeIfAbsent(schema, Schema::toString);
+	}
+
+	/**
+	 * The fingerprint header of a schema, and the properties for messages sent without any.
+	 */
+	private static final class Fingerprint {
+
+		private final Map.Entry<String, Object> header;
+
+		private final AMQP.BasicProperties properties;
+
+		private Fingerprint(Schema schema) {
+			Long value = SchemaNormalization.parsingFingerprint64(schema);
+			this.header = new AbstractMap.SimpleImmutableEntry<String, Object>(FINGERPRINT_HEADER, value);
+			this.properties = new AMQP.BasicProperties.Builder().headers(Collections.<String, Object>singletonMap(FINGERPRINT_HEADER, value)).build();
+		}
+
+	}
+
+	/**
+	 * Read-only view of a message's headers with the fingerprint header added, replacing any the headers already had.
+	 */
+	private static final class FingerprintedHeaders extends AbstractMap<String, Object> {
+
+		private final Map<String, Object> headers;
+
+		private final Map.Entry<String, Object> fingerprint;
+
+		private FingerprintedHeaders(Map<String, Object> headers, Map.Entry<String, Object> fingerprint) {
+			this.headers = headers;
+			this.fingerprint = fingerprint;
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			return new AbstractSet<Map.Entry<String, Object>>() {
+
+				@Override
+				public int size() {
+					return headers.containsKey(FINGERPRINT_HEADER) ? headers.size() : headers.size() + 1;
+				}
+
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					return Stream.concat(headers.entrySet().stream().filter(entry -> !FINGERPRINT_HEADER.equals(entry.getKey())), Stream.of(fingerprint)).iterator();
+				}
+
+			};
+		}
+
+	}
+
+	/**
+	 * Growable buffer whose contents can be wrapped without copying.
+	 */
+	private static final class Buffer extends ByteArrayOutputStream {
+
+		private Buffer(int capacity) {
+			super(capacity);
+		}
+
+		private ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+
+		private void release(int initialCapacity, int maxRetainedCapacity) {
+			if (buf.length > maxRetainedCapacity) {
+				buf = new byte[initialCapacity];
+				count = 0;
+			}
+		}
+
+	}
+
+	/**
+	 * Encoding state owned by a single thread.
+	 */
+	private static final class State {
+
+		private final SpecificDatumWriter<Transport> transportWriter = new SpecificDatumWriter<Transport>(Transport.class);
+
+		private final Map<Schema, SpecificDatumWriter<GenericContainer>> writers = new HashMap<Schema, SpecificDatumWriter<GenericContainer>>();
+
+		private final Transport transport = new Transport();
+
+		private final Buffer content;
+
+		private final Buffer body;
+
+		private BinaryEncoder encoder;
+
+		private State(int initialCapacity) {
+			this.content = new Buffer(initialCapacity);
+			this.body = new Buffer(initialCapacity);
+		}
+
+		private void release(int initialCapacity, int maxRetainedCapacity) {
+			content.release(initialCapacity, maxRetainedCapacity);
+			body.release(initialCapacity, maxRetainedCapacity);
+		}
+
+	}
+
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics;
+
+/**
+ * Lock-free in-memory {@link IMetrics} that keeps a {@link QueueMetrics} per queue name.
+ * <p>
+ * Counters are {@link java.util.concurrent.atomic.LongAdder}s and latencies are {@link LatencyHistogram}s, so
+ * recording never blocks and is cheap enough to leave enabled in production. Read the values with
+ * {@link #getQueue(String)} and export them to whichever monitoring system is in use.
+ */
+public class TransportMetrics implements IMetrics {
+
+	private final ConcurrentMap<String, QueueMetrics> queues = new ConcurrentHashMap<String, QueueMetrics>();
+
+	/**
+	 * Returns the metrics for a queue, creating them if nothing has been recorded yet.
+	 *
+	 * @param queueName The queue name.
+	 * @return The queue metrics.
+	 */
+	public QueueMetrics getQueue(String queueName) {
+
+		QueueMetrics metrics = queues.get(queueName);
+		if (metrics != null) {
+			return metrics;
+		}
+
+		return queues.computeIfAbsent(queueName, QueueMetrics::new);
+
+	}
+
+	public Collection<QueueMetrics> getQueues() {
+		return Collections.unmodifiableCollection(queues.values());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics#recordDelivery(String, int, boolean)
+	 */
+	@Override
+	public void recordDelivery(String queueName, int size, boolean redelivered) {
+		getQueue(queueName).recordDelivery(size, redelivered);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics#recordDecode(String, long)
+	 */
+	@Override
+	public void recordDecode(String queueName, long nanos) {
+		getQueue(queueName).getDecodeTime().record(nanos);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics#recordHandle(String, long)
+	 */
+	@Override
+	public void recordHandle(String queueName, long nanos) {
+		getQueue(queueName).getHandleTime().record(nanos);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics#recordConsume(String, long, boolean)
+	 */
+	@Override
+	public void recordConsume(String queueName, long nanos, boolean success) {
+		getQueue(queueName).recordConsume(nanos, success);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics#recordAck(String)
+	 */
+	@Override
+	public void recordAck(String queueName) {
+		getQueue(queueName).recordAck();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics#recordNack(String, boolean)
+	 */
+	@Override
+	public void recordNack(String queueName, boolean requeue) {
+		getQueue(queueName).recordNack(requeue);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics#recordPublish(String, long)
+	 */
+	@Override
+	public void recordPublish(String queueName, long nanos) {
+		getQueue(queueName).getPublishTime().record(nanos);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics#recordConfirm(String, long, boolean)
+	 */
+	@Override
+	public void recordConfirm(String queueName, long nanos, boolean acked) {
+		getQueue(queueName).recordConfirm(nanos, acked);
+	}
+
+}
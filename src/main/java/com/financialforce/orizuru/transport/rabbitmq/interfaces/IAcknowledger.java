@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq.interfaces;
+
+import java.io.IOException;
+
+/**
+ * Acknowledges deliveries for a consumer that uses manual acknowledgement.
+ */
+public interface IAcknowledger {
+
+	/**
+	 * Records that the delivery has been handled successfully.
+	 *
+	 * @param deliveryTag The delivery tag from the envelope.
+	 * @throws IOException Exception thrown if the acknowledgement cannot be sent.
+	 */
+	void ack(long deliveryTag) throws IOException;
+
+	/**
+	 * Rejects the delivery.
+	 *
+	 * @param deliveryTag The delivery tag from the envelope.
+	 * @param requeue Whether the broker should requeue the message.
+	 * @throws IOException Exception thrown if the rejection cannot be sent.
+	 */
+	void nack(long deliveryTag, boolean requeue) throws IOException;
+
+	/**
+	 * Sends any acknowledgements that are being held back.
+	 *
+	 * @throws IOException Exception thrown if the acknowledgement cannot be sent.
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * Flushes outstanding acknowledgements and releases any resources.
+	 */
+	void close();
+
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq.interfaces;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+
+import org.apache.avro.generic.GenericContainer;
+
+import com.financialforce.orizuru.interfaces.IPublisher;
+import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.rabbitmq.DefaultConsumer;
+import com.financialforce.orizuru.transport.rabbitmq.DrainReport;
+
+/**
+ * Non-blocking counterpart of {@link IMessageQueue}. Every operation runs on an I/O executor and returns a future, so
+ * callers can compose transport operations without blocking their own threads.
+ * <p>
+ * Futures are completed exceptionally with the exception the blocking operation would have thrown, such as a
+ * {@link com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException}.
+ *
+ * @param <I> The type of message consumed.
+ * @param <O> The type of message published.
+ */
+public interface IAsyncMessageQueue<I extends GenericContainer, O extends GenericContainer> {
+
+	/**
+	 * Creates a new channel on a pooled connection.
+	 *
+	 * @return A future completed with the new channel.
+	 * @see IMessageQueue#createChannel()
+	 */
+	CompletableFuture<Channel> createChannel();
+
+	/**
+	 * Leases a channel from the channel pool.
+	 *
+	 * @return A future completed with an open channel that must be returned with {@link #releaseChannel(Channel)}.
+	 * @see IMessageQueue#leaseChannel()
+	 */
+	CompletableFuture<Channel> leaseChannel();
+
+	/**
+	 * Returns a leased channel to the channel pool. This never blocks.
+	 *
+	 * @param channel The leased channel.
+	 */
+	void releaseChannel(Channel channel);
+
+	/**
+	 * Registers the consumer on the channel.
+	 *
+	 * @param consumerTag The consumer tag.
+	 * @param channel The channel to consume on.
+	 * @param consumer The consumer.
+	 * @return A future completed once the consumer is registered.
+	 * @see IMessageQueue#consume(String, Channel, DefaultConsumer)
+	 */
+	CompletableFuture<Void> consume(String consumerTag, Channel channel, DefaultConsumer<I, O> consumer);
+
+	/**
+	 * Registers the consumer on the channel with a fixed prefetch count.
+	 *
+	 * @param consumerTag The consumer tag.
+	 * @param channel The channel to consume on.
+	 * @param consumer The consumer.
+	 * @param prefetchCount The maximum number of unacknowledged messages delivered to the consumer.
+	 * @return A future completed once the consumer is registered.
+	 * @see IMessageQueue#consume(String, Channel, DefaultConsumer, int)
+	 */
+	CompletableFuture<Void> consume(String consumerTag, Channel channel, DefaultConsumer<I, O> consumer, int prefetchCount);
+
+	/**
+	 * Publishes the message. If the publisher is a
+	 * {@link com.financialforce.orizuru.transport.rabbitmq.DefaultPublisher} the future completes when the broker
+	 * confirms the message, without holding an I/O thread while the confirm is outstanding. The future is then
+	 * completed on the connection thread, so dependent actions that publish or block must use the {@code *Async}
+	 * variants.
+	 *
+	 * @param publisher The publisher.
+	 * @param context The FinancialForce Orizuru Avro Context part of the Transport schema.
+	 * @param message The message to be published.
+	 * @return A future completed once the message has been published.
+	 */
+	CompletableFuture<Void> publish(IPublisher<O> publisher, Context context, O message);
+
+	/**
+	 * Shuts the consumer down, completing once its in-flight deliveries have drained or the timeout has passed,
+	 * without holding an I/O thread while it waits.
+	 *
+	 * @param consumer The consumer.
+	 * @param timeout The maximum time to wait.
+	 * @param unit The unit of the timeout.
+	 * @return A future completed with the drain report.
+	 * @see DefaultConsumer#shutdownAsync(long, TimeUnit, java.util.concurrent.Executor, java.util.concurrent.ScheduledExecutorService)
+	 */
+	CompletableFuture<DrainReport> shutdown(DefaultConsumer<I, O> consumer, long timeout, TimeUnit unit);
+
+	/**
+	 * Closes the pooled channels and connections.
+	 *
+	 * @return A future completed once the channels and connections are closed.
+	 * @see IMessageQueue#close()
+	 */
+	CompletableFuture<Void> close();
+
+}
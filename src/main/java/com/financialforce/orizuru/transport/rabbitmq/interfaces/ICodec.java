@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq.interfaces;
+
+import java.io.IOException;
+
+/**
+ * Compresses message bodies for the wire. A codec is identified by the {@code content-encoding} it sets on the
+ * messages it has compressed.
+ */
+public interface ICodec {
+
+	/**
+	 * Returns the content encoding of messages compressed by this codec.
+	 *
+	 * @return The content encoding, such as {@code deflate}.
+	 */
+	String getName();
+
+	/**
+	 * Compresses a message body.
+	 *
+	 * @param data The message body.
+	 * @return The compressed message body.
+	 * @throws IOException Exception thrown if the body cannot be compressed.
+	 */
+	byte[] encode(byte[] data) throws IOException;
+
+	/**
+	 * Decompresses a message body.
+	 *
+	 * @param data The compressed message body.
+	 * @return The message body.
+	 * @throws IOException Exception thrown if the body is not valid for this codec.
+	 */
+	byte[] decode(byte[] data) throws IOException;
+
+}
@@ -26,17 +26,95 @@
 
 package com.financialforce.orizuru.transport.rabbitmq.interfaces;
 
+import java.util.List;
+
 import com.rabbitmq.client.Channel;
 
 import org.apache.avro.generic.GenericContainer;
 
+import com.financialforce.orizuru.transport.rabbitmq.AdaptivePrefetch;
 import com.financialforce.orizuru.transport.rabbitmq.DefaultConsumer;
+import com.financialforce.orizuru.transport.rabbitmq.ShardedQueue;
 import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
 
 public interface IMessageQueue<I extends GenericContainer, O extends GenericContainer> {
 
+	/**
+	 * Creates a new channel on a pooled connection. The caller owns the channel, typically for consuming.
+	 *
+	 * @return The new channel.
+	 * @throws MessagingException Exception thrown if the channel cannot be created.
+	 */
 	Channel createChannel() throws MessagingException;
 
+	/**
+	 * Leases a channel from the channel pool for short-lived use.
+	 *
+	 * @return An open channel that must be returned with {@link #releaseChannel(Channel)}.
+	 * @throws MessagingException Exception thrown if a channel cannot be leased.
+	 */
+	Channel leaseChannel() throws MessagingException;
+
+	/**
+	 * Returns a leased channel to the channel pool.
+	 *
+	 * @param channel The leased channel.
+	 */
+	void releaseChannel(Channel channel);
+
+	/**
+	 * Registers the consumer on the channel.
+	 *
+	 * @param consumerTag The consumer tag.
+	 * @param channel The channel to consume on.
+	 * @param consumer The consumer.
+	 * @throws MessagingException Exception thrown if the consumer cannot be registered.
+	 */
 	void consume(String consumerTag, Channel channel, DefaultConsumer<I, O> consumer) throws MessagingException;
 
+	/**
+	 * Registers the consumer on the channel with a fixed prefetch count. The consumer must use explicit
+	 * acknowledgement, since the broker ignores the prefetch count of an auto acknowledgement consumer.
+	 *
+	 * @param consumerTag The consumer tag.
+	 * @param channel The channel to consume on.
+	 * @param consumer The consumer.
+	 * @param prefetchCount The maximum number of unacknowledged messages delivered to the consumer.
+	 * @throws MessagingException Exception thrown if the consumer cannot be registered.
+	 */
+	void consume(String consumerTag, Channel channel, DefaultConsumer<I, O> consumer, int prefetchCount) throws MessagingException;
+
+	/**
+	 * Registers the consumer on the channel with a prefetch count that adapts to the consumer's handling latency. The
+	 * consumer must use explicit acknowledgement, and the minimum prefetch count must be at least the batch size of
+	 * an {@link com.financialforce.orizuru.transport.rabbitmq.AckCoalescer}.
+	 *
+	 * @param consumerTag The consumer tag.
+	 * @param channel The channel to consume on; must be the channel the prefetch controller was created with.
+	 * @param consumer The consumer.
+	 * @param prefetch The adaptive prefetch controller.
+	 * @throws MessagingException Exception thrown if the consumer cannot be registered.
+	 */
+	void consume(String consumerTag, Channel channel, DefaultConsumer<I, O> consumer, AdaptivePrefetch prefetch) throws MessagingException;
+
+	/**
+	 * Registers one consumer per shard of a sharded queue, each on its own channel with a fixed prefetch count. If a
+	 * consumer cannot be created or registered, every channel created so far is aborted. The consumers must use
+	 * explicit acknowledgement.
+	 *
+	 * @param queue The sharded queue.
+	 * @param factory The factory creating the consumer for each shard queue.
+	 * @param prefetchCount The maximum number of unacknowledged messages delivered to each consumer.
+	 * @return The consumers, in shard order.
+	 * @throws MessagingException Exception thrown if a consumer cannot be registered.
+	 */
+	List<DefaultConsumer<I, O>> consume(ShardedQueue queue, IConsumerFactory<I, O> factory, int prefetchCount) throws MessagingException;
+
+	/**
+	 * Closes the pooled channels and connections.
+	 *
+	 * @throws MessagingException Exception thrown if a connection fails to close.
+	 */
+	void close() throws MessagingException;
+
 }
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq.interfaces;
+
+/**
+ * Records throughput and latency of consumers and publishers, per queue.
+ * <p>
+ * Implementations are called on the delivery and publishing threads and must be thread-safe and cheap.
+ */
+public interface IMetrics {
+
+	/**
+	 * Records a message delivered to a consumer.
+	 *
+	 * @param queueName The queue the message was consumed from.
+	 * @param size The size of the message body in bytes.
+	 * @param redelivered Whether the broker has delivered the message before.
+	 */
+	void recordDelivery(String queueName, int size, boolean redelivered);
+
+	/**
+	 * Records the time taken to decode a delivered message.
+	 *
+	 * @param queueName The queue the message was consumed from.
+	 * @param nanos The elapsed time in nanoseconds.
+	 */
+	void recordDecode(String queueName, long nanos);
+
+	/**
+	 * Records the time taken by the message handler.
+	 *
+	 * @param queueName The queue the message was consumed from.
+	 * @param nanos The elapsed time in nanoseconds.
+	 */
+	void recordHandle(String queueName, long nanos);
+
+	/**
+	 * Records the time taken to consume a delivered message, from decoding to publishing any result.
+	 *
+	 * @param queueName The queue the message was consumed from.
+	 * @param nanos The elapsed time in nanoseconds.
+	 * @param success Whether the message was consumed successfully.
+	 */
+	void recordConsume(String queueName, long nanos, boolean success);
+
+	/**
+	 * Records a delivery acknowledged by a consumer.
+	 *
+	 * @param queueName The queue the message was consumed from.
+	 */
+	void recordAck(String queueName);
+
+	/**
+	 * Records a delivery rejected by a consumer.
+	 *
+	 * @param queueName The queue the message was consumed from.
+	 * @param requeue Whether the message was requeued.
+	 */
+	void recordNack(String queueName, boolean requeue);
+
+	/**
+	 * Records the time taken to serialise and send a message.
+	 *
+	 * @param queueName The queue the message was published to.
+	 * @param nanos The elapsed time in nanoseconds.
+	 */
+	void recordPublish(String queueName, long nanos);
+
+	/**
+	 * Records the time between sending a message and the broker confirming or rejecting it.
+	 *
+	 * @param queueName The queue the message was published to.
+	 * @param nanos The elapsed time in nanoseconds.
+	 * @param acked Whether the broker confirmed the message.
+	 */
+	void recordConfirm(String queueName, long nanos, boolean acked);
+
+}
@@ -0,0 +1,367 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.impl.recovery.AutorecoveringChannel;
+import com.rabbitmq.client.impl.recovery.RecoveryAwareChannelN;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class AckCoalescerTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForAnEmptyBatch() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new AckCoalescer(mock(Channel.class), 0, 0);
+
+	}
+
+	@Test
+	public void ack_shouldSendASingleMultipleAckPerBatch() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		AckCoalescer coalescer = new AckCoalescer(channel, 3, 0);
+
+		// when
+		for (long tag = 1; tag <= 6; tag++) {
+			coalescer.ack(tag);
+		}
+
+		// then
+		verify(channel, times(1)).basicAck(3, true);
+		verify(channel, times(1)).basicAck(6, true);
+		assertEquals(6, coalescer.getAcknowledged());
+
+	}
+
+	@Test
+	public void ack_shouldNotAcknowledgePastAnUnsettledDelivery() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		AckCoalescer coalescer = new AckCoalescer(channel, 2, 0);
+
+		// when
+		coalescer.ack(1);
+		coalescer.ack(3);
+		coalescer.ack(4);
+
+		// then
+		verify(channel, times(1)).basicAck(1, true);
+		assertEquals(1, coalescer.getContiguous());
+
+		// when
+		coalescer.ack(2);
+		coalescer.flush();
+
+		// then
+		verify(channel, times(1)).basicAck(4, true);
+
+	}
+
+	@Test
+	public void nack_shouldRejectTheDeliveryAndSettleIt() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		AckCoalescer coalescer = new AckCoalescer(channel, 10, 0);
+
+		// when
+		coalescer.nack(1, true);
+		coalescer.ack(2);
+		coalescer.flush();
+
+		// then
+		verify(channel, times(1)).basicNack(1, false, true);
+		verify(channel, times(1)).basicAck(2, true);
+
+	}
+
+	@Test
+	public void flush_shouldOnlyAcknowledgeUpToAnAcknowledgedDelivery() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		AckCoalescer coalescer = new AckCoalescer(channel, 10, 0);
+
+		// when
+		coalescer.ack(1);
+		coalescer.nack(2, false);
+		coalescer.nack(3, true);
+		coalescer.flush();
+
+		// then
+		verify(channel, times(1)).basicAck(1, true);
+		verify(channel, times(1)).basicAck(anyLong(), anyBoolean());
+		assertEquals(3, coalescer.getAcknowledged());
+
+	}
+
+	@Test
+	public void flush_shouldNotAcknowledgeAnythingIfEverySettledDeliveryWasRejected() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		AckCoalescer coalescer = new AckCoalescer(channel, 10, 0);
+		coalescer.nack(1, true);
+
+		// when
+		coalescer.flush();
+		coalescer.ack(2);
+		coalescer.flush();
+
+		// then
+		verify(channel, times(1)).basicAck(2, true);
+		verify(channel, times(1)).basicAck(anyLong(), anyBoolean());
+
+	}
+
+	@Test
+	public void flush_shouldKeepTheChannelOpenAfterRejectingTheHighestDelivery() throws Exception {
+
+		// given
+		FakeBroker broker = new FakeBroker();
+		Channel channel = broker.getConnectionFactory().newConnection().createChannel();
+		channel.queueDeclare("input", true, false, false, null);
+		for (int i = 0; i < 3; i++) {
+			channel.basicPublish("", "input", null, "message".getBytes());
+		}
+
+		CountDownLatch closed = new CountDownLatch(1);
+		channel.addShutdownListener(cause -> closed.countDown());
+		AckCoalescer coalescer = new AckCoalescer(channel, 10, 0);
+
+		// when
+		coalescer.ack(channel.basicGet("input", false).getEnvelope().getDeliveryTag());
+		coalescer.ack(channel.basicGet("input", false).getEnvelope().getDeliveryTag());
+		coalescer.nack(channel.basicGet("input", false).getEnvelope().getDeliveryTag(), false);
+		coalescer.flush();
+
+		// then
+		assertFalse(closed.await(200, TimeUnit.MILLISECONDS));
+		assertTrue(channel.isOpen());
+		assertEquals(0, broker.getUnacknowledgedCount("input"));
+		assertEquals(2, broker.getAcknowledged());
+
+	}
+
+	@Test
+	public void ack_shouldThrowAnIllegalStateExceptionForADeliveryTooFarAhead() throws Exception {
+
+		// given
+		AckCoalescer coalescer = new AckCoalescer(mock(Channel.class), 10, 0);
+
+		// expect
+		exception.expect(IllegalStateException.class);
+
+		// when
+		coalescer.ack(Integer.MAX_VALUE + 1L);
+
+	}
+
+	@Test
+	public void flush_shouldDoNothingIfNothingIsSettled() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		AckCoalescer coalescer = new AckCoalescer(channel, 10, 0);
+
+		// when
+		coalescer.flush();
+
+		// then
+		verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+	}
+
+	@Test
+	public void flush_shouldCompactLongRunsOfSettledDeliveries() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		AckCoalescer coalescer = new AckCoalescer(channel, 100000, 0);
+
+		for (long tag = 1; tag <= 5000; tag++) {
+			coalescer.ack(tag);
+		}
+		coalescer.ack(5002);
+
+		// when
+		coalescer.flush();
+		coalescer.ack(1);
+		coalescer.ack(5001);
+		coalescer.flush();
+
+		// then
+		verify(channel, times(1)).basicAck(5000, true);
+		verify(channel, times(1)).basicAck(5002, true);
+		assertEquals(5002, coalescer.getContiguous());
+
+	}
+
+	@Test
+	public void handleRecovery_shouldSkipTheDeliveryTagsOfTheLostChannel() throws Exception {
+
+		// given
+		AutorecoveringChannel channel = recovered(3);
+		AckCoalescer coalescer = new AckCoalescer(channel, 10, 0);
+		coalescer.ack(1);
+
+		// when
+		coalescer.handleRecoveryStarted(channel);
+		coalescer.handleRecovery(channel);
+		coalescer.ack(4);
+		coalescer.ack(2);
+		coalescer.flush();
+
+		// then
+		verify(channel, times(1)).addRecoveryListener(coalescer);
+		verify(channel, times(1)).basicAck(4, true);
+		verify(channel, times(1)).basicAck(anyLong(), anyBoolean());
+		assertEquals(4, coalescer.getAcknowledged());
+
+	}
+
+	@Test
+	public void handleRecovery_shouldKeepDeliveriesSettledOnTheRecoveredChannel() throws Exception {
+
+		// given
+		AutorecoveringChannel channel = recovered(3);
+		AckCoalescer coalescer = new AckCoalescer(channel, 10, 0);
+		coalescer.ack(1);
+		coalescer.ack(4);
+
+		// when
+		coalescer.handleRecovery(channel);
+		coalescer.flush();
+
+		// then
+		verify(channel, times(1)).basicAck(4, true);
+		verify(channel, times(1)).basicAck(anyLong(), anyBoolean());
+
+	}
+
+	@Test
+	public void handleRecovery_shouldKeepStateIfDeliveryTagsAreNotOffset() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class, withSettings().extraInterfaces(Recoverable.class));
+		AckCoalescer coalescer = new AckCoalescer(channel, 10, 0);
+		coalescer.ack(1);
+
+		// when
+		coalescer.handleRecoveryStarted((Recoverable) channel);
+		coalescer.handleRecovery((Recoverable) channel);
+		coalescer.ack(2);
+		coalescer.flush();
+
+		// then
+		verify(channel, times(1)).basicAck(2, true);
+
+	}
+
+	@Test
+	public void timer_shouldFlushAfterTheMaximumDelay() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		AckCoalescer coalescer = new AckCoalescer(channel, 10, 5, scheduler);
+
+		// when
+		coalescer.ack(1);
+
+		// then
+		verify(channel, timeout(1000).times(1)).basicAck(1, true);
+		coalescer.close();
+		scheduler.shutdown();
+
+	}
+
+	@Test
+	public void close_shouldFlushAndIgnoreChannelFailures() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		doThrow(IOException.class).when(channel).basicAck(anyLong(), eq(true));
+
+		AckCoalescer coalescer = new AckCoalescer(channel, 10, 1000);
+		coalescer.ack(1);
+
+		// when
+		coalescer.close();
+
+		// then
+		verify(channel, times(1)).basicAck(1, true);
+
+	}
+
+	/**
+	 * Returns a recovered channel whose delivery tags are numbered on from the given tag of the lost channel.
+	 */
+	private static AutorecoveringChannel recovered(long offset) {
+		RecoveryAwareChannelN delegate = mock(RecoveryAwareChannelN.class);
+		when(delegate.getActiveDeliveryTagOffset()).thenReturn(offset);
+		AutorecoveringChannel channel = mock(AutorecoveringChannel.class);
+		when(channel.getDelegate()).thenReturn(delegate);
+		return channel;
+	}
+
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class AdaptivePrefetchTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForInvalidBounds() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new AdaptivePrefetch(mock(Channel.class), 10, 5, 100, 0);
+
+	}
+
+	@Test
+	public void start_shouldApplyTheMinimumPrefetchToTheChannel() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		AdaptivePrefetch prefetch = new AdaptivePrefetch(channel, 2, 100, 100, 0);
+
+		// when
+		prefetch.start();
+
+		// then
+		verify(channel, times(1)).basicQos(2, true);
+		assertEquals(2, prefetch.getPrefetch());
+		assertEquals(2, prefetch.getMinPrefetch());
+		assertEquals(100, prefetch.getMaxPrefetch());
+
+	}
+
+	@Test
+	public void onComplete_shouldGrowThePrefetchForFastHandlers() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		AdaptivePrefetch prefetch = new AdaptivePrefetch(channel, 1, 1000, 100, 0, 0);
+
+		// when
+		prefetch.onDelivery(10);
+		prefetch.onComplete(TimeUnit.MILLISECONDS.toNanos(1));
+
+		// then
+		verify(channel, times(1)).basicQos(101, true);
+		assertEquals(101, prefetch.getPrefetch());
+		assertEquals(0, prefetch.getInFlight());
+
+	}
+
+	@Test
+	public void onComplete_shouldScaleThePrefetchWithConcurrency() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		AdaptivePrefetch prefetch = new AdaptivePrefetch(channel, 1, 1000, 100, 0, 0);
+		prefetch.setConcurrency(4);
+
+		// when
+		prefetch.onDelivery(10);
+		prefetch.onComplete(TimeUnit.MILLISECONDS.toNanos(100));
+
+		// then
+		verify(channel, times(1)).basicQos(8, true);
+		assertEquals(4, prefetch.getConcurrency());
+
+	}
+
+	@Test
+	public void onComplete_shouldClampThePrefetchToTheMaximum() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		AdaptivePrefetch prefetch = new AdaptivePrefetch(channel, 1, 50, 100, 0, 0);
+
+		// when
+		prefetch.onDelivery(10);
+		prefetch.onComplete(1);
+
+		// then
+		assertEquals(50, prefetch.getPrefetch());
+
+	}
+
+	@Test
+	public void onComplete_shouldNotAdjustBeforeTheIntervalElapses() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		AdaptivePrefetch prefetch = new AdaptivePrefetch(channel, 1, 1000, 100, 0, TimeUnit.HOURS.toMillis(1));
+		prefetch.start();
+
+		// when
+		prefetch.onDelivery(10);
+		prefetch.onComplete(TimeUnit.MILLISECONDS.toNanos(1));
+
+		// then
+		verify(channel, times(1)).basicQos(anyInt(), anyBoolean());
+		assertEquals(1, prefetch.getPrefetch());
+
+	}
+
+	@Test
+	public void onComplete_shouldIgnoreSmallChanges() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		AdaptivePrefetch prefetch = new AdaptivePrefetch(channel, 1, 1000, 100, 0, 0);
+		prefetch.onDelivery(10);
+		prefetch.onComplete(TimeUnit.MILLISECONDS.toNanos(1));
+
+		// when
+		prefetch.onDelivery(10);
+		prefetch.onComplete(TimeUnit.MICROSECONDS.toNanos(1100));
+
+		// then
+		verify(channel, times(1)).basicQos(anyInt(), anyBoolean());
+		assertEquals(101, prefetch.getPrefetch());
+
+	}
+
+	@Test
+	public void onDelivery_shouldShrinkThePrefetchWhenTheMemoryBudgetIsExceeded() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		AdaptivePrefetch prefetch = new AdaptivePrefetch(channel, 1, 1000, 100, 100000, 0);
+		prefetch.onDelivery(10);
+		prefetch.onComplete(TimeUnit.MILLISECONDS.toNanos(1));
+
+		// when
+		for (int i = 0; i < 3; i++) {
+			prefetch.onDelivery(100000);
+		}
+
+		// then
+		verify(channel, times(1)).basicQos(101, true);
+		verify(channel, times(1)).basicQos(2, true);
+		assertEquals(2, prefetch.getPrefetch());
+		assertEquals(3, prefetch.getInFlight());
+
+	}
+
+	@Test
+	public void onComplete_shouldKeepThePrefetchIfTheChannelFails() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		doThrow(IOException.class).when(channel).basicQos(anyInt(), anyBoolean());
+		AdaptivePrefetch prefetch = new AdaptivePrefetch(channel, 1, 1000, 100, 0, 0);
+
+		// when
+		prefetch.onDelivery(10);
+		prefetch.onComplete(TimeUnit.MILLISECONDS.toNanos(1));
+
+		// then
+		assertEquals(1, prefetch.getPrefetch());
+
+	}
+
+	@Test
+	public void computeTarget_shouldReturnTheCurrentPrefetchWithoutObservations() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		AdaptivePrefetch prefetch = new AdaptivePrefetch(channel, 3, 1000, 100, 0);
+
+		// when/then
+		assertEquals(3, prefetch.computeTarget());
+		verify(channel, never()).basicQos(anyInt(), anyBoolean());
+
+	}
+
+}
@@ -0,0 +1,363 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+
+import org.apache.avro.generic.GenericContainer;
+import org.hamcrest.core.IsInstanceOf;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.financialforce.orizuru.interfaces.IPublisher;
+import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IMessageQueue;
+
+public class AsyncMessageQueueTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void createChannel_shouldCompleteWithTheChannel() throws Exception {
+
+		// given
+		IMessageQueue<GenericContainer, GenericContainer> messageQueue = messageQueue();
+		Channel channel = mock(Channel.class);
+		when(messageQueue.createChannel()).thenReturn(channel);
+
+		AsyncMessageQueue<GenericContainer, GenericContainer> async = new AsyncMessageQueue<GenericContainer, GenericContainer>(messageQueue);
+
+		// when
+		Channel created = async.createChannel().get(5, TimeUnit.SECONDS);
+
+		// then
+		assertSame(channel, created);
+		async.close().get(5, TimeUnit.SECONDS);
+
+	}
+
+	@Test
+	public void createChannel_shouldRunOnTheExecutorThread() throws Exception {
+
+		// given
+		IMessageQueue<GenericContainer, GenericContainer> messageQueue = messageQueue();
+		Thread[] caller = new Thread[1];
+		when(messageQueue.createChannel()).thenAnswer(invocation -> {
+			caller[0] = Thread.currentThread();
+			return mock(Channel.class);
+		});
+
+		AsyncMessageQueue<GenericContainer, GenericContainer> async = new AsyncMessageQueue<GenericContainer, GenericContainer>(messageQueue);
+
+		// when
+		async.createChannel().get(5, TimeUnit.SECONDS);
+
+		// then
+		assertNotEquals(Thread.currentThread(), caller[0]);
+		assertEquals("orizuru-io", caller[0].getName());
+		assertTrue(caller[0].isDaemon());
+		async.close().get(5, TimeUnit.SECONDS);
+
+	}
+
+	@Test
+	public void getScheduler_shouldRunOnADaemonThread() throws Exception {
+
+		// given
+		AsyncMessageQueue<GenericContainer, GenericContainer> async = new AsyncMessageQueue<GenericContainer, GenericContainer>(messageQueue(), Runnable::run);
+
+		// when
+		Thread thread = async.getScheduler().schedule(Thread::currentThread, 0, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+
+		// then
+		assertEquals("orizuru-timer", thread.getName());
+		assertTrue(thread.isDaemon());
+		async.close();
+
+	}
+
+	@Test
+	public void leaseChannel_shouldCompleteExceptionallyIfNoChannelCanBeLeased() throws Exception {
+
+		// given
+		IMessageQueue<GenericContainer, GenericContainer> messageQueue = messageQueue();
+		when(messageQueue.leaseChannel()).thenThrow(new MessagingException("Failed", null));
+
+		AsyncMessageQueue<GenericContainer, GenericContainer> async = new AsyncMessageQueue<GenericContainer, GenericContainer>(messageQueue, Runnable::run);
+
+		// expect
+		exception.expect(ExecutionException.class);
+		exception.expectCause(IsInstanceOf.<Throwable>instanceOf(MessagingException.class));
+
+		// when
+		async.leaseChannel().get();
+
+	}
+
+	@Test
+	public void releaseChannel_shouldReturnTheChannelToThePool() {
+
+		// given
+		IMessageQueue<GenericContainer, GenericContainer> messageQueue = messageQueue();
+		Channel channel = mock(Channel.class);
+
+		AsyncMessageQueue<GenericContainer, GenericContainer> async = new AsyncMessageQueue<GenericContainer, GenericContainer>(messageQueue, Runnable::run);
+
+		// when
+		async.releaseChannel(channel);
+
+		// then
+		verify(messageQueue, times(1)).releaseChannel(channel);
+
+	}
+
+	@Test
+	public void consume_shouldRegisterTheConsumer() throws Exception {
+
+		// given
+		IMessageQueue<GenericContainer, GenericContainer> messageQueue = messageQueue();
+		Channel channel = mock(Channel.class);
+		DefaultConsumer<GenericContainer, GenericContainer> consumer = consumer();
+
+		AsyncMessageQueue<GenericContainer, GenericContainer> async = new AsyncMessageQueue<GenericContainer, GenericContainer>(messageQueue, Runnable::run);
+
+		// when
+		CompletableFuture<Void> registered = async.consume("tag", channel, consumer);
+		CompletableFuture<Void> prefetched = async.consume("", channel, consumer, 10);
+
+		// then
+		assertTrue(registered.isDone());
+		assertTrue(prefetched.isDone());
+		verify(messageQueue, times(1)).consume("tag", channel, consumer);
+		verify(messageQueue, times(1)).consume("", channel, consumer, 10);
+
+	}
+
+	@Test
+	public void publish_shouldCompleteWhenTheBrokerConfirmsTheMessage() throws Exception {
+
+		// given
+		CompletableFuture<Void> confirmed = new CompletableFuture<Void>();
+		DefaultPublisher<GenericContainer> publisher = publisher();
+		when(publisher.publishAsync(any(), any())).thenReturn(confirmed);
+
+		AsyncMessageQueue<GenericContainer, GenericContainer> async = new AsyncMessageQueue<GenericContainer, GenericContainer>(messageQueue(), Runnable::run);
+
+		// when
+		CompletableFuture<Void> published = async.publish(publisher, mock(Context.class), mock(GenericContainer.class));
+
+		// then
+		assertFalse(published.isDone());
+		confirmed.complete(null);
+		assertTrue(published.isDone());
+		assertFalse(published.isCompletedExceptionally());
+
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void publish_shouldPublishThroughAnyPublisher() throws Exception {
+
+		// given
+		IPublisher<GenericContainer> publisher = mock(IPublisher.class);
+		Context context = mock(Context.class);
+		GenericContainer message = mock(GenericContainer.class);
+
+		AsyncMessageQueue<GenericContainer, GenericContainer> async = new AsyncMessageQueue<GenericContainer, GenericContainer>(messageQueue(), Runnable::run);
+
+		// when
+		CompletableFuture<Void> published = async.publish(publisher, context, message);
+
+		// then
+		assertTrue(published.isDone());
+		verify(publisher, times(1)).publish(context, message);
+
+	}
+
+	@Test
+	public void shutdown_shouldCompleteWithTheDrainReport() throws Exception {
+
+		// given
+		DrainReport report = mock(DrainReport.class);
+		DefaultConsumer<GenericContainer, GenericContainer> consumer = consumer();
+		when(consumer.shutdownAsync(eq(1L), eq(TimeUnit.SECONDS), any(), any())).thenReturn(CompletableFuture.completedFuture(report));
+
+		AsyncMessageQueue<GenericContainer, GenericContainer> async = new AsyncMessageQueue<GenericContainer, GenericContainer>(messageQueue(), Runnable::run);
+
+		// when
+		DrainReport drained = async.shutdown(consumer, 1, TimeUnit.SECONDS).get();
+
+		// then
+		assertSame(report, drained);
+		verify(consumer, times(1)).shutdownAsync(1, TimeUnit.SECONDS, async.getExecutor(), async.getScheduler());
+
+	}
+
+	@Test
+	public void shutdown_shouldNotHoldAnIoThreadWhileTheConsumerDrains() throws Exception {
+
+		// given
+		CompletableFuture<DrainReport> drained = new CompletableFuture<DrainReport>();
+		DefaultConsumer<GenericContainer, GenericContainer> consumer = consumer();
+		when(consumer.shutdownAsync(anyLong(), any(), any(), any())).thenReturn(drained);
+
+		AsyncMessageQueue<GenericContainer, GenericContainer> async = new AsyncMessageQueue<GenericContainer, GenericContainer>(messageQueue());
+
+		// when
+		CompletableFuture<DrainReport> shutdown = async.shutdown(consumer, 1, TimeUnit.SECONDS);
+		verify(consumer, timeout(5000)).shutdownAsync(anyLong(), any(), any(), any());
+		Channel channel = mock(Channel.class);
+		when(async.getMessageQueue().createChannel()).thenReturn(channel);
+
+		// then
+		assertSame(channel, async.createChannel().get(5, TimeUnit.SECONDS));
+		assertSame(channel, async.createChannel().get(5, TimeUnit.SECONDS));
+		assertFalse(shutdown.isDone());
+		drained.complete(mock(DrainReport.class));
+		assertTrue(shutdown.isDone());
+		async.close().get(5, TimeUnit.SECONDS);
+
+	}
+
+	@Test
+	public void close_shouldShutDownTheDefaultExecutor() throws Exception {
+
+		// given
+		IMessageQueue<GenericContainer, GenericContainer> messageQueue = messageQueue();
+		doThrow(new MessagingException("Failed", null)).when(messageQueue).close();
+
+		AsyncMessageQueue<GenericContainer, GenericContainer> async = new AsyncMessageQueue<GenericContainer, GenericContainer>(messageQueue);
+
+		// when
+		CompletableFuture<Void> closed = async.close();
+
+		// then
+		try {
+			closed.get(5, TimeUnit.SECONDS);
+		} catch (ExecutionException expected) {
+			// the failure to close is reported, and the executor is still shut down
+		}
+
+		ExecutorService executor = (ExecutorService) async.getExecutor();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		assertTrue(async.getScheduler().awaitTermination(5, TimeUnit.SECONDS));
+		assertSame(messageQueue, async.getMessageQueue());
+
+	}
+
+	@Test
+	public void close_shouldNotShutDownASuppliedExecutor() throws Exception {
+
+		// given
+		Executor executor = mock(Executor.class);
+		AsyncMessageQueue<GenericContainer, GenericContainer> async = new AsyncMessageQueue<GenericContainer, GenericContainer>(messageQueue(), executor);
+
+		// when
+		async.close();
+
+		// then
+		verify(executor, times(1)).execute(any());
+
+	}
+
+	@Test
+	public void call_shouldCompleteExceptionallyIfTheExecutorRejectsTheOperation() throws Exception {
+
+		// given
+		Executor executor = mock(Executor.class);
+		doThrow(RejectedExecutionException.class).when(executor).execute(any());
+
+		AsyncMessageQueue<GenericContainer, GenericContainer> async = new AsyncMessageQueue<GenericContainer, GenericContainer>(messageQueue(), executor);
+
+		// expect
+		exception.expect(ExecutionException.class);
+		exception.expectCause(IsInstanceOf.<Throwable>instanceOf(RejectedExecutionException.class));
+
+		// when
+		async.createChannel().get();
+
+	}
+
+	@Test
+	public void call_shouldCompleteExceptionallyIfTheOperationThrowsAnError() throws Exception {
+
+		// given
+		IMessageQueue<GenericContainer, GenericContainer> messageQueue = messageQueue();
+		when(messageQueue.createChannel()).thenThrow(new AssertionError("Failed"));
+
+		AsyncMessageQueue<GenericContainer, GenericContainer> async = new AsyncMessageQueue<GenericContainer, GenericContainer>(messageQueue, Runnable::run);
+
+		// expect
+		exception.expect(ExecutionException.class);
+		exception.expectCause(IsInstanceOf.<Throwable>instanceOf(AssertionError.class));
+
+		// when
+		async.createChannel().get();
+
+	}
+
+	@SuppressWarnings("unchecked")
+	private static IMessageQueue<GenericContainer, GenericContainer> messageQueue() {
+		return mock(IMessageQueue.class);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static DefaultConsumer<GenericContainer, GenericContainer> consumer() {
+		return mock(DefaultConsumer.class);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static DefaultPublisher<GenericContainer> publisher() {
+		return mock(DefaultPublisher.class);
+	}
+
+}
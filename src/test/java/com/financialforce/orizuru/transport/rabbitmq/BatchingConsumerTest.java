@@ -0,0 +1,430 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.financialforce.orizuru.exception.consumer.handler.HandleMessageException;
+import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.Transport;
+
+public class BatchingConsumerTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForAnInvalidBatchSize() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new RecordingConsumer(mock(Channel.class), 0, 1000);
+
+	}
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForAnInvalidDelay() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new RecordingConsumer(mock(Channel.class), 10, 0);
+
+	}
+
+	@Test
+	public void constructor_shouldUseTheDefaults() {
+
+		// when
+		BatchingConsumer<GenericContainer, GenericContainer> consumer = new BatchingConsumer<GenericContainer, GenericContainer>(mock(Channel.class), "input") {
+			@Override
+			public void handleBatch(List<Context> contexts, List<GenericContainer> messages) {
+				// nothing to handle
+			}
+		};
+
+		// then
+		assertEquals(BatchingConsumer.DEFAULT_MAX_BATCH_SIZE, consumer.getMaxBatchSize());
+		assertEquals(BatchingConsumer.DEFAULT_MAX_DELAY_MILLIS, consumer.getMaxDelayMillis());
+		assertFalse(consumer.isAutoAck());
+
+	}
+
+	@Test
+	public void handleDelivery_shouldHandleAFullBatchAndAcknowledgeItWithOneMultipleAck() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		RecordingConsumer consumer = new RecordingConsumer(channel, 3, 60000);
+		byte[] body = transport();
+
+		// when
+		consumer.handleDelivery("tag", new Envelope(1, false, "", "input"), new AMQP.BasicProperties(), body);
+		consumer.handleDelivery("tag", new Envelope(2, false, "", "input"), new AMQP.BasicProperties(), body);
+
+		// then
+		assertEquals(2, consumer.getPending());
+		assertTrue(consumer.batches.isEmpty());
+
+		// when
+		consumer.handleDelivery("tag", new Envelope(3, false, "", "input"), new AMQP.BasicProperties(), body);
+
+		// then
+		assertEquals(Collections.singletonList(3), consumer.batches);
+		assertEquals(0, consumer.getPending());
+		assertEquals(1, consumer.getBatches());
+		assertEquals(0, consumer.getFailedBatches());
+		verify(channel, times(1)).basicAck(3, true);
+		verify(channel, never()).basicAck(anyLong(), eq(false));
+		verify(channel, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+
+	}
+
+	@Test
+	public void handleDelivery_shouldHandleAPartialBatchOnceTheDelayHasElapsed() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		RecordingConsumer consumer = new RecordingConsumer(channel, 100, 20);
+		byte[] body = transport();
+
+		// when
+		consumer.handleDelivery("tag", new Envelope(1, false, "", "input"), new AMQP.BasicProperties(), body);
+		consumer.handleDelivery("tag", new Envelope(2, false, "", "input"), new AMQP.BasicProperties(), body);
+
+		// then
+		verify(channel, timeout(5000).times(1)).basicAck(2, true);
+		assertEquals(Collections.singletonList(2), consumer.batches);
+
+	}
+
+	@Test
+	public void handleDelivery_shouldRejectTheWholeBatchIfTheHandlerFails() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		RecordingConsumer consumer = new RecordingConsumer(channel, 2, 60000);
+		consumer.failure = new HandleMessageException("Salesforce is unavailable", null);
+		byte[] body = transport();
+
+		// when
+		consumer.handleDelivery("tag", new Envelope(1, true, "", "input"), new AMQP.BasicProperties(), body);
+		consumer.handleDelivery("tag", new Envelope(2, false, "", "input"), new AMQP.BasicProperties(), body);
+		consumer.getAcknowledger().flush();
+
+		// then
+		assertEquals(0, consumer.getBatches());
+		assertEquals(1, consumer.getFailedBatches());
+		verify(channel, times(1)).basicNack(1, false, false);
+		verify(channel, times(1)).basicNack(2, false, true);
+		verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+	}
+
+	@Test
+	public void handleDelivery_shouldRejectADeliveryThatCannotBeDecodedOnItsOwn() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		RecordingConsumer consumer = new RecordingConsumer(channel, 2, 60000);
+		byte[] body = transport();
+
+		// when
+		consumer.handleDelivery("tag", new Envelope(1, false, "", "input"), new AMQP.BasicProperties(), body);
+		try {
+			consumer.handleDelivery("tag", new Envelope(2, false, "", "input"), new AMQP.BasicProperties(), new byte[] { 1, 2, 3 });
+		} catch (IOException expected) {
+			// the delivery has been rejected
+		}
+		consumer.handleDelivery("tag", new Envelope(3, false, "", "input"), new AMQP.BasicProperties(), body);
+
+		// then
+		assertEquals(Collections.singletonList(2), consumer.batches);
+		verify(channel, times(1)).basicNack(2, false, true);
+		verify(channel, times(1)).basicAck(3, true);
+
+	}
+
+	@Test
+	public void handleDelivery_shouldIgnoreAFailureToAcknowledgeTheBatch() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		doThrow(new IOException("channel closed")).when(channel).basicAck(1, true);
+		RecordingConsumer consumer = new RecordingConsumer(channel, 1, 60000);
+
+		// when
+		consumer.handleDelivery("tag", new Envelope(1, false, "", "input"), new AMQP.BasicProperties(), transport());
+
+		// then
+		assertEquals(1, consumer.getBatches());
+		assertEquals(0, consumer.getPending());
+
+	}
+
+	@Test
+	public void acknowledger_shouldSettleDeliveriesOutsideABatch() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		RecordingConsumer consumer = new RecordingConsumer(channel, 10, 60000);
+
+		// when
+		consumer.getAcknowledger().ack(1);
+		consumer.getAcknowledger().nack(2, false);
+		consumer.getAcknowledger().flush();
+
+		// then
+		assertTrue(consumer.batches.isEmpty());
+		verify(channel, times(1)).basicNack(2, false, false);
+		verify(channel, times(1)).basicAck(1, true);
+
+	}
+
+	@Test
+	public void acknowledger_shouldHandleThePendingBatchWhenFlushed() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		RecordingConsumer consumer = new RecordingConsumer(channel, 10, 60000);
+		consumer.handleDelivery("tag", new Envelope(1, false, "", "input"), new AMQP.BasicProperties(), transport());
+
+		// when
+		consumer.getAcknowledger().flush();
+		consumer.getAcknowledger().flush();
+
+		// then
+		assertEquals(Collections.singletonList(1), consumer.batches);
+		verify(channel, times(1)).basicAck(1, true);
+
+	}
+
+	@Test
+	public void acknowledger_shouldHandleThePendingBatchWhenClosedWithAnOpenChannel() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		when(channel.isOpen()).thenReturn(true);
+		RecordingConsumer consumer = new RecordingConsumer(channel, 10, 60000);
+		consumer.handleDelivery("tag", new Envelope(1, false, "", "input"), new AMQP.BasicProperties(), transport());
+
+		// when
+		consumer.getAcknowledger().close();
+
+		// then
+		assertEquals(Collections.singletonList(1), consumer.batches);
+		verify(channel, times(1)).basicAck(1, true);
+
+	}
+
+	@Test
+	public void acknowledger_shouldDiscardThePendingBatchWhenClosedWithAFailedChannel() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		RecordingConsumer consumer = new RecordingConsumer(channel, 10, 60000);
+		consumer.handleDelivery("tag", new Envelope(1, false, "", "input"), new AMQP.BasicProperties(), transport());
+
+		// when
+		consumer.getAcknowledger().close();
+
+		// then
+		assertTrue(consumer.batches.isEmpty());
+		assertEquals(0, consumer.getPending());
+		verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+	}
+
+	@Test
+	public void acknowledger_shouldCloseWithNoPendingBatch() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		RecordingConsumer consumer = new RecordingConsumer(channel, 10, 60000);
+
+		// when
+		consumer.getAcknowledger().close();
+
+		// then
+		assertEquals(0, consumer.getPending());
+		verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+	}
+
+	@Test
+	public void acknowledger_shouldShutDownTheSchedulerTheConsumerCreated() throws Exception {
+
+		// given
+		RecordingConsumer consumer = new RecordingConsumer(mock(Channel.class), 10, 60000);
+		RecordingConsumer other = new RecordingConsumer(mock(Channel.class), 10, 60000);
+
+		// when
+		consumer.getAcknowledger().close();
+
+		// then
+		assertTrue(consumer.getScheduler().isShutdown());
+		assertFalse(other.getScheduler().isShutdown());
+
+	}
+
+	@Test
+	public void handleDelivery_shouldTimeBatchesOnASuppliedScheduler() throws Exception {
+
+		// given
+		ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+		doReturn(mock(ScheduledFuture.class)).when(scheduler).schedule(any(Runnable.class), anyLong(), any());
+		RecordingConsumer consumer = new RecordingConsumer(mock(Channel.class), 10, 60000, scheduler);
+
+		// when
+		consumer.handleDelivery("tag", new Envelope(1, false, "", "input"), new AMQP.BasicProperties(), transport());
+		consumer.getAcknowledger().close();
+
+		// then
+		assertSame(scheduler, consumer.getScheduler());
+		verify(scheduler, times(1)).schedule(any(Runnable.class), eq(60000L), eq(TimeUnit.MILLISECONDS));
+		verify(scheduler, never()).shutdown();
+
+	}
+
+	@Test
+	public void consume_shouldHandleAQueueInBatches() throws Exception {
+
+		// given
+		FakeBroker broker = new FakeBroker();
+		MessageQueue<GenericContainer, GenericContainer> messageQueue = new MessageQueue<GenericContainer, GenericContainer>(broker.getConnectionFactory());
+		Channel channel = messageQueue.createChannel();
+		channel.queueDeclare("input", true, false, false, null);
+
+		byte[] body = transport();
+		for (int i = 0; i < 25; i++) {
+			channel.basicPublish("", "input", new AMQP.BasicProperties(), body);
+		}
+
+		Channel consuming = messageQueue.createChannel();
+		RecordingConsumer consumer = new RecordingConsumer(consuming, 10, 50);
+
+		// when
+		messageQueue.consume("", consuming, consumer, 10);
+
+		// then
+		assertTrue(broker.awaitSettled("input", 5, TimeUnit.SECONDS));
+		assertEquals(0, broker.getMessageCount("input"));
+		assertEquals(25, consumer.batches.stream().mapToInt(Integer::intValue).sum());
+		assertEquals(10, (int) consumer.batches.get(0));
+		assertNull(consumer.failure);
+		messageQueue.close();
+
+	}
+
+	private static byte[] transport() throws Exception {
+		String schema = "{\"name\":\"context\",\"type\":\"record\",\"fields\":[]}";
+		Transport message = new Transport("inner", ByteBuffer.allocate(0), "", ByteBuffer.allocate(0));
+		Transport transport = new Transport(schema, ByteBuffer.allocate(0), Transport.class.getName(), ByteBuffer.wrap(encode(message)));
+		return encode(transport);
+	}
+
+	private static byte[] encode(Transport transport) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+		new SpecificDatumWriter<Transport>(Transport.class).write(transport, encoder);
+		encoder.flush();
+		return out.toByteArray();
+	}
+
+	private static class RecordingConsumer extends BatchingConsumer<GenericContainer, GenericContainer> {
+
+		private final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+
+		private volatile HandleMessageException failure;
+
+		RecordingConsumer(Channel channel, int maxBatchSize, long maxDelayMillis) {
+			super(channel, "input", maxBatchSize, maxDelayMillis);
+			setTransportDecoder(new TransportDecoder());
+		}
+
+		RecordingConsumer(Channel channel, int maxBatchSize, long maxDelayMillis, ScheduledExecutorService scheduler) {
+			super(channel, "input", maxBatchSize, maxDelayMillis, scheduler);
+			setTransportDecoder(new TransportDecoder());
+		}
+
+		@Override
+		public void handleBatch(List<Context> contexts, List<GenericContainer> messages) throws HandleMessageException {
+
+			assertEquals(messages.size(), contexts.size());
+
+			if (failure != null) {
+				throw failure;
+			}
+
+			batches.add(messages.size());
+
+		}
+
+	}
+
+}
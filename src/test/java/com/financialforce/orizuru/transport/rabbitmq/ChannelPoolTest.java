@@ -0,0 +1,406 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+
+public class ChannelPoolTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForAnEmptyPool() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new ChannelPool(mock(ConnectionPool.class), 0);
+
+	}
+
+	@Test
+	public void lease_shouldReuseAReleasedChannel() throws Exception {
+
+		// given
+		ConnectionPool connectionPool = mock(ConnectionPool.class);
+		Channel channel = mock(Channel.class);
+		when(connectionPool.createChannel()).thenReturn(channel);
+		when(channel.isOpen()).thenReturn(true);
+
+		ChannelPool pool = new ChannelPool(connectionPool, 2);
+
+		// when
+		Channel first = pool.lease();
+		pool.release(first);
+		Channel second = pool.lease();
+
+		// then
+		assertSame(channel, second);
+		assertEquals(1, pool.getAvailable());
+		assertSame(connectionPool, pool.getConnectionPool());
+		verify(connectionPool, times(1)).createChannel();
+
+	}
+
+	@Test
+	public void lease_shouldReplaceAClosedChannel() throws Exception {
+
+		// given
+		ConnectionPool connectionPool = mock(ConnectionPool.class);
+		Channel closed = mock(Channel.class);
+		Channel open = mock(Channel.class);
+		when(connectionPool.createChannel()).thenReturn(closed, open);
+		when(closed.isOpen()).thenReturn(true, false);
+
+		ChannelPool pool = new ChannelPool(connectionPool, 1);
+		pool.release(pool.lease());
+
+		// when
+		Channel channel = pool.lease();
+
+		// then
+		assertSame(open, channel);
+
+	}
+
+	@Test
+	public void lease_shouldKeepAChannelThatIsBeingRecovered() throws Exception {
+
+		// given
+		ConnectionPool connectionPool = mock(ConnectionPool.class);
+		Channel recovering = mock(Channel.class, withSettings().extraInterfaces(Recoverable.class));
+		when(recovering.getCloseReason()).thenReturn(new ShutdownSignalException(true, false, null, null));
+		when(connectionPool.createChannel()).thenReturn(recovering);
+
+		ChannelPool pool = new ChannelPool(connectionPool, 1);
+		pool.release(pool.lease());
+
+		// when
+		Channel channel = pool.lease();
+
+		// then
+		assertSame(recovering, channel);
+		verify(connectionPool, times(1)).createChannel();
+
+	}
+
+	@Test
+	public void lease_shouldTimeOutWhenThePoolIsExhausted() throws Exception {
+
+		// given
+		ConnectionPool connectionPool = mock(ConnectionPool.class);
+		when(connectionPool.createChannel()).thenReturn(mock(Channel.class));
+
+		ChannelPool pool = new ChannelPool(connectionPool, 1);
+		pool.lease(1, TimeUnit.MILLISECONDS);
+
+		// expect
+		exception.expect(MessagingException.class);
+		exception.expectMessage("Timed out waiting for a channel");
+
+		// when
+		pool.lease(1, TimeUnit.MILLISECONDS);
+
+	}
+
+	@Test
+	public void lease_shouldReturnThePermitIfTheChannelCannotBeCreated() throws Exception {
+
+		// given
+		ConnectionPool connectionPool = mock(ConnectionPool.class);
+		when(connectionPool.createChannel()).thenThrow(new MessagingException("Failed to create channel", null));
+
+		ChannelPool pool = new ChannelPool(connectionPool, 1);
+
+		// when
+		try {
+			pool.lease();
+		} catch (MessagingException expected) {
+			// the permit must be returned
+		}
+
+		// then
+		assertEquals(1, pool.getAvailable());
+		assertEquals(1, pool.getSize());
+
+	}
+
+	@Test
+	public void lease_shouldThrowAMessagingExceptionIfInterrupted() throws Exception {
+
+		// given
+		ChannelPool pool = new ChannelPool(mock(ConnectionPool.class), 1);
+		Thread.currentThread().interrupt();
+
+		// expect
+		exception.expect(MessagingException.class);
+		exception.expectMessage("Interrupted waiting for a channel");
+
+		// when
+		try {
+			pool.lease();
+		} finally {
+			Thread.interrupted();
+		}
+
+	}
+
+	@Test
+	public void lease_shouldThrowAMessagingExceptionIfInterruptedWhileWaiting() throws Exception {
+
+		// given
+		ChannelPool pool = new ChannelPool(mock(ConnectionPool.class), 1);
+		Thread.currentThread().interrupt();
+
+		// expect
+		exception.expect(MessagingException.class);
+		exception.expectMessage("Interrupted waiting for a channel");
+
+		// when
+		try {
+			pool.lease(1, TimeUnit.SECONDS);
+		} finally {
+			Thread.interrupted();
+		}
+
+	}
+
+	@Test
+	public void close_shouldCloseIdleChannels() throws Exception {
+
+		// given
+		ConnectionPool connectionPool = mock(ConnectionPool.class);
+		Channel channel = mock(Channel.class);
+		when(connectionPool.createChannel()).thenReturn(channel);
+		when(channel.isOpen()).thenReturn(true);
+		doThrow(IOException.class).when(channel).close();
+
+		ChannelPool pool = new ChannelPool(connectionPool, 1);
+		pool.release(pool.lease());
+
+		// when
+		pool.close();
+
+		// then
+		verify(channel, times(1)).close();
+
+	}
+
+	@Test
+	public void close_shouldCloseTheRemainingChannelsIfOneFailsToClose() throws Exception {
+
+		// given
+		ConnectionPool connectionPool = mock(ConnectionPool.class);
+		Channel failing = mock(Channel.class);
+		Channel channel = mock(Channel.class);
+		when(connectionPool.createChannel()).thenReturn(failing, channel);
+		when(failing.isOpen()).thenReturn(true);
+		when(channel.isOpen()).thenReturn(true);
+		doThrow(IOException.class).when(failing).close();
+
+		ChannelPool pool = new ChannelPool(connectionPool, 2);
+		Channel first = pool.lease();
+		Channel second = pool.lease();
+		pool.release(first);
+		pool.release(second);
+
+		// when
+		pool.close();
+
+		// then
+		verify(failing, times(1)).close();
+		verify(channel, times(1)).close();
+
+	}
+
+	@Test
+	public void release_shouldRejectAChannelReleasedTwice() throws Exception {
+
+		// given
+		ConnectionPool connectionPool = mock(ConnectionPool.class);
+		Channel channel = mock(Channel.class);
+		when(connectionPool.createChannel()).thenReturn(channel);
+		when(channel.isOpen()).thenReturn(true);
+
+		ChannelPool pool = new ChannelPool(connectionPool, 2);
+		pool.release(pool.lease());
+
+		// expect
+		exception.expect(IllegalStateException.class);
+		exception.expectMessage("Channel is not leased from this pool");
+
+		// when
+		try {
+			pool.release(channel);
+		} finally {
+			assertEquals(2, pool.getAvailable());
+		}
+
+	}
+
+	@Test
+	public void release_shouldCloseAChannelReleasedAfterThePoolIsClosed() throws Exception {
+
+		// given
+		ConnectionPool connectionPool = mock(ConnectionPool.class);
+		Channel channel = mock(Channel.class);
+		when(connectionPool.createChannel()).thenReturn(channel);
+		when(channel.isOpen()).thenReturn(true);
+
+		ChannelPool pool = new ChannelPool(connectionPool, 1);
+		Channel leased = pool.lease();
+		pool.close();
+
+		// when
+		pool.release(leased);
+
+		// then
+		verify(channel, times(1)).close();
+
+	}
+
+	@Test
+	public void lease_shouldFailOnceThePoolIsClosed() throws Exception {
+
+		// given
+		ChannelPool pool = new ChannelPool(mock(ConnectionPool.class), 1);
+		pool.close();
+
+		// expect
+		exception.expect(MessagingException.class);
+		exception.expectMessage("Channel pool is closed");
+
+		// when
+		pool.lease(1, TimeUnit.SECONDS);
+
+	}
+
+	@Test
+	public void close_shouldFailCallersWaitingForAChannel() throws Exception {
+
+		// given
+		ConnectionPool connectionPool = mock(ConnectionPool.class);
+		when(connectionPool.createChannel()).thenReturn(mock(Channel.class));
+
+		ChannelPool pool = new ChannelPool(connectionPool, 1);
+		pool.lease();
+
+		Exception[] failure = new Exception[1];
+		Thread waiting = new Thread(() -> {
+			try {
+				pool.lease();
+			} catch (MessagingException ex) {
+				failure[0] = ex;
+			}
+		});
+		waiting.start();
+		Thread.sleep(200);
+
+		// when
+		pool.close();
+		waiting.join(5000);
+
+		// then
+		assertEquals("Channel pool is closed", failure[0].getMessage());
+
+	}
+
+	@Test
+	public void close_shouldFailCallersWaitingForAChannelWithATimeout() throws Exception {
+
+		// given
+		ConnectionPool connectionPool = mock(ConnectionPool.class);
+		when(connectionPool.createChannel()).thenReturn(mock(Channel.class));
+
+		ChannelPool pool = new ChannelPool(connectionPool, 1);
+		pool.lease();
+
+		Exception[] failure = new Exception[1];
+		Thread waiting = new Thread(() -> {
+			try {
+				pool.lease(1, TimeUnit.MINUTES);
+			} catch (MessagingException ex) {
+				failure[0] = ex;
+			}
+		});
+		waiting.start();
+		Thread.sleep(200);
+
+		// when
+		pool.close();
+		waiting.join(5000);
+
+		// then
+		assertEquals("Channel pool is closed", failure[0].getMessage());
+
+	}
+
+	@Test
+	public void close_shouldNotAddPermits() throws Exception {
+
+		// given
+		ConnectionPool connectionPool = mock(ConnectionPool.class);
+		Channel channel = mock(Channel.class);
+		when(connectionPool.createChannel()).thenReturn(channel);
+		when(channel.isOpen()).thenReturn(true);
+
+		ChannelPool pool = new ChannelPool(connectionPool, 2);
+		Channel leased = pool.lease();
+
+		// when
+		pool.close();
+
+		// then
+		assertEquals(1, pool.getAvailable());
+		pool.release(leased);
+		assertEquals(2, pool.getAvailable());
+
+	}
+
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import com.rabbitmq.client.AMQP;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class ChunkerTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForAnEmptyChunk() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new Chunker(0);
+
+	}
+
+	@Test
+	public void accepts_shouldOnlyAcceptBodiesLargerThanTheChunkSize() {
+
+		// given
+		Chunker chunker = new Chunker();
+
+		// when/then
+		assertFalse(chunker.accepts(new byte[Chunker.DEFAULT_CHUNK_SIZE]));
+		assertTrue(chunker.accepts(new byte[Chunker.DEFAULT_CHUNK_SIZE + 1]));
+
+	}
+
+	@Test
+	public void getChunk_shouldSplitTheBodyInOrder() {
+
+		// given
+		Chunker chunker = new Chunker(4);
+		byte[] body = "0123456789".getBytes();
+
+		// when/then
+		assertEquals(3, chunker.getChunkCount(body));
+		assertArrayEquals("0123".getBytes(), chunker.getChunk(body, 0));
+		assertArrayEquals("4567".getBytes(), chunker.getChunk(body, 1));
+		assertArrayEquals("89".getBytes(), chunker.getChunk(body, 2));
+		assertEquals(1, chunker.getChunkCount(new byte[0]));
+		assertEquals(4, chunker.getChunkSize());
+
+	}
+
+	@Test
+	public void getChunk_shouldCopyFullChunksIntoTheBuffer() {
+
+		// given
+		Chunker chunker = new Chunker(4);
+		byte[] body = "0123456789".getBytes();
+		byte[] buffer = new byte[4];
+
+		// when
+		byte[] first = chunker.getChunk(body, 1, buffer);
+		byte[] last = chunker.getChunk(body, 2, buffer);
+
+		// then
+		assertSame(buffer, first);
+		assertArrayEquals("4567".getBytes(), buffer);
+		assertArrayEquals("89".getBytes(), last);
+
+	}
+
+	@Test
+	public void getProperties_shouldAddTheChunkHeadersToTheMessageProperties() {
+
+		// given
+		Chunker chunker = new Chunker(4);
+		AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+			.correlationId("1")
+			.headers(Collections.<String, Object>singletonMap("tenant", "t1"))
+			.build();
+
+		// when
+		AMQP.BasicProperties chunk = chunker.getProperties(properties, "id", 1, new byte[10]);
+
+		// then
+		assertEquals("1", chunk.getCorrelationId());
+		assertEquals("t1", chunk.getHeaders().get("tenant"));
+		assertEquals("id", chunk.getHeaders().get(Chunker.ID_HEADER));
+		assertEquals(1, chunk.getHeaders().get(Chunker.INDEX_HEADER));
+		assertEquals(4, chunk.getHeaders().get(Chunker.OFFSET_HEADER));
+		assertEquals(3, chunk.getHeaders().get(Chunker.COUNT_HEADER));
+		assertEquals(10, chunk.getHeaders().get(Chunker.LENGTH_HEADER));
+		assertTrue(Chunker.isChunk(chunk));
+
+	}
+
+	@Test
+	public void getProperties_shouldCreatePropertiesIfThereAreNone() {
+
+		// given
+		Chunker chunker = new Chunker(4);
+
+		// when
+		AMQP.BasicProperties chunk = chunker.getProperties(null, "id", 0, new byte[4]);
+
+		// then
+		assertEquals(1, chunk.getHeaders().get(Chunker.COUNT_HEADER));
+		assertFalse(Chunker.isChunk(null));
+		assertFalse(Chunker.isChunk(new AMQP.BasicProperties()));
+		assertFalse(Chunker.isChunk(chunker.getProperties(null, "id", 0, new byte[4]).builder()
+			.headers(Collections.<String, Object>emptyMap())
+			.build()));
+
+	}
+
+	@Test
+	public void getMessageProperties_shouldRemoveTheChunkHeaders() {
+
+		// given
+		AMQP.BasicProperties original = new AMQP.BasicProperties.Builder()
+			.contentEncoding("deflate")
+			.headers(Collections.<String, Object>singletonMap("other", "value"))
+			.build();
+		AMQP.BasicProperties chunk = new Chunker(4).getProperties(original, "id", 1, new byte[6]);
+
+		// when
+		AMQP.BasicProperties properties = Chunker.getMessageProperties(chunk);
+
+		// then
+		assertFalse(Chunker.isChunk(properties));
+		assertEquals(Collections.singletonMap("other", "value"), properties.getHeaders());
+		assertEquals("deflate", properties.getContentEncoding());
+
+	}
+
+}
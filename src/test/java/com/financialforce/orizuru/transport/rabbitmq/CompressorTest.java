@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.Random;
+
+import com.rabbitmq.client.AMQP;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.ICodec;
+
+public class CompressorTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForANegativeThreshold() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+		exception.expectMessage("Compression threshold must not be negative");
+
+		// when
+		new Compressor(new DeflateCodec(), -1);
+
+	}
+
+	@Test
+	public void compress_shouldNotCompressABodyBelowTheThreshold() throws Exception {
+
+		// given
+		Compressor compressor = new Compressor(new DeflateCodec());
+		byte[] body = new byte[Compressor.DEFAULT_THRESHOLD - 1];
+
+		// when
+		byte[] compressed = compressor.compress(body);
+
+		// then
+		assertSame(body, compressed);
+
+	}
+
+	@Test
+	public void compress_shouldCompressABodyAtTheThreshold() throws Exception {
+
+		// given
+		Compressor compressor = new Compressor(new DeflateCodec(), 100);
+		byte[] body = new byte[100];
+
+		// when
+		byte[] compressed = compressor.compress(body);
+
+		// then
+		assertTrue(compressed.length < body.length);
+		assertEquals(100, compressor.getThreshold());
+
+	}
+
+	@Test
+	public void compress_shouldNotSendABodyThatDoesNotGetSmaller() throws Exception {
+
+		// given
+		Compressor compressor = new Compressor(new DeflateCodec(), 0);
+		byte[] body = new byte[1000];
+		new Random(1).nextBytes(body);
+
+		// when
+		byte[] compressed = compressor.compress(body);
+
+		// then
+		assertSame(body, compressed);
+
+	}
+
+	@Test
+	public void getProperties_shouldAddTheContentEncodingAndReuseTheResult() {
+
+		// given
+		ICodec codec = new DeflateCodec();
+		Compressor compressor = new Compressor(codec);
+		AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder().correlationId("1").build();
+
+		// when
+		AMQP.BasicProperties first = compressor.getProperties(properties);
+		AMQP.BasicProperties second = compressor.getProperties(properties);
+
+		// then
+		assertSame(first, second);
+		assertEquals("1", first.getCorrelationId());
+		assertEquals(DeflateCodec.NAME, first.getContentEncoding());
+		assertSame(codec, compressor.getCodec());
+
+	}
+
+	@Test
+	public void getProperties_shouldCreatePropertiesIfThereAreNone() {
+
+		// given
+		Compressor compressor = new Compressor(mock(ICodec.class));
+		compressor.getProperties(new AMQP.BasicProperties());
+
+		// when
+		AMQP.BasicProperties properties = compressor.getProperties(null);
+
+		// then
+		assertEquals(null, properties.getCorrelationId());
+
+	}
+
+}
@@ -0,0 +1,325 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import org.hamcrest.core.IsInstanceOf;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+
+public class ConfirmTrackerTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void constructor_shouldPutTheChannelIntoConfirmMode() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+
+		// when
+		ConfirmTracker tracker = new ConfirmTracker(channel, 10);
+
+		// then
+		verify(channel, times(1)).confirmSelect();
+		verify(channel, times(1)).addConfirmListener(tracker);
+		verify(channel, times(1)).addShutdownListener(tracker);
+
+	}
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForAnEmptyWindow() throws Exception {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new ConfirmTracker(mock(Channel.class), 0);
+
+	}
+
+	@Test
+	public void handleAck_shouldCompleteASinglePublish() throws Exception {
+
+		// given
+		ConfirmTracker tracker = new ConfirmTracker(mock(Channel.class), 10);
+		CompletableFuture<Void> first = tracker.register(1);
+		CompletableFuture<Void> second = tracker.register(2);
+
+		// when
+		tracker.handleAck(2, false);
+
+		// then
+		assertFalse(first.isDone());
+		assertTrue(second.isDone());
+		assertEquals(1, tracker.getOutstanding());
+
+	}
+
+	@Test
+	public void handleAck_shouldCompleteEveryPublishUpToTheTagWhenMultiple() throws Exception {
+
+		// given
+		ConfirmTracker tracker = new ConfirmTracker(mock(Channel.class), 10);
+		CompletableFuture<Void> first = tracker.register(1);
+		CompletableFuture<Void> second = tracker.register(2);
+		CompletableFuture<Void> third = tracker.register(3);
+
+		// when
+		tracker.handleAck(2, true);
+
+		// then
+		assertTrue(first.isDone());
+		assertTrue(second.isDone());
+		assertFalse(third.isDone());
+
+	}
+
+	@Test
+	public void handleNack_shouldFailThePublish() throws Exception {
+
+		// given
+		ConfirmTracker tracker = new ConfirmTracker(mock(Channel.class), 10);
+		CompletableFuture<Void> first = tracker.register(1);
+		CompletableFuture<Void> second = tracker.register(2);
+
+		// when
+		tracker.handleNack(2, true);
+
+		// then
+		assertTrue(first.isCompletedExceptionally());
+		assertTrue(second.isCompletedExceptionally());
+		assertEquals(0, tracker.getOutstanding());
+
+	}
+
+	@Test
+	public void register_shouldReuseSlotsOnceConfirmed() throws Exception {
+
+		// given
+		ConfirmTracker tracker = new ConfirmTracker(mock(Channel.class), 2);
+
+		// when
+		for (long seqNo = 1; seqNo <= 100; seqNo++) {
+			tracker.register(seqNo);
+			tracker.handleAck(seqNo, false);
+		}
+
+		// then
+		assertEquals(0, tracker.getOutstanding());
+
+	}
+
+	@Test
+	public void register_shouldThrowAnIOExceptionForACollidingSequenceNumber() throws Exception {
+
+		// given
+		ConfirmTracker tracker = new ConfirmTracker(mock(Channel.class), 2);
+		tracker.register(1);
+
+		// expect
+		exception.expect(IOException.class);
+		exception.expectMessage("collides with an outstanding publish");
+
+		// when
+		tracker.register(3);
+
+	}
+
+	@Test
+	public void register_shouldThrowAnIOExceptionIfInterrupted() throws Exception {
+
+		// given
+		ConfirmTracker tracker = new ConfirmTracker(mock(Channel.class), 2);
+		Thread.currentThread().interrupt();
+
+		// expect
+		exception.expect(IOException.class);
+		exception.expectMessage("Interrupted waiting for outstanding confirms");
+
+		// when
+		try {
+			tracker.register(1);
+		} finally {
+			Thread.interrupted();
+		}
+
+	}
+
+	@Test
+	public void register_shouldBlockWhileTheWindowIsFull() throws Exception {
+
+		// given
+		ConfirmTracker tracker = new ConfirmTracker(mock(Channel.class), 1);
+		tracker.register(1);
+
+		Thread publisher = new Thread(() -> {
+			try {
+				tracker.register(2);
+			} catch (IOException ex) {
+				throw new IllegalStateException(ex);
+			}
+		});
+
+		// when
+		publisher.start();
+		publisher.join(100);
+
+		// then
+		assertTrue(publisher.isAlive());
+		tracker.handleAck(1, false);
+		publisher.join(5000);
+		assertFalse(publisher.isAlive());
+
+	}
+
+	@Test
+	public void fail_shouldFailThePublish() throws Exception {
+
+		// given
+		ConfirmTracker tracker = new ConfirmTracker(mock(Channel.class), 10);
+		CompletableFuture<Void> future = tracker.register(1);
+
+		// when
+		tracker.fail(1, new IOException());
+
+		// then
+		assertTrue(future.isCompletedExceptionally());
+
+	}
+
+	@Test
+	public void shutdownCompleted_shouldFailEveryOutstandingPublish() throws Exception {
+
+		// given
+		ConfirmTracker tracker = new ConfirmTracker(mock(Channel.class), 10);
+		CompletableFuture<Void> first = tracker.register(1);
+		CompletableFuture<Void> second = tracker.register(2);
+
+		// expect
+		exception.expectCause(IsInstanceOf.<Throwable>instanceOf(MessagingException.class));
+
+		// when
+		tracker.shutdownCompleted(mock(ShutdownSignalException.class));
+
+		// then
+		assertTrue(first.isCompletedExceptionally());
+		second.join();
+
+	}
+
+	@Test
+	public void shutdownCompleted_shouldRestartTheSequenceNumbersForARecoveredChannel() throws Exception {
+
+		// given
+		ConfirmTracker tracker = new ConfirmTracker(mock(Channel.class), 4);
+		tracker.register(1);
+		tracker.register(2);
+		tracker.register(3);
+		tracker.shutdownCompleted(mock(ShutdownSignalException.class));
+
+		// when
+		CompletableFuture<Void> future = tracker.register(1);
+		tracker.handleAck(1, true);
+
+		// then
+		assertTrue(future.isDone());
+		assertEquals(0, tracker.getOutstanding());
+
+	}
+
+	@Test
+	public void awaitConfirms_shouldReturnOnceEveryPublishIsConfirmed() throws Exception {
+
+		// given
+		ConfirmTracker tracker = new ConfirmTracker(mock(Channel.class), 10);
+		tracker.register(1);
+
+		// when/then
+		assertFalse(tracker.awaitConfirms(10, TimeUnit.MILLISECONDS));
+		new Thread(() -> tracker.handleAck(1, true)).start();
+		assertTrue(tracker.awaitConfirms(5, TimeUnit.SECONDS));
+
+	}
+
+	@Test
+	public void whenConfirmed_shouldCompleteOnceEveryPublishIsConfirmed() throws Exception {
+
+		// given
+		ConfirmTracker tracker = new ConfirmTracker(mock(Channel.class), 10);
+		tracker.register(1);
+		tracker.register(2);
+
+		// when
+		CompletableFuture<Void> confirmed = tracker.whenConfirmed();
+		tracker.handleAck(1, false);
+
+		// then
+		assertFalse(confirmed.isDone());
+		tracker.handleNack(2, false);
+		assertTrue(confirmed.isDone());
+		assertTrue(tracker.whenConfirmed().isDone());
+
+	}
+
+	@Test
+	public void whenConfirmed_shouldCompleteWhenTheOutstandingPublishesFail() throws Exception {
+
+		// given
+		ConfirmTracker tracker = new ConfirmTracker(mock(Channel.class), 10);
+		tracker.register(1);
+		tracker.register(2);
+		CompletableFuture<Void> confirmed = tracker.whenConfirmed();
+
+		// when
+		tracker.fail(1, new IOException("Failed"));
+		tracker.shutdownCompleted(mock(ShutdownSignalException.class));
+
+		// then
+		assertTrue(confirmed.isDone());
+		assertFalse(confirmed.isCompletedExceptionally());
+
+	}
+
+}
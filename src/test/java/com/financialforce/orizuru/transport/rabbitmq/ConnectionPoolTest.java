@@ -0,0 +1,480 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.ShutdownNotifier;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.contrib.java.lang.system.EnvironmentVariables;
+import org.junit.rules.ExpectedException;
+
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+
+public class ConnectionPoolTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Rule
+	public final EnvironmentVariables environmentVariables = new EnvironmentVariables();
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForAnEmptyPool() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new ConnectionPool(mock(ConnectionFactory.class), 0);
+
+	}
+
+	@Test
+	public void getConnection_shouldReuseAnOpenConnection() throws Exception {
+
+		// given
+		environmentVariables.set("CLOUDAMQP_URL", "localhost");
+
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		when(factory.newConnection()).thenReturn(connection);
+		when(connection.isOpen()).thenReturn(true);
+
+		ConnectionPool pool = new ConnectionPool(factory, 1);
+
+		// when
+		Connection first = pool.getConnection();
+		Connection second = pool.getConnection();
+
+		// then
+		assertSame(connection, first);
+		assertSame(connection, second);
+		verify(factory, times(1)).setUri("localhost");
+		verify(factory, times(1)).newConnection();
+
+	}
+
+	@Test
+	public void getConnection_shouldRoundRobinOverThePool() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection first = mock(Connection.class);
+		Connection second = mock(Connection.class);
+		when(factory.newConnection()).thenReturn(first, second);
+		when(first.isOpen()).thenReturn(true);
+		when(second.isOpen()).thenReturn(true);
+
+		ConnectionPool pool = new ConnectionPool(factory, 2);
+
+		// when/then
+		assertSame(first, pool.getConnection());
+		assertSame(second, pool.getConnection());
+		assertSame(first, pool.getConnection());
+		assertEquals(2, pool.getSize());
+		verify(factory, times(2)).newConnection();
+
+	}
+
+	@Test
+	public void getConnection_shouldReplaceAClosedConnection() throws Exception {
+
+		// given
+		environmentVariables.set("CLOUDAMQP_URL", "localhost");
+
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection closed = mock(Connection.class);
+		Connection open = mock(Connection.class);
+		when(factory.newConnection()).thenReturn(closed, open);
+		when(open.isOpen()).thenReturn(true);
+
+		ConnectionPool pool = new ConnectionPool(factory, 1);
+		pool.getConnection();
+
+		// when
+		Connection connection = pool.getConnection();
+
+		// then
+		assertSame(open, connection);
+		verify(factory, times(1)).setUri("localhost");
+
+	}
+
+	@Test
+	public void getConnection_shouldThrowAMessagingExceptionIfTheConnectionFails() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		when(factory.newConnection()).thenThrow(IOException.class);
+
+		ConnectionPool pool = new ConnectionPool(factory, 1);
+
+		// expect
+		exception.expect(MessagingException.class);
+		exception.expectMessage("Failed to create connection");
+
+		// when
+		pool.getConnection();
+
+	}
+
+	@Test
+	public void createChannel_shouldThrowAMessagingExceptionIfTheChannelLimitIsReached() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		when(factory.newConnection()).thenReturn(connection);
+
+		ConnectionPool pool = new ConnectionPool(factory, 1);
+
+		// expect
+		exception.expect(MessagingException.class);
+		exception.expectMessage("Failed to create channel");
+
+		// when
+		pool.createChannel();
+
+	}
+
+	@Test
+	public void createChannel_shouldReturnAChannelFromAPooledConnection() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		Channel expectedChannel = mock(Channel.class);
+		when(factory.newConnection()).thenReturn(connection);
+		when(connection.createChannel()).thenReturn(expectedChannel);
+
+		ConnectionPool pool = new ConnectionPool(factory, 1);
+
+		// when/then
+		assertSame(expectedChannel, pool.createChannel());
+
+	}
+
+	@Test
+	public void close_shouldCloseOpenConnections() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		when(factory.newConnection()).thenReturn(connection);
+		when(connection.isOpen()).thenReturn(true);
+
+		ConnectionPool pool = new ConnectionPool(factory, 2);
+		pool.getConnection();
+
+		// when
+		pool.close();
+
+		// then
+		verify(connection, times(1)).close();
+
+	}
+
+	@Test
+	public void close_shouldThrowAMessagingExceptionIfAConnectionFailsToClose() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		when(factory.newConnection()).thenReturn(connection);
+		when(connection.isOpen()).thenReturn(true);
+		doThrow(IOException.class).when(connection).close();
+
+		ConnectionPool pool = new ConnectionPool(factory, 1);
+		pool.getConnection();
+
+		// expect
+		exception.expect(MessagingException.class);
+		exception.expectMessage("Failed to close connection");
+
+		// when
+		pool.close();
+
+	}
+
+	@Test
+	public void close_shouldIgnoreClosedConnections() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		when(factory.newConnection()).thenReturn(connection);
+
+		ConnectionPool pool = new ConnectionPool(factory, 1);
+		pool.getConnection();
+
+		// when
+		pool.close();
+
+		// then
+		verify(connection, never()).close();
+
+	}
+
+	@Test
+	public void getConnection_shouldThrowAMessagingExceptionOnceThePoolIsClosed() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		when(factory.newConnection()).thenReturn(connection);
+		when(connection.isOpen()).thenReturn(true);
+
+		ConnectionPool pool = new ConnectionPool(factory, 1);
+		pool.getConnection();
+		pool.close();
+
+		// expect
+		exception.expect(MessagingException.class);
+		exception.expectMessage("Connection pool is closed");
+
+		// when
+		try {
+			pool.getConnection();
+		} finally {
+			verify(factory, times(1)).newConnection();
+		}
+
+	}
+
+	@Test
+	public void getConnection_shouldNotHoldUpOtherSlotsWhileOpeningAConnection() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection slow = mock(Connection.class);
+		Connection fast = mock(Connection.class);
+		CountDownLatch connecting = new CountDownLatch(1);
+		CountDownLatch connected = new CountDownLatch(1);
+		when(factory.newConnection()).thenAnswer(invocation -> {
+			connecting.countDown();
+			connected.await(5, TimeUnit.SECONDS);
+			return slow;
+		}).thenReturn(fast);
+
+		ConnectionPool pool = new ConnectionPool(factory, 2);
+		CompletableFuture<Connection> first = CompletableFuture.supplyAsync(() -> getConnection(pool));
+		connecting.await(5, TimeUnit.SECONDS);
+
+		// when
+		Connection second = CompletableFuture.supplyAsync(() -> getConnection(pool)).get(5, TimeUnit.SECONDS);
+
+		// then
+		assertSame(fast, second);
+		assertFalse(first.isDone());
+		connected.countDown();
+		assertSame(slow, first.get(5, TimeUnit.SECONDS));
+
+	}
+
+	@Test
+	public void close_shouldCloseAConnectionThatIsBeingOpened() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		when(connection.isOpen()).thenReturn(true);
+		CountDownLatch connecting = new CountDownLatch(1);
+		CountDownLatch connected = new CountDownLatch(1);
+		when(factory.newConnection()).thenAnswer(invocation -> {
+			connecting.countDown();
+			connected.await(5, TimeUnit.SECONDS);
+			return connection;
+		});
+
+		ConnectionPool pool = new ConnectionPool(factory, 1);
+		CompletableFuture<Connection> opening = CompletableFuture.supplyAsync(() -> getConnection(pool));
+		connecting.await(5, TimeUnit.SECONDS);
+
+		// when
+		CompletableFuture<Void> closing = CompletableFuture.runAsync(() -> close(pool));
+		connected.countDown();
+		closing.get(5, TimeUnit.SECONDS);
+
+		// then
+		assertSame(connection, opening.get(5, TimeUnit.SECONDS));
+		verify(connection, times(1)).close();
+
+	}
+
+	@Test
+	public void getConnection_shouldKeepAConnectionThatIsBeingRecovered() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = recovering(Connection.class);
+		when(factory.newConnection()).thenReturn(connection);
+
+		ConnectionPool pool = new ConnectionPool(factory, 1);
+		pool.getConnection();
+
+		// when
+		Connection recovered = pool.getConnection();
+
+		// then
+		assertSame(connection, recovered);
+		verify(factory, times(1)).newConnection();
+
+	}
+
+	@Test
+	public void getConnection_shouldFailFastUntilTheBackoffHasElapsed() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		when(factory.newConnection()).thenThrow(IOException.class);
+
+		ConnectionPool pool = new ConnectionPool(factory, 1, new RecoveryBackoff(60000, 60000));
+		try {
+			pool.getConnection();
+		} catch (MessagingException expected) {
+			// the first attempt reaches the broker
+		}
+
+		// expect
+		exception.expect(MessagingException.class);
+		exception.expectMessage("Connection unavailable");
+
+		// when
+		try {
+			pool.getConnection();
+		} finally {
+			verify(factory, times(1)).newConnection();
+		}
+
+	}
+
+	@Test
+	public void getConnection_shouldRetryOnceTheBackoffHasElapsed() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		when(factory.newConnection()).thenThrow(IOException.class).thenReturn(connection);
+
+		RecoveryBackoff backoff = new RecoveryBackoff(1, 1);
+		ConnectionPool pool = new ConnectionPool(factory, 1, backoff);
+		try {
+			pool.getConnection();
+		} catch (MessagingException expected) {
+			// the broker is unavailable
+		}
+		Thread.sleep(10);
+
+		// when/then
+		assertSame(connection, pool.getConnection());
+		assertSame(backoff, pool.getBackoff());
+
+	}
+
+	@Test
+	public void isUsable_shouldRejectAChannelThatWillNotBeRecovered() {
+
+		// given
+		Channel closedByApplication = recovering(Channel.class);
+		when(closedByApplication.getCloseReason()).thenReturn(new ShutdownSignalException(true, true, null, null));
+		Channel closedByError = recovering(Channel.class);
+		when(closedByError.getCloseReason()).thenReturn(new ShutdownSignalException(false, false, null, null));
+		Channel closed = mock(Channel.class, withSettings().extraInterfaces(Recoverable.class));
+
+		// when/then
+		assertFalse(ConnectionPool.isUsable(closedByApplication));
+		assertFalse(ConnectionPool.isUsable(closedByError));
+		assertFalse(ConnectionPool.isUsable(closed));
+		assertFalse(ConnectionPool.isUsable(mock(Channel.class)));
+
+	}
+
+	@Test
+	public void close_shouldAbortAConnectionThatIsBeingRecovered() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = recovering(Connection.class);
+		when(factory.newConnection()).thenReturn(connection);
+
+		ConnectionPool pool = new ConnectionPool(factory, 1);
+		pool.getConnection();
+
+		// when
+		pool.close();
+
+		// then
+		verify(connection, times(1)).abort();
+		verify(connection, never()).close();
+
+	}
+
+	private static <T extends ShutdownNotifier> T recovering(Class<T> type) {
+		T notifier = mock(type, withSettings().extraInterfaces(Recoverable.class));
+		when(notifier.getCloseReason()).thenReturn(new ShutdownSignalException(true, false, null, null));
+		return notifier;
+	}
+
+	private static Connection getConnection(ConnectionPool pool) {
+		try {
+			return pool.getConnection();
+		} catch (MessagingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static void close(ConnectionPool pool) {
+		try {
+			pool.close();
+		} catch (MessagingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+}
@@ -0,0 +1,380 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+import org.apache.avro.generic.GenericContainer;
+import org.hamcrest.core.IsInstanceOf;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
+
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IConsumerFactory;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IMessageQueue;
+
+public class ConsumerHostTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	private IMessageQueue<GenericContainer, GenericContainer> messageQueue;
+
+	private IConsumerFactory<GenericContainer, GenericContainer> factory;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void before() throws Exception {
+		messageQueue = mock(IMessageQueue.class);
+		when(messageQueue.createChannel()).thenAnswer(invocation -> mock(Channel.class));
+		factory = (channel, queueName) -> {
+			DefaultConsumer<GenericContainer, GenericContainer> consumer = mock(DefaultConsumer.class);
+			when(consumer.getQueueName()).thenReturn(queueName);
+			when(consumer.getChannel()).thenReturn(channel);
+			return consumer;
+		};
+	}
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForInvalidLimits() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new ConsumerHost<GenericContainer, GenericContainer>(messageQueue, 1, 0);
+
+	}
+
+	@Test
+	public void register_shouldThrowAnIllegalArgumentExceptionForAnInvalidWeight() {
+
+		// given
+		ConsumerHost<GenericContainer, GenericContainer> host = new ConsumerHost<GenericContainer, GenericContainer>(messageQueue, 1, 1);
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		host.register("input", factory, 0);
+
+	}
+
+	@Test
+	public void register_shouldThrowAnIllegalStateExceptionOnceStarted() throws Exception {
+
+		// given
+		ConsumerHost<GenericContainer, GenericContainer> host = new ConsumerHost<GenericContainer, GenericContainer>(messageQueue, 1, 1);
+		host.start();
+
+		// expect
+		exception.expect(IllegalStateException.class);
+
+		// when
+		host.register("input", factory, 1);
+
+	}
+
+	@Test
+	public void start_shouldThrowAnIllegalStateExceptionIfAlreadyStarted() throws Exception {
+
+		// given
+		ConsumerHost<GenericContainer, GenericContainer> host = new ConsumerHost<GenericContainer, GenericContainer>(messageQueue, 1, 1);
+		host.start();
+
+		// expect
+		exception.expect(IllegalStateException.class);
+
+		// when
+		host.start();
+
+	}
+
+	@Test
+	public void start_shouldConsumeEachQueueWithItsWeightedShare() throws Exception {
+
+		// given
+		ConsumerHost<GenericContainer, GenericContainer> host = new ConsumerHost<GenericContainer, GenericContainer>(messageQueue, 4, 100);
+		host.register("orders", factory, 3);
+		host.register("audit", factory, 1);
+
+		// when
+		host.start();
+
+		// then
+		List<DefaultConsumer<GenericContainer, GenericContainer>> consumers = host.getConsumers();
+		assertEquals(2, consumers.size());
+		assertEquals("orders", consumers.get(0).getQueueName());
+		verify(messageQueue, times(1)).consume(eq(""), any(), eq(consumers.get(0)), eq(75));
+		verify(messageQueue, times(1)).consume(eq(""), any(), eq(consumers.get(1)), eq(25));
+		verify(messageQueue, times(2)).createChannel();
+
+		ArgumentCaptor<DeliveryDispatcher> dispatcher = ArgumentCaptor.forClass(DeliveryDispatcher.class);
+		verify(consumers.get(1)).setDispatcher(dispatcher.capture());
+		assertEquals(4, dispatcher.getValue().getParallelism());
+		assertEquals(4, host.getParallelism());
+
+		CountDownLatch handled = new CountDownLatch(1);
+		dispatcher.getValue().dispatch(new Envelope(1, false, "", "audit"), null, handled::countDown);
+		assertTrue(handled.await(5, TimeUnit.SECONDS));
+		assertEquals(100, host.getMaxInFlight());
+
+	}
+
+	@Test
+	public void start_shouldGiveEveryQueueAtLeastOneInFlightDelivery() throws Exception {
+
+		// given
+		ConsumerHost<GenericContainer, GenericContainer> host = new ConsumerHost<GenericContainer, GenericContainer>(messageQueue, 4, 2);
+		host.register("orders", factory, 100);
+		host.register("audit", factory, 1);
+
+		// when
+		host.start();
+
+		// then
+		verify(messageQueue, times(1)).consume(eq(""), any(), eq(host.getConsumers().get(1)), eq(1));
+		assertEquals(2, host.getShare(1000));
+
+	}
+
+	@Test
+	public void start_shouldAbortTheChannelsIfAConsumerCannotBeRegistered() throws Exception {
+
+		// given
+		ConsumerHost<GenericContainer, GenericContainer> host = new ConsumerHost<GenericContainer, GenericContainer>(messageQueue, 1, 10);
+		host.register("orders", factory, 1);
+		host.register("audit", factory, 1);
+		doThrow(MessagingException.class).when(messageQueue).consume(eq(""), any(), any(), anyInt());
+
+		// expect
+		exception.expect(MessagingException.class);
+
+		// when
+		try {
+			host.start();
+		} finally {
+			assertTrue(host.getConsumers().isEmpty());
+		}
+
+	}
+
+	@Test
+	public void start_shouldAbortTheChannelIfTheFactoryFails() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		when(messageQueue.createChannel()).thenReturn(channel);
+		ConsumerHost<GenericContainer, GenericContainer> host = new ConsumerHost<GenericContainer, GenericContainer>(messageQueue, 1, 10);
+		host.register("orders", (created, queueName) -> {
+			throw new IllegalStateException("Failed");
+		}, 1);
+
+		// when
+		try {
+			host.start();
+		} catch (IllegalStateException expected) {
+			// the consumer could not be created
+		}
+
+		// then
+		verify(channel, times(1)).abort();
+		assertTrue(host.getConsumers().isEmpty());
+
+	}
+
+	@Test
+	public void start_shouldIgnoreChannelsThatFailToAbort() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		doThrow(IOException.class).when(channel).abort();
+		when(messageQueue.createChannel()).thenReturn(channel);
+		doThrow(MessagingException.class).when(messageQueue).consume(eq(""), any(), any(), anyInt());
+		ConsumerHost<GenericContainer, GenericContainer> host = new ConsumerHost<GenericContainer, GenericContainer>(messageQueue, 1, 10);
+		host.register("orders", factory, 1);
+
+		// when
+		try {
+			host.start();
+		} catch (MessagingException expected) {
+			// the consumer could not be registered
+		}
+
+		// then
+		verify(channel, times(1)).abort();
+
+	}
+
+	@Test
+	public void shutdown_shouldDrainEveryConsumer() throws Exception {
+
+		// given
+		DrainReport report = new DrainReport(0, 0, 0, 0, 0, true);
+		ConsumerHost<GenericContainer, GenericContainer> host = new ConsumerHost<GenericContainer, GenericContainer>(messageQueue, 1, 10);
+		host.register("orders", factory, 1);
+		host.register("audit", factory, 1);
+		host.start();
+		List<Thread> timers = new CopyOnWriteArrayList<Thread>();
+		List<Thread> closers = new CopyOnWriteArrayList<Thread>();
+		for (DefaultConsumer<GenericContainer, GenericContainer> consumer : host.getConsumers()) {
+			when(consumer.shutdownAsync(anyLong(), eq(TimeUnit.NANOSECONDS), any(), any())).thenAnswer(invocation -> {
+				Executor closer = invocation.getArgument(2);
+				ScheduledExecutorService scheduler = invocation.getArgument(3);
+				return CompletableFuture.supplyAsync(() -> {
+					timers.add(Thread.currentThread());
+					return report;
+				}, scheduler).thenApplyAsync(drained -> {
+					closers.add(Thread.currentThread());
+					return drained;
+				}, closer);
+			});
+		}
+
+		// when
+		List<DrainReport> reports = host.shutdown(1, TimeUnit.SECONDS);
+
+		// then
+		assertEquals(2, reports.size());
+		assertSame(report, reports.get(0));
+		assertEquals("orizuru-host-timer", timers.get(0).getName());
+		assertTrue(timers.get(0).isDaemon());
+		assertEquals("orizuru-host-closer", closers.get(0).getName());
+		assertTrue(closers.get(0).isDaemon());
+
+	}
+
+	@Test
+	public void shutdown_shouldCancelEveryConsumerBeforeWaitingForAnyToDrain() throws Exception {
+
+		// given
+		CompletableFuture<DrainReport> first = new CompletableFuture<DrainReport>();
+		DrainReport report = new DrainReport(0, 0, 0, 0, 0, true);
+		ConsumerHost<GenericContainer, GenericContainer> host = new ConsumerHost<GenericContainer, GenericContainer>(messageQueue, 1, 10);
+		host.register("orders", factory, 1);
+		host.register("audit", factory, 1);
+		host.start();
+
+		List<DefaultConsumer<GenericContainer, GenericContainer>> consumers = host.getConsumers();
+		when(consumers.get(0).shutdownAsync(anyLong(), any(), any(), any())).thenReturn(first);
+		when(consumers.get(1).shutdownAsync(anyLong(), any(), any(), any())).thenAnswer(invocation -> {
+			first.complete(report);
+			return CompletableFuture.completedFuture(report);
+		});
+
+		// when
+		List<DrainReport> reports = host.shutdown(1, TimeUnit.SECONDS);
+
+		// then
+		assertEquals(2, reports.size());
+		assertSame(report, reports.get(0));
+
+	}
+
+	@Test
+	public void shutdown_shouldReportAConsumerNotClosedByTheTimeoutAsIncomplete() throws Exception {
+
+		// given
+		ConsumerHost<GenericContainer, GenericContainer> host = new ConsumerHost<GenericContainer, GenericContainer>(messageQueue, 1, 10);
+		host.register("orders", factory, 1);
+		host.start();
+		DefaultConsumer<GenericContainer, GenericContainer> consumer = host.getConsumers().get(0);
+		when(consumer.shutdownAsync(anyLong(), any(), any(), any())).thenReturn(new CompletableFuture<DrainReport>());
+		when(consumer.getInFlight()).thenReturn(3);
+
+		// when
+		List<DrainReport> reports = host.shutdown(10, TimeUnit.MILLISECONDS);
+
+		// then
+		assertEquals(3, reports.get(0).getRemaining());
+		assertFalse(reports.get(0).isComplete());
+
+	}
+
+	@Test
+	public void shutdown_shouldReportAConsumerThatFailsToShutDown() throws Exception {
+
+		// given
+		CompletableFuture<DrainReport> failed = new CompletableFuture<DrainReport>();
+		failed.completeExceptionally(new IllegalArgumentException("Failed"));
+		ConsumerHost<GenericContainer, GenericContainer> host = new ConsumerHost<GenericContainer, GenericContainer>(messageQueue, 1, 10);
+		host.register("orders", factory, 1);
+		host.start();
+		when(host.getConsumers().get(0).shutdownAsync(anyLong(), any(), any(), any())).thenReturn(failed);
+
+		// expect
+		exception.expect(IllegalStateException.class);
+		exception.expectCause(IsInstanceOf.<Throwable>instanceOf(IllegalArgumentException.class));
+
+		// when
+		host.shutdown(1, TimeUnit.SECONDS);
+
+	}
+
+	@Test
+	public void shutdown_shouldDoNothingIfNotStarted() throws Exception {
+
+		// given
+		ConsumerHost<GenericContainer, GenericContainer> host = new ConsumerHost<GenericContainer, GenericContainer>(messageQueue, 1, 10);
+
+		// when
+		List<DrainReport> reports = host.shutdown(1, TimeUnit.SECONDS);
+
+		// then
+		assertTrue(reports.isEmpty());
+
+	}
+
+}
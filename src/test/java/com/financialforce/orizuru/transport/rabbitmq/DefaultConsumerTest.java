@@ -26,29 +26,64 @@
 
 package com.financialforce.orizuru.transport.rabbitmq;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.ShutdownSignalException;
 
 import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
 import org.hamcrest.core.IsInstanceOf;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
 
 import com.financialforce.orizuru.exception.OrizuruException;
 import com.financialforce.orizuru.exception.consumer.handler.HandleMessageException;
 import com.financialforce.orizuru.interfaces.IPublisher;
 import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.Transport;
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics;
 
 public class DefaultConsumerTest {
 
@@ -94,6 +129,148 @@ public class DefaultConsumerTest {
 
 	}
 
+	@Test
+	public void handleDelivery_shouldAcknowledgeTheDeliveryInManualAckMode() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		TestConsumer consumer = new TestConsumer(channel, "input", null, acknowledger);
+
+		// when
+		consumer.handleDelivery("test", new Envelope(7, false, "", "input"), null, "test".getBytes());
+
+		// then
+		verify(acknowledger, times(1)).ack(7);
+
+	}
+
+	@Test
+	public void handleDelivery_shouldRequeueAFailedDeliveryOnce() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		FailingConsumer consumer = new FailingConsumer(channel, acknowledger);
+
+		// when
+		try {
+			consumer.handleDelivery("test", new Envelope(1, false, "", "input"), null, "test".getBytes());
+		} catch (IOException expected) {
+			// the failure is still reported
+		}
+		try {
+			consumer.handleDelivery("test", new Envelope(2, true, "", "input"), null, "test".getBytes());
+		} catch (IOException expected) {
+			// the failure is still reported
+		}
+
+		// then
+		verify(acknowledger, times(1)).nack(1, true);
+		verify(acknowledger, times(1)).nack(2, false);
+		verify(acknowledger, never()).ack(anyLong());
+
+	}
+
+	@Test
+	public void handleDelivery_shouldReportToTheAdaptivePrefetch() throws Exception {
+
+		// given
+		AdaptivePrefetch prefetch = mock(AdaptivePrefetch.class);
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null);
+		consumer.setAdaptivePrefetch(prefetch);
+
+		// when
+		consumer.handleDelivery("test", new Envelope(1, false, "", "input"), null, "test".getBytes());
+
+		// then
+		verify(prefetch, times(1)).onDelivery(4);
+		verify(prefetch, times(1)).onComplete(anyLong());
+		assertEquals(prefetch, consumer.getAdaptivePrefetch());
+
+	}
+
+	@Test
+	public void handleDelivery_shouldHandTheDeliveryToTheDispatcher() throws Exception {
+
+		// given
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		DeliveryDispatcher dispatcher = new DeliveryDispatcher(Runnable::run, 1, 1, null);
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null, acknowledger);
+		consumer.setDispatcher(dispatcher);
+
+		// when
+		consumer.handleDelivery("test", new Envelope(3, false, "", "input"), null, "test".getBytes());
+
+		// then
+		verify(acknowledger, times(1)).ack(3);
+		assertEquals(dispatcher, consumer.getDispatcher());
+
+	}
+
+	@Test
+	public void handleDelivery_shouldNotReportDispatchedFailuresToTheClient() throws Exception {
+
+		// given
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		FailingConsumer consumer = new FailingConsumer(mock(Channel.class), acknowledger);
+		consumer.setDispatcher(new DeliveryDispatcher(Runnable::run, 1, 1, null));
+
+		// when
+		consumer.handleDelivery("test", new Envelope(3, false, "", "input"), null, "test".getBytes());
+
+		// then
+		verify(acknowledger, times(1)).nack(3, true);
+
+	}
+
+	@Test
+	public void setDispatcher_shouldSetTheAdaptivePrefetchConcurrency() {
+
+		// given
+		AdaptivePrefetch prefetch = mock(AdaptivePrefetch.class);
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null);
+		consumer.setAdaptivePrefetch(prefetch);
+
+		// when
+		consumer.setDispatcher(new DeliveryDispatcher(Runnable::run, 8, 8, null));
+
+		// then
+		verify(prefetch, times(1)).setConcurrency(8);
+
+	}
+
+	@Test
+	public void handleCancelOk_shouldCloseTheAcknowledger() {
+
+		// given
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null, acknowledger);
+
+		// when
+		consumer.handleCancelOk("consumer");
+
+		// then
+		verify(acknowledger, times(1)).close();
+
+	}
+
+	@Test
+	public void isAutoAck_shouldReturnFalseIfAnAcknowledgerIsProvided() {
+
+		// given
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+
+		// when
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null, acknowledger);
+
+		// then
+		assertFalse(consumer.isAutoAck());
+		assertEquals(acknowledger, consumer.getAcknowledger());
+		assertTrue(new TestConsumer(mock(Channel.class), "input", null).isAutoAck());
+
+	}
+
 	@Test
 	public void constructor_shouldCreateADefaultPublisherWithTheOutgoingQueueName() {
 
@@ -203,24 +380,935 @@ public class DefaultConsumerTest {
 
 	}
 
-	private class TestConsumer extends DefaultConsumer<GenericContainer, GenericContainer> {
+	@Test
+	public void setPublisher_shouldReplaceThePublisherOnTheConsumingChannel() throws Exception {
 
-		public TestConsumer(Channel channel, String incomingQueueName, String outgoingQueueName) {
-			super(channel, incomingQueueName, outgoingQueueName);
-		}
+		// given
+		Channel channel = mock(Channel.class);
+		TestConsumer consumer = new TestConsumer(channel, "input", "output");
+		IPublisher<GenericContainer> publisher = new PooledPublisher<GenericContainer>(mock(ChannelPool.class), "output");
 
-		@Override
-		public GenericContainer handleMessage(Context context, GenericContainer input) throws HandleMessageException {
-			return input;
-		}
+		// when
+		consumer.setPublisher(publisher);
 
-		@Override
-		public byte[] consume(byte[] body) throws OrizuruException {
-			return body;
+		// then
+		assertEquals(publisher, consumer.getPublisher());
+
+	}
+
+	@Test
+	public void consume_shouldDecodeWithTheTransportDecoderIfSet() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		DecodingConsumer consumer = new DecodingConsumer(channel, "output");
+		TransportDecoder decoder = new TransportDecoder(true);
+		consumer.setTransportDecoder(decoder);
+
+		// when
+		byte[] published = consumer.consume(transport());
+
+		// then
+		assertEquals(decoder, consumer.getTransportDecoder());
+		verify(channel, times(1)).basicPublish("", "output", null, published);
+
+	}
+
+	@Test
+	public void consume_shouldDecodeWithTheAbstractConsumerByDefault() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		DecodingConsumer consumer = new DecodingConsumer(channel, "output");
+
+		// when
+		byte[] published = consumer.consume(transport());
+
+		// then
+		assertNull(consumer.getTransportDecoder());
+		verify(channel, times(1)).basicPublish("", "output", null, published);
+
+	}
+
+	@Test
+	public void consume_shouldNotPublishWithoutAPublisher() throws Exception {
+
+		// given
+		DecodingConsumer consumer = new DecodingConsumer(mock(Channel.class), null);
+		consumer.setTransportDecoder(new TransportDecoder());
+
+		// when
+		byte[] published = consumer.consume(transport());
+
+		// then
+		assertNull(published);
+
+	}
+
+	@Test
+	public void handleDelivery_shouldRecordMetricsForAnAcknowledgedDelivery() throws Exception {
+
+		// given
+		IMetrics metrics = mock(IMetrics.class);
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null, acknowledger);
+		consumer.setMetrics(metrics);
+
+		// when
+		consumer.handleDelivery("test", new Envelope(1, true, "", "input"), null, "test".getBytes());
+
+		// then
+		assertEquals(metrics, consumer.getMetrics());
+		verify(metrics, times(1)).recordDelivery("input", 4, true);
+		verify(metrics, times(1)).recordConsume(eq("input"), anyLong(), eq(true));
+		verify(metrics, times(1)).recordAck("input");
+
+	}
+
+	@Test
+	public void handleDelivery_shouldRecordMetricsForARejectedDelivery() throws Exception {
+
+		// given
+		IMetrics metrics = mock(IMetrics.class);
+		FailingConsumer consumer = new FailingConsumer(mock(Channel.class), mock(IAcknowledger.class));
+		consumer.setMetrics(metrics);
+
+		// when
+		try {
+			consumer.handleDelivery("test", new Envelope(1, false, "", "input"), null, "test".getBytes());
+		} catch (IOException expected) {
+			// the failure is still reported
 		}
 
-		public IPublisher<GenericContainer> getPublisher() {
-			return publisher;
+		// then
+		verify(metrics, times(1)).recordConsume(eq("input"), anyLong(), eq(false));
+		verify(metrics, times(1)).recordNack("input", true);
+		verify(metrics, never()).recordAck(any());
+
+	}
+
+	@Test
+	public void consume_shouldRecordDecodeAndHandleTimesWithTheTransportDecoder() throws Exception {
+
+		// given
+		IMetrics metrics = mock(IMetrics.class);
+		DecodingConsumer consumer = new DecodingConsumer(mock(Channel.class), null);
+		consumer.setTransportDecoder(new TransportDecoder());
+		consumer.setMetrics(metrics);
+
+		// when
+		consumer.consume(transport());
+
+		// then
+		verify(metrics, times(1)).recordDecode(eq("input"), anyLong());
+		verify(metrics, times(1)).recordHandle(eq("input"), anyLong());
+
+	}
+
+	@Test
+	public void handleCancel_shouldReRegisterTheConsumerOnceTheQueueExists() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		Connection connection = mock(Connection.class);
+		Channel probe = mock(Channel.class);
+		when(channel.isOpen()).thenReturn(true);
+		when(channel.getConnection()).thenReturn(connection);
+		when(connection.createChannel()).thenReturn(probe);
+		when(probe.queueDeclarePassive("input")).thenThrow(IOException.class).thenReturn(null);
+
+		TestConsumer consumer = new TestConsumer(channel, "input", null);
+		consumer.setRecoveryBackoff(new RecoveryBackoff(1, 1));
+
+		// when
+		consumer.handleCancel("consumer");
+
+		// then
+		verify(channel, timeout(5000).times(1)).basicConsume("input", true, "consumer", consumer);
+		verify(probe, times(2)).abort();
+
+	}
+
+	@Test
+	public void handleCancel_shouldStopOnceTheChannelIsClosed() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		TestConsumer consumer = new TestConsumer(channel, "input", null);
+		consumer.setRecoveryBackoff(new RecoveryBackoff(1, 1));
+
+		// when
+		consumer.handleCancel("consumer");
+
+		// then
+		verify(channel, timeout(5000).times(1)).getCloseReason();
+		verify(channel, never()).getConnection();
+
+	}
+
+	@Test
+	public void handleShutdownSignal_shouldCloseTheAcknowledgerIfTheChannelIsNotRecovered() {
+
+		// given
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null, acknowledger);
+
+		// when
+		consumer.handleShutdownSignal("consumer", null);
+
+		// then
+		verify(acknowledger, times(1)).close();
+
+	}
+
+	@Test
+	public void handleShutdownSignal_shouldKeepTheAcknowledgerWhileTheChannelIsRecovered() {
+
+		// given
+		Channel channel = mock(Channel.class, withSettings().extraInterfaces(Recoverable.class));
+		when(channel.getCloseReason()).thenReturn(new ShutdownSignalException(true, false, null, null));
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		TestConsumer consumer = new TestConsumer(channel, "input", null, acknowledger);
+
+		// when
+		consumer.handleShutdownSignal("consumer", null);
+
+		// then
+		verify(acknowledger, never()).close();
+		assertNull(consumer.getRecoveryBackoff());
+
+	}
+
+	@Test
+	public void handleShutdownSignal_shouldNotCancelTheConsumerWhileTheChannelIsRecovered() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class, withSettings().extraInterfaces(Recoverable.class));
+		when(channel.getCloseReason()).thenReturn(new ShutdownSignalException(true, false, null, null));
+		TestConsumer consumer = new TestConsumer(channel, "input", null);
+		consumer.handleConsumeOk("consumer");
+		consumer.handleShutdownSignal("consumer", null);
+
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+		// when
+		CompletableFuture<DrainReport> shutdown = consumer.shutdownAsync(5, TimeUnit.SECONDS, Runnable::run, scheduler);
+
+		// then
+		assertFalse(shutdown.isDone());
+		consumer.handleCancelOk("consumer");
+		assertTrue(shutdown.get(5, TimeUnit.SECONDS).isComplete());
+		scheduler.shutdown();
+
+	}
+
+	@Test
+	public void handleRecoverOk_shouldCancelTheRecoveredConsumerAgainWhileShuttingDown() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class, withSettings().extraInterfaces(Recoverable.class));
+		when(channel.getCloseReason()).thenReturn(new ShutdownSignalException(true, false, null, null));
+		TestConsumer consumer = new TestConsumer(channel, "input", null);
+		consumer.handleConsumeOk("consumer");
+
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		CompletableFuture<DrainReport> shutdown = consumer.shutdownAsync(5, TimeUnit.SECONDS, Runnable::run, scheduler);
+		consumer.handleShutdownSignal("consumer", null);
+
+		// when
+		consumer.handleRecoverOk("consumer");
+
+		// then
+		verify(channel, times(2)).basicCancel("consumer");
+		assertFalse(shutdown.isDone());
+		consumer.handleCancelOk("consumer");
+		assertTrue(shutdown.get(5, TimeUnit.SECONDS).isComplete());
+		scheduler.shutdown();
+
+	}
+
+	@Test
+	public void shutdown_shouldCancelAndDrainTheDeliveriesInFlight() throws Exception {
+
+		// given
+		List<Runnable> queued = new ArrayList<Runnable>();
+		Channel channel = mock(Channel.class);
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		TestConsumer consumer = new TestConsumer(channel, "input", null, acknowledger);
+		consumer.setDispatcher(new DeliveryDispatcher(queued::add, 1, 2, null));
+		consumer.handleConsumeOk("consumer");
+		consumer.handleDelivery("consumer", new Envelope(1, false, "", "input"), null, "test".getBytes());
+
+		when(channel.isOpen()).thenReturn(true);
+		doAnswer(invocation -> {
+			consumer.handleDelivery("consumer", new Envelope(2, false, "", "input"), null, "test".getBytes());
+			consumer.handleCancelOk("consumer");
+			new Thread(queued.get(0)).start();
+			return null;
+		}).when(channel).basicCancel("consumer");
+
+		// when
+		DrainReport report = consumer.shutdown(5, TimeUnit.SECONDS);
+
+		// then
+		assertEquals(1, report.getInFlight());
+		assertEquals(1, report.getDrained());
+		assertEquals(1, report.getRequeued());
+		assertEquals(0, report.getRemaining());
+		assertEquals(0, report.getUnconfirmed());
+		assertTrue(report.isAcknowledged());
+		assertTrue(report.isComplete());
+		verify(acknowledger, times(1)).ack(1);
+		verify(acknowledger, times(1)).nack(2, true);
+		verify(channel, times(1)).close();
+
+	}
+
+	@Test
+	public void handleDelivery_shouldRequeueADeliveryTheDispatcherRejects() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		TestConsumer consumer = new TestConsumer(channel, "input", null, acknowledger);
+		consumer.setDispatcher(new DeliveryDispatcher(command -> {
+			throw new RejectedExecutionException();
+		}, 1, 1, null));
+		consumer.handleConsumeOk("consumer");
+
+		// when
+		consumer.handleDelivery("consumer", new Envelope(1, false, "", "input"), null, "test".getBytes());
+		DrainReport report = consumer.shutdown(5, TimeUnit.SECONDS);
+
+		// then
+		verify(acknowledger, times(1)).nack(1, true);
+		verify(acknowledger, never()).ack(anyLong());
+		assertEquals(1, report.getRequeued());
+		assertTrue(report.isComplete());
+
+	}
+
+	@Test
+	public void handleDelivery_shouldThrowAnIOExceptionIfInterruptedDispatching() throws Exception {
+
+		// given
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null, mock(IAcknowledger.class));
+		consumer.setDispatcher(new DeliveryDispatcher(Runnable::run, 1, 1, null));
+		Thread.currentThread().interrupt();
+
+		// expect
+		exception.expect(IOException.class);
+		exception.expectMessage("Interrupted dispatching delivery");
+
+		// when
+		try {
+			consumer.handleDelivery("consumer", new Envelope(1, false, "", "input"), null, "test".getBytes());
+		} finally {
+			assertTrue(Thread.interrupted());
+			assertEquals(0, consumer.shutdown(1, TimeUnit.SECONDS).getRemaining());
+		}
+
+	}
+
+	@Test
+	public void handleDelivery_shouldFinishADeliveryTheDispatcherRejectsIfItCannotBeRequeued() throws Exception {
+
+		// given
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		doThrow(IOException.class).when(acknowledger).nack(anyLong(), anyBoolean());
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null, acknowledger);
+		TestConsumer autoAck = new TestConsumer(mock(Channel.class), "input", null);
+		DeliveryDispatcher dispatcher = new DeliveryDispatcher(command -> {
+			throw new RejectedExecutionException();
+		}, 1, 1, null);
+		consumer.setDispatcher(dispatcher);
+		autoAck.setDispatcher(dispatcher);
+
+		// when
+		consumer.handleDelivery("consumer", new Envelope(1, false, "", "input"), null, "test".getBytes());
+		autoAck.handleDelivery("consumer", new Envelope(1, false, "", "input"), null, "test".getBytes());
+
+		// then
+		assertEquals(0, consumer.shutdown(5, TimeUnit.SECONDS).getRemaining());
+		assertEquals(0, autoAck.shutdown(5, TimeUnit.SECONDS).getRemaining());
+		assertEquals(0, dispatcher.getInFlight());
+
+	}
+
+	@Test
+	public void shutdown_shouldReportTheDeliveriesStillInFlightAtTheTimeout() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		doThrow(IOException.class).when(channel).basicCancel("consumer");
+		TestConsumer consumer = new TestConsumer(channel, "input", null);
+		consumer.setDispatcher(new DeliveryDispatcher(command -> { }, 1, 1, null));
+		consumer.handleConsumeOk("consumer");
+		consumer.handleDelivery("consumer", new Envelope(1, false, "", "input"), null, "test".getBytes());
+
+		// when
+		DrainReport report = consumer.shutdown(10, TimeUnit.MILLISECONDS);
+
+		// then
+		assertEquals(1, report.getRemaining());
+		assertFalse(report.isComplete());
+		verify(channel, never()).close();
+
+	}
+
+	@Test
+	public void shutdown_shouldReportUnconfirmedPublishesAndUnsentAcknowledgements() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		when(channel.isOpen()).thenReturn(true);
+		doThrow(IOException.class).when(channel).close();
+
+		ConfirmTracker confirms = mock(ConfirmTracker.class);
+		when(confirms.getOutstanding()).thenReturn(2);
+		DefaultPublisher<GenericContainer> publisher = mock(DefaultPublisher.class);
+		when(publisher.getConfirmTracker()).thenReturn(confirms);
+
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		doThrow(IOException.class).when(acknowledger).flush();
+
+		TestConsumer consumer = new TestConsumer(channel, "input", null, acknowledger);
+		consumer.setPublisher(publisher);
+
+		// when
+		DrainReport report = consumer.shutdown(0, TimeUnit.MILLISECONDS);
+
+		// then
+		assertEquals(2, report.getUnconfirmed());
+		assertFalse(report.isAcknowledged());
+		assertFalse(report.isComplete());
+		verify(acknowledger, times(1)).close();
+
+	}
+
+	@Test
+	public void shutdown_shouldWaitForConfirmsOfTheDefaultPublisher() throws Exception {
+
+		// given
+		DefaultPublisher<GenericContainer> publisher = mock(DefaultPublisher.class);
+		when(publisher.awaitConfirms(anyLong(), any())).thenReturn(true);
+
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null);
+		consumer.setPublisher(publisher);
+		consumer.handleShutdownSignal("consumer", null);
+
+		// when
+		DrainReport report = consumer.shutdown(1, TimeUnit.SECONDS);
+
+		// then
+		assertTrue(report.isComplete());
+		verify(publisher, times(1)).awaitConfirms(anyLong(), eq(TimeUnit.NANOSECONDS));
+
+	}
+
+	@Test
+	public void shutdown_shouldStopWaitingWhenTheBrokerCancelsTheConsumer() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		TestConsumer consumer = new TestConsumer(channel, "input", null);
+		consumer.setRecoveryBackoff(new RecoveryBackoff(1, 1));
+		consumer.handleConsumeOk("consumer");
+		doAnswer(invocation -> {
+			consumer.handleCancel("consumer");
+			return null;
+		}).when(channel).basicCancel("consumer");
+
+		// when
+		DrainReport report = consumer.shutdown(5, TimeUnit.SECONDS);
+
+		// then
+		assertTrue(report.isComplete());
+		verify(channel, never()).getConnection();
+
+	}
+
+	@Test
+	public void shutdownAsync_shouldCompleteOnceTheDeliveriesInFlightHaveDrained() throws Exception {
+
+		// given
+		List<Runnable> queued = new ArrayList<Runnable>();
+		Channel channel = mock(Channel.class);
+		when(channel.isOpen()).thenReturn(true);
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		TestConsumer consumer = new TestConsumer(channel, "input", null, acknowledger);
+		consumer.setDispatcher(new DeliveryDispatcher(queued::add, 1, 2, null));
+		consumer.handleConsumeOk("consumer");
+		consumer.handleDelivery("consumer", new Envelope(1, false, "", "input"), null, "test".getBytes());
+		doAnswer(invocation -> {
+			consumer.handleCancelOk("consumer");
+			return null;
+		}).when(channel).basicCancel("consumer");
+
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+		// when
+		CompletableFuture<DrainReport> shutdown = consumer.shutdownAsync(5, TimeUnit.SECONDS, Runnable::run, scheduler);
+
+		// then
+		assertFalse(shutdown.isDone());
+		queued.get(0).run();
+		DrainReport report = shutdown.get(5, TimeUnit.SECONDS);
+		assertEquals(1, report.getDrained());
+		assertTrue(report.isComplete());
+		verify(acknowledger, times(1)).ack(1);
+		verify(channel, times(1)).close();
+		scheduler.shutdown();
+
+	}
+
+	@Test
+	public void shutdownAsync_shouldReportTheDeliveriesStillInFlightAtTheTimeout() throws Exception {
+
+		// given
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null);
+		consumer.setDispatcher(new DeliveryDispatcher(command -> { }, 1, 1, null));
+		consumer.handleConsumeOk("consumer");
+		consumer.handleDelivery("consumer", new Envelope(1, false, "", "input"), null, "test".getBytes());
+
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+		// when
+		DrainReport report = consumer.shutdownAsync(10, TimeUnit.MILLISECONDS, Runnable::run, scheduler).get(5, TimeUnit.SECONDS);
+
+		// then
+		assertEquals(1, report.getRemaining());
+		assertEquals(1, consumer.getInFlight());
+		assertFalse(report.isComplete());
+		scheduler.shutdown();
+
+	}
+
+	@Test
+	public void shutdownAsync_shouldWaitForConfirmsOfTheDefaultPublisher() throws Exception {
+
+		// given
+		CompletableFuture<Void> confirmed = new CompletableFuture<Void>();
+		ConfirmTracker confirms = mock(ConfirmTracker.class);
+		DefaultPublisher<GenericContainer> publisher = mock(DefaultPublisher.class);
+		when(publisher.whenConfirmed()).thenReturn(confirmed);
+		when(publisher.getConfirmTracker()).thenReturn(null, confirms);
+
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null);
+		consumer.setPublisher(publisher);
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+		// when
+		CompletableFuture<DrainReport> shutdown = consumer.shutdownAsync(5, TimeUnit.SECONDS, Runnable::run, scheduler);
+		CompletableFuture<DrainReport> repeated = consumer.shutdownAsync(5, TimeUnit.SECONDS, Runnable::run, scheduler);
+
+		// then
+		assertFalse(shutdown.isDone());
+		confirmed.complete(null);
+		assertTrue(shutdown.get(5, TimeUnit.SECONDS).isComplete());
+		assertTrue(repeated.get(5, TimeUnit.SECONDS).isComplete());
+		verify(confirms, times(1)).getOutstanding();
+		scheduler.shutdown();
+
+	}
+
+	@Test
+	public void shutdownAsync_shouldNotWaitForConfirmsOfOtherPublishers() throws Exception {
+
+		// given
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null);
+		consumer.setPublisher(mock(IPublisher.class));
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+		// when
+		DrainReport report = consumer.shutdownAsync(5, TimeUnit.SECONDS, Runnable::run, scheduler).get(5, TimeUnit.SECONDS);
+
+		// then
+		assertTrue(report.isComplete());
+		scheduler.shutdown();
+
+	}
+
+	@Test
+	public void handleDelivery_shouldNotCountADeliveryTheDispatcherRejects() throws Exception {
+
+		// given
+		Executor executor = mock(Executor.class);
+		doThrow(IllegalStateException.class).when(executor).execute(any());
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null);
+		consumer.setDispatcher(new DeliveryDispatcher(executor, 1, 1, null));
+
+		// when
+		try {
+			consumer.handleDelivery("consumer", new Envelope(1, false, "", "input"), null, "test".getBytes());
+		} catch (IOException expected) {
+			// the dispatcher has been shut down
+		}
+
+		// then
+		assertEquals(0, consumer.shutdown(0, TimeUnit.MILLISECONDS).getRemaining());
+
+	}
+
+	@Test
+	public void handleDelivery_shouldAcknowledgeADeliveryOnceItsMoveToTheRetryPipelineIsConfirmed() throws Exception {
+
+		// given
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		RetryPipeline retries = mock(RetryPipeline.class);
+		CompletableFuture<String> routed = new CompletableFuture<String>();
+		when(retries.route(any(), any(), any())).thenReturn(routed);
+		FailingConsumer consumer = new FailingConsumer(mock(Channel.class), acknowledger);
+		consumer.setRetryPipeline(retries);
+		consumer.handleDelivery("test", new Envelope(1, false, "", "input"), null, "test".getBytes());
+		verify(acknowledger, never()).ack(anyLong());
+		assertEquals(1, consumer.getInFlight());
+
+		// when
+		routed.complete("input.retry.1000");
+
+		// then
+		verify(retries, times(1)).route(eq(null), any(), any(NullPointerException.class));
+		verify(acknowledger, times(1)).ack(1);
+		verify(acknowledger, never()).nack(anyLong(), anyBoolean());
+		assertEquals(0, consumer.getInFlight());
+		assertEquals(retries, consumer.getRetryPipeline());
+
+	}
+
+	@Test
+	public void handleDelivery_shouldRejectADeliveryThatCannotBeMovedToTheRetryPipeline() throws Exception {
+
+		// given
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		RetryPipeline retries = mock(RetryPipeline.class);
+		CompletableFuture<String> routed = new CompletableFuture<String>();
+		routed.completeExceptionally(new MessagingException("failed", null));
+		when(retries.route(any(), any(), any())).thenReturn(routed);
+		FailingConsumer consumer = new FailingConsumer(mock(Channel.class), acknowledger);
+		consumer.setRetryPipeline(retries);
+
+		// when
+		consumer.handleDelivery("test", new Envelope(1, false, "", "input"), null, "test".getBytes());
+
+		// then
+		verify(acknowledger, times(1)).nack(1, true);
+		verify(acknowledger, never()).ack(anyLong());
+		assertEquals(0, consumer.getInFlight());
+
+	}
+
+	@Test
+	public void handleDelivery_shouldReleaseADeliveryMovedToTheRetryPipelineIfItCannotBeAcknowledged() throws Exception {
+
+		// given
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		doThrow(IOException.class).when(acknowledger).ack(anyLong());
+		RetryPipeline retries = mock(RetryPipeline.class);
+		when(retries.route(any(), any(), any())).thenReturn(CompletableFuture.completedFuture("input.retry.1000"));
+		FailingConsumer consumer = new FailingConsumer(mock(Channel.class), acknowledger);
+		consumer.setRetryPipeline(retries);
+
+		// when
+		consumer.handleDelivery("test", new Envelope(1, false, "", "input"), null, "test".getBytes());
+
+		// then
+		verify(acknowledger, times(1)).ack(1);
+		assertEquals(0, consumer.getInFlight());
+
+	}
+
+	@Test
+	public void getDeliveryProperties_shouldReturnThePropertiesOfTheDeliveryBeingHandled() throws Exception {
+
+		// given
+		Envelope envelope = new Envelope(1, false, "", "input");
+		AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder().correlationId("1").build();
+		Object[] seen = new Object[2];
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null) {
+			@Override
+			public byte[] consume(byte[] body) throws OrizuruException {
+				seen[0] = getDeliveryEnvelope();
+				seen[1] = getDeliveryProperties();
+				return body;
+			}
+		};
+
+		// when
+		consumer.handleDelivery("test", envelope, properties, "test".getBytes());
+
+		// then
+		assertEquals(envelope, seen[0]);
+		assertEquals(properties, seen[1]);
+		assertNull(consumer.getDeliveryEnvelope());
+		assertNull(consumer.getDeliveryProperties());
+
+	}
+
+	@Test
+	public void handleDelivery_shouldDecompressAMessageWithAKnownContentEncoding() throws Exception {
+
+		// given
+		byte[] body = new byte[10000];
+		DeflateCodec codec = new DeflateCodec();
+		List<byte[]> seen = new ArrayList<byte[]>();
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null) {
+			@Override
+			public byte[] consume(byte[] body) throws OrizuruException {
+				seen.add(body);
+				return body;
+			}
+		};
+		consumer.setCodecs(codec);
+
+		AMQP.BasicProperties compressed = new AMQP.BasicProperties.Builder().contentEncoding(DeflateCodec.NAME).build();
+		AMQP.BasicProperties unknown = new AMQP.BasicProperties.Builder().contentEncoding("identity").build();
+
+		// when
+		consumer.handleDelivery("test", null, compressed, codec.encode(body));
+		consumer.handleDelivery("test", null, unknown, "test".getBytes());
+		consumer.handleDelivery("test", null, new AMQP.BasicProperties(), "test".getBytes());
+
+		// then
+		assertArrayEquals(body, seen.get(0));
+		assertArrayEquals("test".getBytes(), seen.get(1));
+		assertArrayEquals("test".getBytes(), seen.get(2));
+		assertEquals(1, consumer.getCodecs().size());
+
+	}
+
+	@Test
+	public void getCodecs_shouldReturnAnEmptyCollectionByDefault() {
+
+		// given
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null);
+
+		// when/then
+		assertTrue(consumer.getCodecs().isEmpty());
+
+	}
+
+	@Test
+	public void handleDelivery_shouldAcknowledgeChunksOnceTheReassembledMessageIsConsumed() throws Exception {
+
+		// given
+		Chunker chunker = new Chunker(4);
+		byte[] body = "0123456789".getBytes();
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		List<byte[]> seen = new ArrayList<byte[]>();
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null, acknowledger) {
+			@Override
+			public byte[] consume(byte[] body) throws OrizuruException {
+				seen.add(body);
+				return body;
+			}
+		};
+		Reassembler reassembler = new Reassembler();
+		consumer.setReassembler(reassembler);
+
+		// when
+		for (int i = 0; i < 2; i++) {
+			consumer.handleDelivery("test", new Envelope(i + 1, false, "", "input"), chunker.getProperties(null, "a", i, body), chunker.getChunk(body, i));
+		}
+		verify(acknowledger, never()).ack(anyLong());
+		consumer.handleDelivery("test", new Envelope(3, false, "", "input"), chunker.getProperties(null, "a", 2, body), chunker.getChunk(body, 2));
+		consumer.handleDelivery("test", new Envelope(4, false, "", "input"), null, "test".getBytes());
+
+		// then
+		assertEquals(2, seen.size());
+		assertArrayEquals(body, seen.get(0));
+		verify(acknowledger, times(1)).ack(1);
+		verify(acknowledger, times(1)).ack(2);
+		verify(acknowledger, times(1)).ack(3);
+		verify(acknowledger, times(1)).ack(4);
+		assertEquals(reassembler, consumer.getReassembler());
+
+	}
+
+	@Test
+	public void handleDelivery_shouldRejectEveryChunkOfAMessageThatFails() throws Exception {
+
+		// given
+		Chunker chunker = new Chunker(4);
+		byte[] body = "012345".getBytes();
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null, acknowledger) {
+			@Override
+			public byte[] consume(byte[] body) throws OrizuruException {
+				throw new HandleMessageException(new IllegalStateException());
+			}
+		};
+		consumer.setReassembler(new Reassembler());
+		consumer.handleDelivery("test", new Envelope(1, true, "", "input"), chunker.getProperties(null, "a", 0, body), chunker.getChunk(body, 0));
+
+		// expect
+		exception.expect(IOException.class);
+
+		// when
+		try {
+			consumer.handleDelivery("test", new Envelope(2, false, "", "input"), chunker.getProperties(null, "a", 1, body), chunker.getChunk(body, 1));
+		} finally {
+			verify(acknowledger, times(1)).nack(1, false);
+			verify(acknowledger, times(1)).nack(2, true);
+			verify(acknowledger, never()).ack(anyLong());
+		}
+
+	}
+
+	@Test
+	public void handleDelivery_shouldMoveTheWholeOfAChunkedMessageToTheRetryPipeline() throws Exception {
+
+		// given
+		Chunker chunker = new Chunker(4);
+		byte[] body = "012345".getBytes();
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		RetryPipeline retries = mock(RetryPipeline.class);
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null, acknowledger) {
+			@Override
+			public byte[] consume(byte[] body) throws OrizuruException {
+				throw new HandleMessageException(new IllegalStateException());
+			}
+		};
+		when(retries.route(any(), any(), any())).thenReturn(CompletableFuture.completedFuture("input.parked"));
+		consumer.setReassembler(new Reassembler());
+		consumer.setRetryPipeline(retries);
+		consumer.handleDelivery("test", new Envelope(1, false, "", "input"), chunker.getProperties(null, "a", 0, body), chunker.getChunk(body, 0));
+
+		// when
+		consumer.handleDelivery("test", new Envelope(2, false, "", "input"), chunker.getProperties(null, "a", 1, body), chunker.getChunk(body, 1));
+
+		// then
+		ArgumentCaptor<AMQP.BasicProperties> properties = ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+		verify(retries, times(1)).route(properties.capture(), eq(body), any(HandleMessageException.class));
+		assertFalse(Chunker.isChunk(properties.getValue()));
+		verify(acknowledger, times(1)).ack(1);
+		verify(acknowledger, times(1)).ack(2);
+
+	}
+
+	@Test
+	public void handleDelivery_shouldRejectTheChunksOfADiscardedMessage() throws Exception {
+
+		// given
+		Chunker chunker = new Chunker(4);
+		byte[] body = "012345".getBytes();
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null, acknowledger);
+		consumer.setReassembler(new Reassembler(1000, 1, 1000, 60000, null));
+		consumer.handleDelivery("test", new Envelope(1, false, "", "input"), chunker.getProperties(null, "a", 0, body), chunker.getChunk(body, 0));
+
+		// when
+		consumer.handleDelivery("test", new Envelope(2, false, "", "input"), chunker.getProperties(null, "b", 0, body), chunker.getChunk(body, 0));
+
+		// then
+		verify(acknowledger, times(1)).nack(1, true);
+		verify(acknowledger, never()).ack(anyLong());
+		verify(acknowledger, never()).nack(eq(2L), anyBoolean());
+
+	}
+
+	@Test
+	public void handleDelivery_shouldRejectAnInvalidChunk() throws Exception {
+
+		// given
+		IAcknowledger acknowledger = mock(IAcknowledger.class);
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null, acknowledger);
+		consumer.setReassembler(new Reassembler());
+		AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+			.headers(Collections.<String, Object>singletonMap(Chunker.ID_HEADER, "a"))
+			.build();
+
+		// expect
+		exception.expect(IOException.class);
+
+		// when
+		try {
+			consumer.handleDelivery("test", new Envelope(1, false, "", "input"), properties, new byte[1]);
+		} finally {
+			verify(acknowledger, times(1)).nack(1, true);
+		}
+
+	}
+
+	@Test
+	public void handleDelivery_shouldDiscardChunksWithoutAnAcknowledger() throws Exception {
+
+		// given
+		Chunker chunker = new Chunker(4);
+		byte[] body = "012345".getBytes();
+		Reassembler reassembler = new Reassembler(1000, 1, 1000, 60000, null);
+		TestConsumer consumer = new TestConsumer(mock(Channel.class), "input", null);
+		consumer.setReassembler(reassembler);
+		consumer.handleDelivery("test", new Envelope(1, false, "", "input"), chunker.getProperties(null, "a", 0, body), chunker.getChunk(body, 0));
+
+		// when
+		consumer.handleDelivery("test", new Envelope(2, false, "", "input"), chunker.getProperties(null, "b", 0, body), chunker.getChunk(body, 0));
+
+		// then
+		assertEquals(1, reassembler.getDiscarded());
+		assertTrue(reassembler.takeDiscarded().isEmpty());
+
+	}
+
+	private static byte[] transport() throws Exception {
+		String schema = "{\"name\":\"context\",\"type\":\"record\",\"fields\":[]}";
+		Transport message = new Transport("inner", ByteBuffer.allocate(0), "", ByteBuffer.allocate(0));
+		Transport transport = new Transport(schema, ByteBuffer.allocate(0), Transport.class.getName(), ByteBuffer.wrap(encode(message)));
+		return encode(transport);
+	}
+
+	private static byte[] encode(Transport transport) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+		new SpecificDatumWriter<Transport>(Transport.class).write(transport, encoder);
+		encoder.flush();
+		return out.toByteArray();
+	}
+
+	private class TestConsumer extends DefaultConsumer<GenericContainer, GenericContainer> {
+
+		public TestConsumer(Channel channel, String incomingQueueName, String outgoingQueueName) {
+			super(channel, incomingQueueName, outgoingQueueName);
+		}
+
+		public TestConsumer(Channel channel, String incomingQueueName, String outgoingQueueName, IAcknowledger acknowledger) {
+			super(channel, incomingQueueName, outgoingQueueName, acknowledger);
+		}
+
+		@Override
+		public GenericContainer handleMessage(Context context, GenericContainer input) throws HandleMessageException {
+			return input;
+		}
+
+		@Override
+		public byte[] consume(byte[] body) throws OrizuruException {
+			return body;
+		}
+
+	}
+
+	private class FailingConsumer extends TestConsumer {
+
+		public FailingConsumer(Channel channel, IAcknowledger acknowledger) {
+			super(channel, "input", null, acknowledger);
+		}
+
+		@Override
+		public byte[] consume(byte[] body) throws OrizuruException {
+			throw new NullPointerException();
+		}
+
+	}
+
+	private class DecodingConsumer extends DefaultConsumer<GenericContainer, GenericContainer> {
+
+		public DecodingConsumer(Channel channel, String outgoingQueueName) {
+			super(channel, "input", outgoingQueueName);
+		}
+
+		@Override
+		public GenericContainer handleMessage(Context context, GenericContainer input) throws HandleMessageException {
+			return input;
 		}
 
 	}
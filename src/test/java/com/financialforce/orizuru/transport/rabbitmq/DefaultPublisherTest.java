@@ -26,17 +26,37 @@
 
 package com.financialforce.orizuru.transport.rabbitmq;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 
 import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
 import org.apache.avro.generic.GenericContainer;
 import org.hamcrest.core.IsInstanceOf;
 import org.junit.Rule;
@@ -46,9 +66,15 @@ import org.junit.rules.ExpectedException;
 import com.financialforce.orizuru.exception.publisher.OrizuruPublisherException;
 import com.financialforce.orizuru.exception.publisher.encode.EncodeTransportException;
 import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.ICodec;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IRoutingKeyResolver;
 
 public class DefaultPublisherTest {
 
+	private static final Schema SCHEMA = new Schema.Parser().parse("{\"name\":\"test\",\"type\":\"record\",\"fields\":[]}");
+
 	@Rule
 	public final ExpectedException exception = ExpectedException.none();
 
@@ -101,4 +127,515 @@ public class DefaultPublisherTest {
 
 	}
 
+	@Test
+	public void publish_shouldSendThePublisherProperties() throws Exception {
+
+		// given
+		AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder().deliveryMode(2).priority(5).build();
+		Channel channel = mock(Channel.class);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output");
+		publisher.setProperties(properties);
+
+		// when
+		publisher.publish(context(), message());
+		publisher.publishBatch(context(), Arrays.asList(message()));
+
+		// then
+		verify(channel, times(2)).basicPublish(eq(""), eq("output"), eq(properties), any());
+		assertEquals(properties, publisher.getProperties());
+
+	}
+
+	@Test
+	public void publish_shouldSendThePropertiesOfASingleMessage() throws Exception {
+
+		// given
+		AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder().correlationId("1").build();
+		Channel channel = mock(Channel.class);
+		when(channel.getNextPublishSeqNo()).thenReturn(1L);
+		ConfirmTracker confirms = new ConfirmTracker(channel, 10);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output", confirms);
+		publisher.setProperties(new AMQP.BasicProperties());
+
+		// when
+		publisher.publishAsync(context(), message(), properties);
+		confirms.handleAck(1, false);
+		when(channel.getNextPublishSeqNo()).thenReturn(2L, 3L);
+		doAnswer(invocation -> {
+			confirms.handleAck(3, true);
+			return null;
+		}).when(channel).basicPublish(eq(""), eq("output"), eq(publisher.getProperties()), any());
+		publisher.publishBatch(context(), Arrays.asList(message(), message()).iterator(), 10);
+
+		// then
+		verify(channel, times(1)).basicPublish(eq(""), eq("output"), eq(properties), any());
+		verify(channel, times(2)).basicPublish(eq(""), eq("output"), eq(publisher.getProperties()), any());
+
+	}
+
+	@Test
+	public void publish_shouldSendToTheExchangeWithAFixedRoutingKey() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output");
+		publisher.setExchange("events");
+		publisher.setRoutingKey("account.created");
+
+		// when
+		publisher.publish(context(), message());
+		publisher.publishBatch(context(), Arrays.asList(message(), message()));
+
+		// then
+		verify(channel, times(3)).basicPublish(eq("events"), eq("account.created"), any(), any());
+		assertEquals("events", publisher.getExchange());
+		assertEquals("account.created", publisher.getRoutingKey());
+
+	}
+
+	@Test
+	public void publish_shouldComputeTheRoutingKeyOfEachMessage() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		when(channel.getNextPublishSeqNo()).thenReturn(1L);
+		ConfirmTracker confirms = new ConfirmTracker(channel, 10);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output", confirms);
+		IRoutingKeyResolver<GenericContainer> resolver = (context, message) -> message.getSchema().getName();
+		publisher.setExchange("events");
+		publisher.setRoutingKeyResolver(resolver);
+
+		// when
+		publisher.publishAsync(context(), message());
+
+		// then
+		verify(channel, times(1)).basicPublish(eq("events"), eq("test"), any(), any());
+		assertEquals(resolver, publisher.getRoutingKeyResolver());
+
+	}
+
+	@Test
+	public void publishAsync_shouldReturnACompletedFutureWithoutConfirms() throws Exception {
+
+		// given
+		Context context = context();
+		GenericContainer message = message();
+
+		Channel channel = mock(Channel.class);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output");
+
+		// when
+		CompletableFuture<Void> future = publisher.publishAsync(context, message);
+
+		// then
+		assertTrue(future.isDone());
+		assertTrue(publisher.awaitConfirms(1, TimeUnit.MILLISECONDS));
+		assertTrue(publisher.whenConfirmed().isDone());
+		verify(channel, times(1)).basicPublish(eq(""), eq("output"), any(), any());
+
+	}
+
+	@Test
+	public void publishAsync_shouldCompleteTheFutureWhenTheBrokerConfirms() throws Exception {
+
+		// given
+		Context context = context();
+		GenericContainer message = message();
+
+		Channel channel = mock(Channel.class);
+		when(channel.getNextPublishSeqNo()).thenReturn(1L, 2L);
+		ConfirmTracker confirms = new ConfirmTracker(channel, 10);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output", confirms);
+
+		// when
+		CompletableFuture<Void> first = publisher.publishAsync(context, message);
+		publisher.publish(context, message);
+
+		// then
+		assertFalse(first.isDone());
+		assertEquals(2, confirms.getOutstanding());
+		CompletableFuture<Void> confirmed = publisher.whenConfirmed();
+		confirms.handleAck(2, true);
+		assertTrue(first.isDone());
+		assertTrue(confirmed.isDone());
+		assertTrue(publisher.awaitConfirms(1, TimeUnit.MILLISECONDS));
+		assertEquals(confirms, publisher.getConfirmTracker());
+		assertEquals(channel, publisher.getChannel());
+
+	}
+
+	@Test
+	public void publishAsync_shouldFailTheConfirmIfTheMessageCannotBeSent() throws Exception {
+
+		// given
+		Context context = context();
+		GenericContainer message = message();
+
+		Channel channel = mock(Channel.class);
+		when(channel.getNextPublishSeqNo()).thenReturn(1L);
+		doThrow(IOException.class).when(channel).basicPublish(any(), any(), any(), any());
+		ConfirmTracker confirms = new ConfirmTracker(channel, 10);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output", confirms);
+
+		// expect
+		exception.expect(OrizuruPublisherException.class);
+		exception.expectCause(IsInstanceOf.<Throwable>instanceOf(IOException.class));
+
+		// when
+		try {
+			publisher.publishAsync(context, message);
+		} finally {
+			assertEquals(0, confirms.getOutstanding());
+		}
+
+	}
+
+	@Test
+	public void publishBatch_shouldPublishEveryMessage() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output");
+
+		// when
+		List<byte[]> published = publisher.publishBatch(context(), Arrays.asList(message(), message(), message()));
+
+		// then
+		assertEquals(3, published.size());
+		verify(channel, times(3)).basicPublish(eq(""), eq("output"), any(), any());
+
+	}
+
+	@Test
+	public void publishBatch_shouldWaitForTheBatchToBeConfirmed() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		when(channel.getNextPublishSeqNo()).thenReturn(1L, 2L);
+		ConfirmTracker confirms = new ConfirmTracker(channel, 10);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output", confirms);
+		doAnswer(invocation -> {
+			if (confirms.getOutstanding() == 2) {
+				new Thread(() -> confirms.handleAck(2, true)).start();
+			}
+			return null;
+		}).when(channel).basicPublish(any(), any(), any(), any());
+
+		// when
+		publisher.publishBatch(context(), Arrays.asList(message(), message()));
+
+		// then
+		assertEquals(0, confirms.getOutstanding());
+
+	}
+
+	@Test
+	public void publishBatch_shouldThrowAnOrizuruPublisherExceptionIfTheBatchIsRejected() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		when(channel.getNextPublishSeqNo()).thenReturn(1L);
+		ConfirmTracker confirms = new ConfirmTracker(channel, 10);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output", confirms);
+		doAnswer(invocation -> {
+			confirms.handleNack(1, false);
+			return null;
+		}).when(channel).basicPublish(any(), any(), any(), any());
+
+		// expect
+		exception.expect(OrizuruPublisherException.class);
+		exception.expectCause(IsInstanceOf.<Throwable>instanceOf(MessagingException.class));
+
+		// when
+		publisher.publishBatch(context(), Arrays.asList(message()));
+
+	}
+
+	@Test
+	public void publishBatch_shouldFailThePublishIfTheBatchCannotBeSent() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		when(channel.getNextPublishSeqNo()).thenReturn(1L);
+		doThrow(new IOException("closed")).when(channel).basicPublish(any(), any(), any(), any());
+		ConfirmTracker confirms = new ConfirmTracker(channel, 10);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output", confirms);
+
+		// expect
+		exception.expect(OrizuruPublisherException.class);
+		exception.expectCause(IsInstanceOf.<Throwable>instanceOf(IOException.class));
+
+		// when
+		try {
+			publisher.publishBatch(context(), Arrays.asList(message()));
+		} finally {
+			assertEquals(0, confirms.getOutstanding());
+		}
+
+	}
+
+	@Test
+	public void publishBatch_shouldPublishAStreamInChunks() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output");
+		Iterator<GenericContainer> messages = Arrays.asList(message(), message(), message(), message(), message()).iterator();
+
+		// when
+		int published = publisher.publishBatch(context(), messages, 2);
+
+		// then
+		assertEquals(5, published);
+		verify(channel, times(5)).basicPublish(eq(""), eq("output"), any(), any());
+
+	}
+
+	@Test
+	public void publishBatch_shouldWaitForAStreamToBeConfirmed() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		when(channel.getNextPublishSeqNo()).thenReturn(1L, 2L, 3L);
+		ConfirmTracker confirms = new ConfirmTracker(channel, 10);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output", confirms);
+		doAnswer(invocation -> {
+			if (confirms.getOutstanding() == 3) {
+				new Thread(() -> confirms.handleAck(3, true)).start();
+			}
+			return null;
+		}).when(channel).basicPublish(any(), any(), any(), any());
+
+		// when
+		int published = publisher.publishBatch(context(), Arrays.asList(message(), message(), message()).iterator(), 2);
+
+		// then
+		assertEquals(3, published);
+		assertEquals(0, confirms.getOutstanding());
+
+	}
+
+	@Test
+	public void publishBatch_shouldThrowAnOrizuruPublisherExceptionIfAStreamCannotBeSent() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		doThrow(new IOException("closed")).when(channel).basicPublish(any(), any(), any(), any());
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output");
+
+		// expect
+		exception.expect(OrizuruPublisherException.class);
+		exception.expectCause(IsInstanceOf.<Throwable>instanceOf(IOException.class));
+
+		// when
+		publisher.publishBatch(context(), Arrays.asList(message(), message()).iterator(), 2);
+
+	}
+
+	@Test
+	public void publish_shouldSerialiseWithTheTransportEncoderIfSet() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output");
+		TransportEncoder encoder = new TransportEncoder();
+		publisher.setTransportEncoder(encoder);
+
+		// when
+		byte[] published = publisher.publish(context(), message());
+
+		// then
+		assertEquals(encoder, publisher.getTransportEncoder());
+		assertArrayEquals(new TransportEncoder().encode(context(), message()), published);
+		verify(channel).basicPublish(eq(""), eq("output"), any(), eq(published));
+
+	}
+
+	@Test
+	public void publish_shouldSendTheSchemaFingerprintIfTheEncoderFingerprintsSchemas() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output");
+		publisher.setTransportEncoder(new TransportEncoder(64, 1024, true));
+		Long fingerprint = SchemaNormalization.parsingFingerprint64(SCHEMA);
+
+		// when
+		publisher.publish(context(), message());
+		publisher.publishAsync(context(), message());
+		publisher.publishBatch(context(), Arrays.asList(message()));
+		publisher.publishBatch(context(), Arrays.asList(message()).iterator(), 1);
+
+		// then
+		verify(channel, times(4)).basicPublish(eq(""), eq("output"),
+				argThat(properties -> fingerprint.equals(properties.getHeaders().get(TransportEncoder.FINGERPRINT_HEADER))), any());
+
+	}
+
+	@Test
+	public void publish_shouldRecordThePublishAndConfirmTimes() throws Exception {
+
+		// given
+		IMetrics metrics = mock(IMetrics.class);
+		Channel channel = mock(Channel.class);
+		when(channel.getNextPublishSeqNo()).thenReturn(1L, 2L);
+		ConfirmTracker confirms = new ConfirmTracker(channel, 10);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output", confirms);
+		publisher.setMetrics(metrics);
+
+		// when
+		publisher.publish(context(), message());
+		publisher.publishAsync(context(), message());
+		confirms.handleAck(1, false);
+		confirms.handleNack(2, false);
+
+		// then
+		assertEquals(metrics, publisher.getMetrics());
+		verify(metrics, times(2)).recordPublish(eq("output"), anyLong());
+		verify(metrics, times(1)).recordConfirm(eq("output"), anyLong(), eq(true));
+		verify(metrics, times(1)).recordConfirm(eq("output"), anyLong(), eq(false));
+
+	}
+
+	@Test
+	public void publishBatch_shouldRecordAPublishTimeForEveryMessage() throws Exception {
+
+		// given
+		IMetrics metrics = mock(IMetrics.class);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(mock(Channel.class), "output");
+		publisher.setMetrics(metrics);
+
+		// when
+		publisher.publishBatch(context(), Arrays.asList(message(), message()));
+		publisher.publishBatch(context(), Arrays.asList(message(), message(), message()).iterator(), 2);
+		publisher.publishBatch(context(), Arrays.<GenericContainer>asList());
+
+		// then
+		verify(metrics, times(5)).recordPublish(eq("output"), anyLong());
+
+	}
+
+	@Test
+	public void publish_shouldCompressMessagesAtOrAboveTheThreshold() throws Exception {
+
+		// given
+		byte[] compressed = new byte[1];
+		ICodec codec = mock(ICodec.class);
+		when(codec.getName()).thenReturn("test");
+		when(codec.encode(any())).thenReturn(compressed);
+
+		Channel channel = mock(Channel.class);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output");
+		Compressor compressor = new Compressor(codec, 0);
+		publisher.setCompressor(compressor);
+
+		// when
+		publisher.publish(context(), message());
+		publisher.publishBatch(context(), Arrays.asList(message()));
+
+		// then
+		verify(channel, times(2)).basicPublish(eq(""), eq("output"), argThat(properties -> "test".equals(properties.getContentEncoding())), eq(compressed));
+		assertSame(compressor, publisher.getCompressor());
+
+	}
+
+	@Test
+	public void publish_shouldNotCompressMessagesBelowTheThreshold() throws Exception {
+
+		// given
+		AMQP.BasicProperties shared = new AMQP.BasicProperties.Builder().contentType("avro/binary").build();
+		Channel channel = mock(Channel.class);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output");
+		publisher.setProperties(shared);
+		publisher.setCompressor(new Compressor(new DeflateCodec()));
+
+		// when
+		byte[] published = publisher.publish(context(), message());
+		publisher.publishBatch(context(), Arrays.asList(message()));
+
+		// then
+		verify(channel, times(2)).basicPublish(eq(""), eq("output"), eq(shared), eq(published));
+
+	}
+
+	@Test
+	public void publish_shouldSplitALargeMessageIntoChunks() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output");
+		Chunker chunker = new Chunker(16);
+		publisher.setChunker(chunker);
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		doAnswer(invocation -> {
+			sent.write((byte[]) invocation.getArgument(3));
+			return null;
+		}).when(channel).basicPublish(anyString(), anyString(), any(), any());
+
+		// when
+		byte[] published = publisher.publish(context(), message());
+		publisher.publishBatch(context(), Arrays.asList(message()));
+
+		// then
+		int chunks = chunker.getChunkCount(published);
+		assertTrue(chunks > 1);
+		assertArrayEquals(published, Arrays.copyOf(sent.toByteArray(), published.length));
+		verify(channel, times(2)).basicPublish(eq(""), eq("output"), argThat(properties -> Integer.valueOf(0).equals(properties.getHeaders().get(Chunker.INDEX_HEADER))), any());
+		verify(channel, times(2 * chunks)).basicPublish(eq(""), eq("output"), argThat(Chunker::isChunk), any());
+		assertSame(chunker, publisher.getChunker());
+
+	}
+
+	@Test
+	public void publishAsync_shouldCompleteOnceEveryChunkIsConfirmed() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		when(channel.getNextPublishSeqNo()).thenReturn(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L);
+		ConfirmTracker confirms = new ConfirmTracker(channel, 10);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output", confirms);
+		publisher.setChunker(new Chunker(16));
+
+		// when
+		CompletableFuture<Void> confirmed = publisher.publishAsync(context(), message());
+		int chunks = confirms.getOutstanding();
+		confirms.handleAck(chunks - 1, true);
+
+		// then
+		assertTrue(chunks > 1);
+		assertFalse(confirmed.isDone());
+		confirms.handleAck(chunks, false);
+		assertTrue(confirmed.isDone());
+
+	}
+
+	@Test
+	public void publish_shouldSendAMessageWithinTheChunkSizeWhole() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "output");
+		publisher.setChunker(new Chunker());
+
+		// when
+		byte[] published = publisher.publish(context(), message());
+
+		// then
+		verify(channel, times(1)).basicPublish(eq(""), eq("output"), any(), eq(published));
+
+	}
+
+	private static Context context() {
+		Context context = mock(Context.class);
+		when(context.getSchema()).thenReturn(SCHEMA);
+		when(context.getDataBuffer()).thenReturn(ByteBuffer.wrap("test".getBytes()));
+		return context;
+	}
+
+	private static GenericContainer message() {
+		GenericContainer message = mock(GenericContainer.class);
+		when(message.getSchema()).thenReturn(SCHEMA);
+		return message;
+	}
+
 }
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class DeflateCodecTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForAnInvalidLevel() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new DeflateCodec(10);
+
+	}
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForAnInvalidMaximumDecodedLength() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+		exception.expectMessage("Maximum decoded length must be between 1 and");
+
+		// when
+		new DeflateCodec(1, 0);
+
+	}
+
+	@Test
+	public void encode_shouldRoundTripCompressibleData() throws Exception {
+
+		// given
+		DeflateCodec codec = new DeflateCodec();
+		byte[] data = new byte[100000];
+		Arrays.fill(data, (byte) 'a');
+
+		// when
+		byte[] encoded = codec.encode(data);
+		byte[] decoded = codec.decode(encoded);
+
+		// then
+		assertTrue(encoded.length < data.length / 100);
+		assertArrayEquals(data, decoded);
+		assertEquals(DeflateCodec.NAME, codec.getName());
+		assertEquals(1, codec.getLevel());
+		assertEquals(DeflateCodec.DEFAULT_MAX_DECODED_LENGTH, codec.getMaxDecodedLength());
+
+	}
+
+	@Test
+	public void encode_shouldRoundTripIncompressibleData() throws Exception {
+
+		// given
+		DeflateCodec codec = new DeflateCodec(9);
+		byte[] data = new byte[10000];
+		new Random(1).nextBytes(data);
+
+		// when
+		byte[] decoded = codec.decode(codec.encode(data));
+
+		// then
+		assertArrayEquals(data, decoded);
+
+	}
+
+	@Test
+	public void decode_shouldThrowAnIOExceptionForATruncatedStream() throws Exception {
+
+		// given
+		DeflateCodec codec = new DeflateCodec();
+		byte[] encoded = codec.encode(new byte[1000]);
+
+		// expect
+		exception.expect(IOException.class);
+		exception.expectMessage("Truncated deflate stream");
+
+		// when
+		codec.decode(Arrays.copyOf(encoded, encoded.length - 4));
+
+	}
+
+	@Test
+	public void decode_shouldThrowAnIOExceptionForAnInvalidStream() throws Exception {
+
+		// expect
+		exception.expect(IOException.class);
+		exception.expectMessage("Invalid deflate stream");
+
+		// when
+		new DeflateCodec().decode("not deflated".getBytes());
+
+	}
+
+	@Test
+	public void decode_shouldDecodeABodyOfTheMaximumDecodedLength() throws Exception {
+
+		// given
+		DeflateCodec codec = new DeflateCodec(1, 1000);
+		byte[] data = new byte[1000];
+		Arrays.fill(data, (byte) 'a');
+
+		// when
+		byte[] decoded = codec.decode(codec.encode(data));
+
+		// then
+		assertArrayEquals(data, decoded);
+		assertEquals(1000, codec.getMaxDecodedLength());
+
+	}
+
+	@Test
+	public void decode_shouldThrowAnIOExceptionIfTheStreamInflatesBeyondTheMaximumDecodedLength() throws Exception {
+
+		// given
+		DeflateCodec codec = new DeflateCodec(1, 1000);
+		byte[] encoded = codec.encode(new byte[1000000]);
+
+		// expect
+		exception.expect(IOException.class);
+		exception.expectMessage("Deflate stream inflates to more than the maximum of 1000 bytes");
+
+		// when
+		codec.decode(encoded);
+
+	}
+
+}
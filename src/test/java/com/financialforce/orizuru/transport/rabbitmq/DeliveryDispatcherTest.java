@@ -0,0 +1,284 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IOrderingKeyExtractor;
+
+public class DeliveryDispatcherTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForInvalidLimits() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new DeliveryDispatcher(mock(Executor.class), 1, 0, null);
+
+	}
+
+	@Test
+	public void dispatch_shouldRunDeliveriesConcurrently() throws Exception {
+
+		// given
+		DeliveryDispatcher dispatcher = new DeliveryDispatcher(4, 4);
+		CountDownLatch started = new CountDownLatch(4);
+		CountDownLatch release = new CountDownLatch(1);
+
+		// when
+		for (int i = 0; i < 4; i++) {
+			dispatcher.dispatch(envelope("key"), null, () -> {
+				started.countDown();
+				await(release);
+			});
+		}
+
+		// then
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		assertEquals(4, dispatcher.getInFlight());
+		assertEquals(4, dispatcher.getParallelism());
+		release.countDown();
+		dispatcher.close();
+
+	}
+
+	@Test
+	public void dispatch_shouldKeepDeliveriesWithTheSameKeyInOrder() throws Exception {
+
+		// given
+		DeliveryDispatcher dispatcher = new DeliveryDispatcher(8, 1000, DeliveryDispatcher.byRoutingKey());
+		List<Integer> first = Collections.synchronizedList(new ArrayList<Integer>());
+		List<Integer> second = Collections.synchronizedList(new ArrayList<Integer>());
+		CountDownLatch done = new CountDownLatch(200);
+
+		// when
+		for (int i = 0; i < 100; i++) {
+			int sequence = i;
+			dispatcher.dispatch(envelope("first"), null, () -> {
+				first.add(sequence);
+				done.countDown();
+			});
+			dispatcher.dispatch(envelope("second"), null, () -> {
+				second.add(sequence);
+				done.countDown();
+			});
+		}
+
+		// then
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 100; i++) {
+			assertEquals(Integer.valueOf(i), first.get(i));
+			assertEquals(Integer.valueOf(i), second.get(i));
+		}
+		dispatcher.close();
+
+	}
+
+	@Test
+	public void dispatch_shouldBlockWhenTheMaximumInFlightIsReached() throws Exception {
+
+		// given
+		DeliveryDispatcher dispatcher = new DeliveryDispatcher(2, 1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger completed = new AtomicInteger();
+		dispatcher.dispatch(envelope("key"), null, () -> {
+			await(release);
+			completed.incrementAndGet();
+		});
+
+		Thread producer = new Thread(() -> {
+			try {
+				dispatcher.dispatch(envelope("key"), null, completed::incrementAndGet);
+			} catch (IOException ex) {
+				throw new IllegalStateException(ex);
+			}
+		});
+
+		// when
+		producer.start();
+		producer.join(100);
+
+		// then
+		assertTrue(producer.isAlive());
+		release.countDown();
+		producer.join(5000);
+		dispatcher.close();
+
+	}
+
+	@Test
+	public void dispatch_shouldThrowAnIOExceptionIfInterrupted() throws Exception {
+
+		// given
+		DeliveryDispatcher dispatcher = new DeliveryDispatcher(mock(Executor.class), 1, 1, null);
+		dispatcher.dispatch(envelope("key"), null, () -> { });
+		Thread.currentThread().interrupt();
+
+		// expect
+		exception.expect(IOException.class);
+		exception.expectMessage("Interrupted dispatching delivery");
+
+		// when
+		try {
+			dispatcher.dispatch(envelope("key"), null, () -> { });
+		} finally {
+			Thread.interrupted();
+		}
+
+	}
+
+	@Test
+	public void dispatch_shouldRejectADeliveryTheExecutorRefuses() throws Exception {
+
+		// given
+		Executor executor = mock(Executor.class);
+		doThrow(IllegalStateException.class).when(executor).execute(any());
+		DeliveryDispatcher dispatcher = new DeliveryDispatcher(executor, 1, 1, null);
+		AtomicInteger handled = new AtomicInteger();
+		AtomicInteger rejected = new AtomicInteger();
+
+		// when
+		dispatcher.dispatch(envelope("key"), null, handled::incrementAndGet, rejected::incrementAndGet);
+		dispatcher.dispatch(envelope("key"), null, handled::incrementAndGet);
+
+		// then
+		assertEquals(0, handled.get());
+		assertEquals(1, rejected.get());
+		assertEquals(0, dispatcher.getInFlight());
+
+	}
+
+	@Test
+	public void dispatch_shouldRejectEveryDeliveryQueuedInALaneIfTheExecutorRefusesIt() throws Exception {
+
+		// given
+		List<Runnable> accepted = new ArrayList<Runnable>();
+		Executor executor = command -> {
+			if (!accepted.isEmpty()) {
+				throw new RejectedExecutionException();
+			}
+			accepted.add(command);
+		};
+		DeliveryDispatcher dispatcher = new DeliveryDispatcher(executor, 1, 3, DeliveryDispatcher.byRoutingKey());
+		AtomicInteger handled = new AtomicInteger();
+		AtomicInteger rejected = new AtomicInteger();
+		for (int i = 0; i < 3; i++) {
+			dispatcher.dispatch(envelope("key"), null, handled::incrementAndGet, rejected::incrementAndGet);
+		}
+
+		// when
+		accepted.get(0).run();
+
+		// then
+		assertEquals(1, handled.get());
+		assertEquals(2, rejected.get());
+		assertEquals(0, dispatcher.getInFlight());
+
+	}
+
+	@Test
+	public void dispatch_shouldKeepALaneRunningAfterADeliveryFails() throws Exception {
+
+		// given
+		Executor executor = command -> {
+			try {
+				command.run();
+			} catch (RuntimeException expected) {
+				// a failing delivery must not stall its lane
+			}
+		};
+		DeliveryDispatcher dispatcher = new DeliveryDispatcher(executor, 1, 2, DeliveryDispatcher.byRoutingKey());
+		AtomicInteger handled = new AtomicInteger();
+
+		// when
+		dispatcher.dispatch(envelope("key"), null, () -> {
+			throw new IllegalStateException();
+		});
+		dispatcher.dispatch(envelope("key"), null, handled::incrementAndGet);
+
+		// then
+		assertEquals(1, handled.get());
+		assertEquals(0, dispatcher.getInFlight());
+
+	}
+
+	@Test
+	public void byHeader_shouldReturnTheHeaderValue() {
+
+		// given
+		IOrderingKeyExtractor extractor = DeliveryDispatcher.byHeader("account");
+		AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+			.headers(Collections.<String, Object>singletonMap("account", "a1"))
+			.build();
+
+		// when/then
+		assertEquals("a1", extractor.getKey(envelope("key"), properties));
+		assertNull(extractor.getKey(envelope("key"), null));
+		assertNull(extractor.getKey(envelope("key"), new AMQP.BasicProperties()));
+
+	}
+
+	private static Envelope envelope(String routingKey) {
+		return new Envelope(1, false, "", routingKey);
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,1086 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.AMQImpl;
+
+/**
+ * In-memory RabbitMQ broker for integration, load and failure-injection tests that run without a live broker.
+ * <p>
+ * {@link #getConnectionFactory()} returns a factory whose connections and channels are backed by the broker, so the
+ * transport can be used unchanged through {@link MessageQueue}. Like {@code StubChannel} in the benchmarks, the
+ * connections and channels are dynamic proxies; methods the transport does not use throw an
+ * {@link UnsupportedOperationException}.
+ * <p>
+ * The broker supports the default, direct, fanout, topic and consistent hash exchanges, queues, per-consumer prefetch,
+ * automatic and manual acknowledgement, rejection with and without requeue, publisher confirms, and redelivery of
+ * unacknowledged messages when their channel closes. As in the Java client, each channel delivers to its consumers in
+ * order on a thread of its own, and acknowledging an unknown delivery tag closes the channel. Publishes are confirmed
+ * before {@code basicPublish} returns. Message TTLs, dead lettering and transactions are not supported, and exceptions
+ * thrown by consumers are counted rather than closing the channel.
+ * <p>
+ * Failures are injected with {@link #setRejectPublishes(boolean)}, {@link #setRefuseConnections(boolean)},
+ * {@link #closeConnections()} and {@link #deleteQueue(String)}.
+ */
+public class FakeBroker {
+
+	private final Map<String, FakeQueue> queues = new HashMap<String, FakeQueue>();
+
+	private final Map<String, Exchange> exchanges = new HashMap<String, Exchange>();
+
+	private final List<FakeConnection> connections = new CopyOnWriteArrayList<FakeConnection>();
+
+	private final AtomicInteger ids = new AtomicInteger();
+
+	private long published;
+
+	private long acknowledged;
+
+	private long redelivered;
+
+	private long discarded;
+
+	private long consumerErrors;
+
+	private volatile boolean rejectPublishes;
+
+	private volatile boolean refuseConnections;
+
+	/**
+	 * Returns a connection factory that connects to this broker.
+	 *
+	 * @return The connection factory.
+	 */
+	public ConnectionFactory getConnectionFactory() {
+		return new ConnectionFactory() {
+
+			@Override
+			public void setUri(String uri) {
+				// there is nothing to connect to
+			}
+
+			@Override
+			public Connection newConnection() throws IOException {
+				return connect();
+			}
+
+		};
+	}
+
+	/**
+	 * Opens a connection to this broker.
+	 *
+	 * @return The connection.
+	 * @throws IOException Exception thrown if connections are being refused.
+	 */
+	public Connection connect() throws IOException {
+
+		if (refuseConnections) {
+			throw new IOException("Connection refused");
+		}
+
+		FakeConnection connection = new FakeConnection();
+		connections.add(connection);
+		return connection.proxy;
+
+	}
+
+	/**
+	 * Closes every connection as if the broker had failed. Unacknowledged messages are requeued for redelivery.
+	 */
+	public void closeConnections() {
+		for (FakeConnection connection : connections) {
+			connection.shutdown(new ShutdownSignalException(true, false, null, connection.proxy));
+		}
+	}
+
+	/**
+	 * Deletes a queue, cancelling its consumers as the broker does.
+	 *
+	 * @param queueName The queue name.
+	 * @return The number of messages that were ready in the queue.
+	 */
+	public int deleteQueue(String queueName) {
+
+		List<Subscription> cancelled;
+		int messages;
+
+		synchronized (this) {
+
+			FakeQueue queue = queues.remove(queueName);
+			if (queue == null) {
+				return 0;
+			}
+
+			cancelled = new ArrayList<Subscription>(queue.consumers);
+			for (Subscription subscription : cancelled) {
+				subscription.channel.subscriptions.remove(subscription.tag);
+			}
+
+			messages = queue.ready.size();
+
+		}
+
+		for (Subscription subscription : cancelled) {
+			subscription.channel.execute(() -> subscription.consumer.handleCancel(subscription.tag));
+		}
+
+		return messages;
+
+	}
+
+	/**
+	 * Waits until a queue has no messages ready or unacknowledged.
+	 *
+	 * @param queueName The queue name.
+	 * @param timeout The maximum time to wait.
+	 * @param unit The unit of the timeout.
+	 * @return True if the queue was settled before the timeout.
+	 * @throws InterruptedException Exception thrown if interrupted while waiting.
+	 */
+	public synchronized boolean awaitSettled(String queueName, long timeout, TimeUnit unit) throws InterruptedException {
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		while (getMessageCount(queueName) + getUnacknowledgedCount(queueName) > 0) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+
+		return true;
+
+	}
+
+	public synchronized int getMessageCount(String queueName) {
+		FakeQueue queue = queues.get(queueName);
+		return queue == null ? 0 : queue.ready.size();
+	}
+
+	public synchronized int getUnacknowledgedCount(String queueName) {
+
+		int unacknowledged = 0;
+		for (FakeConnection connection : connections) {
+			for (FakeChannel channel : connection.channels) {
+				for (Unacked delivery : channel.unacked.values()) {
+					if (delivery.queue.name.equals(queueName)) {
+						unacknowledged++;
+					}
+				}
+			}
+		}
+
+		return unacknowledged;
+
+	}
+
+	public synchronized int getConsumerCount(String queueName) {
+		FakeQueue queue = queues.get(queueName);
+		return queue == null ? 0 : queue.consumers.size();
+	}
+
+	public synchronized long getPublished() {
+		return published;
+	}
+
+	public synchronized long getAcknowledged() {
+		return acknowledged;
+	}
+
+	public synchronized long getRedelivered() {
+		return redelivered;
+	}
+
+	public synchronized long getDiscarded() {
+		return discarded;
+	}
+
+	public synchronized long getConsumerErrors() {
+		return consumerErrors;
+	}
+
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * Sets whether publishes are dropped and negatively confirmed, as when the broker is out of resources.
+	 *
+	 * @param rejectPublishes True to reject publishes.
+	 */
+	public void setRejectPublishes(boolean rejectPublishes) {
+		this.rejectPublishes = rejectPublishes;
+	}
+
+	/**
+	 * Sets whether new connections are refused, as when the broker is down.
+	 *
+	 * @param refuseConnections True to refuse connections.
+	 */
+	public void setRefuseConnections(boolean refuseConnections) {
+		this.refuseConnections = refuseConnections;
+	}
+
+	/**
+	 * Returns the queues a message is routed to; the caller must hold the broker lock.
+	 */
+	private List<FakeQueue> route(String exchangeName, String routingKey) throws IOException {
+
+		List<FakeQueue> routed = new ArrayList<FakeQueue>();
+
+		if (exchangeName.isEmpty()) {
+			FakeQueue queue = queues.get(routingKey);
+			if (queue != null) {
+				routed.add(queue);
+			}
+			return routed;
+		}
+
+		Exchange exchange = exchanges.get(exchangeName);
+		if (exchange == null) {
+			throw new IOException("NOT_FOUND - no exchange '" + exchangeName + "'");
+		}
+
+		if (ShardedQueue.EXCHANGE_TYPE.equals(exchange.type)) {
+			if (!exchange.bindings.isEmpty()) {
+				Binding binding = exchange.bindings.get(Math.floorMod(routingKey.hashCode(), exchange.bindings.size()));
+				if (queues.containsKey(binding.queue)) {
+					routed.add(queues.get(binding.queue));
+				}
+			}
+			return routed;
+		}
+
+		for (Binding binding : exchange.bindings) {
+			if (exchange.matches(binding.key, routingKey) && queues.containsKey(binding.queue)) {
+				routed.add(queues.get(binding.queue));
+			}
+		}
+
+		return routed;
+
+	}
+
+	/**
+	 * Delivers ready messages to consumers with room in their prefetch window; the caller must hold the broker lock.
+	 */
+	private void dispatch(FakeQueue queue) {
+
+		while (!queue.ready.isEmpty()) {
+
+			Subscription subscription = queue.next();
+			if (subscription == null) {
+				return;
+			}
+
+			Message message = queue.ready.poll();
+			FakeChannel channel = subscription.channel;
+			long deliveryTag = channel.nextDeliveryTag++;
+
+			if (!subscription.autoAck) {
+				channel.unacked.put(deliveryTag, new Unacked(subscription, queue, message));
+				subscription.unacked++;
+			}
+
+			Envelope envelope = new Envelope(deliveryTag, message.redelivered, message.exchange, message.routingKey);
+			channel.execute(() -> subscription.consumer.handleDelivery(subscription.tag, envelope, message.properties, message.body));
+
+		}
+
+		notifyAll();
+
+	}
+
+	/**
+	 * Settles unacknowledged deliveries, requeuing them if asked; the caller must hold the broker lock.
+	 */
+	private void settle(List<Unacked> deliveries, boolean ack, boolean requeue) {
+
+		for (int i = deliveries.size() - 1; i >= 0; i--) {
+
+			Unacked delivery = deliveries.get(i);
+			delivery.subscription.unacked--;
+
+			if (ack) {
+				acknowledged++;
+			} else if (requeue && queues.get(delivery.queue.name) == delivery.queue) {
+				delivery.queue.ready.addFirst(delivery.message.redeliver());
+				redelivered++;
+			} else {
+				discarded++;
+			}
+
+		}
+
+		for (Unacked delivery : deliveries) {
+			dispatch(delivery.queue);
+		}
+
+		notifyAll();
+
+	}
+
+	private static UnsupportedOperationException unsupported(Method method) {
+		return new UnsupportedOperationException("FakeBroker does not support " + method.getName());
+	}
+
+	/**
+	 * A connection to the broker.
+	 */
+	private final class FakeConnection implements InvocationHandler {
+
+		private final Connection proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, this);
+
+		private final List<FakeChannel> channels = new CopyOnWriteArrayList<FakeChannel>();
+
+		private final List<ShutdownListener> listeners = new CopyOnWriteArrayList<ShutdownListener>();
+
+		private final AtomicInteger channelNumbers = new AtomicInteger();
+
+		private volatile ShutdownSignalException closeReason;
+
+		/* (non-Javadoc)
+		 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+		 */
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+			switch (method.getName()) {
+
+				case "createChannel":
+					if (closeReason != null) {
+						throw new AlreadyClosedException(closeReason);
+					}
+					FakeChannel channel = new FakeChannel(this, channelNumbers.incrementAndGet());
+					channels.add(channel);
+					return channel.proxy;
+
+				case "isOpen":
+					return closeReason == null;
+
+				case "getCloseReason":
+					return closeReason;
+
+				case "close":
+				case "abort":
+					shutdown(new ShutdownSignalException(true, true, null, proxy));
+					return null;
+
+				case "addShutdownListener":
+					listeners.add((ShutdownListener) args[0]);
+					return null;
+
+				case "removeShutdownListener":
+					listeners.remove(args[0]);
+					return null;
+
+				case "equals":
+					return proxy == args[0];
+
+				case "hashCode":
+					return System.identityHashCode(proxy);
+
+				case "toString":
+					return "FakeConnection";
+
+				default:
+					throw unsupported(method);
+
+			}
+
+		}
+
+		void shutdown(ShutdownSignalException cause) {
+
+			if (closeReason != null) {
+				return;
+			}
+
+			closeReason = cause;
+
+			for (FakeChannel channel : channels) {
+				channel.shutdown(cause);
+			}
+
+			connections.remove(this);
+
+			for (ShutdownListener listener : listeners) {
+				listener.shutdownCompleted(cause);
+			}
+
+		}
+
+	}
+
+	/**
+	 * A channel on a connection to the broker.
+	 */
+	private final class FakeChannel implements InvocationHandler {
+
+		private final Channel proxy = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class }, this);
+
+		private final FakeConnection connection;
+
+		private final int number;
+
+		private final ExecutorService deliveries;
+
+		private final Map<Long, Unacked> unacked = new LinkedHashMap<Long, Unacked>();
+
+		private final Map<String, Subscription> subscriptions = new LinkedHashMap<String, Subscription>();
+
+		private final List<ConfirmListener> confirmListeners = new CopyOnWriteArrayList<ConfirmListener>();
+
+		private final List<ShutdownListener> shutdownListeners = new CopyOnWriteArrayList<ShutdownListener>();
+
+		private long nextDeliveryTag = 1;
+
+		private long nextPublishSeqNo;
+
+		private int prefetchCount;
+
+		private volatile ShutdownSignalException closeReason;
+
+		FakeChannel(FakeConnection connection, int number) {
+			this.connection = connection;
+			this.number = number;
+			this.deliveries = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "fake-broker-channel-" + number);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+		 */
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+			switch (method.getName()) {
+
+				case "isOpen":
+					return closeReason == null;
+
+				case "getCloseReason":
+					return closeReason;
+
+				case "getConnection":
+					return connection.proxy;
+
+				case "getChannelNumber":
+					return number;
+
+				case "close":
+					ensureOpen();
+					shutdown(new ShutdownSignalException(false, true, null, proxy));
+					return null;
+
+				case "abort":
+					shutdown(new ShutdownSignalException(false, true, null, proxy));
+					return null;
+
+				case "addShutdownListener":
+					shutdownListeners.add((ShutdownListener) args[0]);
+					return null;
+
+				case "removeShutdownListener":
+					shutdownListeners.remove(args[0]);
+					return null;
+
+				case "addConfirmListener":
+					confirmListeners.add((ConfirmListener) args[0]);
+					return null;
+
+				case "equals":
+					return proxy == args[0];
+
+				case "hashCode":
+					return System.identityHashCode(proxy);
+
+				case "toString":
+					return "FakeChannel(" + number + ")";
+
+				default:
+					ensureOpen();
+					return invokeOpen(method, args);
+
+			}
+
+		}
+
+		private Object invokeOpen(Method method, Object[] args) throws IOException {
+
+			switch (method.getName()) {
+
+				case "exchangeDeclare":
+					return exchangeDeclare((String) args[0], args[1].toString());
+
+				case "queueDeclare":
+					return queueDeclare(args == null ? "amq.gen-" + ids.incrementAndGet() : (String) args[0]);
+
+				case "queueDeclarePassive":
+					return queueDeclarePassive((String) args[0]);
+
+				case "queueBind":
+					return queueBind((String) args[0], (String) args[1], (String) args[2]);
+
+				case "queuePurge":
+					return queuePurge((String) args[0]);
+
+				case "basicQos":
+					prefetchCount = (Integer) args[args.length == 3 ? 1 : 0];
+					return null;
+
+				case "confirmSelect":
+					synchronized (FakeBroker.this) {
+						nextPublishSeqNo = Math.max(nextPublishSeqNo, 1);
+					}
+					return new AMQImpl.Confirm.SelectOk();
+
+				case "getNextPublishSeqNo":
+					synchronized (FakeBroker.this) {
+						return nextPublishSeqNo;
+					}
+
+				case "waitForConfirms":
+				case "waitForConfirmsOrDie":
+					return method.getReturnType() == boolean.class ? true : null;
+
+				case "basicPublish":
+					basicPublish((String) args[0], (String) args[1], (AMQP.BasicProperties) args[args.length - 2], (byte[]) args[args.length - 1]);
+					return null;
+
+				case "basicConsume":
+					return basicConsume(args);
+
+				case "basicCancel":
+					basicCancel((String) args[0]);
+					return null;
+
+				case "basicGet":
+					return basicGet((String) args[0], (Boolean) args[1]);
+
+				case "basicAck":
+					settle((Long) args[0], (Boolean) args[1], true, false);
+					return null;
+
+				case "basicNack":
+					settle((Long) args[0], (Boolean) args[1], false, (Boolean) args[2]);
+					return null;
+
+				case "basicReject":
+					settle((Long) args[0], false, false, (Boolean) args[1]);
+					return null;
+
+				default:
+					throw unsupported(method);
+
+			}
+
+		}
+
+		private AMQP.Exchange.DeclareOk exchangeDeclare(String name, String type) {
+			synchronized (FakeBroker.this) {
+				if (!exchanges.containsKey(name)) {
+					exchanges.put(name, new Exchange(type));
+				}
+			}
+			return new AMQImpl.Exchange.DeclareOk();
+		}
+
+		private AMQP.Queue.DeclareOk queueDeclare(String name) {
+			synchronized (FakeBroker.this) {
+				FakeQueue queue = queues.get(name);
+				if (queue == null) {
+					queue = new FakeQueue(name);
+					queues.put(name, queue);
+				}
+				return new AMQImpl.Queue.DeclareOk(name, queue.ready.size(), queue.consumers.size());
+			}
+		}
+
+		private AMQP.Queue.DeclareOk queueDeclarePassive(String name) throws IOException {
+
+			synchronized (FakeBroker.this) {
+				FakeQueue queue = queues.get(name);
+				if (queue != null) {
+					return new AMQImpl.Queue.DeclareOk(name, queue.ready.size(), queue.consumers.size());
+				}
+			}
+
+			shutdown(new ShutdownSignalException(false, false, null, proxy));
+			throw new IOException("NOT_FOUND - no queue '" + name + "'");
+
+		}
+
+		private AMQP.Queue.BindOk queueBind(String queueName, String exchangeName, String routingKey) throws IOException {
+
+			synchronized (FakeBroker.this) {
+
+				Exchange exchange = exchanges.get(exchangeName);
+				if (exchange == null || !queues.containsKey(queueName)) {
+					throw new IOException("NOT_FOUND - cannot bind '" + queueName + "' to '" + exchangeName + "'");
+				}
+
+				exchange.bindings.add(new Binding(queueName, routingKey));
+
+			}
+
+			return new AMQImpl.Queue.BindOk();
+
+		}
+
+		private AMQP.Queue.PurgeOk queuePurge(String name) {
+			synchronized (FakeBroker.this) {
+				FakeQueue queue = queues.get(name);
+				int purged = queue == null ? 0 : queue.ready.size();
+				if (queue != null) {
+					queue.ready.clear();
+				}
+				return new AMQImpl.Queue.PurgeOk(purged);
+			}
+		}
+
+		private void basicPublish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+
+			long seqNo;
+			boolean rejected = rejectPublishes;
+
+			synchronized (FakeBroker.this) {
+
+				seqNo = nextPublishSeqNo;
+				if (seqNo > 0) {
+					nextPublishSeqNo++;
+				}
+
+				List<FakeQueue> routed = route(exchange, routingKey);
+				published++;
+
+				for (FakeQueue queue : rejected ? new ArrayList<FakeQueue>() : routed) {
+					queue.ready.add(new Message(exchange, routingKey, properties, body, false));
+					dispatch(queue);
+				}
+
+			}
+
+			for (ConfirmListener listener : seqNo > 0 ? confirmListeners : new ArrayList<ConfirmListener>()) {
+				if (rejected) {
+					listener.handleNack(seqNo, false);
+				} else {
+					listener.handleAck(seqNo, false);
+				}
+			}
+
+		}
+
+		private String basicConsume(Object[] args) throws IOException {
+
+			Consumer consumer = null;
+			for (Object arg : args) {
+				if (arg instanceof Consumer) {
+					consumer = (Consumer) arg;
+				}
+			}
+
+			if (consumer == null) {
+				throw new UnsupportedOperationException("FakeBroker only supports basicConsume with a Consumer");
+			}
+
+			boolean autoAck = args.length > 2 && (Boolean) args[1];
+			String tag = args.length > 3 && args[2] instanceof String && !((String) args[2]).isEmpty() ? (String) args[2] : "amq.ctag-" + ids.incrementAndGet();
+
+			final Consumer registered = consumer;
+
+			synchronized (FakeBroker.this) {
+
+				FakeQueue queue = queues.get(args[0]);
+				if (queue == null) {
+					throw new IOException("NOT_FOUND - no queue '" + args[0] + "'");
+				}
+
+				if (subscriptions.containsKey(tag)) {
+					throw new IOException("NOT_ALLOWED - attempt to reuse consumer tag '" + tag + "'");
+				}
+
+				Subscription subscription = new Subscription(this, queue, tag, registered, autoAck, prefetchCount);
+				subscriptions.put(tag, subscription);
+				queue.consumers.add(subscription);
+
+				execute(() -> registered.handleConsumeOk(tag));
+				dispatch(queue);
+
+			}
+
+			return tag;
+
+		}
+
+		private void basicCancel(String tag) throws IOException {
+
+			Subscription subscription;
+			synchronized (FakeBroker.this) {
+				subscription = subscriptions.remove(tag);
+				if (subscription == null) {
+					throw new IOException("Unknown consumerTag " + tag);
+				}
+				subscription.queue.consumers.remove(subscription);
+			}
+
+			execute(() -> subscription.consumer.handleCancelOk(tag));
+
+		}
+
+		private GetResponse basicGet(String queueName, boolean autoAck) throws IOException {
+
+			synchronized (FakeBroker.this) {
+
+				FakeQueue queue = queues.get(queueName);
+				if (queue == null) {
+					throw new IOException("NOT_FOUND - no queue '" + queueName + "'");
+				}
+
+				Message message = queue.ready.poll();
+				if (message == null) {
+					return null;
+				}
+
+				long deliveryTag = nextDeliveryTag++;
+				if (!autoAck) {
+					unacked.put(deliveryTag, new Unacked(new Subscription(this, queue, null, null, false, 0), queue, message));
+				}
+
+				FakeBroker.this.notifyAll();
+
+				Envelope envelope = new Envelope(deliveryTag, message.redelivered, message.exchange, message.routingKey);
+				return new GetResponse(envelope, message.properties, message.body, queue.ready.size());
+
+			}
+
+		}
+
+		private void settle(long deliveryTag, boolean multiple, boolean ack, boolean requeue) {
+
+			synchronized (FakeBroker.this) {
+
+				if (!unacked.containsKey(deliveryTag)) {
+					ShutdownSignalException cause = new ShutdownSignalException(false, false, null, proxy);
+					execute(() -> shutdown(cause));
+					return;
+				}
+
+				List<Unacked> deliveries = new ArrayList<Unacked>();
+				Iterator<Map.Entry<Long, Unacked>> entries = unacked.entrySet().iterator();
+				while (entries.hasNext()) {
+					Map.Entry<Long, Unacked> entry = entries.next();
+					if (entry.getKey() == deliveryTag || (multiple && entry.getKey() < deliveryTag)) {
+						deliveries.add(entry.getValue());
+						entries.remove();
+					}
+				}
+
+				FakeBroker.this.settle(deliveries, ack, requeue);
+
+			}
+
+		}
+
+		void shutdown(ShutdownSignalException cause) {
+
+			List<Subscription> cancelled;
+
+			synchronized (FakeBroker.this) {
+
+				if (closeReason != null) {
+					return;
+				}
+
+				closeReason = cause;
+				cancelled = new ArrayList<Subscription>(subscriptions.values());
+
+				for (Subscription subscription : cancelled) {
+					subscription.queue.consumers.remove(subscription);
+				}
+
+				subscriptions.clear();
+
+				List<Unacked> requeued = new ArrayList<Unacked>(unacked.values());
+				unacked.clear();
+				FakeBroker.this.settle(requeued, false, true);
+
+				connection.channels.remove(this);
+
+			}
+
+			for (Subscription subscription : cancelled) {
+				deliveries.execute(() -> subscription.consumer.handleShutdownSignal(subscription.tag, cause));
+			}
+
+			deliveries.execute(() -> {
+				for (ShutdownListener listener : shutdownListeners) {
+					listener.shutdownCompleted(cause);
+				}
+			});
+
+			deliveries.shutdown();
+
+		}
+
+		void execute(Callback callback) {
+			try {
+				deliveries.execute(() -> {
+					try {
+						callback.run();
+					} catch (Exception ex) {
+						synchronized (FakeBroker.this) {
+							consumerErrors++;
+						}
+					}
+				});
+			} catch (RuntimeException expected) {
+				// the channel has been closed
+			}
+		}
+
+		private void ensureOpen() {
+			if (closeReason != null) {
+				throw new AlreadyClosedException(closeReason);
+			}
+		}
+
+	}
+
+	/**
+	 * A consumer callback run on a channel's delivery thread.
+	 */
+	private interface Callback {
+
+		void run() throws Exception;
+
+	}
+
+	/**
+	 * A queue and the consumers registered on it.
+	 */
+	private static final class FakeQueue {
+
+		private final String name;
+
+		private final Deque<Message> ready = new ArrayDeque<Message>();
+
+		private final List<Subscription> consumers = new ArrayList<Subscription>();
+
+		private int next;
+
+		FakeQueue(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Returns the next consumer, round-robin, that has room in its prefetch window.
+		 */
+		Subscription next() {
+
+			for (int i = 0; i < consumers.size(); i++) {
+				Subscription subscription = consumers.get(Math.floorMod(next++, consumers.size()));
+				if (subscription.hasCapacity()) {
+					return subscription;
+				}
+			}
+
+			return null;
+
+		}
+
+	}
+
+	/**
+	 * An exchange and its bindings.
+	 */
+	private static final class Exchange {
+
+		private final String type;
+
+		private final List<Binding> bindings = new ArrayList<Binding>();
+
+		Exchange(String type) {
+			this.type = type;
+		}
+
+		boolean matches(String bindingKey, String routingKey) {
+
+			switch (type) {
+
+				case "fanout":
+					return true;
+
+				case "topic":
+					return routingKey.matches(bindingKey
+						.replace(".", "\\.")
+						.replace("*", "[^.]+")
+						.replace("\\.#", "(\\..*)?")
+						.replace("#", ".*"));
+
+				default:
+					return bindingKey.equals(routingKey);
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * A binding of a queue to an exchange.
+	 */
+	private static final class Binding {
+
+		private final String queue;
+
+		private final String key;
+
+		Binding(String queue, String key) {
+			this.queue = queue;
+			this.key = key;
+		}
+
+	}
+
+	/**
+	 * A consumer registered on a queue.
+	 */
+	private static final class Subscription {
+
+		private final FakeChannel channel;
+
+		private final FakeQueue queue;
+
+		private final String tag;
+
+		private final Consumer consumer;
+
+		private final boolean autoAck;
+
+		private final int prefetchCount;
+
+		private int unacked;
+
+		Subscription(FakeChannel channel, FakeQueue queue, String tag, Consumer consumer, boolean autoAck, int prefetchCount) {
+			this.channel = channel;
+			this.queue = queue;
+			this.tag = tag;
+			this.consumer = consumer;
+			this.autoAck = autoAck;
+			this.prefetchCount = prefetchCount;
+		}
+
+		boolean hasCapacity() {
+			return prefetchCount == 0 || unacked < prefetchCount;
+		}
+
+	}
+
+	/**
+	 * A message in a queue.
+	 */
+	private static final class Message {
+
+		private final String exchange;
+
+		private final String routingKey;
+
+		private final AMQP.BasicProperties properties;
+
+		private final byte[] body;
+
+		private final boolean redelivered;
+
+		Message(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body, boolean redelivered) {
+			this.exchange = exchange;
+			this.routingKey = routingKey;
+			this.properties = properties;
+			this.body = body;
+			this.redelivered = redelivered;
+		}
+
+		Message redeliver() {
+			return new Message(exchange, routingKey, properties, body, true);
+		}
+
+	}
+
+	/**
+	 * A delivery awaiting acknowledgement.
+	 */
+	private static final class Unacked {
+
+		private final Subscription subscription;
+
+		private final FakeQueue queue;
+
+		private final Message message;
+
+		Unacked(Subscription subscription, FakeQueue queue, Message message) {
+			this.subscription = subscription;
+			this.queue = queue;
+			this.message = message;
+		}
+
+	}
+
+}
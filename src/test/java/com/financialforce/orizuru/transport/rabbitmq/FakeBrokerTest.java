@@ -0,0 +1,429 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.GetResponse;
+
+import org.apache.avro.generic.GenericContainer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.financialforce.orizuru.exception.OrizuruException;
+import com.financialforce.orizuru.exception.consumer.handler.HandleMessageException;
+import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IAcknowledger;
+
+public class FakeBrokerTest {
+
+	private static final String QUEUE = "input";
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	private FakeBroker broker;
+
+	private MessageQueue<GenericContainer, GenericContainer> messageQueue;
+
+	@Before
+	public void setUp() throws Exception {
+		broker = new FakeBroker();
+		messageQueue = new MessageQueue<GenericContainer, GenericContainer>(broker.getConnectionFactory(), 1, 4, new RecoveryBackoff(1, 1));
+		declare(QUEUE);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		messageQueue.close();
+	}
+
+	@Test
+	public void consume_shouldDeliverEveryPublishedMessageAndAcknowledgeIt() throws Exception {
+
+		// given
+		Channel channel = messageQueue.createChannel();
+		RecordingConsumer consumer = new RecordingConsumer(channel, new AckCoalescer(channel, 16, 1));
+		messageQueue.consume("", channel, consumer, 32);
+
+		// when
+		for (int i = 0; i < 1000; i++) {
+			publish("", QUEUE, Integer.toString(i));
+		}
+
+		// then
+		assertTrue(broker.awaitSettled(QUEUE, 5, TimeUnit.SECONDS));
+		assertEquals(1000, consumer.bodies.size());
+		assertEquals("0", consumer.bodies.get(0));
+		assertEquals("999", consumer.bodies.get(999));
+		assertEquals(1000, broker.getPublished());
+		assertEquals(1000, broker.getAcknowledged());
+
+	}
+
+	@Test
+	public void consume_shouldNotExceedThePrefetchCount() throws Exception {
+
+		// given
+		CountDownLatch release = new CountDownLatch(1);
+		Channel channel = messageQueue.createChannel();
+		RecordingConsumer consumer = new BlockingConsumer(channel, release);
+		consumer.setDispatcher(new DeliveryDispatcher(4, 4));
+		messageQueue.consume("", channel, consumer, 2);
+
+		// when
+		for (int i = 0; i < 5; i++) {
+			publish("", QUEUE, Integer.toString(i));
+		}
+
+		// then
+		assertFalse(broker.awaitSettled(QUEUE, 100, TimeUnit.MILLISECONDS));
+		assertEquals(2, broker.getUnacknowledgedCount(QUEUE));
+		assertEquals(3, broker.getMessageCount(QUEUE));
+
+		release.countDown();
+		assertTrue(broker.awaitSettled(QUEUE, 5, TimeUnit.SECONDS));
+		assertEquals(5, consumer.bodies.size());
+
+	}
+
+	@Test
+	public void consume_shouldRedeliverAMessageThatFailedOnce() throws Exception {
+
+		// given
+		Channel channel = messageQueue.createChannel();
+		FailingOnceConsumer consumer = new FailingOnceConsumer(channel);
+		messageQueue.consume("", channel, consumer, 1);
+
+		// when
+		publish("", QUEUE, "message");
+
+		// then
+		assertTrue(broker.awaitSettled(QUEUE, 5, TimeUnit.SECONDS));
+		assertEquals(Collections.singletonList("message"), consumer.bodies);
+		assertEquals(1, broker.getRedelivered());
+		assertEquals(1, broker.getAcknowledged());
+
+	}
+
+	@Test
+	public void closeConnections_shouldRequeueUnacknowledgedMessagesForANewConnection() throws Exception {
+
+		// given
+		Channel channel = messageQueue.createChannel();
+		messageQueue.consume("", channel, new BlockingConsumer(channel, new CountDownLatch(1)), 1);
+		publish("", QUEUE, "message");
+		waitForUnacknowledged(1);
+
+		// when
+		broker.closeConnections();
+
+		// then
+		assertFalse(channel.isOpen());
+		assertEquals(1, broker.getMessageCount(QUEUE));
+		assertEquals(0, broker.getConsumerCount(QUEUE));
+
+		Channel recovered = messageQueue.createChannel();
+		RecordingConsumer consumer = new RecordingConsumer(recovered, new AckCoalescer(recovered, 1, 0));
+		messageQueue.consume("", recovered, consumer, 1);
+
+		assertTrue(broker.awaitSettled(QUEUE, 5, TimeUnit.SECONDS));
+		assertEquals(Collections.singletonList("message"), consumer.bodies);
+		assertEquals(1, broker.getRedelivered());
+
+	}
+
+	@Test
+	public void setRefuseConnections_shouldFailChannelCreation() throws Exception {
+
+		// given
+		broker.closeConnections();
+		broker.setRefuseConnections(true);
+
+		// expect
+		exception.expect(MessagingException.class);
+
+		// when
+		messageQueue.createChannel();
+
+	}
+
+	@Test
+	public void setRejectPublishes_shouldNegativelyConfirmAndDropPublishes() throws Exception {
+
+		// given
+		Channel channel = messageQueue.createChannel();
+		ConfirmTracker confirms = new ConfirmTracker(channel, 8);
+
+		// when
+		CompletableFuture<Void> accepted = confirms.register(channel.getNextPublishSeqNo());
+		channel.basicPublish("", QUEUE, null, "accepted".getBytes());
+
+		broker.setRejectPublishes(true);
+		CompletableFuture<Void> rejected = confirms.register(channel.getNextPublishSeqNo());
+		channel.basicPublish("", QUEUE, null, "rejected".getBytes());
+
+		// then
+		accepted.get(5, TimeUnit.SECONDS);
+		assertTrue(rejected.isCompletedExceptionally());
+		assertEquals(1, broker.getMessageCount(QUEUE));
+
+	}
+
+	@Test
+	public void basicPublish_shouldRouteByTopic() throws Exception {
+
+		// given
+		Channel channel = messageQueue.createChannel();
+		channel.exchangeDeclare("events", "topic");
+		declare("orders");
+		declare("everything");
+		channel.queueBind("orders", "events", "order.*");
+		channel.queueBind("everything", "events", "#");
+
+		// when
+		publish("events", "order.created", "1");
+		publish("events", "order.line.created", "2");
+		publish("events", "invoice.created", "3");
+
+		// then
+		assertEquals(1, broker.getMessageCount("orders"));
+		assertEquals(3, broker.getMessageCount("everything"));
+
+	}
+
+	@Test
+	public void basicPublish_shouldSpreadKeysAcrossShards() throws Exception {
+
+		// given
+		ShardedQueue queue = new ShardedQueue(messageQueue.getChannelPool(), "work", 4);
+		queue.declare();
+
+		// when
+		for (int i = 0; i < 400; i++) {
+			publish(queue.getExchangeName(), "account-" + i, Integer.toString(i));
+		}
+
+		// then
+		int total = 0;
+		for (String shard : queue.getShardQueueNames()) {
+			int count = broker.getMessageCount(shard);
+			assertTrue(count > 0);
+			total += count;
+		}
+		assertEquals(400, total);
+
+	}
+
+	@Test
+	public void basicAck_shouldCloseTheChannelForAnUnknownDeliveryTag() throws Exception {
+
+		// given
+		Channel channel = messageQueue.createChannel();
+
+		// when
+		channel.basicAck(42, false);
+
+		// then
+		for (int i = 0; i < 100 && channel.isOpen(); i++) {
+			Thread.sleep(10);
+		}
+		assertFalse(channel.isOpen());
+
+	}
+
+	@Test
+	public void basicGet_shouldRequeueAMessageThatIsNotAcknowledged() throws Exception {
+
+		// given
+		publish("", QUEUE, "message");
+		Channel channel = messageQueue.createChannel();
+
+		// when
+		GetResponse first = channel.basicGet(QUEUE, false);
+		channel.basicReject(first.getEnvelope().getDeliveryTag(), true);
+		GetResponse second = channel.basicGet(QUEUE, true);
+
+		// then
+		assertFalse(first.getEnvelope().isRedeliver());
+		assertTrue(second.getEnvelope().isRedeliver());
+		assertEquals("message", new String(second.getBody()));
+		assertEquals(0, broker.getMessageCount(QUEUE));
+
+	}
+
+	@Test
+	public void deleteQueue_shouldCancelConsumers() throws Exception {
+
+		// given
+		CountDownLatch cancelled = new CountDownLatch(1);
+		Channel channel = messageQueue.createChannel();
+		channel.basicConsume(QUEUE, new com.rabbitmq.client.DefaultConsumer(channel) {
+			@Override
+			public void handleCancel(String consumerTag) {
+				cancelled.countDown();
+			}
+		});
+		publish("", QUEUE, "message");
+
+		// when
+		broker.deleteQueue(QUEUE);
+
+		// then
+		assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+		assertEquals(0, broker.getConsumerCount(QUEUE));
+
+		exception.expect(IOException.class);
+		messageQueue.createChannel().queueDeclarePassive(QUEUE);
+
+	}
+
+	@Test
+	public void consume_shouldSpreadMessagesAcrossCompetingConsumers() throws Exception {
+
+		// given
+		List<RecordingConsumer> consumers = new ArrayList<RecordingConsumer>();
+		for (int i = 0; i < 4; i++) {
+			Channel channel = messageQueue.createChannel();
+			RecordingConsumer consumer = new RecordingConsumer(channel, new AckCoalescer(channel, 8, 1));
+			messageQueue.consume("", channel, consumer, 16);
+			consumers.add(consumer);
+		}
+
+		// when
+		for (int i = 0; i < 10000; i++) {
+			publish("", QUEUE, Integer.toString(i));
+		}
+
+		// then
+		assertTrue(broker.awaitSettled(QUEUE, 10, TimeUnit.SECONDS));
+		int total = 0;
+		for (RecordingConsumer consumer : consumers) {
+			assertTrue(consumer.bodies.size() > 0);
+			total += consumer.bodies.size();
+		}
+		assertEquals(10000, total);
+		assertEquals(10000, broker.getAcknowledged());
+
+	}
+
+	private void declare(String queueName) throws Exception {
+		Channel channel = messageQueue.leaseChannel();
+		channel.queueDeclare(queueName, true, false, false, null);
+		messageQueue.releaseChannel(channel);
+	}
+
+	private void publish(String exchange, String routingKey, String body) throws Exception {
+		Channel channel = messageQueue.leaseChannel();
+		channel.basicPublish(exchange, routingKey, new AMQP.BasicProperties(), body.getBytes());
+		messageQueue.releaseChannel(channel);
+	}
+
+	private void waitForUnacknowledged(int count) throws InterruptedException {
+		for (int i = 0; i < 500 && broker.getUnacknowledgedCount(QUEUE) < count; i++) {
+			Thread.sleep(10);
+		}
+	}
+
+	private static class RecordingConsumer extends DefaultConsumer<GenericContainer, GenericContainer> {
+
+		protected final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+
+		public RecordingConsumer(Channel channel, IAcknowledger acknowledger) {
+			super(channel, QUEUE, null, acknowledger);
+		}
+
+		@Override
+		public GenericContainer handleMessage(Context context, GenericContainer input) throws HandleMessageException {
+			return input;
+		}
+
+		@Override
+		public byte[] consume(byte[] body) throws OrizuruException {
+			bodies.add(new String(body));
+			return null;
+		}
+
+	}
+
+	private static class BlockingConsumer extends RecordingConsumer {
+
+		private final CountDownLatch release;
+
+		public BlockingConsumer(Channel channel, CountDownLatch release) {
+			super(channel, new AckCoalescer(channel, 1, 0));
+			this.release = release;
+		}
+
+		@Override
+		public byte[] consume(byte[] body) throws OrizuruException {
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			return super.consume(body);
+		}
+
+	}
+
+	private static class FailingOnceConsumer extends RecordingConsumer {
+
+		private final AtomicInteger attempts = new AtomicInteger();
+
+		public FailingOnceConsumer(Channel channel) {
+			super(channel, new AckCoalescer(channel, 1, 0));
+		}
+
+		@Override
+		public byte[] consume(byte[] body) throws OrizuruException {
+			if (attempts.getAndIncrement() == 0) {
+				throw new IllegalStateException("first attempt");
+			}
+			return super.consume(body);
+		}
+
+	}
+
+}
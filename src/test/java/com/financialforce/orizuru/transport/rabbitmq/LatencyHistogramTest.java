@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void getValueAtPercentile_shouldReturnZeroForAnEmptyHistogram() {
+
+		// given
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		// when/then
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		assertEquals(0, histogram.getMean(), 0);
+		assertEquals(0, histogram.getCount());
+
+	}
+
+	@Test
+	public void getValueAtPercentile_shouldBeExactForSmallValues() {
+
+		// given
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		// when
+		for (int i = 1; i <= 20; i++) {
+			histogram.record(i);
+		}
+
+		// then
+		assertEquals(10, histogram.getValueAtPercentile(50));
+		assertEquals(19, histogram.getValueAtPercentile(95));
+		assertEquals(20, histogram.getValueAtPercentile(100));
+		assertEquals(1, histogram.getValueAtPercentile(0));
+		assertEquals(10.5, histogram.getMean(), 0);
+
+	}
+
+	@Test
+	public void getValueAtPercentile_shouldBeWithinThePrecisionForLargeValues() {
+
+		// given
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		// when
+		for (long value = 1000; value <= 1000000; value += 1000) {
+			histogram.record(value);
+		}
+
+		// then
+		long median = histogram.getValueAtPercentile(50);
+		assertTrue(median >= 500000 && median <= 500000 * 1.0625);
+		long p99 = histogram.getValueAtPercentile(99);
+		assertTrue(p99 >= 990000 && p99 <= 990000 * 1.0625);
+		assertEquals(1000000, histogram.getValueAtPercentile(100));
+		assertEquals(1000000, histogram.getMax());
+
+	}
+
+	@Test
+	public void record_shouldRecordNegativeValuesAsZero() {
+
+		// given
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		// when
+		histogram.record(-5);
+
+		// then
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		assertEquals(0, histogram.getMax());
+		assertEquals(1, histogram.getCount());
+
+	}
+
+	@Test
+	public void record_shouldCountConcurrentValues() throws Exception {
+
+		// given
+		LatencyHistogram histogram = new LatencyHistogram();
+		CountDownLatch done = new CountDownLatch(4);
+
+		// when
+		for (int t = 0; t < 4; t++) {
+			int offset = t;
+			new Thread(() -> {
+				for (int i = 0; i < 10000; i++) {
+					histogram.record(i * 4 + offset);
+				}
+				done.countDown();
+			}).start();
+		}
+
+		// then
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(40000, histogram.getCount());
+		assertEquals(39999, histogram.getMax());
+
+	}
+
+	@Test
+	public void indexOf_shouldMapEveryValueIntoABucketThatContainsIt() {
+
+		// given
+		long[] values = { 0, 31, 32, 33, 47, 48, 1023, 1024, 123456789, Long.MAX_VALUE };
+
+		// when/then
+		for (long value : values) {
+			int index = LatencyHistogram.indexOf(value);
+			assertTrue(LatencyHistogram.highestValueOf(index) >= value);
+			assertTrue(index == 0 || LatencyHistogram.highestValueOf(index - 1) < value);
+		}
+
+	}
+
+}
@@ -29,21 +29,31 @@ package com.financialforce.orizuru.transport.rabbitmq;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 
+import org.apache.avro.generic.GenericContainer;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.contrib.java.lang.system.EnvironmentVariables;
 import org.junit.rules.ExpectedException;
+import org.mockito.InOrder;
 
 import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
 
@@ -105,6 +115,74 @@ public class MessageQueueTest {
 
 	}
 
+	@Test
+	public void createChannel_shouldShareTheConnectionBetweenChannels() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		when(factory.newConnection()).thenReturn(connection);
+		when(connection.isOpen()).thenReturn(true);
+		when(connection.createChannel()).thenReturn(mock(Channel.class));
+
+		MessageQueue messageQueue = new MessageQueue(factory);
+
+		// when
+		messageQueue.createChannel();
+		messageQueue.createChannel();
+
+		// then
+		verify(factory, times(1)).newConnection();
+		verify(connection, times(2)).createChannel();
+
+	}
+
+	@Test
+	public void leaseChannel_shouldReturnAPooledChannel() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		Channel expectedChannel = mock(Channel.class);
+		when(factory.newConnection()).thenReturn(connection);
+		when(connection.isOpen()).thenReturn(true);
+		when(connection.createChannel()).thenReturn(expectedChannel);
+		when(expectedChannel.isOpen()).thenReturn(true);
+
+		MessageQueue messageQueue = new MessageQueue(factory, 1, 1);
+
+		// when
+		Channel first = messageQueue.leaseChannel();
+		messageQueue.releaseChannel(first);
+		Channel second = messageQueue.leaseChannel();
+
+		// then
+		assertEquals(expectedChannel, second);
+		assertEquals(0, messageQueue.getChannelPool().getAvailable());
+		verify(connection, times(1)).createChannel();
+
+	}
+
+	@Test
+	public void close_shouldCloseTheConnections() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		when(factory.newConnection()).thenReturn(connection);
+		when(connection.isOpen()).thenReturn(true);
+
+		MessageQueue messageQueue = new MessageQueue(factory);
+		messageQueue.getConnectionPool().getConnection();
+
+		// when
+		messageQueue.close();
+
+		// then
+		verify(connection, times(1)).close();
+
+	}
+
 	@Test
 	public void consume_shouldCallBasicConsume() throws Exception {
 
@@ -126,6 +204,253 @@ public class MessageQueueTest {
 
 	}
 
+	@Test
+	public void consume_shouldGiveTheConsumerTheRecoveryBackoff() throws Exception {
+
+		// given
+		RecoveryBackoff backoff = new RecoveryBackoff();
+		DefaultConsumer consumer = mock(DefaultConsumer.class);
+
+		MessageQueue messageQueue = new MessageQueue(mock(ConnectionFactory.class), 1, 1, backoff);
+
+		// when
+		messageQueue.consume("consumer", mock(Channel.class), consumer);
+
+		// then
+		verify(consumer, times(1)).setRecoveryBackoff(backoff);
+
+	}
+
+	@Test
+	public void consume_shouldKeepTheConsumerRecoveryBackoff() throws Exception {
+
+		// given
+		DefaultConsumer consumer = mock(DefaultConsumer.class);
+		when(consumer.getRecoveryBackoff()).thenReturn(new RecoveryBackoff());
+
+		MessageQueue messageQueue = new MessageQueue(mock(ConnectionFactory.class));
+
+		// when
+		messageQueue.consume("consumer", mock(Channel.class), consumer);
+
+		// then
+		verify(consumer, never()).setRecoveryBackoff(any());
+
+	}
+
+	@Test
+	public void consume_shouldUseTheConsumerAcknowledgementMode() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Channel channel = mock(Channel.class);
+		DefaultConsumer consumer = mock(DefaultConsumer.class);
+		when(consumer.getQueueName()).thenReturn("testQueue");
+		when(consumer.isAutoAck()).thenReturn(false);
+
+		MessageQueue messageQueue = new MessageQueue(factory);
+
+		// when
+		messageQueue.consume("consumer", channel, consumer);
+
+		// then
+		verify(channel, times(1)).basicConsume("testQueue", false, "consumer", consumer);
+
+	}
+
+	@Test
+	public void consume_shouldSetThePrefetchCountBeforeConsuming() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Channel channel = mock(Channel.class);
+		DefaultConsumer consumer = mock(DefaultConsumer.class);
+		when(consumer.getQueueName()).thenReturn("testQueue");
+
+		MessageQueue messageQueue = new MessageQueue(factory);
+
+		// when
+		messageQueue.consume("consumer", channel, consumer, 50);
+
+		// then
+		InOrder inOrder = inOrder(channel);
+		inOrder.verify(channel).basicQos(50);
+		inOrder.verify(channel).basicConsume(anyString(), anyBoolean(), anyString(), any());
+
+	}
+
+	@Test
+	public void consume_shouldLimitTheChunksHeldByTheReassemblerToThePrefetchCount() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		DefaultConsumer consumer = mock(DefaultConsumer.class);
+		Reassembler reassembler = new Reassembler();
+		when(consumer.getQueueName()).thenReturn("testQueue");
+		when(consumer.getReassembler()).thenReturn(reassembler);
+		AdaptivePrefetch prefetch = mock(AdaptivePrefetch.class);
+		when(prefetch.getMinPrefetch()).thenReturn(10);
+
+		MessageQueue messageQueue = new MessageQueue(mock(ConnectionFactory.class));
+
+		// when
+		messageQueue.consume("consumer", channel, consumer, 50);
+		int fixed = reassembler.getMaxChunks();
+		messageQueue.consume("consumer", channel, consumer, prefetch);
+
+		// then
+		assertEquals(50, fixed);
+		assertEquals(10, reassembler.getMaxChunks());
+
+	}
+
+	@Test
+	public void consume_shouldThrowMessagingExceptionIfThePrefetchCountCannotBeSet() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Channel channel = mock(Channel.class);
+		doThrow(IOException.class).when(channel).basicQos(anyInt());
+
+		MessageQueue messageQueue = new MessageQueue(factory);
+
+		// expect
+		exception.expect(MessagingException.class);
+		exception.expectMessage("Failed to set prefetch count");
+
+		// when
+		messageQueue.consume("consumer", channel, mock(DefaultConsumer.class), 50);
+
+	}
+
+	@Test
+	public void consume_shouldStartTheAdaptivePrefetchBeforeConsuming() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Channel channel = mock(Channel.class);
+		DefaultConsumer consumer = mock(DefaultConsumer.class);
+		when(consumer.getQueueName()).thenReturn("testQueue");
+		AdaptivePrefetch prefetch = mock(AdaptivePrefetch.class);
+
+		MessageQueue messageQueue = new MessageQueue(factory);
+
+		// when
+		messageQueue.consume("consumer", channel, consumer, prefetch);
+
+		// then
+		verify(prefetch, times(1)).start();
+		verify(consumer, times(1)).setAdaptivePrefetch(prefetch);
+		verify(channel, times(1)).basicConsume(anyString(), anyBoolean(), anyString(), any());
+
+	}
+
+	@Test
+	public void consume_shouldThrowMessagingExceptionIfTheAdaptivePrefetchCannotStart() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		AdaptivePrefetch prefetch = mock(AdaptivePrefetch.class);
+		doThrow(IOException.class).when(prefetch).start();
+
+		MessageQueue messageQueue = new MessageQueue(factory);
+
+		// expect
+		exception.expect(MessagingException.class);
+		exception.expectMessage("Failed to set prefetch count");
+
+		// when
+		messageQueue.consume("consumer", mock(Channel.class), mock(DefaultConsumer.class), prefetch);
+
+	}
+
+	@Test
+	public void consume_shouldRejectAPrefetchCountForAnAutoAckConsumer() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		DefaultConsumer consumer = mock(DefaultConsumer.class);
+		when(consumer.isAutoAck()).thenReturn(true);
+
+		MessageQueue messageQueue = new MessageQueue(mock(ConnectionFactory.class));
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+		exception.expectMessage("Prefetch count is ignored by the broker for a consumer using auto acknowledgement");
+
+		// when
+		try {
+			messageQueue.consume("consumer", channel, consumer, 10);
+		} finally {
+			verify(channel, never()).basicQos(anyInt());
+		}
+
+	}
+
+	@Test
+	public void consume_shouldRejectAnAdaptivePrefetchForAnAutoAckConsumer() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		DefaultConsumer consumer = mock(DefaultConsumer.class);
+		when(consumer.isAutoAck()).thenReturn(true);
+
+		MessageQueue messageQueue = new MessageQueue(mock(ConnectionFactory.class));
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+		exception.expectMessage("Prefetch count is ignored by the broker for a consumer using auto acknowledgement");
+
+		// when
+		messageQueue.consume("consumer", channel, consumer, new AdaptivePrefetch(channel, 1, 10, 100, 0));
+
+	}
+
+	@Test
+	public void consume_shouldRejectAnAdaptivePrefetchBelowTheAcknowledgementBatchSize() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		DefaultConsumer consumer = mock(DefaultConsumer.class);
+		AckCoalescer acknowledger = new AckCoalescer(channel, 5, 100, mock(ScheduledExecutorService.class));
+		when(consumer.getAcknowledger()).thenReturn(acknowledger);
+
+		MessageQueue messageQueue = new MessageQueue(mock(ConnectionFactory.class));
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+		exception.expectMessage("Minimum prefetch count must be at least the acknowledgement batch size");
+
+		// when
+		try {
+			messageQueue.consume("consumer", channel, consumer, new AdaptivePrefetch(channel, 4, 100, 100, 0));
+		} finally {
+			verify(channel, never()).basicQos(anyInt(), anyBoolean());
+		}
+
+	}
+
+	@Test
+	public void consume_shouldAcceptAnAdaptivePrefetchAtTheAcknowledgementBatchSize() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		DefaultConsumer consumer = mock(DefaultConsumer.class);
+		when(consumer.getQueueName()).thenReturn("testQueue");
+		AckCoalescer acknowledger = new AckCoalescer(channel, 5, 100, mock(ScheduledExecutorService.class));
+		when(consumer.getAcknowledger()).thenReturn(acknowledger);
+
+		MessageQueue messageQueue = new MessageQueue(mock(ConnectionFactory.class));
+
+		// when
+		messageQueue.consume("consumer", channel, consumer, new AdaptivePrefetch(channel, 5, 100, 100, 0));
+
+		// then
+		verify(channel, times(1)).basicQos(5, true);
+		verify(channel, times(1)).basicConsume(anyString(), anyBoolean(), anyString(), any());
+
+	}
+
 	@Test
 	public void consume_shouldThrowMessagingExceptionForBasicConsumeException() throws Exception {
 
@@ -145,4 +470,100 @@ public class MessageQueueTest {
 
 	}
 
+	@Test
+	public void consume_shouldRegisterAConsumerPerShardOnItsOwnChannel() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		Channel first = mock(Channel.class);
+		Channel second = mock(Channel.class);
+		when(factory.newConnection()).thenReturn(connection);
+		when(connection.isOpen()).thenReturn(true);
+		when(connection.createChannel()).thenReturn(first, second);
+
+		MessageQueue<GenericContainer, GenericContainer> messageQueue = new MessageQueue<GenericContainer, GenericContainer>(factory);
+		ShardedQueue queue = new ShardedQueue(messageQueue.getChannelPool(), "input", 2);
+
+		// when
+		List<DefaultConsumer<GenericContainer, GenericContainer>> consumers = messageQueue.consume(queue, (channel, queueName) -> {
+			DefaultConsumer<GenericContainer, GenericContainer> consumer = mock(DefaultConsumer.class);
+			when(consumer.getQueueName()).thenReturn(queueName);
+			when(consumer.getChannel()).thenReturn(channel);
+			return consumer;
+		}, 10);
+
+		// then
+		assertEquals(2, consumers.size());
+		verify(first, times(1)).basicQos(10);
+		verify(first, times(1)).basicConsume("input.shard.0", false, "", consumers.get(0));
+		verify(second, times(1)).basicQos(10);
+		verify(second, times(1)).basicConsume("input.shard.1", false, "", consumers.get(1));
+
+	}
+
+	@Test
+	public void consume_shouldAbortTheShardChannelsIfAConsumerCannotBeRegistered() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		Channel first = mock(Channel.class);
+		Channel second = mock(Channel.class);
+		when(factory.newConnection()).thenReturn(connection);
+		when(connection.isOpen()).thenReturn(true);
+		when(connection.createChannel()).thenReturn(first, second);
+		doThrow(IOException.class).when(first).abort();
+		when(second.basicConsume(anyString(), anyBoolean(), anyString(), any())).thenThrow(IOException.class);
+
+		MessageQueue<GenericContainer, GenericContainer> messageQueue = new MessageQueue<GenericContainer, GenericContainer>(factory);
+		ShardedQueue queue = new ShardedQueue(messageQueue.getChannelPool(), "input", 3);
+
+		// expect
+		exception.expect(MessagingException.class);
+
+		// when
+		try {
+			messageQueue.consume(queue, (channel, queueName) -> {
+				DefaultConsumer<GenericContainer, GenericContainer> consumer = mock(DefaultConsumer.class);
+				when(consumer.getQueueName()).thenReturn(queueName);
+				when(consumer.getChannel()).thenReturn(channel);
+				return consumer;
+			}, 10);
+		} finally {
+			verify(first, times(1)).abort();
+			verify(second, times(1)).abort();
+			verify(connection, times(2)).createChannel();
+		}
+
+	}
+
+	@Test
+	public void consume_shouldAbortTheShardChannelIfTheFactoryFails() throws Exception {
+
+		// given
+		ConnectionFactory factory = mock(ConnectionFactory.class);
+		Connection connection = mock(Connection.class);
+		Channel channel = mock(Channel.class);
+		when(factory.newConnection()).thenReturn(connection);
+		when(connection.isOpen()).thenReturn(true);
+		when(connection.createChannel()).thenReturn(channel);
+
+		MessageQueue<GenericContainer, GenericContainer> messageQueue = new MessageQueue<GenericContainer, GenericContainer>(factory);
+		ShardedQueue queue = new ShardedQueue(messageQueue.getChannelPool(), "input", 2);
+
+		// expect
+		exception.expect(IllegalStateException.class);
+
+		// when
+		try {
+			messageQueue.consume(queue, (created, queueName) -> {
+				throw new IllegalStateException("Failed");
+			}, 10);
+		} finally {
+			verify(channel, times(1)).abort();
+		}
+
+	}
+
 }
@@ -0,0 +1,374 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.generic.GenericContainer;
+import org.hamcrest.core.IsInstanceOf;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.financialforce.orizuru.exception.publisher.OrizuruPublisherException;
+import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.ICodec;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IMetrics;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IRoutingKeyResolver;
+
+public class PooledPublisherTest {
+
+	private static final Schema SCHEMA = new Schema.Parser().parse("{\"name\":\"test\",\"type\":\"record\",\"fields\":[]}");
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void publish_shouldPublishOnALeasedChannelAndReleaseIt() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		ChannelPool channelPool = mock(ChannelPool.class);
+		when(channelPool.lease()).thenReturn(channel);
+		PooledPublisher<GenericContainer> publisher = new PooledPublisher<GenericContainer>(channelPool, "output");
+
+		// when
+		byte[] published = publisher.publish(context(), message());
+
+		// then
+		assertNotNull(published);
+		verify(channel).basicPublish(eq(""), eq("output"), any(), eq(published));
+		verify(channelPool).release(channel);
+
+	}
+
+	@Test
+	public void publish_shouldSendTheMessageProperties() throws Exception {
+
+		// given
+		AMQP.BasicProperties shared = new AMQP.BasicProperties.Builder().contentType("avro/binary").build();
+		AMQP.BasicProperties single = new AMQP.BasicProperties.Builder().correlationId("1").build();
+		Channel channel = mock(Channel.class);
+		ChannelPool channelPool = mock(ChannelPool.class);
+		when(channelPool.lease()).thenReturn(channel);
+		PooledPublisher<GenericContainer> publisher = new PooledPublisher<GenericContainer>(channelPool, "output");
+		publisher.setProperties(shared);
+
+		// when
+		publisher.publish(context(), message());
+		publisher.publish(context(), message(), single);
+
+		// then
+		verify(channel).basicPublish(eq(""), eq("output"), eq(shared), any());
+		verify(channel).basicPublish(eq(""), eq("output"), eq(single), any());
+		assertSame(shared, publisher.getProperties());
+
+	}
+
+	@Test
+	public void publish_shouldSendToTheExchangeWithTheRoutingKey() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		ChannelPool channelPool = mock(ChannelPool.class);
+		when(channelPool.lease()).thenReturn(channel);
+		PooledPublisher<GenericContainer> publisher = new PooledPublisher<GenericContainer>(channelPool, "output");
+		IRoutingKeyResolver<GenericContainer> resolver = (context, message) -> "computed";
+		publisher.setExchange("events");
+		publisher.setRoutingKey("fixed");
+
+		// when
+		publisher.publish(context(), message());
+		publisher.setRoutingKeyResolver(resolver);
+		publisher.publish(context(), message());
+
+		// then
+		verify(channel).basicPublish(eq("events"), eq("fixed"), any(), any());
+		verify(channel).basicPublish(eq("events"), eq("computed"), any(), any());
+		assertEquals("events", publisher.getExchange());
+		assertEquals("fixed", publisher.getRoutingKey());
+		assertSame(resolver, publisher.getRoutingKeyResolver());
+
+	}
+
+	@Test
+	public void publish_shouldReleaseTheChannelIfThePublishFails() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		doThrow(new IOException("closed")).when(channel).basicPublish(any(), any(), any(), any());
+		ChannelPool channelPool = mock(ChannelPool.class);
+		when(channelPool.lease()).thenReturn(channel);
+		PooledPublisher<GenericContainer> publisher = new PooledPublisher<GenericContainer>(channelPool, "output");
+
+		// expect
+		exception.expect(OrizuruPublisherException.class);
+		exception.expectCause(IsInstanceOf.<Throwable>instanceOf(IOException.class));
+
+		// when
+		try {
+			publisher.publish(context(), message());
+		} finally {
+			verify(channelPool).release(channel);
+		}
+
+	}
+
+	@Test
+	public void publish_shouldThrowAnOrizuruPublisherExceptionIfNoChannelCanBeLeased() throws Exception {
+
+		// given
+		ChannelPool channelPool = mock(ChannelPool.class);
+		when(channelPool.lease()).thenThrow(new MessagingException("Interrupted waiting for a channel", null));
+		PooledPublisher<GenericContainer> publisher = new PooledPublisher<GenericContainer>(channelPool, "output");
+
+		// expect
+		exception.expect(OrizuruPublisherException.class);
+		exception.expectCause(IsInstanceOf.<Throwable>instanceOf(MessagingException.class));
+
+		// when
+		publisher.publish(context(), message());
+
+	}
+
+	@Test
+	public void publish_shouldPublishConcurrentlyOnSeparateChannels() throws Exception {
+
+		// given
+		CyclicBarrier barrier = new CyclicBarrier(2);
+		ConnectionPool connectionPool = mock(ConnectionPool.class);
+		Channel first = blockingChannel(barrier);
+		Channel second = blockingChannel(barrier);
+		when(connectionPool.createChannel()).thenReturn(first, second);
+		ChannelPool channelPool = new ChannelPool(connectionPool, 2);
+		PooledPublisher<GenericContainer> publisher = new PooledPublisher<GenericContainer>(channelPool, "output");
+		Context context = context();
+		GenericContainer message = message();
+		CountDownLatch done = new CountDownLatch(2);
+
+		// when
+		for (int i = 0; i < 2; i++) {
+			new Thread(() -> {
+				try {
+					publisher.publish(context, message);
+					done.countDown();
+				} catch (Exception expected) {
+					// the latch is not released
+				}
+			}).start();
+		}
+
+		// then
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(2, channelPool.getAvailable());
+		assertSame(channelPool, publisher.getChannelPool());
+
+	}
+
+	@Test
+	public void publish_shouldSerialiseWithTheTransportEncoderIfSet() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		ChannelPool channelPool = mock(ChannelPool.class);
+		when(channelPool.lease()).thenReturn(channel);
+		PooledPublisher<GenericContainer> publisher = new PooledPublisher<GenericContainer>(channelPool, "output");
+		TransportEncoder encoder = new TransportEncoder();
+		publisher.setTransportEncoder(encoder);
+
+		// when
+		byte[] published = publisher.publish(context(), message());
+
+		// then
+		assertEquals(encoder, publisher.getTransportEncoder());
+		assertArrayEquals(new TransportEncoder().encode(context(), message()), published);
+		verify(channel).basicPublish(eq(""), eq("output"), any(), eq(published));
+
+	}
+
+	@Test
+	public void publish_shouldSendTheSchemaFingerprintIfTheEncoderFingerprintsSchemas() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		ChannelPool channelPool = mock(ChannelPool.class);
+		when(channelPool.lease()).thenReturn(channel);
+		PooledPublisher<GenericContainer> publisher = new PooledPublisher<GenericContainer>(channelPool, "output");
+		publisher.setTransportEncoder(new TransportEncoder(64, 1024, true));
+		publisher.setChunker(new Chunker(1));
+		Long fingerprint = SchemaNormalization.parsingFingerprint64(SCHEMA);
+
+		// when
+		byte[] published = publisher.publish(context(), message());
+
+		// then
+		verify(channel, times(published.length)).basicPublish(eq(""), eq("output"),
+				argThat(properties -> fingerprint.equals(properties.getHeaders().get(TransportEncoder.FINGERPRINT_HEADER))), any());
+
+	}
+
+	@Test
+	public void publish_shouldRecordThePublishTime() throws Exception {
+
+		// given
+		IMetrics metrics = mock(IMetrics.class);
+		ChannelPool channelPool = mock(ChannelPool.class);
+		when(channelPool.lease()).thenReturn(mock(Channel.class));
+		PooledPublisher<GenericContainer> publisher = new PooledPublisher<GenericContainer>(channelPool, "output");
+		publisher.setMetrics(metrics);
+
+		// when
+		publisher.publish(context(), message());
+
+		// then
+		assertEquals(metrics, publisher.getMetrics());
+		verify(metrics).recordPublish(eq("output"), anyLong());
+
+	}
+
+	/**
+	 * Returns a channel whose publish only completes once both channels are publishing at the same time.
+	 */
+	private static Channel blockingChannel(CyclicBarrier barrier) throws Exception {
+		Channel channel = mock(Channel.class);
+		when(channel.isOpen()).thenReturn(true);
+		doAnswer(invocation -> {
+			barrier.await(5, TimeUnit.SECONDS);
+			return null;
+		}).when(channel).basicPublish(any(), any(), any(), any());
+		return channel;
+	}
+
+	@Test
+	public void publish_shouldCompressMessagesAtOrAboveTheThreshold() throws Exception {
+
+		// given
+		byte[] compressed = new byte[1];
+		ICodec codec = mock(ICodec.class);
+		when(codec.getName()).thenReturn("test");
+		when(codec.encode(any())).thenReturn(compressed);
+
+		Channel channel = mock(Channel.class);
+		ChannelPool channelPool = mock(ChannelPool.class);
+		when(channelPool.lease()).thenReturn(channel);
+		PooledPublisher<GenericContainer> publisher = new PooledPublisher<GenericContainer>(channelPool, "output");
+		Compressor compressor = new Compressor(codec, 0);
+		publisher.setCompressor(compressor);
+
+		// when
+		publisher.publish(context(), message());
+
+		// then
+		verify(channel).basicPublish(eq(""), eq("output"), argThat(properties -> "test".equals(properties.getContentEncoding())), eq(compressed));
+		assertSame(compressor, publisher.getCompressor());
+
+	}
+
+	@Test
+	public void publish_shouldNotCompressMessagesBelowTheThreshold() throws Exception {
+
+		// given
+		AMQP.BasicProperties shared = new AMQP.BasicProperties.Builder().contentType("avro/binary").build();
+		Channel channel = mock(Channel.class);
+		ChannelPool channelPool = mock(ChannelPool.class);
+		when(channelPool.lease()).thenReturn(channel);
+		PooledPublisher<GenericContainer> publisher = new PooledPublisher<GenericContainer>(channelPool, "output");
+		publisher.setProperties(shared);
+		publisher.setCompressor(new Compressor(new DeflateCodec()));
+
+		// when
+		byte[] published = publisher.publish(context(), message());
+
+		// then
+		verify(channel).basicPublish(eq(""), eq("output"), eq(shared), eq(published));
+
+	}
+
+	@Test
+	public void publish_shouldSplitALargeMessageIntoChunksOnOneChannel() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		ChannelPool channelPool = mock(ChannelPool.class);
+		when(channelPool.lease()).thenReturn(channel);
+		PooledPublisher<GenericContainer> publisher = new PooledPublisher<GenericContainer>(channelPool, "output");
+		Chunker chunker = new Chunker(16);
+		publisher.setChunker(chunker);
+
+		// when
+		byte[] published = publisher.publish(context(), message());
+		publisher.setChunker(new Chunker());
+		publisher.publish(context(), message());
+
+		// then
+		verify(channel, times(chunker.getChunkCount(published))).basicPublish(eq(""), eq("output"), argThat(Chunker::isChunk), any());
+		verify(channel, times(1)).basicPublish(eq(""), eq("output"), any(), eq(published));
+		verify(channelPool, times(2)).release(channel);
+		assertEquals(Chunker.DEFAULT_CHUNK_SIZE, publisher.getChunker().getChunkSize());
+
+	}
+
+	private static Context context() {
+		Context context = mock(Context.class);
+		when(context.getSchema()).thenReturn(SCHEMA);
+		when(context.getDataBuffer()).thenReturn(ByteBuffer.wrap("test".getBytes()));
+		return context;
+	}
+
+	private static GenericContainer message() {
+		GenericContainer message = mock(GenericContainer.class);
+		when(message.getSchema()).thenReturn(SCHEMA);
+		return message;
+	}
+
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+
+import org.apache.avro.generic.GenericContainer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.reactivestreams.Subscription;
+
+import com.financialforce.orizuru.exception.publisher.OrizuruPublisherException;
+import com.financialforce.orizuru.message.Context;
+
+public class PublishingSubscriberTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForAnInvalidWindow() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new PublishingSubscriber<GenericContainer>(publisher(), mock(Context.class), 0);
+
+	}
+
+	@Test
+	public void onSubscribe_shouldRequestTheWindowAndCancelASecondSubscription() {
+
+		// given
+		PublishingSubscriber<GenericContainer> subscriber = new PublishingSubscriber<GenericContainer>(publisher(), mock(Context.class));
+		Subscription first = mock(Subscription.class);
+		Subscription second = mock(Subscription.class);
+
+		// when
+		subscriber.onSubscribe(first);
+		subscriber.onSubscribe(second);
+
+		// then
+		verify(first, times(1)).request(PublishingSubscriber.DEFAULT_MAX_IN_FLIGHT);
+		verify(second, times(1)).cancel();
+		verify(second, never()).request(PublishingSubscriber.DEFAULT_MAX_IN_FLIGHT);
+		assertEquals(PublishingSubscriber.DEFAULT_MAX_IN_FLIGHT, subscriber.getMaxInFlight());
+
+	}
+
+	@Test
+	public void onNext_shouldRequestMoreAsPublishesAreConfirmed() throws Exception {
+
+		// given
+		List<CompletableFuture<Void>> confirms = new ArrayList<CompletableFuture<Void>>();
+		DefaultPublisher<GenericContainer> publisher = publisher();
+		when(publisher.publishAsync(any(), any())).thenAnswer(invocation -> {
+			CompletableFuture<Void> confirmed = new CompletableFuture<Void>();
+			confirms.add(confirmed);
+			return confirmed;
+		});
+
+		Subscription subscription = mock(Subscription.class);
+		PublishingSubscriber<GenericContainer> subscriber = new PublishingSubscriber<GenericContainer>(publisher, mock(Context.class), 4, Runnable::run);
+		subscriber.onSubscribe(subscription);
+
+		// when
+		for (int i = 0; i < 4; i++) {
+			subscriber.onNext(mock(GenericContainer.class));
+		}
+		confirms.get(0).complete(null);
+
+		// then
+		assertEquals(3, subscriber.getInFlight());
+		verify(subscription, times(1)).request(4);
+
+		// when
+		confirms.get(1).complete(null);
+
+		// then
+		assertEquals(2, subscriber.getInFlight());
+		assertEquals(2, subscriber.getPublished());
+		verify(subscription, times(1)).request(2);
+
+	}
+
+	@Test
+	public void onComplete_shouldCompleteOnceEveryPublishIsConfirmed() throws Exception {
+
+		// given
+		CompletableFuture<Void> confirmed = new CompletableFuture<Void>();
+		DefaultPublisher<GenericContainer> publisher = publisher();
+		when(publisher.publishAsync(any(), any())).thenReturn(confirmed);
+
+		Subscription subscription = mock(Subscription.class);
+		PublishingSubscriber<GenericContainer> subscriber = new PublishingSubscriber<GenericContainer>(publisher, mock(Context.class), 1, Runnable::run);
+		subscriber.onSubscribe(subscription);
+		subscriber.onNext(mock(GenericContainer.class));
+
+		// when
+		subscriber.onComplete();
+
+		// then
+		assertFalse(subscriber.getCompletion().isDone());
+		confirmed.complete(null);
+		assertTrue(subscriber.getCompletion().isDone());
+		assertFalse(subscriber.getCompletion().isCompletedExceptionally());
+		verify(subscription, times(1)).request(1);
+
+	}
+
+	@Test
+	public void onComplete_shouldCompleteImmediatelyWithNothingInFlight() {
+
+		// given
+		PublishingSubscriber<GenericContainer> subscriber = new PublishingSubscriber<GenericContainer>(publisher(), mock(Context.class));
+		subscriber.onSubscribe(mock(Subscription.class));
+
+		// when
+		subscriber.onComplete();
+
+		// then
+		assertTrue(subscriber.getCompletion().isDone());
+
+	}
+
+	@Test
+	public void onNext_shouldCancelTheSubscriptionIfAPublishIsRejected() throws Exception {
+
+		// given
+		CompletableFuture<Void> confirmed = new CompletableFuture<Void>();
+		DefaultPublisher<GenericContainer> publisher = publisher();
+		when(publisher.publishAsync(any(), any())).thenReturn(confirmed);
+
+		Subscription subscription = mock(Subscription.class);
+		PublishingSubscriber<GenericContainer> subscriber = new PublishingSubscriber<GenericContainer>(publisher, mock(Context.class), 1, Runnable::run);
+		subscriber.onSubscribe(subscription);
+		subscriber.onNext(mock(GenericContainer.class));
+
+		// when
+		confirmed.completeExceptionally(new IllegalStateException("nack"));
+		subscriber.onNext(mock(GenericContainer.class));
+
+		// then
+		verify(subscription, times(1)).cancel();
+		verify(publisher, times(1)).publishAsync(any(), any());
+
+		exception.expect(ExecutionException.class);
+		subscriber.getCompletion().get();
+
+	}
+
+	@Test
+	public void onNext_shouldCancelTheSubscriptionIfAMessageCannotBeSent() throws Exception {
+
+		// given
+		OrizuruPublisherException failure = new OrizuruPublisherException(new IllegalStateException());
+		DefaultPublisher<GenericContainer> publisher = publisher();
+		when(publisher.publishAsync(any(), any())).thenThrow(failure);
+
+		Subscription subscription = mock(Subscription.class);
+		PublishingSubscriber<GenericContainer> subscriber = new PublishingSubscriber<GenericContainer>(publisher, mock(Context.class));
+		subscriber.onSubscribe(subscription);
+
+		// when
+		subscriber.onNext(mock(GenericContainer.class));
+		subscriber.onError(new IllegalStateException());
+
+		// then
+		verify(subscription, times(1)).cancel();
+		try {
+			subscriber.getCompletion().get();
+		} catch (ExecutionException ex) {
+			assertSame(failure, ex.getCause());
+		}
+
+	}
+
+	@Test
+	public void onError_shouldCompleteExceptionally() {
+
+		// given
+		PublishingSubscriber<GenericContainer> subscriber = new PublishingSubscriber<GenericContainer>(publisher(), mock(Context.class));
+
+		// when
+		subscriber.onError(new IllegalStateException());
+
+		// then
+		assertTrue(subscriber.getCompletion().isCompletedExceptionally());
+
+	}
+
+	@Test
+	public void onComplete_shouldShutDownTheOwnedExecutor() throws Exception {
+
+		// given
+		CompletableFuture<Void> confirmed = new CompletableFuture<Void>();
+		DefaultPublisher<GenericContainer> publisher = publisher();
+		when(publisher.publishAsync(any(), any())).thenReturn(confirmed);
+
+		PublishingSubscriber<GenericContainer> subscriber = new PublishingSubscriber<GenericContainer>(publisher, mock(Context.class), 1);
+		subscriber.onSubscribe(mock(Subscription.class));
+		subscriber.onNext(mock(GenericContainer.class));
+		subscriber.onComplete();
+
+		// when
+		confirmed.complete(null);
+
+		// then
+		subscriber.getCompletion().get(5, TimeUnit.SECONDS);
+		ExecutorService executor = (ExecutorService) subscriber.getExecutor();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+	}
+
+	@Test
+	public void onNext_shouldNeverRequestMoreOrPublishOnTheConnectionThreadWhenStreamingFromAConsumer() throws Exception {
+
+		// given
+		List<CompletableFuture<Void>> confirms = new CopyOnWriteArrayList<CompletableFuture<Void>>();
+		List<Thread> publishing = new CopyOnWriteArrayList<Thread>();
+		DefaultPublisher<GenericContainer> publisher = publisher();
+		when(publisher.publishAsync(any(), any())).thenAnswer(invocation -> {
+			publishing.add(Thread.currentThread());
+			CompletableFuture<Void> confirmed = new CompletableFuture<Void>();
+			confirms.add(confirmed);
+			return confirmed;
+		});
+
+		List<Thread> qos = new CopyOnWriteArrayList<Thread>();
+		Channel channel = mock(Channel.class);
+		doAnswer(invocation -> qos.add(Thread.currentThread())).when(channel).basicQos(anyInt(), anyBoolean());
+
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(channel, "input");
+		PublishingSubscriber<GenericContainer> subscriber = new PublishingSubscriber<GenericContainer>(publisher, mock(Context.class), 2);
+		consumer.subscribe(subscriber);
+
+		consumer.handleMessage(null, mock(GenericContainer.class));
+		consumer.handleMessage(null, mock(GenericContainer.class));
+
+		// when
+		Thread connection = new Thread(() -> confirms.forEach(confirmed -> confirmed.complete(null)), "connection");
+		connection.start();
+		connection.join(5000);
+		consumer.handleMessage(null, mock(GenericContainer.class));
+		consumer.handleMessage(null, mock(GenericContainer.class));
+
+		// then
+		assertFalse(connection.isAlive());
+		assertEquals(4, publishing.size());
+		assertFalse(publishing.contains(connection));
+		assertFalse(qos.contains(connection));
+		assertEquals(2, subscriber.getInFlight());
+		assertEquals(2, subscriber.getPublished());
+
+	}
+
+	@SuppressWarnings("unchecked")
+	private static DefaultPublisher<GenericContainer> publisher() {
+		return mock(DefaultPublisher.class);
+	}
+
+}
@@ -0,0 +1,453 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+public class ReassemblerTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForInvalidLimits() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new Reassembler(1, 0, 1, 1, null);
+
+	}
+
+	@Test
+	public void add_shouldReassembleChunksDeliveredInAnyOrder() throws Exception {
+
+		// given
+		Reassembler reassembler = new Reassembler();
+		Chunker chunker = new Chunker(4);
+		byte[] body = "0123456789".getBytes();
+
+		// when/then
+		assertNull(add(reassembler, chunker, "a", 2, body));
+		assertNull(add(reassembler, chunker, "a", 0, body));
+		assertEquals(1, reassembler.getPending());
+		assertArrayEquals(body, add(reassembler, chunker, "a", 1, body));
+		assertEquals(0, reassembler.getPending());
+
+	}
+
+	@Test
+	public void add_shouldIgnoreARedeliveredChunk() throws Exception {
+
+		// given
+		Reassembler reassembler = new Reassembler();
+		Chunker chunker = new Chunker(4);
+		byte[] body = "012345".getBytes();
+
+		// when/then
+		assertNull(add(reassembler, chunker, "a", 0, body));
+		assertNull(add(reassembler, chunker, "a", 0, body));
+		assertArrayEquals(body, add(reassembler, chunker, "a", 1, body));
+
+	}
+
+	@Test
+	public void add_shouldReturnTheDeliveryOfEveryChunkWithTheMessage() throws Exception {
+
+		// given
+		Reassembler reassembler = new Reassembler();
+		Chunker chunker = new Chunker(4);
+		byte[] body = "012345".getBytes();
+		Envelope first = envelope(1);
+		Envelope redelivered = new Envelope(2, true, "", "input");
+		Envelope last = envelope(3);
+
+		// when
+		reassembler.add(first, chunker.getProperties(null, "a", 0, body), chunker.getChunk(body, 0));
+		reassembler.add(redelivered, chunker.getProperties(null, "a", 0, body), chunker.getChunk(body, 0));
+		Reassembler.Message message = reassembler.add(last, chunker.getProperties(null, "a", 1, body), chunker.getChunk(body, 1));
+
+		// then
+		assertArrayEquals(body, message.getBody());
+		assertEquals(Arrays.asList(first, redelivered, last), message.getEnvelopes());
+		assertTrue(reassembler.takeDiscarded().isEmpty());
+
+	}
+
+	@Test
+	public void takeDiscarded_shouldReturnTheDeliveriesOfDiscardedMessagesOnce() throws Exception {
+
+		// given
+		Reassembler reassembler = new Reassembler(1000, 1, 1000, 60000, null);
+		Chunker chunker = new Chunker(4);
+		byte[] body = "012345".getBytes();
+		Envelope discarded = envelope(1);
+		reassembler.add(discarded, chunker.getProperties(null, "a", 0, body), chunker.getChunk(body, 0));
+		reassembler.add(envelope(2), chunker.getProperties(null, "b", 0, body), chunker.getChunk(body, 0));
+
+		// when
+		List<Envelope> taken = reassembler.takeDiscarded();
+
+		// then
+		assertEquals(Collections.singletonList(discarded), taken);
+		assertTrue(reassembler.takeDiscarded().isEmpty());
+
+	}
+
+	@Test
+	public void add_shouldSpillLargeMessagesToAMemoryMappedFile() throws Exception {
+
+		// given
+		Reassembler reassembler = new Reassembler(1000000, 4, 100, 60000, folder.getRoot());
+		Reassembler defaultDirectory = new Reassembler(1000000, 4, 100, 60000, null);
+		Chunker chunker = new Chunker(1000);
+		byte[] body = new byte[5000];
+		new Random(1).nextBytes(body);
+
+		// when
+		byte[] reassembled = null;
+		byte[] other = null;
+		for (int i = 4; i >= 0; i--) {
+			reassembled = add(reassembler, chunker, "a", i, body);
+			other = add(defaultDirectory, chunker, "a", i, body);
+		}
+
+		// then
+		assertArrayEquals(body, reassembled);
+		assertArrayEquals(body, other);
+		assertEquals(0, folder.getRoot().list().length);
+
+	}
+
+	@Test
+	public void add_shouldDiscardTheOldestMessageWhenFull() throws Exception {
+
+		// given
+		Reassembler reassembler = new Reassembler(1000, 2, 1000, 60000, null);
+		Chunker chunker = new Chunker(4);
+		byte[] body = "012345".getBytes();
+
+		// when
+		add(reassembler, chunker, "a", 0, body);
+		add(reassembler, chunker, "b", 0, body);
+		add(reassembler, chunker, "b", 0, body);
+		add(reassembler, chunker, "c", 0, body);
+
+		// then
+		assertEquals(2, reassembler.getPending());
+		assertEquals(1, reassembler.getDiscarded());
+		assertEquals(1, reassembler.takeDiscarded().size());
+		assertNull(add(reassembler, chunker, "a", 1, body));
+
+	}
+
+	@Test
+	public void add_shouldDiscardExpiredMessages() throws Exception {
+
+		// given
+		Reassembler reassembler = new Reassembler(1000, 10, 1000, 1, null);
+		Chunker chunker = new Chunker(4);
+		byte[] body = "012345".getBytes();
+		add(reassembler, chunker, "a", 0, body);
+		Thread.sleep(10);
+
+		// when
+		add(reassembler, chunker, "b", 0, body);
+
+		// then
+		assertEquals(1, reassembler.getPending());
+		assertEquals(1, reassembler.getDiscarded());
+		assertEquals(1, reassembler.takeDiscarded().size());
+
+	}
+
+	@Test
+	public void clear_shouldDiscardEveryPartialMessage() throws Exception {
+
+		// given
+		Reassembler reassembler = new Reassembler();
+		Chunker chunker = new Chunker(4);
+		add(reassembler, chunker, "a", 0, "012345".getBytes());
+
+		// when
+		reassembler.clear();
+
+		// then
+		assertEquals(0, reassembler.getPending());
+		assertEquals(1, reassembler.getDiscarded());
+		assertEquals(1, reassembler.takeDiscarded().size());
+
+	}
+
+	@Test
+	public void add_shouldThrowAnIOExceptionForAMessageThatIsTooLong() throws Exception {
+
+		// given
+		Reassembler reassembler = new Reassembler(5, 1, 1, 1, null);
+
+		// expect
+		exception.expect(IOException.class);
+		exception.expectMessage("Chunked message a of 6 bytes exceeds the maximum of 5");
+
+		// when
+		add(reassembler, new Chunker(4), "a", 0, "012345".getBytes());
+
+	}
+
+	@Test
+	public void add_shouldThrowAnIOExceptionForAChunkOutsideTheMessage() throws Exception {
+
+		// given
+		Reassembler reassembler = new Reassembler();
+
+		// expect
+		exception.expect(IOException.class);
+		exception.expectMessage("Invalid chunk 2 of message a");
+
+		// when
+		reassembler.add(envelope(1), new Chunker(4).getProperties(null, "a", 2, "012345".getBytes()), new byte[1]);
+
+	}
+
+	@Test
+	public void add_shouldThrowAnIOExceptionForAMissingHeader() throws Exception {
+
+		// given
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put(Chunker.ID_HEADER, "a");
+
+		// expect
+		exception.expect(IOException.class);
+		exception.expectMessage("Missing chunk header " + Chunker.INDEX_HEADER);
+
+		// when
+		new Reassembler().add(envelope(1), new AMQP.BasicProperties.Builder().headers(headers).build(), new byte[1]);
+
+	}
+
+	@Test
+	public void add_shouldRejectInvalidChunkPositions() throws Exception {
+
+		// given
+		Reassembler reassembler = new Reassembler();
+		int rejected = 0;
+		int[][] positions = { { -1, 0 }, { 0, -1 }, { 0, 4 } };
+
+		// when
+		for (int[] position : positions) {
+			Map<String, Object> headers = new HashMap<String, Object>();
+			headers.put(Chunker.ID_HEADER, "a");
+			headers.put(Chunker.INDEX_HEADER, position[0]);
+			headers.put(Chunker.OFFSET_HEADER, position[1]);
+			headers.put(Chunker.COUNT_HEADER, 2);
+			headers.put(Chunker.LENGTH_HEADER, 6);
+			try {
+				reassembler.add(envelope(1), new AMQP.BasicProperties.Builder().headers(headers).build(), new byte[4]);
+			} catch (IOException expected) {
+				rejected++;
+			}
+		}
+
+		// then
+		assertEquals(3, rejected);
+
+	}
+
+	@Test
+	public void add_shouldRejectChunksWhoseLayoutIsInconsistent() throws Exception {
+
+		// given
+		Reassembler reassembler = new Reassembler();
+		int rejected = 0;
+		int[][] chunks = { { 0, 0, 2 }, { 1, 4, 1 }, { 1, 2, 4 }, { 0, 1, 4 } };
+
+		// when
+		for (int[] chunk : chunks) {
+			Map<String, Object> headers = new HashMap<String, Object>();
+			headers.put(Chunker.ID_HEADER, "a" + rejected);
+			headers.put(Chunker.INDEX_HEADER, chunk[0]);
+			headers.put(Chunker.OFFSET_HEADER, chunk[1]);
+			headers.put(Chunker.COUNT_HEADER, 2);
+			headers.put(Chunker.LENGTH_HEADER, 6);
+			try {
+				reassembler.add(envelope(1), new AMQP.BasicProperties.Builder().headers(headers).build(), new byte[chunk[2]]);
+			} catch (IOException expected) {
+				rejected++;
+			}
+		}
+
+		// then
+		assertEquals(4, rejected);
+		assertEquals(0, reassembler.getPending());
+
+	}
+
+	@Test
+	public void add_shouldRejectTheWholeMessageIfAChunkDoesNotMatchItsFirstChunk() throws Exception {
+
+		// given
+		Reassembler reassembler = new Reassembler();
+		add(reassembler, new Chunker(4), "a", 0, "012345".getBytes());
+		byte[] other = "0123456789".getBytes();
+
+		// expect
+		exception.expect(IOException.class);
+		exception.expectMessage("Chunk 1 of message a does not match the message's other chunks");
+
+		// when
+		try {
+			add(reassembler, new Chunker(4), "a", 1, other);
+		} finally {
+			assertEquals(0, reassembler.getPending());
+			assertEquals(1, reassembler.getDiscarded());
+			assertEquals(1, reassembler.takeDiscarded().get(0).getDeliveryTag());
+		}
+
+	}
+
+	@Test
+	public void add_shouldAcceptAShortLastChunk() throws Exception {
+
+		// given
+		Reassembler reassembler = new Reassembler();
+		byte[] body = "0123456789".getBytes();
+		Chunker chunker = new Chunker(4);
+
+		// when
+		assertNull(add(reassembler, chunker, "a", 2, body));
+		assertNull(add(reassembler, chunker, "a", 0, body));
+
+		// then
+		assertArrayEquals(body, add(reassembler, chunker, "a", 1, body));
+
+	}
+
+	@Test
+	public void add_shouldRejectAMessageWithMoreChunksThanTheConsumerCanHold() throws Exception {
+
+		// given
+		Reassembler reassembler = new Reassembler();
+		reassembler.setMaxChunks(2);
+
+		// expect
+		exception.expect(IOException.class);
+		exception.expectMessage("Chunked message a has 3 chunks, more than the 2 the consumer can hold");
+
+		// when
+		add(reassembler, new Chunker(2), "a", 0, "012345".getBytes());
+
+	}
+
+	@Test
+	public void add_shouldDiscardOtherMessagesOnceTheChunksHeldReachTheLimit() throws Exception {
+
+		// given
+		Chunker chunker = new Chunker(2);
+		byte[] body = "012345".getBytes();
+		Reassembler reassembler = new Reassembler();
+		reassembler.setMaxChunks(3);
+		assertNull(add(reassembler, chunker, "a", 0, body));
+		assertNull(add(reassembler, chunker, "b", 0, body));
+
+		// when
+		assertNull(add(reassembler, chunker, "b", 1, body));
+
+		// then
+		assertEquals(1, reassembler.getPending());
+		assertEquals(2, reassembler.getHeld());
+		assertEquals(1, reassembler.takeDiscarded().get(0).getDeliveryTag());
+		assertArrayEquals(body, add(reassembler, chunker, "b", 2, body));
+		assertEquals(0, reassembler.getHeld());
+
+	}
+
+	@Test
+	public void add_shouldDiscardTheMessageReceivingChunksIfItsDuplicatesReachTheLimit() throws Exception {
+
+		// given
+		Chunker chunker = new Chunker(2);
+		byte[] body = "012345".getBytes();
+		Reassembler reassembler = new Reassembler();
+		reassembler.setMaxChunks(3);
+		assertNull(add(reassembler, chunker, "a", 0, body));
+		assertNull(add(reassembler, chunker, "a", 0, body));
+
+		// when
+		assertNull(add(reassembler, chunker, "a", 0, body));
+
+		// then
+		assertEquals(0, reassembler.getPending());
+		assertEquals(0, reassembler.getHeld());
+		assertEquals(3, reassembler.takeDiscarded().size());
+
+	}
+
+	@Test
+	public void setMaxChunks_shouldRejectANegativeLimit() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+		exception.expectMessage("Maximum chunks must not be negative");
+
+		// when
+		new Reassembler().setMaxChunks(-1);
+
+	}
+
+	private static byte[] add(Reassembler reassembler, Chunker chunker, String id, int index, byte[] body) throws IOException {
+		Reassembler.Message message = reassembler.add(envelope(index + 1), chunker.getProperties(null, id, index, body), chunker.getChunk(body, index));
+		return message == null ? null : message.getBody();
+	}
+
+	private static Envelope envelope(long deliveryTag) {
+		return new Envelope(deliveryTag, false, "", "input");
+	}
+
+}
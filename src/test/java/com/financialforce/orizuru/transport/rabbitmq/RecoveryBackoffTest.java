@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class RecoveryBackoffTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForInvalidDelays() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new RecoveryBackoff(100, 10);
+
+	}
+
+	@Test
+	public void constructor_shouldUseTheDefaultDelays() {
+
+		// when
+		RecoveryBackoff backoff = new RecoveryBackoff();
+
+		// then
+		assertEquals(RecoveryBackoff.DEFAULT_INITIAL_DELAY_MILLIS, backoff.getInitialDelayMillis());
+		assertEquals(RecoveryBackoff.DEFAULT_MAX_DELAY_MILLIS, backoff.getMaxDelayMillis());
+
+	}
+
+	@Test
+	public void getDelay_shouldDoubleTheDelayWithJitter() {
+
+		// given
+		RecoveryBackoff backoff = new RecoveryBackoff(100, 1000);
+
+		for (int i = 0; i < 100; i++) {
+
+			// when
+			long first = backoff.getDelay(0);
+			long third = backoff.getDelay(2);
+
+			// then
+			assertTrue(first >= 50 && first <= 100);
+			assertTrue(third >= 200 && third <= 400);
+
+		}
+
+	}
+
+	@Test
+	public void getDelay_shouldNotExceedTheMaximumDelay() {
+
+		// given
+		RecoveryBackoff backoff = new RecoveryBackoff(100, 1000);
+
+		for (int i = 0; i < 100; i++) {
+
+			// when
+			long delay = backoff.getDelay(Integer.MAX_VALUE);
+
+			// then
+			assertTrue(delay >= 500 && delay <= 1000);
+
+		}
+
+	}
+
+	@Test
+	public void schedule_shouldRunTheTaskAfterTheDelay() throws Exception {
+
+		// given
+		RecoveryBackoff backoff = new RecoveryBackoff(1, 1);
+		CountDownLatch ran = new CountDownLatch(1);
+
+		// when
+		backoff.schedule(0, ran::countDown);
+
+		// then
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+
+	}
+
+}
@@ -0,0 +1,484 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ReturnListener;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
+
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+
+public class RetryPipelineTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	private ChannelPool channelPool;
+
+	private ConnectionPool connectionPool;
+
+	private Channel channel;
+
+	private Channel confirmChannel;
+
+	private ConfirmListener confirms;
+
+	private ReturnListener returns;
+
+	@Before
+	public void before() throws Exception {
+
+		channelPool = mock(ChannelPool.class);
+		connectionPool = mock(ConnectionPool.class);
+		channel = mock(Channel.class);
+		confirmChannel = mock(Channel.class);
+		when(channelPool.lease()).thenReturn(channel);
+		when(channelPool.getConnectionPool()).thenReturn(connectionPool);
+		when(connectionPool.createChannel()).thenReturn(confirmChannel);
+		when(confirmChannel.isOpen()).thenReturn(true);
+
+		AtomicLong seqNo = new AtomicLong(1);
+		when(confirmChannel.getNextPublishSeqNo()).thenAnswer(invocation -> seqNo.get());
+		doAnswer(invocation -> {
+			confirms = invocation.getArgument(0);
+			return null;
+		}).when(confirmChannel).addConfirmListener(any(ConfirmListener.class));
+		doAnswer(invocation -> {
+			returns = invocation.getArgument(0);
+			return null;
+		}).when(confirmChannel).addReturnListener(any(ReturnListener.class));
+		doAnswer(invocation -> {
+			confirms.handleAck(seqNo.getAndIncrement(), false);
+			return null;
+		}).when(confirmChannel).basicPublish(anyString(), anyString(), anyBoolean(), any(), any());
+
+	}
+
+	@Test
+	public void declare_shouldDeclareADelayQueuePerRetryAndAParkingQueue() throws Exception {
+
+		// given
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy(100, 1000));
+
+		// when
+		pipeline.declare();
+
+		// then
+		@SuppressWarnings("unchecked")
+		ArgumentCaptor<Map<String, Object>> arguments = ArgumentCaptor.forClass((Class<Map<String, Object>>) (Class<?>) Map.class);
+		verify(channel, times(1)).queueDeclare(eq("input.retry.100"), eq(true), eq(false), eq(false), arguments.capture());
+		assertEquals(100L, arguments.getValue().get("x-message-ttl"));
+		assertEquals("", arguments.getValue().get("x-dead-letter-exchange"));
+		assertEquals("input", arguments.getValue().get("x-dead-letter-routing-key"));
+		verify(channel, times(1)).queueDeclare(eq("input.retry.1000"), eq(true), eq(false), eq(false), any());
+		verify(channel, times(1)).queueDeclare("input.parked", true, false, false, null);
+		verify(channelPool, times(1)).release(channel);
+
+	}
+
+	@Test
+	public void declare_shouldThrowAMessagingExceptionIfAQueueCannotBeDeclared() throws Exception {
+
+		// given
+		when(channel.queueDeclare(anyString(), anyBoolean(), anyBoolean(), anyBoolean(), isNull())).thenThrow(IOException.class);
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy());
+
+		// expect
+		exception.expect(MessagingException.class);
+		exception.expectMessage("Failed to declare retry queues");
+
+		// when
+		try {
+			pipeline.declare();
+		} finally {
+			verify(channelPool, times(1)).release(channel);
+		}
+
+	}
+
+	@Test
+	public void route_shouldMoveAFirstFailureToTheFirstDelayQueue() throws Exception {
+
+		// given
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy(100, 1000));
+		byte[] body = "test".getBytes();
+
+		// when
+		String target = pipeline.route(null, body, new IllegalStateException("failed")).get(5, TimeUnit.SECONDS);
+
+		// then
+		ArgumentCaptor<AMQP.BasicProperties> properties = ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+		verify(confirmChannel, times(1)).basicPublish(eq(""), eq("input.retry.100"), eq(true), properties.capture(), eq(body));
+		assertEquals("input.retry.100", target);
+		assertEquals(1, RetryPipeline.getAttempts(properties.getValue()));
+		assertEquals("java.lang.IllegalStateException: failed", properties.getValue().getHeaders().get(RetryPipeline.ERROR_HEADER));
+		assertEquals(1, getSequence(properties.getValue()));
+
+	}
+
+	@Test
+	public void route_shouldKeepThePropertiesAndCountTheAttempts() throws Exception {
+
+		// given
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy(100, 1000));
+		AMQP.BasicProperties original = new AMQP.BasicProperties.Builder()
+			.deliveryMode(2)
+			.headers(Collections.<String, Object>singletonMap(RetryPipeline.ATTEMPTS_HEADER, 1L))
+			.build();
+
+		// when
+		String target = pipeline.route(original, new byte[0], new IllegalStateException()).get(5, TimeUnit.SECONDS);
+
+		// then
+		ArgumentCaptor<AMQP.BasicProperties> properties = ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+		verify(confirmChannel, times(1)).basicPublish(eq(""), eq("input.retry.1000"), eq(true), properties.capture(), any());
+		assertEquals("input.retry.1000", target);
+		assertEquals(2, RetryPipeline.getAttempts(properties.getValue()));
+		assertEquals(Integer.valueOf(2), properties.getValue().getDeliveryMode());
+
+	}
+
+	@Test
+	public void route_shouldParkAMessageOnceItsRetriesAreUsedUp() throws Exception {
+
+		// given
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy(100));
+		AMQP.BasicProperties original = new AMQP.BasicProperties.Builder()
+			.headers(Collections.<String, Object>singletonMap(RetryPipeline.ATTEMPTS_HEADER, 1))
+			.build();
+
+		// when/then
+		assertEquals("input.parked", pipeline.route(original, new byte[0], new IllegalStateException()).get(5, TimeUnit.SECONDS));
+
+	}
+
+	@Test
+	public void route_shouldParkAFailureThatIsNotRetryable() throws Exception {
+
+		// given
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy(cause -> false, 100));
+
+		// when/then
+		assertEquals("input.parked", pipeline.route(new AMQP.BasicProperties(), new byte[0], new IllegalStateException()).get(5, TimeUnit.SECONDS));
+
+	}
+
+	@Test
+	public void route_shouldPublishOnADedicatedConfirmModeChannel() throws Exception {
+
+		// given
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy(100));
+
+		// when
+		pipeline.route(null, new byte[0], new IllegalStateException()).get(5, TimeUnit.SECONDS);
+		pipeline.route(null, new byte[0], new IllegalStateException()).get(5, TimeUnit.SECONDS);
+
+		// then
+		verify(connectionPool, times(1)).createChannel();
+		verify(confirmChannel, times(1)).confirmSelect();
+		verify(confirmChannel, times(1)).addReturnListener(any(ReturnListener.class));
+		verify(confirmChannel, times(2)).basicPublish(eq(""), eq("input.retry.100"), eq(true), any(), any());
+		verify(confirmChannel, never()).waitForConfirmsOrDie(anyLong());
+		verify(channelPool, never()).lease();
+		verify(channel, never()).confirmSelect();
+
+	}
+
+	@Test
+	public void route_shouldCreateANewChannelOnceTheLastIsClosedForGood() throws Exception {
+
+		// given
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy(100));
+		pipeline.route(null, new byte[0], new IllegalStateException()).get(5, TimeUnit.SECONDS);
+		when(confirmChannel.isOpen()).thenReturn(false);
+
+		// when
+		pipeline.route(null, new byte[0], new IllegalStateException()).get(5, TimeUnit.SECONDS);
+
+		// then
+		verify(connectionPool, times(2)).createChannel();
+		verify(confirmChannel, times(2)).confirmSelect();
+
+	}
+
+	@Test
+	public void route_shouldFailIfTheChannelCannotBeCreated() throws Exception {
+
+		// given
+		when(connectionPool.createChannel()).thenThrow(new MessagingException("Failed to create channel", null));
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy());
+
+		// when
+		Throwable failure = getFailure(pipeline.route(null, new byte[0], new IllegalStateException()));
+
+		// then
+		assertTrue(failure instanceof MessagingException);
+		assertEquals("Failed to route message to input.retry.1000", failure.getMessage());
+		assertEquals("Failed to create channel", failure.getCause().getMessage());
+
+	}
+
+	@Test
+	public void route_shouldFailIfTheMessageCannotBePublished() throws Exception {
+
+		// given
+		doThrow(IOException.class).when(confirmChannel).basicPublish(anyString(), anyString(), anyBoolean(), any(), any());
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy());
+
+		// when
+		Throwable failure = getFailure(pipeline.route(null, new byte[0], new IllegalStateException()));
+
+		// then
+		assertTrue(failure instanceof MessagingException);
+		assertEquals("Failed to route message to input.retry.1000", failure.getMessage());
+		assertTrue(failure.getCause() instanceof IOException);
+
+	}
+
+	@Test
+	public void route_shouldFailIfTheMessageIsRejectedByTheBroker() throws Exception {
+
+		// given
+		doAnswer(invocation -> {
+			confirms.handleNack(1, false);
+			return null;
+		}).when(confirmChannel).basicPublish(anyString(), anyString(), anyBoolean(), any(), any());
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy());
+
+		// when
+		Throwable failure = getFailure(pipeline.route(null, new byte[0], new IllegalStateException()));
+
+		// then
+		assertEquals("Failed to route message to input.retry.1000", failure.getMessage());
+		assertEquals("Message was rejected by the broker", failure.getCause().getMessage());
+		verify(confirmChannel, never()).close();
+
+	}
+
+	@Test
+	public void route_shouldFailIfTheMessageIsNotConfirmedInTime() throws Exception {
+
+		// given
+		doNothing().when(confirmChannel).basicPublish(anyString(), anyString(), anyBoolean(), any(), any());
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy());
+		pipeline.setConfirmTimeoutMillis(50);
+
+		// when
+		Throwable failure = getFailure(pipeline.route(null, new byte[0], new IllegalStateException()));
+
+		// then
+		assertTrue(failure instanceof MessagingException);
+		assertEquals("Message routing to input.retry.1000 was not confirmed within 50ms", failure.getMessage());
+		verify(confirmChannel, never()).close();
+
+	}
+
+	@Test
+	public void route_shouldFailIfTheMessageIsReturned() throws Exception {
+
+		// given
+		doAnswer(invocation -> {
+			AMQP.BasicProperties properties = invocation.getArgument(3);
+			returns.handleReturn(312, "NO_ROUTE", "", "input.parked", properties, new byte[0]);
+			confirms.handleAck(getSequence(properties), false);
+			return null;
+		}).when(confirmChannel).basicPublish(anyString(), anyString(), anyBoolean(), any(), any());
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy(cause -> false, 100));
+
+		// when
+		Throwable failure = getFailure(pipeline.route(null, new byte[0], new IllegalStateException()));
+
+		// then
+		assertTrue(failure instanceof MessagingException);
+		assertEquals("Message returned by the broker routing to input.parked: NO_ROUTE", failure.getMessage());
+
+	}
+
+	@Test
+	public void route_shouldIgnoreAReturnItCannotMatch() throws Exception {
+
+		// given
+		doAnswer(invocation -> {
+			AMQP.BasicProperties properties = invocation.getArgument(3);
+			returns.handleReturn(312, "NO_ROUTE", "", "other", null, new byte[0]);
+			returns.handleReturn(312, "NO_ROUTE", "", "other", new AMQP.BasicProperties(), new byte[0]);
+			confirms.handleAck(getSequence(properties), false);
+			return null;
+		}).when(confirmChannel).basicPublish(anyString(), anyString(), anyBoolean(), any(), any());
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy(100));
+
+		// when/then
+		assertEquals("input.retry.100", pipeline.route(null, new byte[0], new IllegalStateException()).get(5, TimeUnit.SECONDS));
+
+	}
+
+	@Test
+	public void route_shouldCompleteOnTheSchedulerRatherThanTheConnectionThread() throws Exception {
+
+		// given
+		doNothing().when(confirmChannel).basicPublish(anyString(), anyString(), anyBoolean(), any(), any());
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "retry-test"));
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy(100), scheduler);
+		AtomicReference<String> thread = new AtomicReference<String>();
+
+		try {
+
+			CompletableFuture<Void> settled = pipeline.route(null, new byte[0], new IllegalStateException()).thenRun(() -> thread.set(Thread.currentThread().getName()));
+
+			// when
+			Thread connection = new Thread(() -> ((ConfirmTracker) confirms).handleAck(1, false), "connection");
+			connection.start();
+			settled.get(5, TimeUnit.SECONDS);
+			pipeline.close();
+
+			// then
+			assertEquals("retry-test", thread.get());
+			assertSame(scheduler, pipeline.getScheduler());
+			assertFalse(scheduler.isShutdown());
+
+		} finally {
+			scheduler.shutdownNow();
+		}
+
+	}
+
+	@Test
+	public void close_shouldCloseTheChannelAndShutDownTheOwnedScheduler() throws Exception {
+
+		// given
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy(100));
+		pipeline.route(null, new byte[0], new IllegalStateException()).get(5, TimeUnit.SECONDS);
+
+		// when
+		pipeline.close();
+		pipeline.close();
+
+		// then
+		verify(confirmChannel, times(1)).close();
+		assertTrue(pipeline.getScheduler().isShutdown());
+
+	}
+
+	@Test
+	public void setConfirmTimeoutMillis_shouldRejectANonPositiveTimeout() {
+
+		// given
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", new RetryPolicy());
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+		exception.expectMessage("Confirm timeout must be at least 1 millisecond");
+
+		// when
+		pipeline.setConfirmTimeoutMillis(0);
+
+	}
+
+	@Test
+	public void getAttempts_shouldIgnoreAnInvalidHeader() {
+
+		// given
+		AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+			.headers(Collections.<String, Object>singletonMap(RetryPipeline.ATTEMPTS_HEADER, "one"))
+			.build();
+
+		// when/then
+		assertEquals(0, RetryPipeline.getAttempts(properties));
+		assertEquals(0, RetryPipeline.getAttempts(new AMQP.BasicProperties()));
+
+	}
+
+	@Test
+	public void getQueueName_shouldReturnTheSourceQueue() {
+
+		// given
+		RetryPolicy policy = new RetryPolicy();
+
+		// when
+		RetryPipeline pipeline = new RetryPipeline(channelPool, "input", policy);
+
+		// then
+		assertEquals("input", pipeline.getQueueName());
+		assertSame(policy, pipeline.getPolicy());
+		assertEquals(RetryPipeline.DEFAULT_CONFIRM_TIMEOUT_MILLIS, pipeline.getConfirmTimeoutMillis());
+
+	}
+
+	private static Throwable getFailure(CompletableFuture<String> routed) throws Exception {
+
+		try {
+			routed.get(5, TimeUnit.SECONDS);
+		} catch (ExecutionException ex) {
+			return ex.getCause();
+		}
+
+		throw new AssertionError("Expected the route to fail");
+
+	}
+
+	private static long getSequence(AMQP.BasicProperties properties) {
+		return ((Number) properties.getHeaders().get(RetryPipeline.SEQUENCE_HEADER)).longValue();
+	}
+
+}
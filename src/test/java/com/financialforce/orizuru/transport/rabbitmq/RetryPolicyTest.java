@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.financialforce.orizuru.exception.consumer.decode.DecodeMessageContentException;
+import com.financialforce.orizuru.exception.consumer.decode.DecodeMessageException;
+import com.financialforce.orizuru.exception.consumer.decode.DecodeTransportException;
+
+public class RetryPolicyTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForANonPositiveDelay() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new RetryPolicy(1000, 0);
+
+	}
+
+	@Test
+	public void constructor_shouldUseTheDefaultDelays() {
+
+		// when
+		RetryPolicy policy = new RetryPolicy();
+
+		// then
+		assertEquals(3, policy.getMaxRetries());
+		assertArrayEquals(new long[] { 1000, 10000, 60000 }, policy.getDelays());
+
+	}
+
+	@Test
+	public void getDelay_shouldReturnTheDelayForEachRetry() {
+
+		// given
+		RetryPolicy policy = new RetryPolicy(5, 50);
+
+		// when/then
+		assertEquals(5, policy.getDelay(1));
+		assertEquals(50, policy.getDelay(2));
+
+	}
+
+	@Test
+	public void isRetryable_shouldNotRetryDecodeFailuresByDefault() {
+
+		// given
+		RetryPolicy policy = new RetryPolicy();
+
+		// when/then
+		assertTrue(policy.isRetryable(new IllegalStateException()));
+		assertFalse(policy.isRetryable(mock(DecodeTransportException.class)));
+		assertFalse(policy.isRetryable(mock(DecodeMessageException.class)));
+		assertFalse(policy.isRetryable(mock(DecodeMessageContentException.class)));
+
+	}
+
+	@Test
+	public void isRetryable_shouldUseTheGivenClassification() {
+
+		// given
+		RetryPolicy policy = new RetryPolicy(cause -> cause instanceof IllegalStateException, 10);
+
+		// when/then
+		assertTrue(policy.isRetryable(new IllegalStateException()));
+		assertFalse(policy.isRetryable(new NullPointerException()));
+
+	}
+
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.rabbitmq.client.Channel;
+
+import org.apache.avro.generic.GenericContainer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.financialforce.orizuru.transport.rabbitmq.exception.MessagingException;
+import com.financialforce.orizuru.transport.rabbitmq.interfaces.IRoutingKeyResolver;
+
+public class ShardedQueueTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	private ChannelPool channelPool;
+
+	private Channel channel;
+
+	@Before
+	public void before() throws Exception {
+		channelPool = mock(ChannelPool.class);
+		channel = mock(Channel.class);
+		when(channelPool.lease()).thenReturn(channel);
+	}
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionWithoutShards() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new ShardedQueue(channelPool, "input", 0);
+
+	}
+
+	@Test
+	public void declare_shouldBindEachShardQueueToTheConsistentHashExchange() throws Exception {
+
+		// given
+		ShardedQueue queue = new ShardedQueue(channelPool, "input", 2);
+
+		// when
+		queue.declare();
+
+		// then
+		verify(channel, times(1)).exchangeDeclare("input.shards", ShardedQueue.EXCHANGE_TYPE, true);
+		verify(channel, times(1)).queueDeclare("input.shard.0", true, false, false, null);
+		verify(channel, times(1)).queueBind("input.shard.0", "input.shards", "1");
+		verify(channel, times(1)).queueDeclare("input.shard.1", true, false, false, null);
+		verify(channel, times(1)).queueBind("input.shard.1", "input.shards", "1");
+		verify(channelPool, times(1)).release(channel);
+
+	}
+
+	@Test
+	public void declare_shouldThrowAMessagingExceptionIfAQueueCannotBeDeclared() throws Exception {
+
+		// given
+		when(channel.queueDeclare(anyString(), anyBoolean(), anyBoolean(), anyBoolean(), isNull())).thenThrow(IOException.class);
+		ShardedQueue queue = new ShardedQueue(channelPool, "input", 2);
+
+		// expect
+		exception.expect(MessagingException.class);
+		exception.expectMessage("Failed to declare sharded queue input");
+
+		// when
+		try {
+			queue.declare();
+		} finally {
+			verify(channelPool, times(1)).release(channel);
+		}
+
+	}
+
+	@Test
+	public void configure_shouldPublishToTheExchangeWithTheShardKey() {
+
+		// given
+		ShardedQueue queue = new ShardedQueue(channelPool, "input", 4);
+		IRoutingKeyResolver<GenericContainer> keys = (context, message) -> "account";
+		DefaultPublisher<GenericContainer> publisher = new DefaultPublisher<GenericContainer>(channel, "input");
+		PooledPublisher<GenericContainer> pooled = new PooledPublisher<GenericContainer>(channelPool, "input");
+
+		// when
+		queue.configure(publisher, keys);
+		queue.configure(pooled, keys);
+
+		// then
+		assertEquals("input.shards", publisher.getExchange());
+		assertEquals(keys, publisher.getRoutingKeyResolver());
+		assertEquals("input.shards", pooled.getExchange());
+		assertEquals(keys, pooled.getRoutingKeyResolver());
+
+	}
+
+	@Test
+	public void getShardQueueNames_shouldReturnTheShardQueuesInOrder() {
+
+		// given
+		ShardedQueue queue = new ShardedQueue(channelPool, "input", 3);
+
+		// when/then
+		assertEquals(Arrays.asList("input.shard.0", "input.shard.1", "input.shard.2"), queue.getShardQueueNames());
+		assertEquals("input", queue.getQueueName());
+		assertEquals(3, queue.getShards());
+
+	}
+
+}
@@ -0,0 +1,579 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.financialforce.orizuru.exception.consumer.handler.HandleMessageException;
+import com.financialforce.orizuru.transport.Transport;
+
+public class StreamingConsumerTest {
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForAnInvalidMaximumPrefetch() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new StreamingConsumer<GenericContainer, GenericContainer>(mock(Channel.class), "input", 0);
+
+	}
+
+	@Test
+	public void request_shouldRaiseThePrefetchCountOnTheNextDelivery() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(channel, "input", 64);
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+
+		// when
+		consumer.subscribe(subscriber);
+		subscriber.subscription.request(10);
+		subscriber.subscription.request(100);
+
+		// then
+		verify(channel, times(1)).basicQos(anyInt(), anyBoolean());
+		verify(channel, times(1)).basicQos(1, true);
+		assertEquals(110, consumer.getDemand());
+		assertEquals(1, consumer.getPrefetch());
+
+		// when
+		consumer.handleMessage(null, mock(GenericContainer.class));
+
+		// then
+		verify(channel, times(1)).basicQos(64, true);
+		assertEquals(64, consumer.getPrefetch());
+		assertEquals(64, consumer.getMaxPrefetch());
+		assertFalse(consumer.isAutoAck());
+
+	}
+
+	@Test
+	public void subscribe_shouldCapTheDemandAtLongMaxValue() throws Exception {
+
+		// given
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(mock(Channel.class), "input");
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		consumer.subscribe(subscriber);
+
+		// when
+		subscriber.subscription.request(Long.MAX_VALUE);
+		subscriber.subscription.request(Long.MAX_VALUE);
+
+		// then
+		assertEquals(Long.MAX_VALUE, consumer.getDemand());
+		consumer.handleMessage(null, mock(GenericContainer.class));
+		assertEquals(StreamingConsumer.DEFAULT_MAX_PREFETCH, consumer.getPrefetch());
+
+	}
+
+	@Test
+	public void subscribe_shouldThrowANullPointerExceptionForANullSubscriber() {
+
+		// given
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(mock(Channel.class), "input");
+
+		// expect
+		exception.expect(NullPointerException.class);
+
+		// when
+		consumer.subscribe(null);
+
+	}
+
+	@Test
+	public void subscribe_shouldRejectASecondSubscriber() throws Exception {
+
+		// given
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(mock(Channel.class), "input");
+		RecordingSubscriber first = new RecordingSubscriber();
+		RecordingSubscriber second = new RecordingSubscriber();
+		consumer.subscribe(first);
+
+		// when
+		consumer.subscribe(second);
+		second.subscription.request(10);
+		second.subscription.cancel();
+
+		// then
+		assertTrue(second.error instanceof IllegalStateException);
+		assertEquals(0, consumer.getDemand());
+		assertNull(first.error);
+
+	}
+
+	@Test
+	public void handleMessage_shouldPassTheMessageToTheSubscriberAndLowerThePrefetchCount() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(channel, "input");
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		consumer.subscribe(subscriber);
+		subscriber.subscription.request(4);
+
+		GenericContainer message = mock(GenericContainer.class);
+
+		// when
+		assertNull(consumer.handleMessage(null, message));
+		consumer.handleMessage(null, message);
+		consumer.handleMessage(null, message);
+
+		// then
+		assertEquals(3, subscriber.messages.size());
+		assertSame(message, subscriber.messages.get(0));
+		assertEquals(1, consumer.getDemand());
+		assertEquals(1, consumer.getPrefetch());
+		verify(channel, times(1)).basicQos(3, true);
+		verify(channel, times(2)).basicQos(1, true);
+
+	}
+
+	@Test
+	public void handleMessage_shouldWaitForDemand() throws Exception {
+
+		// given
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(mock(Channel.class), "input");
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		consumer.subscribe(subscriber);
+
+		Thread delivery = new Thread(() -> {
+			try {
+				consumer.handleMessage(null, mock(GenericContainer.class));
+			} catch (HandleMessageException ex) {
+				throw new IllegalStateException(ex);
+			}
+		});
+
+		// when
+		delivery.start();
+		delivery.join(100);
+
+		// then
+		assertTrue(delivery.isAlive());
+		subscriber.subscription.request(1);
+		delivery.join(5000);
+		assertEquals(1, subscriber.messages.size());
+
+	}
+
+	@Test
+	public void handleMessage_shouldThrowAHandleMessageExceptionOnceCancelled() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(channel, "input");
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		consumer.subscribe(subscriber);
+		consumer.handleConsumeOk("tag");
+		subscriber.subscription.cancel();
+		subscriber.subscription.cancel();
+
+		// expect
+		exception.expect(HandleMessageException.class);
+
+		// when
+		try {
+			consumer.handleMessage(null, mock(GenericContainer.class));
+		} finally {
+			verify(channel, times(1)).basicCancel("tag");
+			assertFalse(subscriber.completed);
+		}
+
+	}
+
+	@Test
+	public void handleMessage_shouldThrowAHandleMessageExceptionIfInterrupted() throws Exception {
+
+		// given
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(mock(Channel.class), "input");
+		consumer.subscribe(new RecordingSubscriber());
+		Thread.currentThread().interrupt();
+
+		// expect
+		exception.expect(HandleMessageException.class);
+
+		// when
+		try {
+			consumer.handleMessage(null, mock(GenericContainer.class));
+		} finally {
+			assertTrue(Thread.interrupted());
+		}
+
+	}
+
+	@Test
+	public void handleMessage_shouldCancelTheConsumerIfTheSubscriberFails() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(channel, "input");
+		RecordingSubscriber subscriber = new RecordingSubscriber() {
+			@Override
+			public void onNext(GenericContainer message) {
+				throw new IllegalStateException("failed");
+			}
+		};
+		consumer.subscribe(subscriber);
+		consumer.handleConsumeOk("tag");
+		subscriber.subscription.request(1);
+
+		// expect
+		exception.expect(HandleMessageException.class);
+
+		// when
+		try {
+			consumer.handleMessage(null, mock(GenericContainer.class));
+		} finally {
+			verify(channel, times(1)).basicCancel("tag");
+		}
+
+	}
+
+	@Test
+	public void handleMessage_shouldNotEmitAfterTheStreamHasEnded() throws Exception {
+
+		// given
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(mock(Channel.class), "input");
+		CountDownLatch emitting = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		RecordingSubscriber subscriber = new RecordingSubscriber() {
+			@Override
+			public void onNext(GenericContainer message) {
+				super.onNext(message);
+				emitting.countDown();
+				await(release);
+			}
+		};
+		consumer.subscribe(subscriber);
+		subscriber.subscription.request(2);
+
+		Thread first = new Thread(() -> handle(consumer, failure));
+		Thread second = new Thread(() -> handle(consumer, failure));
+
+		// when
+		first.start();
+		assertTrue(emitting.await(5, TimeUnit.SECONDS));
+		second.start();
+		Thread.sleep(50);
+		Thread ending = new Thread(() -> consumer.handleCancelOk("tag"));
+		ending.start();
+		Thread.sleep(50);
+		release.countDown();
+		first.join(5000);
+		second.join(5000);
+		ending.join(5000);
+
+		// then
+		assertEquals(1, subscriber.messages.size());
+		assertTrue(subscriber.completed);
+
+	}
+
+	@Test
+	public void request_shouldSignalAnErrorForNonPositiveDemand() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(channel, "input");
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		consumer.subscribe(subscriber);
+		consumer.handleConsumeOk("tag");
+
+		// when
+		subscriber.subscription.request(0);
+		subscriber.subscription.request(5);
+
+		// then
+		assertTrue(subscriber.error instanceof IllegalArgumentException);
+		assertEquals(0, consumer.getDemand());
+		verify(channel, times(1)).basicCancel("tag");
+
+	}
+
+	@Test
+	public void cancel_shouldIgnoreChannelFailures() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		doThrow(IOException.class).when(channel).basicCancel(anyString());
+		doThrow(IOException.class).when(channel).basicQos(anyInt(), anyBoolean());
+
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(channel, "input");
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		consumer.subscribe(subscriber);
+		consumer.handleConsumeOk("tag");
+
+		// when
+		subscriber.subscription.cancel();
+
+		// then
+		assertEquals(0, consumer.getPrefetch());
+		verify(channel, times(1)).basicCancel("tag");
+
+	}
+
+	@Test
+	public void cancel_shouldNotCancelAConsumerThatIsNotRegistered() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(channel, "input");
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		consumer.subscribe(subscriber);
+
+		// when
+		subscriber.subscription.cancel();
+
+		// then
+		verify(channel, never()).basicCancel(anyString());
+
+	}
+
+	@Test
+	public void handleShutdownSignal_shouldSignalAnErrorOnce() throws Exception {
+
+		// given
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(mock(Channel.class), "input");
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		consumer.subscribe(subscriber);
+		ShutdownSignalException signal = new ShutdownSignalException(true, false, null, null);
+
+		// when
+		consumer.handleShutdownSignal("tag", signal);
+		consumer.handleCancelOk("tag");
+
+		// then
+		assertSame(signal, subscriber.error);
+		assertFalse(subscriber.completed);
+
+	}
+
+	@Test
+	public void handleCancelOk_shouldDoNothingWithoutASubscriber() {
+
+		// given
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(mock(Channel.class), "input");
+
+		// when
+		consumer.handleCancelOk("tag");
+
+		// then
+		assertEquals(0, consumer.getDemand());
+
+	}
+
+	@Test
+	public void shutdown_shouldCompleteTheStream() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(channel, "input");
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		consumer.subscribe(subscriber);
+
+		// when
+		consumer.shutdown(10, TimeUnit.MILLISECONDS);
+
+		// then
+		assertTrue(subscriber.completed);
+
+	}
+
+	@Test
+	public void acknowledger_shouldAcknowledgeEachDeliveryAndRequeueOnceTerminated() throws Exception {
+
+		// given
+		Channel channel = mock(Channel.class);
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(channel, "input");
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		consumer.subscribe(subscriber);
+
+		// when
+		consumer.getAcknowledger().ack(1);
+		consumer.getAcknowledger().nack(2, false);
+		subscriber.subscription.cancel();
+		consumer.getAcknowledger().nack(3, false);
+		consumer.getAcknowledger().flush();
+		consumer.getAcknowledger().close();
+
+		// then
+		verify(channel, times(1)).basicAck(1, false);
+		verify(channel, times(1)).basicNack(2, false, false);
+		verify(channel, times(1)).basicNack(3, false, true);
+
+	}
+
+	@Test
+	public void subscribe_shouldStreamAQueueWithBackpressure() throws Exception {
+
+		// given
+		FakeBroker broker = new FakeBroker();
+		MessageQueue<GenericContainer, GenericContainer> messageQueue = new MessageQueue<GenericContainer, GenericContainer>(broker.getConnectionFactory());
+		Channel channel = messageQueue.createChannel();
+		channel.queueDeclare("input", true, false, false, null);
+
+		byte[] body = transport();
+		for (int i = 0; i < 50; i++) {
+			channel.basicPublish("", "input", new AMQP.BasicProperties(), body);
+		}
+
+		Channel consuming = messageQueue.createChannel();
+		StreamingConsumer<GenericContainer, GenericContainer> consumer = new StreamingConsumer<GenericContainer, GenericContainer>(consuming, "input", 8);
+		consumer.setTransportDecoder(new TransportDecoder());
+
+		List<Integer> unacknowledged = Collections.synchronizedList(new ArrayList<Integer>());
+		RecordingSubscriber subscriber = new RecordingSubscriber() {
+			@Override
+			public void onNext(GenericContainer message) {
+				super.onNext(message);
+				unacknowledged.add(broker.getUnacknowledgedCount("input"));
+				if (messages.size() % 5 == 0) {
+					subscription.request(5);
+				}
+			}
+		};
+
+		// when
+		consumer.subscribe(subscriber);
+		subscriber.subscription.request(5);
+		messageQueue.consume("", consuming, consumer);
+
+		// then
+		assertTrue(broker.awaitSettled("input", 5, TimeUnit.SECONDS));
+		assertEquals(50, subscriber.messages.size());
+		assertTrue(Collections.max(unacknowledged) <= 10);
+		messageQueue.close();
+
+	}
+
+	private static void handle(StreamingConsumer<GenericContainer, GenericContainer> consumer, AtomicReference<Exception> failure) {
+		try {
+			consumer.handleMessage(null, mock(GenericContainer.class));
+		} catch (HandleMessageException ex) {
+			failure.set(ex);
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static byte[] transport() throws Exception {
+		String schema = "{\"name\":\"context\",\"type\":\"record\",\"fields\":[]}";
+		Transport message = new Transport("inner", ByteBuffer.allocate(0), "", ByteBuffer.allocate(0));
+		Transport transport = new Transport(schema, ByteBuffer.allocate(0), Transport.class.getName(), ByteBuffer.wrap(encode(message)));
+		return encode(transport);
+	}
+
+	private static byte[] encode(Transport transport) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+		new SpecificDatumWriter<Transport>(Transport.class).write(transport, encoder);
+		encoder.flush();
+		return out.toByteArray();
+	}
+
+	private static class RecordingSubscriber implements Subscriber<GenericContainer> {
+
+		protected final List<GenericContainer> messages = Collections.synchronizedList(new ArrayList<GenericContainer>());
+
+		protected volatile Subscription subscription;
+
+		private volatile Throwable error;
+
+		private volatile boolean completed;
+
+		@Override
+		public void onSubscribe(Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(GenericContainer message) {
+			messages.add(message);
+		}
+
+		@Override
+		public void onError(Throwable error) {
+			this.error = error;
+		}
+
+		@Override
+		public void onComplete() {
+			completed = true;
+		}
+
+	}
+
+}
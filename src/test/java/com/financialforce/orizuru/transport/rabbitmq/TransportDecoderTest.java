@@ -0,0 +1,359 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import com.rabbitmq.client.AMQP;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.financialforce.orizuru.exception.consumer.decode.DecodeMessageContentException;
+import com.financialforce.orizuru.exception.consumer.decode.DecodeMessageException;
+import com.financialforce.orizuru.exception.consumer.decode.DecodeTransportException;
+import com.financialforce.orizuru.transport.Transport;
+
+public class TransportDecoderTest {
+
+	private static final String CONTEXT_SCHEMA = "{\"name\":\"context\",\"type\":\"record\",\"fields\":[]}";
+
+	private static final Schema PREVIOUS_SCHEMA = new Schema.Parser().parse("{\"type\":\"record\",\"name\":\"Transport\","
+			+ "\"namespace\":\"com.financialforce.orizuru.transport\",\"fields\":[{\"name\":\"messageBuffer\",\"type\":\"bytes\"},"
+			+ "{\"name\":\"contextSchema\",\"type\":\"string\"},{\"name\":\"messageSchemaName\",\"type\":\"string\"},"
+			+ "{\"name\":\"contextBuffer\",\"type\":\"bytes\"}]}");
+
+	private static final Schema NEXT_SCHEMA = new Schema.Parser().parse("{\"type\":\"record\",\"name\":\"Transport\","
+			+ "\"namespace\":\"com.financialforce.orizuru.transport\",\"fields\":[{\"name\":\"contextSchema\",\"type\":\"string\"},"
+			+ "{\"name\":\"contextBuffer\",\"type\":\"bytes\"},{\"name\":\"messageSchemaName\",\"type\":\"string\"},"
+			+ "{\"name\":\"messageBuffer\",\"type\":\"bytes\"},{\"name\":\"version\",\"type\":\"int\"}]}");
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void decodeTransport_shouldDecodeTheTransport() throws Exception {
+
+		// given
+		TransportDecoder decoder = new TransportDecoder();
+		byte[] body = encode(transport("inner"));
+
+		// when
+		Transport transport = decoder.decodeTransport(body);
+
+		// then
+		assertEquals(CONTEXT_SCHEMA, transport.getContextSchema().toString());
+		assertEquals(Transport.class.getName(), transport.getMessageSchemaName().toString());
+
+	}
+
+	@Test
+	public void decodeTransport_shouldThrowADecodeTransportExceptionForMalformedData() throws Exception {
+
+		// given
+		TransportDecoder decoder = new TransportDecoder();
+
+		// expect
+		exception.expect(DecodeTransportException.class);
+
+		// when
+		decoder.decodeTransport(new byte[] { 0x7f });
+
+	}
+
+	@Test
+	public void decodeMessage_shouldDecodeTheMessageContent() throws Exception {
+
+		// given
+		TransportDecoder decoder = new TransportDecoder();
+		Transport transport = decoder.decodeTransport(encode(transport("inner")));
+
+		// when
+		Transport message = decoder.decodeMessage(transport);
+
+		// then
+		assertEquals("inner", message.getContextSchema().toString());
+
+	}
+
+	@Test
+	public void decodeMessage_shouldDecodeContentHeldOutsideTheHeap() throws Exception {
+
+		// given
+		TransportDecoder decoder = new TransportDecoder();
+		byte[] content = encode(new Transport("inner", ByteBuffer.allocate(0), "", ByteBuffer.allocate(0)));
+		ByteBuffer direct = ByteBuffer.allocateDirect(content.length);
+		direct.put(content).flip();
+		Transport transport = new Transport(CONTEXT_SCHEMA, ByteBuffer.allocate(0), Transport.class.getName(), direct);
+
+		// when
+		Transport message = decoder.decodeMessage(transport);
+
+		// then
+		assertEquals("inner", message.getContextSchema().toString());
+
+	}
+
+	@Test
+	public void decodeMessage_shouldReuseRecordsIfEnabled() throws Exception {
+
+		// given
+		TransportDecoder decoder = new TransportDecoder(true);
+
+		// when
+		Transport first = decoder.decodeMessage(decoder.decodeTransport(encode(transport("first"))));
+		Transport second = decoder.decodeMessage(decoder.decodeTransport(encode(transport("second"))));
+
+		// then
+		assertTrue(decoder.isReuseRecords());
+		assertSame(first, second);
+		assertEquals("second", second.getContextSchema().toString());
+
+	}
+
+	@Test
+	public void decodeMessage_shouldNotReuseRecordsByDefault() throws Exception {
+
+		// given
+		TransportDecoder decoder = new TransportDecoder();
+
+		// when
+		Transport first = decoder.decodeMessage(decoder.decodeTransport(encode(transport("first"))));
+		Transport second = decoder.decodeMessage(decoder.decodeTransport(encode(transport("second"))));
+
+		// then
+		assertFalse(decoder.isReuseRecords());
+		assertNotSame(first, second);
+		assertEquals("first", first.getContextSchema().toString());
+
+	}
+
+	@Test
+	public void decodeMessage_shouldThrowADecodeMessageExceptionForAnUnknownSchema() throws Exception {
+
+		// given
+		TransportDecoder decoder = new TransportDecoder();
+		Transport transport = new Transport(CONTEXT_SCHEMA, ByteBuffer.allocate(0), "com.example.Unknown", ByteBuffer.allocate(0));
+
+		// expect
+		exception.expect(DecodeMessageException.class);
+
+		// when
+		decoder.decodeMessage(transport);
+
+	}
+
+	@Test
+	public void decodeMessage_shouldThrowADecodeMessageContentExceptionForMalformedContent() throws Exception {
+
+		// given
+		TransportDecoder decoder = new TransportDecoder();
+		Transport transport = new Transport(CONTEXT_SCHEMA, ByteBuffer.allocate(0), Transport.class.getName(), ByteBuffer.wrap(new byte[] { 0x7f }));
+
+		// expect
+		exception.expect(DecodeMessageContentException.class);
+
+		// when
+		decoder.decodeMessage(transport);
+
+	}
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForAnInvalidCacheSize() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new TransportDecoder(false, 0);
+
+	}
+
+	@Test
+	public void decodeMessage_shouldResolveARegisteredWriterSchemaByFingerprint() throws Exception {
+
+		// given
+		TransportDecoder decoder = new TransportDecoder();
+		long fingerprint = decoder.registerSchema(PREVIOUS_SCHEMA);
+		Transport transport = decoder.decodeTransport(encode(previous("inner")));
+
+		// when
+		Transport first = decoder.decodeMessage(transport, fingerprinted(fingerprint));
+		Transport second = decoder.decodeMessage(transport, fingerprinted(fingerprint));
+
+		// then
+		assertEquals(TransportDecoder.DEFAULT_MAX_CACHED_SCHEMAS, decoder.getMaxCachedSchemas());
+		assertEquals(SchemaNormalization.parsingFingerprint64(PREVIOUS_SCHEMA), fingerprint);
+		assertEquals("inner", first.getContextSchema().toString());
+		assertEquals("inner", second.getContextSchema().toString());
+		assertEquals(Transport.class.getName(), first.getMessageSchemaName().toString());
+
+	}
+
+	@Test
+	public void decodeMessage_shouldDecodeWithTheMessageSchemaIfTheFingerprintMatches() throws Exception {
+
+		// given
+		TransportDecoder decoder = new TransportDecoder();
+		Transport transport = decoder.decodeTransport(encode(transport("inner")));
+		long fingerprint = SchemaNormalization.parsingFingerprint64(Transport.getClassSchema());
+
+		// when
+		Transport message = decoder.decodeMessage(transport, fingerprinted(fingerprint));
+
+		// then
+		assertEquals("inner", message.getContextSchema().toString());
+
+	}
+
+	@Test
+	public void decodeMessage_shouldIgnoreAMissingOrMalformedFingerprint() throws Exception {
+
+		// given
+		TransportDecoder decoder = new TransportDecoder();
+		Transport transport = decoder.decodeTransport(encode(transport("inner")));
+		AMQP.BasicProperties malformed = new AMQP.BasicProperties.Builder()
+				.headers(Collections.singletonMap(TransportEncoder.FINGERPRINT_HEADER, "abc"))
+				.build();
+
+		// when
+		Transport first = decoder.decodeMessage(transport, new AMQP.BasicProperties());
+		Transport second = decoder.decodeMessage(transport, malformed);
+
+		// then
+		assertEquals("inner", first.getContextSchema().toString());
+		assertEquals("inner", second.getContextSchema().toString());
+
+	}
+
+	@Test
+	public void decodeMessage_shouldEvictTheLeastRecentlyUsedWriterSchema() throws Exception {
+
+		// given
+		TransportDecoder decoder = new TransportDecoder(false, 1);
+		long previous = decoder.registerSchema(PREVIOUS_SCHEMA);
+		long next = decoder.registerSchema(NEXT_SCHEMA);
+
+		// when
+		Transport first = decoder.decodeMessage(decoder.decodeTransport(encode(previous("first"))), fingerprinted(previous));
+		Transport second = decoder.decodeMessage(decoder.decodeTransport(encode(next("second"))), fingerprinted(next));
+		Transport third = decoder.decodeMessage(decoder.decodeTransport(encode(previous("third"))), fingerprinted(previous));
+
+		// then
+		assertEquals("first", first.getContextSchema().toString());
+		assertEquals("second", second.getContextSchema().toString());
+		assertEquals("third", third.getContextSchema().toString());
+
+	}
+
+	@Test
+	public void decodeMessage_shouldThrowADecodeMessageExceptionForAnUnknownFingerprint() throws Exception {
+
+		// given
+		TransportDecoder decoder = new TransportDecoder();
+		Transport transport = decoder.decodeTransport(encode(previous("inner")));
+
+		// expect
+		exception.expect(DecodeMessageException.class);
+
+		// when
+		decoder.decodeMessage(transport, fingerprinted(SchemaNormalization.parsingFingerprint64(PREVIOUS_SCHEMA)));
+
+	}
+
+	private static AMQP.BasicProperties fingerprinted(long fingerprint) {
+		return new AMQP.BasicProperties.Builder()
+				.headers(Collections.singletonMap(TransportEncoder.FINGERPRINT_HEADER, fingerprint))
+				.build();
+	}
+
+	/**
+	 * Returns a transport whose content was written with the previous version of the message schema, in which the
+	 * fields were in a different order.
+	 */
+	private static Transport previous(String content) throws Exception {
+		GenericRecord record = new GenericData.Record(PREVIOUS_SCHEMA);
+		record.put("messageBuffer", ByteBuffer.allocate(0));
+		record.put("contextSchema", content);
+		record.put("messageSchemaName", Transport.class.getName());
+		record.put("contextBuffer", ByteBuffer.allocate(0));
+		return new Transport(CONTEXT_SCHEMA, ByteBuffer.allocate(0), Transport.class.getName(), ByteBuffer.wrap(write(record)));
+	}
+
+	/**
+	 * Returns a transport whose content was written with the next version of the message schema, which has an extra
+	 * field.
+	 */
+	private static Transport next(String content) throws Exception {
+		GenericRecord record = new GenericData.Record(NEXT_SCHEMA);
+		record.put("contextSchema", content);
+		record.put("contextBuffer", ByteBuffer.allocate(0));
+		record.put("messageSchemaName", Transport.class.getName());
+		record.put("messageBuffer", ByteBuffer.allocate(0));
+		record.put("version", 2);
+		return new Transport(CONTEXT_SCHEMA, ByteBuffer.allocate(0), Transport.class.getName(), ByteBuffer.wrap(write(record)));
+	}
+
+	private static byte[] write(GenericRecord record) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+		new GenericDatumWriter<GenericRecord>(record.getSchema()).write(record, encoder);
+		encoder.flush();
+		return out.toByteArray();
+	}
+
+	private static Transport transport(String content) throws Exception {
+		byte[] message = encode(new Transport(content, ByteBuffer.allocate(0), "", ByteBuffer.allocate(0)));
+		return new Transport(CONTEXT_SCHEMA, ByteBuffer.allocate(0), Transport.class.getName(), ByteBuffer.wrap(message));
+	}
+
+	private static byte[] encode(Transport transport) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+		new SpecificDatumWriter<Transport>(Transport.class).write(transport, encoder);
+		encoder.flush();
+		return out.toByteArray();
+	}
+
+}
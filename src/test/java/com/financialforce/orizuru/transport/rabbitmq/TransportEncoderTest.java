@@ -0,0 +1,284 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.generic.GenericContainer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.financialforce.orizuru.exception.publisher.encode.EncodeMessageContentException;
+import com.financialforce.orizuru.exception.publisher.encode.EncodeTransportException;
+import com.financialforce.orizuru.message.Context;
+import com.financialforce.orizuru.transport.Transport;
+
+public class TransportEncoderTest {
+
+	private static final Schema SCHEMA = new Schema.Parser().parse("{\"name\":\"context\",\"type\":\"record\",\"fields\":[]}");
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Test
+	public void constructor_shouldThrowAnIllegalArgumentExceptionForInvalidCapacities() {
+
+		// expect
+		exception.expect(IllegalArgumentException.class);
+
+		// when
+		new TransportEncoder(64, 32);
+
+	}
+
+	@Test
+	public void encode_shouldMatchTheAbstractPublisherEncoding() throws Exception {
+
+		// given
+		TransportEncoder encoder = new TransportEncoder();
+		DefaultPublisher<Transport> publisher = new DefaultPublisher<Transport>(mock(Channel.class), "output");
+		Transport message = message("content");
+
+		// when
+		byte[] encoded = encoder.encode(context(), message);
+
+		// then
+		assertArrayEquals(publisher.publish(context(), message), encoded);
+		assertEquals(TransportEncoder.DEFAULT_INITIAL_CAPACITY, encoder.getInitialCapacity());
+		assertEquals(TransportEncoder.DEFAULT_MAX_RETAINED_CAPACITY, encoder.getMaxRetainedCapacity());
+
+	}
+
+	@Test
+	public void encode_shouldBeDecodableByTheTransportDecoder() throws Exception {
+
+		// given
+		TransportEncoder encoder = new TransportEncoder();
+		TransportDecoder decoder = new TransportDecoder();
+
+		// when
+		byte[] encoded = encoder.encode(context(), message("content"));
+
+		// then
+		Transport transport = decoder.decodeTransport(encoded);
+		Transport message = decoder.decodeMessage(transport);
+		assertEquals(SCHEMA.toString(), transport.getContextSchema().toString());
+		assertEquals("content", message.getContextSchema().toString());
+
+	}
+
+	@Test
+	public void encode_shouldReturnIndependentArraysForEachMessage() throws Exception {
+
+		// given
+		TransportEncoder encoder = new TransportEncoder(16, 64);
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 256; i++) {
+			large.append('x');
+		}
+
+		// when
+		byte[] first = encoder.encode(context(), message(large.toString()));
+		byte[] second = encoder.encode(context(), message("small"));
+
+		// then
+		assertNotSame(first, second);
+		assertEquals(large.toString(), decode(first));
+		assertEquals("small", decode(second));
+
+	}
+
+	@Test
+	public void encode_shouldThrowAnEncodeMessageContentExceptionIfTheMessageCannotBeEncoded() throws Exception {
+
+		// given
+		TransportEncoder encoder = new TransportEncoder();
+		GenericContainer message = mock(GenericContainer.class);
+		when(message.getSchema()).thenReturn(Transport.getClassSchema());
+
+		// expect
+		exception.expect(EncodeMessageContentException.class);
+
+		// when
+		encoder.encode(context(), message);
+
+	}
+
+	@Test
+	public void encode_shouldThrowAnEncodeTransportExceptionIfTheContextCannotBeEncoded() throws Exception {
+
+		// given
+		TransportEncoder encoder = new TransportEncoder();
+
+		// expect
+		exception.expect(EncodeTransportException.class);
+
+		// when
+		encoder.encode(mock(Context.class), message("content"));
+
+	}
+
+	@Test
+	public void getProperties_shouldReturnThePropertiesUnchangedByDefault() {
+
+		// given
+		TransportEncoder encoder = new TransportEncoder();
+		AMQP.BasicProperties properties = new AMQP.BasicProperties();
+
+		// when
+		AMQP.BasicProperties result = encoder.getProperties(properties, SCHEMA);
+
+		// then
+		assertFalse(encoder.isFingerprintSchemas());
+		assertSame(properties, result);
+
+	}
+
+	@Test
+	public void getProperties_shouldAddTheSchemaFingerprintToTheHeaders() {
+
+		// given
+		TransportEncoder encoder = new TransportEncoder(64, 1024, true);
+		AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+				.correlationId("id")
+				.headers(Collections.singletonMap("tenant", "acme"))
+				.build();
+
+		// when
+		AMQP.BasicProperties result = encoder.getProperties(properties, SCHEMA);
+
+		// then
+		assertTrue(encoder.isFingerprintSchemas());
+		assertEquals("id", result.getCorrelationId());
+		assertEquals(fingerprinted(Collections.singletonMap("tenant", "acme")), new HashMap<String, Object>(result.getHeaders()));
+		assertEquals(2, result.getHeaders().size());
+		assertTrue(result.getHeaders().containsKey("tenant"));
+		assertTrue(result.getHeaders().containsKey(TransportEncoder.FINGERPRINT_HEADER));
+		assertEquals("acme", result.getHeaders().get("tenant"));
+		assertEquals(SchemaNormalization.parsingFingerprint64(SCHEMA), result.getHeaders().get(TransportEncoder.FINGERPRINT_HEADER));
+		assertNull(properties.getHeaders().get(TransportEncoder.FINGERPRINT_HEADER));
+
+	}
+
+	@Test
+	public void getProperties_shouldAddTheSchemaFingerprintToEachMessagesOwnProperties() {
+
+		// given
+		TransportEncoder encoder = new TransportEncoder(64, 1024, true);
+		AMQP.BasicProperties first = new AMQP.BasicProperties.Builder().messageId("1").headers(Collections.singletonMap("tenant", "acme")).build();
+		AMQP.BasicProperties second = new AMQP.BasicProperties.Builder().messageId("2").build();
+
+		// when
+		AMQP.BasicProperties firstResult = encoder.getProperties(first, SCHEMA);
+		AMQP.BasicProperties secondResult = encoder.getProperties(second, SCHEMA);
+
+		// then
+		assertEquals("1", firstResult.getMessageId());
+		assertEquals(fingerprinted(Collections.singletonMap("tenant", "acme")), new HashMap<String, Object>(firstResult.getHeaders()));
+		assertEquals("2", secondResult.getMessageId());
+		assertEquals(fingerprinted(Collections.emptyMap()), new HashMap<String, Object>(secondResult.getHeaders()));
+
+	}
+
+	@Test
+	public void getProperties_shouldReplaceAnExistingFingerprintHeader() {
+
+		// given
+		TransportEncoder encoder = new TransportEncoder(64, 1024, true);
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put("tenant", "acme");
+		headers.put(TransportEncoder.FINGERPRINT_HEADER, 1L);
+		AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder().headers(headers).build();
+
+		// when
+		AMQP.BasicProperties result = encoder.getProperties(properties, SCHEMA);
+
+		// then
+		assertEquals(2, result.getHeaders().size());
+		assertEquals(fingerprinted(Collections.singletonMap("tenant", "acme")), new HashMap<String, Object>(result.getHeaders()));
+
+	}
+
+	@Test
+	public void getProperties_shouldAddTheSchemaFingerprintWithoutProperties() {
+
+		// given
+		TransportEncoder encoder = new TransportEncoder(64, 1024, true);
+
+		// when
+		AMQP.BasicProperties result = encoder.getProperties(null, SCHEMA);
+
+		// then
+		assertEquals(SchemaNormalization.parsingFingerprint64(SCHEMA), result.getHeaders().get(TransportEncoder.FINGERPRINT_HEADER));
+		assertSame(result, encoder.getProperties(null, SCHEMA));
+		assertNotSame(result, encoder.getProperties(new AMQP.BasicProperties(), SCHEMA));
+
+	}
+
+	private static Map<String, Object> fingerprinted(Map<String, ?> headers) {
+		Map<String, Object> expected = new HashMap<String, Object>(headers);
+		expected.put(TransportEncoder.FINGERPRINT_HEADER, SchemaNormalization.parsingFingerprint64(SCHEMA));
+		return expected;
+	}
+
+	private static Context context() {
+		Context context = mock(Context.class);
+		when(context.getSchema()).thenReturn(SCHEMA);
+		when(context.getDataBuffer()).thenReturn(ByteBuffer.wrap("test".getBytes()));
+		return context;
+	}
+
+	private static String decode(byte[] body) throws Exception {
+		TransportDecoder decoder = new TransportDecoder();
+		Transport message = decoder.decodeMessage(decoder.decodeTransport(body));
+		return message.getContextSchema().toString();
+	}
+
+	private static Transport message(String content) {
+		return new Transport(content, ByteBuffer.allocate(0), "", ByteBuffer.allocate(0));
+	}
+
+}
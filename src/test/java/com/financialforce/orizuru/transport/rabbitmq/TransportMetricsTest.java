@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2017, FinancialForce.com, inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ *   are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ * - Neither the name of the FinancialForce.com, inc nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ **/
+
+package com.financialforce.orizuru.transport.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class TransportMetricsTest {
+
+	@Test
+	public void getQueue_shouldReturnTheSameMetricsForAQueue() {
+
+		// given
+		TransportMetrics metrics = new TransportMetrics();
+
+		// when
+		QueueMetrics queue = metrics.getQueue("input");
+
+		// then
+		assertSame(queue, metrics.getQueue("input"));
+		assertEquals("input", queue.getQueueName());
+		assertEquals(1, metrics.getQueues().size());
+
+	}
+
+	@Test
+	public void record_shouldRecordConsumerEventsPerQueue() {
+
+		// given
+		TransportMetrics metrics = new TransportMetrics();
+
+		// when
+		metrics.recordDelivery("input", 100, false);
+		metrics.recordDelivery("input", 50, true);
+		metrics.recordDecode("input", 10);
+		metrics.recordHandle("input", 20);
+		metrics.recordConsume("input", 40, true);
+		metrics.recordConsume("input", 30, false);
+		metrics.recordAck("input");
+		metrics.recordNack("input", true);
+		metrics.recordNack("input", false);
+		metrics.recordDelivery("other", 1, false);
+
+		// then
+		QueueMetrics queue = metrics.getQueue("input");
+		assertEquals(2, queue.getDeliveries());
+		assertEquals(1, queue.getRedeliveries());
+		assertEquals(150, queue.getDeliveredBytes());
+		assertEquals(1, queue.getDecodeTime().getCount());
+		assertEquals(20, queue.getHandleTime().getMax());
+		assertEquals(2, queue.getConsumeTime().getCount());
+		assertEquals(1, queue.getFailures());
+		assertEquals(1, queue.getAcks());
+		assertEquals(2, queue.getNacks());
+		assertEquals(1, queue.getRequeues());
+		assertEquals(1, metrics.getQueue("other").getDeliveries());
+
+	}
+
+	@Test
+	public void record_shouldRecordPublisherEventsPerQueue() {
+
+		// given
+		TransportMetrics metrics = new TransportMetrics();
+
+		// when
+		metrics.recordPublish("output", 100);
+		metrics.recordPublish("output", 200);
+		metrics.recordConfirm("output", 1000, true);
+		metrics.recordConfirm("output", 2000, false);
+
+		// then
+		QueueMetrics queue = metrics.getQueue("output");
+		assertEquals(2, queue.getPublishes());
+		assertEquals(200, queue.getPublishTime().getMax());
+		assertEquals(1, queue.getConfirms());
+		assertEquals(1, queue.getConfirmNacks());
+		assertEquals(2, queue.getConfirmLatency().getCount());
+
+	}
+
+}